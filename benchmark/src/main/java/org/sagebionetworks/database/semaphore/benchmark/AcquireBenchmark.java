@@ -0,0 +1,88 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sagebionetworks.database.semaphore.CountingSemaphore;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Measures {@link CountingSemaphore#attemptToAcquireLock(String, long, int, String)}
+ * under contention.
+ * <p>
+ * With keyCount=1 every thread competes for the same hot key so most attempts
+ * are rejected once maxLockCount permits are out. With a large keyCount each
+ * attempt lands on a key that is likely cold (never bootstrapped or garbage
+ * collected) which exercises the bootstrap path.
+ * </p>
+ * Any lock that is acquired is released outside of the measured section.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AcquireBenchmark {
+
+	public static final long TIMEOUT_SEC = 60L;
+	public static final String CONTEXT = "benchmark";
+
+	@Param({ "1", "100000" })
+	public int keyCount;
+
+	@Param({ "1", "10", "100" })
+	public int maxLockCount;
+
+	private AnnotationConfigApplicationContext context;
+	CountingSemaphore semaphore;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		context = BenchmarkConfig.createContext();
+		semaphore = context.getBean(CountingSemaphore.class);
+		// Start each trial with an empty table.
+		semaphore.releaseAllLocks();
+		semaphore.runGarbageCollection();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		semaphore.releaseAllLocks();
+		context.close();
+	}
+
+	/**
+	 * Per-thread state that holds the token acquired by the last invocation.
+	 */
+	@State(Scope.Thread)
+	public static class Holder {
+
+		String key;
+		Optional<String> token = Optional.empty();
+
+		@TearDown(Level.Invocation)
+		public void release(AcquireBenchmark benchmark) {
+			if (token.isPresent()) {
+				benchmark.semaphore.releaseLock(key, token.get());
+				token = Optional.empty();
+			}
+		}
+	}
+
+	@Benchmark
+	public Optional<String> attemptToAcquireLock(Holder holder) {
+		holder.key = "key-" + ThreadLocalRandom.current().nextInt(keyCount);
+		holder.token = semaphore.attemptToAcquireLock(holder.key, TIMEOUT_SEC, maxLockCount, CONTEXT);
+		return holder.token;
+	}
+
+}
@@ -0,0 +1,118 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.sagebionetworks.database.semaphore.BootstrapStrategy;
+import org.sagebionetworks.database.semaphore.CountingSemaphore;
+import org.sagebionetworks.database.semaphore.CountingSemaphoreImpl;
+import org.sagebionetworks.database.semaphore.TransactionConfig;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+
+/**
+ * Spring configuration used by the benchmarks. The semaphore is wired exactly
+ * as it would be in an application (a pooled DataSource and a transaction
+ * manager) so each measured call includes the REQUIRES_NEW transaction that
+ * wraps the procedure call.
+ *
+ * The connection is configured with the same system properties as the
+ * integration tests: "jdbc.url", "jdbc.username" and "jdbc.password".
+ */
+@Configuration
+@Import(TransactionConfig.class)
+public class BenchmarkConfig {
+
+	/**
+	 * Must be at least as large as the largest thread count under test so the
+	 * pool itself never becomes the bottleneck.
+	 */
+	public static final int MAX_POOL_SIZE = 128;
+
+	@Bean(destroyMethod = "close")
+	public BasicDataSource dataSourcePool() {
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName("com.mysql.cj.jdbc.Driver");
+		dataSource.setUrl(requiredProperty("jdbc.url"));
+		dataSource.setUsername(requiredProperty("jdbc.username"));
+		dataSource.setPassword(requiredProperty("jdbc.password"));
+		dataSource.setMaxTotal(MAX_POOL_SIZE);
+		dataSource.setMaxIdle(MAX_POOL_SIZE);
+		dataSource.setTestOnBorrow(true);
+		dataSource.setValidationQuery("SELECT 1");
+		return dataSource;
+	}
+
+	@Bean
+	public DataSourceTransactionManager transactionManager(DataSource dataSourcePool) {
+		return new DataSourceTransactionManager(dataSourcePool);
+	}
+
+	@Bean
+	public JdbcTemplate jdbcTemplate(DataSource dataSourcePool) {
+		return new JdbcTemplate(dataSourcePool);
+	}
+
+	@Bean
+	public CountingSemaphore semaphore(DataSource dataSourcePool, ObjectProvider<BootstrapStrategy> bootstrapStrategy,
+			ObjectProvider<JdbcEngine> jdbcEngine) {
+		CountingSemaphoreImpl semaphore = new CountingSemaphoreImpl(dataSourcePool);
+		semaphore.setBootstrapStrategy(
+				bootstrapStrategy.getIfAvailable(() -> CountingSemaphoreImpl.DEFAULT_BOOTSTRAP_STRATEGY));
+		semaphore.setLeanJdbcEnabled(JdbcEngine.LEAN.equals(jdbcEngine.getIfAvailable(() -> JdbcEngine.TEMPLATE)));
+		return semaphore;
+	}
+
+	/**
+	 * Create a new application context from this configuration. The caller is
+	 * responsible for closing the context.
+	 * 
+	 * @return
+	 */
+	public static AnnotationConfigApplicationContext createContext() {
+		return new AnnotationConfigApplicationContext(BenchmarkConfig.class);
+	}
+
+	/**
+	 * Create a new application context with a semaphore that uses the given
+	 * bootstrap strategy. The caller is responsible for closing the context.
+	 * 
+	 * @param bootstrapStrategy
+	 * @return
+	 */
+	public static AnnotationConfigApplicationContext createContext(BootstrapStrategy bootstrapStrategy) {
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		context.registerBean(BootstrapStrategy.class, () -> bootstrapStrategy);
+		context.register(BenchmarkConfig.class);
+		context.refresh();
+		return context;
+	}
+
+	/**
+	 * Create a new application context with a semaphore that calls the database
+	 * with the given engine. The caller is responsible for closing the context.
+	 * 
+	 * @param jdbcEngine
+	 * @return
+	 */
+	public static AnnotationConfigApplicationContext createContext(JdbcEngine jdbcEngine) {
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		context.registerBean(JdbcEngine.class, () -> jdbcEngine);
+		context.register(BenchmarkConfig.class);
+		context.refresh();
+		return context;
+	}
+
+	static String requiredProperty(String name) {
+		String value = System.getProperty(name);
+		if (value == null) {
+			throw new IllegalStateException("System property: '" + name + "' is required");
+		}
+		return value;
+	}
+}
@@ -0,0 +1,70 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+/**
+ * Runs the selected benchmarks once for each thread count so a single
+ * invocation reports throughput and latency percentiles (p50/p99/p99.9 from
+ * the SampleTime mode) across all thread counts, key cardinalities and
+ * maxLockCount values.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -Djdbc.url=jdbc:mysql://localhost/semaphore -Djdbc.username=&lt;username&gt; -Djdbc.password=&lt;password&gt; \
+ *     [-Dbenchmark.threads=1,8,32] -jar target/benchmarks.jar [standard JMH options]
+ * </pre>
+ *
+ * Any standard JMH command line option (for example a benchmark regex,
+ * "-p keyCount=1" or "-prof gc") is passed through.
+ * </p>
+ */
+public class BenchmarkRunner {
+
+	public static final String THREADS_PROPERTY = "benchmark.threads";
+	public static final String DEFAULT_THREADS = "1,8,32";
+	public static final String[] FORWARDED_PROPERTIES = { "jdbc.url", "jdbc.username", "jdbc.password" };
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		for (int threads : parseThreads(System.getProperty(THREADS_PROPERTY, DEFAULT_THREADS))) {
+			ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLine).threads(threads)
+					.jvmArgsAppend(forwardedProperties()).resultFormat(ResultFormatType.JSON)
+					.result("jmh-result-threads-" + threads + ".json");
+			if (commandLine.getIncludes().isEmpty()) {
+				builder.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+			}
+			new Runner(builder.build()).run();
+		}
+	}
+
+	/**
+	 * The forked benchmark JVMs need the same connection properties as this JVM.
+	 *
+	 * @return
+	 */
+	static String[] forwardedProperties() {
+		List<String> jvmArgs = new ArrayList<>();
+		for (String name : FORWARDED_PROPERTIES) {
+			jvmArgs.add("-D" + name + "=" + BenchmarkConfig.requiredProperty(name));
+		}
+		return jvmArgs.toArray(new String[jvmArgs.size()]);
+	}
+
+	static List<Integer> parseThreads(String value) {
+		List<Integer> threads = new ArrayList<>();
+		for (String part : value.split(",")) {
+			threads.add(Integer.parseInt(part.trim()));
+		}
+		return threads;
+	}
+}
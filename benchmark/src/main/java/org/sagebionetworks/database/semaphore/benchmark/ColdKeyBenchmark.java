@@ -0,0 +1,93 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sagebionetworks.database.semaphore.BootstrapStrategy;
+import org.sagebionetworks.database.semaphore.CountingSemaphore;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Compares the {@link BootstrapStrategy} options on the cold-key path. Every
+ * invocation acquires a lock on a key that has never been used, so each call
+ * must create all maxLockCount rows of the key before a lock can be issued.
+ * <p>
+ * Any lock that is acquired is released outside of the measured section.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ColdKeyBenchmark {
+
+	@Param({ "SINGLE_ROW", "SET_BASED" })
+	public BootstrapStrategy bootstrapStrategy;
+
+	@Param({ "10", "50", "100" })
+	public int maxLockCount;
+
+	private AnnotationConfigApplicationContext context;
+	private String keyPrefix;
+	private AtomicLong keyCounter;
+	CountingSemaphore semaphore;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		context = BenchmarkConfig.createContext(bootstrapStrategy);
+		semaphore = context.getBean(CountingSemaphore.class);
+		// Start each trial with an empty table.
+		semaphore.releaseAllLocks();
+		semaphore.runGarbageCollection();
+		keyPrefix = "cold-" + UUID.randomUUID() + "-";
+		keyCounter = new AtomicLong();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		semaphore.releaseAllLocks();
+		context.close();
+	}
+
+	/**
+	 * Per-thread state that holds the token acquired by the last invocation.
+	 */
+	@State(Scope.Thread)
+	public static class Holder {
+
+		String key;
+		Optional<String> token = Optional.empty();
+
+		@Setup(Level.Invocation)
+		public void nextKey(ColdKeyBenchmark benchmark) {
+			key = benchmark.keyPrefix + benchmark.keyCounter.incrementAndGet();
+		}
+
+		@TearDown(Level.Invocation)
+		public void release(ColdKeyBenchmark benchmark) {
+			if (token.isPresent()) {
+				benchmark.semaphore.releaseLock(key, token.get());
+				token = Optional.empty();
+			}
+		}
+	}
+
+	@Benchmark
+	public Optional<String> attemptToAcquireColdLock(Holder holder) {
+		holder.token = semaphore.attemptToAcquireLock(holder.key, AcquireBenchmark.TIMEOUT_SEC, maxLockCount,
+				AcquireBenchmark.CONTEXT);
+		return holder.token;
+	}
+
+}
@@ -0,0 +1,57 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sagebionetworks.database.semaphore.InMemoryCountingSemaphore;
+
+/**
+ * Measures an acquire followed by a release with an
+ * {@link InMemoryCountingSemaphore}, either on a single hot key or spread over
+ * many keys. No database is used. The keys are created up front so only the
+ * semaphore is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InMemoryBenchmark {
+
+	@Param({ "1", "100000" })
+	public int keyCount;
+
+	@Param({ "10" })
+	public int maxLockCount;
+
+	private InMemoryCountingSemaphore semaphore;
+	private String[] keys;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		semaphore = new InMemoryCountingSemaphore();
+		keys = new String[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			keys[i] = "key-" + i;
+		}
+	}
+
+	@Benchmark
+	public Optional<String> acquireAndRelease() {
+		String key = keys[ThreadLocalRandom.current().nextInt(keyCount)];
+		Optional<String> token = semaphore.attemptToAcquireLock(key, AcquireBenchmark.TIMEOUT_SEC, maxLockCount,
+				AcquireBenchmark.CONTEXT);
+		if (token.isPresent()) {
+			semaphore.releaseLock(key, token.get());
+		}
+		return token;
+	}
+}
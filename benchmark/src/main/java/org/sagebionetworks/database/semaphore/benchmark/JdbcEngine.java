@@ -0,0 +1,15 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+/**
+ * How the semaphore calls its procedures.
+ */
+public enum JdbcEngine {
+	/**
+	 * Through a JdbcTemplate (the default).
+	 */
+	TEMPLATE,
+	/**
+	 * With plain JDBC, see: CountingSemaphoreImpl.setLeanJdbcEnabled(boolean).
+	 */
+	LEAN
+}
@@ -0,0 +1,79 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sagebionetworks.database.semaphore.CountingSemaphore;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Measures an acquire, refresh and release of a lock with each
+ * {@link JdbcEngine}. Run with "-prof gc" to compare the allocation rate
+ * (gc.alloc.rate.norm is the bytes allocated per call) of the two engines.
+ * <p>
+ * The keys are bootstrapped before the measurement so each call takes the same
+ * path. To include the driver's statement cache, add
+ * "useServerPrepStmts=true&amp;cachePrepStmts=true" to the jdbc.url.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JdbcEngineBenchmark {
+
+	@Param({ "TEMPLATE", "LEAN" })
+	public JdbcEngine engine;
+
+	@Param({ "100" })
+	public int keyCount;
+
+	@Param({ "100" })
+	public int maxLockCount;
+
+	private AnnotationConfigApplicationContext context;
+	private CountingSemaphore semaphore;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		context = BenchmarkConfig.createContext(engine);
+		semaphore = context.getBean(CountingSemaphore.class);
+		// Start each trial with an empty table.
+		semaphore.releaseAllLocks();
+		semaphore.runGarbageCollection();
+		for (int i = 0; i < keyCount; i++) {
+			String key = "key-" + i;
+			semaphore.releaseLock(key, semaphore
+					.attemptToAcquireLock(key, AcquireBenchmark.TIMEOUT_SEC, maxLockCount, AcquireBenchmark.CONTEXT)
+					.get());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		semaphore.releaseAllLocks();
+		context.close();
+	}
+
+	@Benchmark
+	public Optional<String> acquireRefreshAndRelease() {
+		String key = "key-" + ThreadLocalRandom.current().nextInt(keyCount);
+		Optional<String> token = semaphore.attemptToAcquireLock(key, AcquireBenchmark.TIMEOUT_SEC, maxLockCount,
+				AcquireBenchmark.CONTEXT);
+		if (token.isPresent()) {
+			semaphore.refreshLockTimeout(key, token.get(), AcquireBenchmark.TIMEOUT_SEC);
+			semaphore.releaseLock(key, token.get());
+		}
+		return token;
+	}
+}
@@ -0,0 +1,160 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sagebionetworks.database.semaphore.CountingSemaphore;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Measures {@link CountingSemaphore#releaseLock(String, String)} and
+ * {@link CountingSemaphore#refreshLockTimeout(String, String, long)} for a lock
+ * that is already held.
+ * <p>
+ * Each thread holds a lock on its own key so the measured calls never compete
+ * for the same row. The rowCount parameter pre-populates the table with held
+ * filler locks so the cost of the token lookup can be compared at different
+ * table sizes. The tokenFormat parameter compares tokens found through the
+ * primary key with the opaque tokens issued by earlier versions, which are found
+ * through the TOKEN_BIN index.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LockHolderBenchmark {
+
+	public static final long TIMEOUT_SEC = 60L;
+	public static final String CONTEXT = "benchmark";
+	public static final int FILLER_BATCH_SIZE = 1000;
+	public static final String INSERT_FILLER = "INSERT IGNORE INTO SEMAPHORE_LOCK (LOCK_KEY, LOCK_NUM, TOKEN, EXPIRES_ON, CONTEXT)"
+			+ " VALUES (?, 0, ?, CURRENT_TIMESTAMP + INTERVAL 1 DAY, 'filler')";
+
+	/**
+	 * The form of the token passed to release and refresh.
+	 */
+	public enum TokenFormat {
+		/**
+		 * The token as issued: '&lt;ROW_ID&gt;.&lt;UUID&gt;'.
+		 */
+		ROW_ID,
+		/**
+		 * Only the UUID, as issued by earlier versions.
+		 */
+		OPAQUE;
+
+		/**
+		 *
+		 * @param token An issued token.
+		 * @return The given token in this format.
+		 */
+		String format(String token) {
+			return this == OPAQUE ? token.substring(token.indexOf('.') + 1) : token;
+		}
+	}
+
+	@Param({ "0", "100000", "1000000" })
+	public int rowCount;
+
+	@Param({ "ROW_ID", "OPAQUE" })
+	public TokenFormat tokenFormat;
+
+	private AnnotationConfigApplicationContext context;
+	CountingSemaphore semaphore;
+	private final AtomicInteger threadCounter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		context = BenchmarkConfig.createContext();
+		semaphore = context.getBean(CountingSemaphore.class);
+		semaphore.releaseAllLocks();
+		semaphore.runGarbageCollection();
+		insertFillerRows(context.getBean(JdbcTemplate.class), rowCount);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		semaphore.releaseAllLocks();
+		context.close();
+	}
+
+	/**
+	 * Insert the given number of held lock rows, each with its own key.
+	 *
+	 * @param jdbcTemplate
+	 * @param count
+	 */
+	static void insertFillerRows(JdbcTemplate jdbcTemplate, int count) {
+		List<Object[]> batch = new ArrayList<>(FILLER_BATCH_SIZE);
+		for (int i = 0; i < count; i++) {
+			batch.add(new Object[] { "filler-" + i, UUID.randomUUID().toString() });
+			if (batch.size() == FILLER_BATCH_SIZE) {
+				jdbcTemplate.batchUpdate(INSERT_FILLER, batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			jdbcTemplate.batchUpdate(INSERT_FILLER, batch);
+		}
+	}
+
+	/**
+	 * Per-thread state with a key that is only used by a single thread.
+	 */
+	@State(Scope.Thread)
+	public static class Holder {
+
+		String key;
+		String token;
+
+		@Setup(Level.Trial)
+		public void setupKey(LockHolderBenchmark benchmark) {
+			key = "holder-" + benchmark.threadCounter.getAndIncrement();
+		}
+
+		/**
+		 * Acquire a lock before each invocation so release always has a token.
+		 */
+		@Setup(Level.Invocation)
+		public void acquire(LockHolderBenchmark benchmark) {
+			if (token == null) {
+				token = benchmark.tokenFormat.format(benchmark.semaphore.attemptToAcquireLock(key, TIMEOUT_SEC, 1, CONTEXT)
+						.orElseThrow(() -> new IllegalStateException("Failed to acquire lock on: " + key)));
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void release(LockHolderBenchmark benchmark) {
+			if (token != null) {
+				benchmark.semaphore.releaseLock(key, token);
+				token = null;
+			}
+		}
+	}
+
+	@Benchmark
+	public void releaseLock(Holder holder) {
+		semaphore.releaseLock(holder.key, holder.token);
+		holder.token = null;
+	}
+
+	@Benchmark
+	public void refreshLockTimeout(Holder holder) {
+		semaphore.refreshLockTimeout(holder.key, holder.token, TIMEOUT_SEC);
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.sagebionetworks.database.semaphore.benchmark;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sagebionetworks.database.semaphore.CountingSemaphore;
+import org.sagebionetworks.database.semaphore.PermitBlockSemaphore;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Measures an acquire followed by a release on a single key with many permits,
+ * either against the database for every call (DIRECT) or through a
+ * {@link PermitBlockSemaphore} that leases blocks of permits (BLOCK).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PermitBlockBenchmark {
+
+	public static final String KEY = "permit-block";
+
+	public enum Tier {
+		DIRECT, BLOCK
+	}
+
+	@Param({ "DIRECT", "BLOCK" })
+	public Tier tier;
+
+	@Param({ "100" })
+	public int maxLockCount;
+
+	private AnnotationConfigApplicationContext context;
+	private CountingSemaphore databaseSemaphore;
+	private PermitBlockSemaphore blockSemaphore;
+	CountingSemaphore semaphore;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		context = BenchmarkConfig.createContext();
+		databaseSemaphore = context.getBean(CountingSemaphore.class);
+		// Start each trial with an empty table.
+		databaseSemaphore.releaseAllLocks();
+		databaseSemaphore.runGarbageCollection();
+		if (Tier.BLOCK.equals(tier)) {
+			blockSemaphore = new PermitBlockSemaphore(databaseSemaphore);
+			semaphore = blockSemaphore;
+		} else {
+			semaphore = databaseSemaphore;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		if (blockSemaphore != null) {
+			blockSemaphore.close();
+		}
+		databaseSemaphore.releaseAllLocks();
+		context.close();
+	}
+
+	@Benchmark
+	public Optional<String> acquireAndRelease() {
+		Optional<String> token = semaphore.attemptToAcquireLock(KEY, AcquireBenchmark.TIMEOUT_SEC, maxLockCount,
+				AcquireBenchmark.CONTEXT);
+		if (token.isPresent()) {
+			semaphore.releaseLock(KEY, token.get());
+		}
+		return token;
+	}
+}
@@ -0,0 +1,287 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the calls of a {@link CountingSemaphore} on an executor and returns a
+ * {@link CompletableFuture} for each, so callers such as reactive services do
+ * not block their own threads on the database.
+ * <p>
+ * At most maxInFlight calls run at the same time. Further calls wait in a queue
+ * without blocking the caller, so the database connection pool is never asked
+ * for more connections than maxInFlight by this class.
+ * </p>
+ * <p>
+ * A call whose future is cancelled or completed, for example by
+ * {@link CompletableFuture#orTimeout(long, java.util.concurrent.TimeUnit)},
+ * before it starts is skipped. A call that is already running is not
+ * interrupted. If an acquire completes after its future was cancelled or timed
+ * out, the lock that nobody will receive is released right away, so it does not
+ * stay held until its timeout.
+ * </p>
+ * This class is thread-safe.
+ */
+public class AsyncCountingSemaphore implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+	private static final Logger log = LogManager.getLogger(AsyncCountingSemaphore.class);
+
+	private final CountingSemaphore semaphore;
+	private final Executor executor;
+	private final boolean ownsExecutor;
+	private final int maxInFlight;
+	private final AtomicInteger inFlight;
+	private final Queue<Task<?>> pending;
+
+	/**
+	 * Create an async semaphore with its own pool of
+	 * {@link #DEFAULT_MAX_IN_FLIGHT} daemon threads.
+	 *
+	 * @param semaphore
+	 */
+	public AsyncCountingSemaphore(CountingSemaphore semaphore) {
+		this(semaphore, Executors.newFixedThreadPool(DEFAULT_MAX_IN_FLIGHT, r -> {
+			Thread thread = new Thread(r, "semaphore-async");
+			thread.setDaemon(true);
+			return thread;
+		}), true, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 *
+	 * @param semaphore   The semaphore that is called.
+	 * @param executor    Runs the calls. The caller remains responsible for
+	 *                    shutting it down. See:
+	 *                    {@link #newVirtualThreadPerTaskExecutor()}.
+	 * @param maxInFlight The maximum number of calls that run at the same time.
+	 */
+	public AsyncCountingSemaphore(CountingSemaphore semaphore, Executor executor, int maxInFlight) {
+		this(semaphore, executor, false, maxInFlight);
+	}
+
+	AsyncCountingSemaphore(CountingSemaphore semaphore, Executor executor, boolean ownsExecutor, int maxInFlight) {
+		if (semaphore == null) {
+			throw new IllegalArgumentException("Semaphore cannot be null");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor cannot be null");
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("MaxInFlight cannot be less then one.");
+		}
+		this.semaphore = semaphore;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new AtomicInteger();
+		this.pending = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Create an executor that starts a new virtual thread for each task. Since
+	 * the calls are bounded by maxInFlight, this avoids sizing a thread pool.
+	 *
+	 * @return The result of Executors.newVirtualThreadPerTaskExecutor().
+	 * @throws UnsupportedOperationException When the running JVM does not support
+	 *                                       virtual threads (before Java 21).
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+		}
+	}
+
+	/**
+	 * See: {@link CountingSemaphore#attemptToAcquireLock(String, long, int, String)}
+	 *
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param context
+	 * @return A future for the token of the lock, or Optional.empty() when no lock
+	 *         was available. If the future is cancelled or completed by the caller
+	 *         while the lock is acquired, the lock is released.
+	 */
+	public CompletableFuture<Optional<String>> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount,
+			String context) {
+		return submit(() -> semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context),
+				token -> token.ifPresent(t -> releaseOrphan(key, t)));
+	}
+
+	/**
+	 * Release a lock that was acquired after its future was cancelled or
+	 * completed.
+	 *
+	 * @param key
+	 * @param token
+	 */
+	private void releaseOrphan(String key, String token) {
+		try {
+			semaphore.releaseLock(key, token);
+		} catch (RuntimeException e) {
+			log.warn("Failed to release the lock of a cancelled acquire of key: {}", key, e);
+		}
+	}
+
+	/**
+	 * See: {@link CountingSemaphore#releaseLock(String, String)}
+	 *
+	 * @param key
+	 * @param token
+	 * @return A future that completes once the lock is released, or completes
+	 *         exceptionally with a {@link LockReleaseFailedException}.
+	 */
+	public CompletableFuture<Void> releaseLock(String key, String token) {
+		return submit(() -> {
+			semaphore.releaseLock(key, token);
+			return null;
+		}, null);
+	}
+
+	/**
+	 * See: {@link CountingSemaphore#refreshLockTimeout(String, String, long)}
+	 *
+	 * @param key
+	 * @param token
+	 * @param timeoutSec
+	 * @return A future that completes once the lock is refreshed, or completes
+	 *         exceptionally with a {@link LockReleaseFailedException}.
+	 */
+	public CompletableFuture<Void> refreshLockTimeout(String key, String token, long timeoutSec) {
+		return submit(() -> {
+			semaphore.refreshLockTimeout(key, token, timeoutSec);
+			return null;
+		}, null);
+	}
+
+	/**
+	 * See: {@link CountingSemaphore#getFirstUnexpiredLockContext(String)}
+	 *
+	 * @param key
+	 * @return
+	 */
+	public CompletableFuture<Optional<String>> getFirstUnexpiredLockContext(String key) {
+		return submit(() -> semaphore.getFirstUnexpiredLockContext(key), null);
+	}
+
+	/**
+	 *
+	 * @return The number of calls that are currently running.
+	 */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	/**
+	 *
+	 * @return The number of calls waiting for one of the maxInFlight slots.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	private <T> CompletableFuture<T> submit(Supplier<T> call, Consumer<T> onAbandoned) {
+		Task<T> task = new Task<>(call, onAbandoned);
+		pending.add(task);
+		drain();
+		return task.future;
+	}
+
+	/**
+	 * Start pending calls while fewer than maxInFlight calls are running. Called
+	 * after each submit and after each call completes, so no call is left waiting
+	 * while a slot is free.
+	 */
+	private void drain() {
+		while (!pending.isEmpty()) {
+			int current = inFlight.get();
+			if (current >= maxInFlight) {
+				return;
+			}
+			if (!inFlight.compareAndSet(current, current + 1)) {
+				continue;
+			}
+			Task<?> task = pending.poll();
+			if (task == null) {
+				inFlight.decrementAndGet();
+				continue;
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						inFlight.decrementAndGet();
+						drain();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				inFlight.decrementAndGet();
+				task.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * A single call and its future.
+	 *
+	 * @param <T>
+	 */
+	private static final class Task<T> {
+
+		private final CompletableFuture<T> future;
+		private final Supplier<T> call;
+		private final Consumer<T> onAbandoned;
+
+		private Task(Supplier<T> call, Consumer<T> onAbandoned) {
+			this.future = new CompletableFuture<>();
+			this.call = call;
+			this.onAbandoned = onAbandoned;
+		}
+
+		private void run() {
+			if (future.isDone()) {
+				// Cancelled or timed out before it started.
+				return;
+			}
+			T result;
+			try {
+				result = call.get();
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+				return;
+			}
+			if (!future.complete(result) && onAbandoned != null) {
+				onAbandoned.accept(result);
+			}
+		}
+	}
+
+	/**
+	 * Shut down the executor if it was created by this class. Calls that are
+	 * already running are allowed to complete.
+	 */
+	@Override
+	public void close() {
+		if (ownsExecutor) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.Optional;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * A {@link CountingSemaphoreImpl} that does not start a transaction of its
+ * own. Each procedure already commits its own work, so the REQUIRES_NEW
+ * transaction of {@link CountingSemaphoreImpl} only adds round trips to
+ * disable auto-commit, commit and restore the connection.
+ * <p>
+ * Each call is annotated with NOT_SUPPORTED propagation. A transaction of the
+ * caller is suspended without using a connection, and the call runs on a
+ * single auto-commit connection that is returned to the pool as soon as the
+ * call completes. Like {@link CountingSemaphoreImpl}, this class must be set up
+ * as a Spring bean with transaction management enabled, otherwise the
+ * procedures would run on the connection of the caller's transaction and
+ * commit its work.
+ * </p>
+ * <p>
+ * The connection of a suspended transaction stays checked out while the call
+ * runs. To rule out pool exhaustion when many callers acquire locks from within
+ * their own transactions, give this semaphore a small DataSource of its own
+ * rather than the pool used by those transactions.
+ * </p>
+ * <p>
+ * Without a transaction of its own, no isolation level can be set for a call,
+ * so the procedures run at the default of the connection. The MySQL default,
+ * REPEATABLE READ, makes their FOR UPDATE lookups take gap and next-key locks,
+ * which brings back the lock waits and deadlocks that the READ COMMITTED
+ * transactions of {@link CountingSemaphoreImpl} avoid. The connections of the
+ * given DataSource must therefore default to READ COMMITTED, for example with
+ * the defaultTransactionIsolation property of a DBCP pool.
+ * </p>
+ * This class is thread-safe and can be used as a singleton.
+ */
+public class AutocommitCountingSemaphore extends CountingSemaphoreImpl {
+
+	/**
+	 *
+	 * @param dataSourcePool Must be a connection to a MySql Database, ideally a
+	 *                       database connection pool dedicated to the semaphore.
+	 *                       Its connections must default to READ COMMITTED.
+	 */
+	public AutocommitCountingSemaphore(DataSource dataSourcePool) {
+		super(dataSourcePool);
+		int isolation = new JdbcTemplate(dataSourcePool)
+				.execute((ConnectionCallback<Integer>) Connection::getTransactionIsolation);
+		if (isolation != Connection.TRANSACTION_READ_COMMITTED) {
+			throw new IllegalArgumentException("The connections of the DataSource must default to READ COMMITTED."
+					+ " Set the defaultTransactionIsolation of the pool.");
+		}
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public Optional<String> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount, String context) {
+		return super.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public List<Optional<String>> attemptToAcquireLocks(List<LockRequest> requests) {
+		return super.attemptToAcquireLocks(requests);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public Optional<String> attemptToAcquireWeightedLock(String key, long timeoutSec, int maxLockCount, int weight,
+			String context) {
+		return super.attemptToAcquireWeightedLock(key, timeoutSec, maxLockCount, weight, context);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void releaseLock(String key, String token) {
+		super.releaseLock(key, token);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void refreshLockTimeout(String key, String token, long timeoutSec) {
+		super.refreshLockTimeout(key, token, timeoutSec);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public List<LockRefreshResult> refreshLockTimeouts(List<LockRefreshRequest> requests) {
+		return super.refreshLockTimeouts(requests);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public LockTicket enqueueLockTicket(String key, long timeoutSec, int maxLockCount, String context) {
+		return super.enqueueLockTicket(key, timeoutSec, maxLockCount, context);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public Optional<String> checkLockTicket(LockTicket ticket) {
+		return super.checkLockTicket(ticket);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void cancelLockTicket(LockTicket ticket) {
+		super.cancelLockTicket(ticket);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public void runGarbageCollection() {
+		super.runGarbageCollection();
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public GarbageCollectionResult runGarbageCollection(int chunkSize, int maxRows, long maxDurationMs) {
+		return super.runGarbageCollection(chunkSize, maxRows, maxDurationMs);
+	}
+}
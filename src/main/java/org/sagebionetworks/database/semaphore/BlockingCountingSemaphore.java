@@ -0,0 +1,318 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link CountingSemaphore} that adds a blocking
+ * {@link #acquireLock(String, long, int, String, Duration)} on top of the
+ * non-blocking semaphore it wraps.
+ * <p>
+ * Threads in this JVM that are waiting for the same key are parked in a local,
+ * per-key queue. Only a bounded number of them probe the database at any one
+ * time, each backing off with jittered exponential delays between attempts.
+ * When a lock on a key is released through this object, the next local waiter
+ * for that key is woken immediately instead of waiting out its backoff.
+ * </p>
+ * <p>
+ * To get the wake-up on release, all locks on a key must be released through
+ * this object rather than the wrapped semaphore. This class is thread-safe and
+ * can be used as a singleton.
+ * </p>
+ */
+public class BlockingCountingSemaphore implements CountingSemaphore {
+
+	public static final int DEFAULT_MAX_CONCURRENT_PROBES = 1;
+	public static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofMillis(50);
+	public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(2);
+
+	private final CountingSemaphore delegate;
+	private final int maxConcurrentProbes;
+	private final long initialBackoffNanos;
+	private final long maxBackoffNanos;
+	private final ConcurrentHashMap<String, KeyWaiters> waiters;
+
+	/**
+	 *
+	 * @param delegate The semaphore that issues the locks.
+	 */
+	public BlockingCountingSemaphore(CountingSemaphore delegate) {
+		this(delegate, DEFAULT_MAX_CONCURRENT_PROBES, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 *
+	 * @param delegate            The semaphore that issues the locks.
+	 * @param maxConcurrentProbes The maximum number of local waiters for a single
+	 *                            key that can attempt to acquire a lock from the
+	 *                            delegate at the same time.
+	 * @param initialBackoff      The backoff after the first failed attempt. The
+	 *                            backoff doubles after each failed attempt.
+	 * @param maxBackoff          The upper limit of the backoff between attempts.
+	 */
+	public BlockingCountingSemaphore(CountingSemaphore delegate, int maxConcurrentProbes, Duration initialBackoff,
+			Duration maxBackoff) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("Delegate cannot be null");
+		}
+		if (maxConcurrentProbes < 1) {
+			throw new IllegalArgumentException("MaxConcurrentProbes cannot be less then one.");
+		}
+		if (initialBackoff == null || initialBackoff.isNegative() || initialBackoff.isZero()) {
+			throw new IllegalArgumentException("InitialBackoff must be greater than zero.");
+		}
+		if (maxBackoff == null || maxBackoff.compareTo(initialBackoff) < 0) {
+			throw new IllegalArgumentException("MaxBackoff cannot be less than the InitialBackoff.");
+		}
+		this.delegate = delegate;
+		this.maxConcurrentProbes = maxConcurrentProbes;
+		this.initialBackoffNanos = initialBackoff.toNanos();
+		this.maxBackoffNanos = maxBackoff.toNanos();
+		this.waiters = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Acquire a lock with the given key, waiting up to the provided maximum wait
+	 * for a lock to become available. See
+	 * {@link #attemptToAcquireLock(String, long, int, String)} for a description
+	 * of the lock parameters.
+	 * <p>
+	 * Note: Waiting for a lock while holding another lock can lead to deadlock. It
+	 * is the caller's responsibility to prevent this, for example, by always
+	 * acquiring locks in the same order.
+	 * </p>
+	 *
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param context
+	 * @param maxWait      The maximum amount of time to wait for a lock.
+	 * @return The token for the lock or Optional.empty() if a lock could not be
+	 *         acquired before the maximum wait elapsed.
+	 * @throws InterruptedException If the calling thread is interrupted while
+	 *                              waiting.
+	 */
+	public Optional<String> acquireLock(String key, long timeoutSec, int maxLockCount, String context,
+			Duration maxWait) throws InterruptedException {
+		if (key == null) {
+			throw new IllegalArgumentException("Key cannot be null");
+		}
+		if (maxWait == null || maxWait.isNegative()) {
+			throw new IllegalArgumentException("MaxWait cannot be null or negative.");
+		}
+		long deadline = System.nanoTime() + maxWait.toNanos();
+		KeyWaiters keyWaiters = register(key);
+		try {
+			int attempt = 0;
+			while (true) {
+				if (!keyWaiters.probes.tryAcquire(Math.max(0L, deadline - System.nanoTime()),
+						TimeUnit.NANOSECONDS)) {
+					return Optional.empty();
+				}
+				try {
+					Optional<String> token = delegate.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+					if (token.isPresent()) {
+						return token;
+					}
+				} finally {
+					keyWaiters.probes.release();
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0L) {
+					return Optional.empty();
+				}
+				keyWaiters.awaitRelease(Math.min(remaining, backoffNanos(attempt++)));
+			}
+		} finally {
+			unregister(key);
+		}
+	}
+
+	/**
+	 * Exponential backoff with jitter. The result is between half and all of the
+	 * exponential delay for the given attempt so concurrent waiters do not wake
+	 * in lock-step.
+	 *
+	 * @param attempt
+	 * @return
+	 */
+	long backoffNanos(int attempt) {
+		// A shift past the leading zeros, less the sign bit, would overflow.
+		int maxShift = Long.numberOfLeadingZeros(initialBackoffNanos) - 1;
+		long delay = attempt > maxShift ? maxBackoffNanos : initialBackoffNanos << attempt;
+		if (delay > maxBackoffNanos) {
+			delay = maxBackoffNanos;
+		}
+		long half = delay / 2L;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1L);
+	}
+
+	private KeyWaiters register(String key) {
+		return waiters.compute(key, (k, existing) -> {
+			KeyWaiters keyWaiters = existing == null ? new KeyWaiters(maxConcurrentProbes) : existing;
+			keyWaiters.registered++;
+			return keyWaiters;
+		});
+	}
+
+	private void unregister(String key) {
+		waiters.computeIfPresent(key, (k, existing) -> {
+			existing.registered--;
+			return existing.registered < 1 ? null : existing;
+		});
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The number of threads currently waiting for the given key.
+	 */
+	int getWaiterCount(String key) {
+		KeyWaiters keyWaiters = waiters.get(key);
+		return keyWaiters == null ? 0 : keyWaiters.registered;
+	}
+
+	@Override
+	public Optional<String> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount, String context) {
+		return delegate.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+	}
+
+	@Override
+	public List<Optional<String>> attemptToAcquireLocks(List<LockRequest> requests) {
+		return delegate.attemptToAcquireLocks(requests);
+	}
+
+	@Override
+	public void refreshLockTimeout(String key, String token, long timeoutSec) {
+		delegate.refreshLockTimeout(key, token, timeoutSec);
+	}
+
+	@Override
+	public List<LockRefreshResult> refreshLockTimeouts(List<LockRefreshRequest> requests) {
+		return delegate.refreshLockTimeouts(requests);
+	}
+
+	/**
+	 * Release the lock and wake the next local waiter for the key, if there is
+	 * one. The waiter is woken even when the release fails, since a lock that
+	 * already expired is free as well.
+	 */
+	@Override
+	public void releaseLock(String key, String token) {
+		try {
+			delegate.releaseLock(key, token);
+		} finally {
+			KeyWaiters keyWaiters = waiters.get(key);
+			if (keyWaiters != null) {
+				keyWaiters.signalRelease();
+			}
+		}
+	}
+
+	@Override
+	public void releaseAllLocks() {
+		delegate.releaseAllLocks();
+		for (KeyWaiters keyWaiters : waiters.values()) {
+			keyWaiters.signalRelease();
+		}
+	}
+
+	@Override
+	public Optional<String> getFirstUnexpiredLockContext(String key) {
+		return delegate.getFirstUnexpiredLockContext(key);
+	}
+
+	@Override
+	public void runGarbageCollection() {
+		delegate.runGarbageCollection();
+	}
+
+	@Override
+	public GarbageCollectionResult runGarbageCollection(int chunkSize, int maxRows, long maxDurationMs) {
+		return delegate.runGarbageCollection(chunkSize, maxRows, maxDurationMs);
+	}
+
+	@Override
+	public long getLockRowCount() {
+		return delegate.getLockRowCount();
+	}
+
+	@Override
+	public long getLockRowHighWaterMark() {
+		return delegate.getLockRowHighWaterMark();
+	}
+
+	/**
+	 * The local waiters for a single key.
+	 */
+	private static class KeyWaiters {
+
+		/**
+		 * A fair semaphore so waiters probe the database in the order they arrived.
+		 */
+		final Semaphore probes;
+		final ReentrantLock lock;
+		final Condition released;
+		/**
+		 * Number of releases not yet consumed by a waiter. Guarded by lock.
+		 */
+		int pendingReleases;
+		/**
+		 * Number of threads using this object. Only changed within a
+		 * ConcurrentHashMap.compute() for the key.
+		 */
+		volatile int registered;
+
+		KeyWaiters(int maxConcurrentProbes) {
+			this.probes = new Semaphore(maxConcurrentProbes, true);
+			this.lock = new ReentrantLock();
+			this.released = lock.newCondition();
+			this.pendingReleases = 0;
+			this.registered = 0;
+		}
+
+		/**
+		 * Wait until a lock on this key is released locally or the timeout elapses.
+		 *
+		 * @param timeoutNanos
+		 * @throws InterruptedException
+		 */
+		void awaitRelease(long timeoutNanos) throws InterruptedException {
+			lock.lock();
+			try {
+				long remaining = timeoutNanos;
+				while (pendingReleases < 1 && remaining > 0L) {
+					remaining = released.awaitNanos(remaining);
+				}
+				if (pendingReleases > 0) {
+					pendingReleases--;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Wake a single waiter. A release that happens while no waiter is parked is
+		 * remembered so the next waiter to park will return immediately.
+		 */
+		void signalRelease() {
+			lock.lock();
+			try {
+				if (pendingReleases < registered) {
+					pendingReleases++;
+				}
+				released.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package org.sagebionetworks.database.semaphore;
+
+/**
+ * How {@link CountingSemaphoreImpl} creates the missing lock rows of a key the
+ * first time a lock is requested for the key. See:
+ * {@link CountingSemaphoreImpl#setBootstrapStrategy(BootstrapStrategy)}.
+ *
+ */
+public enum BootstrapStrategy {
+
+	/**
+	 * Insert each row in its own transaction. This minimizes how long concurrent
+	 * bootstraps of the same key block each other (PLFM-8236), but needs one
+	 * commit per row. Best for highly contended new keys.
+	 */
+	SINGLE_ROW,
+	/**
+	 * Insert only the missing rows, with one transaction per chunk of rows. Needs
+	 * far fewer commits for keys with a large maxLockCount.
+	 */
+	SET_BASED,
+	/**
+	 * Use {@link #SINGLE_ROW} for keys with a maxLockCount below the adaptive
+	 * threshold and {@link #SET_BASED} for all other keys.
+	 */
+	ADAPTIVE;
+
+	/**
+	 *
+	 * @param maxLockCount
+	 * @param adaptiveThreshold
+	 * @return The strategy to use for a key with the given maxLockCount.
+	 */
+	public BootstrapStrategy resolve(int maxLockCount, int adaptiveThreshold) {
+		if (this == ADAPTIVE) {
+			return maxLockCount < adaptiveThreshold ? SINGLE_ROW : SET_BASED;
+		}
+		return this;
+	}
+}
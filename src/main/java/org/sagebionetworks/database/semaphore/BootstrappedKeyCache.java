@@ -0,0 +1,85 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded record of the keys whose lock rows are known to exist, along with
+ * the largest maxLockCount the rows were bootstrapped for. Used by
+ * {@link CountingSemaphoreImpl} to decide when an acquisition can skip
+ * bootstrapping the rows of a key. The least recently used keys are evicted
+ * first.
+ * <p>
+ * An entry is only a hint. Garbage collection can delete the rows of a key at
+ * any time, so the database must still detect missing rows.
+ * </p>
+ * This class is thread-safe.
+ */
+class BootstrappedKeyCache {
+
+	private final LinkedHashMap<String, Integer> entries;
+
+	/**
+	 *
+	 * @param maxKeys The maximum number of keys in the cache.
+	 */
+	BootstrappedKeyCache(int maxKeys) {
+		// access order for LRU eviction.
+		this.entries = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > maxKeys;
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param maxLockCount
+	 * @return True if the rows of the given key were bootstrapped for at least
+	 *         the given maxLockCount.
+	 */
+	synchronized boolean isBootstrapped(String key, int maxLockCount) {
+		Integer bootstrappedCount = entries.get(key);
+		return bootstrappedCount != null && maxLockCount <= bootstrappedCount;
+	}
+
+	/**
+	 * Record that the rows of the given key were bootstrapped for the given
+	 * maxLockCount.
+	 *
+	 * @param key
+	 * @param maxLockCount
+	 */
+	synchronized void bootstrapped(String key, int maxLockCount) {
+		entries.merge(key, maxLockCount, Math::max);
+	}
+
+	/**
+	 * Forget the given key.
+	 *
+	 * @param key
+	 */
+	synchronized void invalidate(String key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Forget all keys.
+	 */
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 *
+	 * @return The number of keys in the cache.
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+}
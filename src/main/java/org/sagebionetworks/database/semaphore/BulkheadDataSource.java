@@ -0,0 +1,214 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.ConnectionProxy;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * Bounds the number of connections the semaphore can check out at the same
+ * time, so lock traffic and the application's own queries cannot starve each
+ * other. Wrap either a small pool dedicated to the semaphore, or the
+ * application's pool to cap the semaphore's share of it, and pass the result to
+ * the semaphore and its transaction manager.
+ * <p>
+ * A caller that finds all maxConnections in use waits, in arrival order, for
+ * at most acquireTimeoutMs. With a timeout of zero a saturated bulkhead fails
+ * fast. When no connection becomes available in time, an
+ * SQLTransientConnectionException is thrown without touching the wrapped
+ * DataSource.
+ * </p>
+ * <p>
+ * The number of connections in use and of waiting callers, the number of
+ * rejected callers and a histogram of the time spent waiting are available for
+ * monitoring.
+ * </p>
+ * This class is thread-safe.
+ */
+public class BulkheadDataSource extends DelegatingDataSource {
+
+	private final int maxConnections;
+	private final long acquireTimeoutNanos;
+	private final Semaphore permits;
+	private final LongAdder rejectedCount;
+	private final LatencyHistogram waitHistogram;
+
+	/**
+	 *
+	 * @param targetDataSource The DataSource that connections are fetched from.
+	 * @param maxConnections   The maximum number of connections checked out at the
+	 *                         same time.
+	 * @param acquireTimeoutMs The maximum time to wait for a connection when all
+	 *                         are in use. Zero fails immediately.
+	 */
+	public BulkheadDataSource(DataSource targetDataSource, int maxConnections, long acquireTimeoutMs) {
+		if (targetDataSource == null) {
+			throw new IllegalArgumentException("DataSource cannot be null");
+		}
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("MaxConnections cannot be less then one.");
+		}
+		if (acquireTimeoutMs < 0) {
+			throw new IllegalArgumentException("AcquireTimeoutMs cannot be negative.");
+		}
+		setTargetDataSource(targetDataSource);
+		this.maxConnections = maxConnections;
+		this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+		// fair so waiting callers are served in arrival order.
+		this.permits = new Semaphore(maxConnections, true);
+		this.rejectedCount = new LongAdder();
+		this.waitHistogram = new LatencyHistogram();
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		acquirePermit();
+		try {
+			return wrap(obtainTargetDataSource().getConnection());
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		acquirePermit();
+		try {
+			return wrap(obtainTargetDataSource().getConnection(username, password));
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void acquirePermit() throws SQLException {
+		// The uncontended case is neither timed nor queued behind waiting callers.
+		if (!permits.hasQueuedThreads() && permits.tryAcquire()) {
+			waitHistogram.record(0L);
+			return;
+		}
+		long startNanos = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = acquireTimeoutNanos > 0 && permits.tryAcquire(acquireTimeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for a semaphore connection", e);
+		}
+		if (!acquired) {
+			rejectedCount.increment();
+			throw new SQLTransientConnectionException(
+					"All " + maxConnections + " semaphore connections are in use");
+		}
+		waitHistogram.record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Wrap the given connection so closing it returns its permit exactly once.
+	 *
+	 * @param target
+	 * @return
+	 */
+	private Connection wrap(Connection target) {
+		return (Connection) Proxy.newProxyInstance(ConnectionProxy.class.getClassLoader(),
+				new Class<?>[] { ConnectionProxy.class }, new PermitReleasingHandler(target));
+	}
+
+	private class PermitReleasingHandler implements InvocationHandler {
+
+		private final Connection target;
+		private final AtomicBoolean closed;
+
+		private PermitReleasingHandler(Connection target) {
+			this.target = target;
+			this.closed = new AtomicBoolean();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "getTargetConnection":
+				return target;
+			case "close":
+				if (!closed.compareAndSet(false, true)) {
+					return null;
+				}
+				try {
+					target.close();
+				} finally {
+					permits.release();
+				}
+				return null;
+			case "isClosed":
+				if (closed.get()) {
+					return true;
+				}
+				break;
+			default:
+				break;
+			}
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The maximum number of connections checked out at the same time.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 *
+	 * @return The number of connections currently checked out.
+	 */
+	public int getActiveCount() {
+		return maxConnections - permits.availablePermits();
+	}
+
+	/**
+	 *
+	 * @return An estimate of the number of callers waiting for a connection.
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 *
+	 * @return The number of callers that did not get a connection in time.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 *
+	 * @return The time each caller that got a connection waited for it.
+	 */
+	public LatencyHistogram getWaitHistogram() {
+		return waitHistogram;
+	}
+}
@@ -0,0 +1,114 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys to shards with consistent hashing. Each shard is placed on the ring
+ * at many points (virtual nodes) and a key belongs to the first shard at or
+ * after the hash of the key. When a shard is added, only the keys that now
+ * belong to the new shard change owner.
+ * <p>
+ * The hash only depends on the UTF-8 bytes of the shard ids and keys, so every
+ * JVM with the same shard ids agrees on the owner of each key. This class is
+ * immutable.
+ * </p>
+ */
+final class ConsistentHashRing {
+
+	static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long[] points;
+	private final String[] owners;
+	private final List<String> shardIds;
+
+	/**
+	 *
+	 * @param shardIds     The unique ids of the shards.
+	 * @param virtualNodes The number of points of each shard on the ring.
+	 */
+	ConsistentHashRing(Collection<String> shardIds, int virtualNodes) {
+		if (shardIds == null || shardIds.isEmpty()) {
+			throw new IllegalArgumentException("ShardIds cannot be null or empty");
+		}
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("VirtualNodes cannot be less then one.");
+		}
+		List<String> sorted = new ArrayList<>(shardIds);
+		// Sorted so ties between points are broken the same way on every node.
+		Collections.sort(sorted);
+		TreeMap<Long, String> ring = new TreeMap<>();
+		for (String shardId : sorted) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.putIfAbsent(hash(shardId + "#" + i), shardId);
+			}
+		}
+		this.points = new long[ring.size()];
+		this.owners = new String[ring.size()];
+		int index = 0;
+		for (Map.Entry<Long, String> entry : ring.entrySet()) {
+			points[index] = entry.getKey();
+			owners[index] = entry.getValue();
+			index++;
+		}
+		this.shardIds = Collections.unmodifiableList(sorted);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The id of the shard that owns the given key.
+	 */
+	String shardOf(String key) {
+		long hash = hash(key);
+		int low = 0;
+		int high = points.length;
+		// Find the first point at or after the hash.
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (points[middle] < hash) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return owners[low == points.length ? 0 : low];
+	}
+
+	/**
+	 *
+	 * @return The ids of the shards on this ring, sorted.
+	 */
+	List<String> getShardIds() {
+		return shardIds;
+	}
+
+	/**
+	 * 64-bit FNV-1a of the UTF-8 bytes, followed by the MurmurHash3 finalizer to
+	 * spread similar keys around the ring.
+	 *
+	 * @param value
+	 * @return
+	 */
+	static long hash(String value) {
+		long hash = FNV_OFFSET_BASIS;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
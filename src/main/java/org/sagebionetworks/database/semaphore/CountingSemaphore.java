@@ -1,5 +1,7 @@
 package org.sagebionetworks.database.semaphore;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -36,7 +38,40 @@ public interface CountingSemaphore {
 	 *         with it.
 	 */
 	public Optional<String> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount, String context);
-	
+
+	/**
+	 * Attempt to acquire a lock for each of the given requests with a single
+	 * database call. Each request is treated exactly like a call to
+	 * {@link #attemptToAcquireLock(String, long, int, String)} so a lock might be
+	 * issued for some requests but not others. This method is non-blocking.
+	 * <p>
+	 * The default implementation calls
+	 * {@link #attemptToAcquireLock(String, long, int, String)} once per request.
+	 * </p>
+	 * 
+	 * @param requests The locks to acquire. The same key can be included more than
+	 *                 once.
+	 * @return One result per request, in the same order as the requests. Each
+	 *         result is either the token for the lock or Optional.empty() when no
+	 *         lock was available for that request. The caller is expected to
+	 *         release each issued lock {@link #releaseLock(String, String)} when
+	 *         finished with it.
+	 */
+	public default List<Optional<String>> attemptToAcquireLocks(List<LockRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		List<Optional<String>> results = new ArrayList<>(requests.size());
+		for (LockRequest request : requests) {
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			results.add(attemptToAcquireLock(request.getKey(), request.getTimeoutSec(), request.getMaxLockCount(),
+					request.getContext()));
+		}
+		return results;
+	}
+
 
 	/**
 	 * Refresh the expiration for a lock that is currently being held.
@@ -49,6 +84,42 @@ public interface CountingSemaphore {
 	 */
 	public void refreshLockTimeout(String key, String token, long timeoutSec);
 
+	/**
+	 * Refresh the expiration of many held locks with a single database call. A
+	 * token that has expired does not prevent the other tokens from being
+	 * refreshed.
+	 * <p>
+	 * The default implementation calls
+	 * {@link #refreshLockTimeout(String, String, long)} once per request.
+	 * </p>
+	 * 
+	 * @param requests The locks to refresh.
+	 * @return One result per request, in the same order as the requests. Each
+	 *         result follows the same rules as
+	 *         {@link #refreshLockTimeout(String, String, long)}, see
+	 *         {@link LockRefreshResult#validate(String, String)}.
+	 */
+	public default List<LockRefreshResult> refreshLockTimeouts(List<LockRefreshRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		List<LockRefreshResult> results = new ArrayList<>(requests.size());
+		for (LockRefreshRequest request : requests) {
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			try {
+				refreshLockTimeout(request.getKey(), request.getToken(), request.getTimeoutSec());
+				results.add(LockRefreshResult.REFRESHED);
+			} catch (LockKeyNotFoundException e) {
+				results.add(LockRefreshResult.KEY_NOT_FOUND);
+			} catch (LockReleaseFailedException e) {
+				results.add(LockRefreshResult.EXPIRED);
+			}
+		}
+		return results;
+	}
+
 	/**
 	 * Release a lock using the token that was issued when the lock was acquired.
 	 * 
@@ -85,10 +156,59 @@ public interface CountingSemaphore {
 	 */
 	public void runGarbageCollection();
 
+	/**
+	 * Delete lock rows that currently do not have a token and are past their
+	 * expiration date, like {@link #runGarbageCollection()}, but commit once per
+	 * chunk of rows and stop at the given limits. This allows a large backlog of
+	 * rows to be spread over many calls.
+	 * <p>
+	 * The default implementation ignores the limits and calls
+	 * {@link #runGarbageCollection()}, which deletes every row that can be
+	 * deleted, so no rows are reported as remaining. It cannot count the rows it
+	 * deleted, since rows created or deleted by other callers at the same time
+	 * would be counted too, so the rows deleted are reported as
+	 * {@link GarbageCollectionResult#UNKNOWN_ROWS_DELETED}.
+	 * </p>
+	 * 
+	 * @param chunkSize     The maximum number of rows deleted per transaction.
+	 * @param maxRows       The maximum number of rows deleted by this call.
+	 * @param maxDurationMs The time after which no new chunk is started.
+	 * @return The number of rows deleted and whether more rows remain to be
+	 *         deleted.
+	 */
+	public default GarbageCollectionResult runGarbageCollection(int chunkSize, int maxRows, long maxDurationMs) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("ChunkSize cannot be less then one.");
+		}
+		if (maxRows < 1) {
+			throw new IllegalArgumentException("MaxRows cannot be less then one.");
+		}
+		if (maxDurationMs < 1) {
+			throw new IllegalArgumentException("MaxDurationMs cannot be less then one.");
+		}
+		runGarbageCollection();
+		return new GarbageCollectionResult(GarbageCollectionResult.UNKNOWN_ROWS_DELETED, false);
+	}
+
 	/**
 	 * Get the number of lock rows in the database.
 	 * 
 	 * @return
 	 */
 	public long getLockRowCount();
+
+	/**
+	 * Get the largest ROW_ID in the lock table. The high-water mark only grows as
+	 * new lock rows are created so the growth of the table can be tracked without
+	 * counting its rows.
+	 * <p>
+	 * The default implementation falls back to {@link #getLockRowCount()}, which
+	 * also grows with the table but costs a count of its rows.
+	 * </p>
+	 * 
+	 * @return The largest ROW_ID or zero if the table is empty.
+	 */
+	public default long getLockRowHighWaterMark() {
+		return getLockRowCount();
+	}
 }
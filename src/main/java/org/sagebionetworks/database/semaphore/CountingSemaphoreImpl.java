@@ -1,21 +1,39 @@
 package org.sagebionetworks.database.semaphore;
 
 import static org.sagebionetworks.database.semaphore.Sql.COL_TABLE_SEM_LOCK_EXPIRES_ON;
+import static org.sagebionetworks.database.semaphore.Sql.COL_TABLE_SEM_LOCK_KEY_HASH;
+import static org.sagebionetworks.database.semaphore.Sql.COL_TABLE_SEM_LOCK_LAST_USED_ON;
 import static org.sagebionetworks.database.semaphore.Sql.COL_TABLE_SEM_LOCK_LOCK_KEY;
 import static org.sagebionetworks.database.semaphore.Sql.COL_TABLE_SEM_LOCK_TOKEN;
+import static org.sagebionetworks.database.semaphore.Sql.IDX_TABLE_SEM_LOCK_KEY_HASH_LOCK_NUM;
+import static org.sagebionetworks.database.semaphore.Sql.IDX_TABLE_SEM_LOCK_TOKEN;
 import static org.sagebionetworks.database.semaphore.Sql.TABLE_SEMAPHORE_LOCK;
+import static org.sagebionetworks.database.semaphore.Sql.TABLE_SEMAPHORE_WAITER;
 
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
+import jdk.jfr.EventType;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.sagebionetworks.database.semaphore.SemaphoreMetricsListener.Operation;
+import org.sagebionetworks.database.semaphore.SemaphoreMetricsListener.Outcome;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.TransientDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -47,45 +65,188 @@ import org.springframework.transaction.annotation.Transactional;
  * 
  */
 
-public class CountingSemaphoreImpl implements CountingSemaphore {
+public class CountingSemaphoreImpl implements WeightedCountingSemaphore, LockTicketQueue {
 
 	public static final int MAX_CONTEXT_CHARS = 256;
 
+	/**
+	 * The maximum number of keys held by the saturated key cache.
+	 */
+	public static final int SATURATED_KEY_CACHE_MAX_KEYS = 10_000;
+
+	/**
+	 * The saturated key cache is only meant to absorb bursts so its TTL is kept
+	 * under a second.
+	 */
+	public static final long SATURATED_KEY_CACHE_MAX_TTL_MS = 1000L;
+
+	/**
+	 * The maximum number of keys remembered as bootstrapped.
+	 */
+	public static final int BOOTSTRAPPED_KEY_CACHE_MAX_KEYS = 10_000;
+
+	public static final BootstrapStrategy DEFAULT_BOOTSTRAP_STRATEGY = BootstrapStrategy.SINGLE_ROW;
+
+	public static final int DEFAULT_BOOTSTRAP_CHUNK_SIZE = 16;
+
+	public static final int DEFAULT_ADAPTIVE_BOOTSTRAP_THRESHOLD = 8;
+
+	public static final long DEFAULT_SLOW_OPERATION_THRESHOLD_MS = 1000L;
+
+	public static final long DEFAULT_TICKET_TIMEOUT_SEC = 30L;
+
 	private static final String COUNT_LOCK_ROWS = "SELECT COUNT(*) FROM SEMAPHORE_LOCK";
 
-	private static final String CALL_REFRESH_SEMAPHORE_LOCK = "CALL refreshSemaphoreLock(?, ?)";
+	private static final String MAX_LOCK_ROW_ID = "SELECT COALESCE(MAX(ROW_ID), 0) FROM SEMAPHORE_LOCK";
+
+	private static final String CALL_REFRESH_SEMAPHORE_LOCK_BY_HASH = "CALL refreshSemaphoreLockByHash(?, ?)";
+
+	private static final String CALL_REFRESH_SEMAPHORE_LOCK_BY_ROW_ID = "CALL refreshSemaphoreLockByRowId(?, ?, ?)";
+
+	private static final String CALL_REFRESH_SEMAPHORE_LOCKS = "CALL refreshSemaphoreLocks(?)";
+
+	private static final String CALL_RELEASE_SEMAPHORE_LOCK_BY_HASH = "CALL releaseSemaphoreLockByHash(?)";
+
+	private static final String CALL_RELEASE_SEMAPHORE_LOCK_BY_ROW_ID = "CALL releaseSemaphoreLockByRowId(?, ?)";
+
+	private static final String CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_BY_HASH = "CALL attemptToAcquireSemaphoreLockByHash(?, ?, ?, ?)";
 
-	private static final String CALL_RELEASE_SEMAPHORE_LOCK = "CALL releaseSemaphoreLock(?)";
+	private static final String CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCKS = "CALL attemptToAcquireSemaphoreLocks(?)";
+	// The bootstrap of a batch request whose key's rows are expected to exist.
+	private static final String BOOTSTRAP_NONE = "NONE";
 
-	private static final String CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK = "CALL attemptToAcquireSemaphoreLock(?, ?, ?, ?)";
+	private static final String CALL_ATTEMPT_TO_ACQUIRE_BOOTSTRAPPED_SEMAPHORE_LOCK = "CALL attemptToAcquireBootstrappedSemaphoreLock(?, ?, ?, ?)";
+
+	private static final String CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_IN_CHUNKS = "CALL attemptToAcquireSemaphoreLockInChunks(?, ?, ?, ?, ?)";
+
+	private static final String CALL_ATTEMPT_TO_ACQUIRE_WEIGHTED_SEMAPHORE_LOCK = "CALL attemptToAcquireWeightedSemaphoreLock(?, ?, ?, ?, ?)";
+
+	private static final String CALL_REFRESH_WEIGHTED_SEMAPHORE_LOCK = "CALL refreshWeightedSemaphoreLock(?, ?, ?)";
+
+	private static final String CALL_RELEASE_SEMAPHORE_LOCK_TO_WAITERS = "CALL releaseSemaphoreLockToWaiters(?, ?)";
+
+	private static final String CALL_RELEASE_SEMAPHORE_LOCK_BY_HASH_TO_WAITERS = "CALL releaseSemaphoreLockByHashToWaiters(?)";
+
+	private static final String CALL_ENQUEUE_SEMAPHORE_TICKET = "CALL enqueueSemaphoreTicket(?, ?, ?, ?, ?)";
+
+	private static final String CALL_CHECK_SEMAPHORE_TICKET = "CALL checkSemaphoreTicket(?, ?)";
+
+	private static final String CALL_CANCEL_SEMAPHORE_TICKET = "CALL cancelSemaphoreTicket(?)";
 
 	private static final String REFRESH_SEMAPHORE_LOCK = "refreshSemaphoreLock";
 
+	private static final String REFRESH_SEMAPHORE_LOCK_BY_HASH = "refreshSemaphoreLockByHash";
+
+	private static final String REFRESH_SEMAPHORE_LOCK_BY_ROW_ID = "refreshSemaphoreLockByRowId";
+
+	private static final String REFRESH_SEMAPHORE_LOCKS = "refreshSemaphoreLocks";
+
 	private static final String RELEASE_SEMAPHORE_LOCK = "releaseSemaphoreLock";
 
+	private static final String RELEASE_SEMAPHORE_LOCK_BY_HASH = "releaseSemaphoreLockByHash";
+
+	private static final String RELEASE_SEMAPHORE_LOCK_BY_ROW_ID = "releaseSemaphoreLockByRowId";
+
 	private static final String ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK = "attemptToAcquireSemaphoreLock";
+
+	private static final String ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_BY_HASH = "attemptToAcquireSemaphoreLockByHash";
+
+	private static final String ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCKS = "attemptToAcquireSemaphoreLocks";
+
+	private static final String ATTEMPT_TO_ACQUIRE_BOOTSTRAPPED_SEMAPHORE_LOCK = "attemptToAcquireBootstrappedSemaphoreLock";
 	
+	private static final String ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_IN_CHUNKS = "attemptToAcquireSemaphoreLockInChunks";
+
+	private static final String ATTEMPT_TO_ACQUIRE_WEIGHTED_SEMAPHORE_LOCK = "attemptToAcquireWeightedSemaphoreLock";
+
+	private static final String REFRESH_WEIGHTED_SEMAPHORE_LOCK = "refreshWeightedSemaphoreLock";
+
+	private static final String RELEASE_SEMAPHORE_LOCK_TO_WAITERS = "releaseSemaphoreLockToWaiters";
+
+	private static final String RELEASE_SEMAPHORE_LOCK_BY_HASH_TO_WAITERS = "releaseSemaphoreLockByHashToWaiters";
+
+	private static final String GRANT_SEMAPHORE_TICKETS = "grantSemaphoreTickets";
+
+	private static final String ENQUEUE_SEMAPHORE_TICKET = "enqueueSemaphoreTicket";
+
+	private static final String CHECK_SEMAPHORE_TICKET = "checkSemaphoreTicket";
+
+	private static final String CANCEL_SEMAPHORE_TICKET = "cancelSemaphoreTicket";
+
 	private static final String BOOTSTRAP_LOCK = "bootstrapLockKeyRows";
+
+	private static final String BOOTSTRAP_LOCK_BY_HASH = "bootstrapLockKeyRowsByHash";
+
+	private static final String BOOTSTRAP_LOCK_IN_CHUNKS = "bootstrapLockKeyRowsInChunks";
 	
 	private static final String GARBAGE_COLLECTION = "runGarbageCollection";
 
+	private static final String GARBAGE_COLLECTION_IN_CHUNKS = "runGarbageCollectionInChunks";
+
+	private static final String CALL_GARBAGE_COLLECTION_IN_CHUNKS = "CALL runGarbageCollectionInChunks(?, ?, ?, ?, ?, ?)";
+
 	private static final Logger log = LogManager
 			.getLogger(CountingSemaphoreImpl.class);
 
+	/**
+	 * Cached so that each operation can check whether a recording is running
+	 * without allocating an event.
+	 */
+	private static final EventType OPERATION_EVENT_TYPE = EventType.getEventType(SemaphoreOperationEvent.class);
+
 	private static final String SQL_CLEAR_ALL_LOCKS = "UPDATE "+ TABLE_SEMAPHORE_LOCK+" SET TOKEN = NULL, EXPIRES_ON = CURRENT_TIMESTAMP - INTERVAL 10 SECOND WHERE LOCK_KEY IS NOT NULL";
 
+	private static final String SQL_CLEAR_ALL_WAITERS = "DELETE FROM " + TABLE_SEMAPHORE_WAITER;
+
+	private static final String SQL_DELETE_EXPIRED_WAITERS = "DELETE FROM " + TABLE_SEMAPHORE_WAITER
+			+ " WHERE EXPIRES_ON < CURRENT_TIMESTAMP LIMIT ?";
+
 	private static final String SQL_EXISTS_UNEXPIRED_LOCK =
-			"SELECT CONTEXT FROM " + TABLE_SEMAPHORE_LOCK + " WHERE " + COL_TABLE_SEM_LOCK_LOCK_KEY + " = ?" +
+			"SELECT CONTEXT FROM " + TABLE_SEMAPHORE_LOCK +
+			" WHERE " + COL_TABLE_SEM_LOCK_KEY_HASH + " = UNHEX(MD5(CONVERT(? USING latin1)))" +
+			" AND " + COL_TABLE_SEM_LOCK_LOCK_KEY + " = ?" +
 			" AND " + COL_TABLE_SEM_LOCK_TOKEN + " IS NOT NULL " +
 			" AND " + COL_TABLE_SEM_LOCK_EXPIRES_ON + " >= CURRENT_TIMESTAMP" +
 			" LIMIT 1";
 	
 
 	private static final String SEMAPHORE_LOCK_DDL_SQL = "schema/SemaphoreLock.ddl.sql";
+	private static final String SEMAPHORE_LOCK_HASH_COLUMNS_DDL_SQL = "schema/SemaphoreLockHashColumns.ddl.sql";
+	private static final String SEMAPHORE_LOCK_HASH_INDEXES_DDL_SQL = "schema/SemaphoreLockHashIndexes.ddl.sql";
+	private static final String SEMAPHORE_LOCK_USAGE_COLUMNS_DDL_SQL = "schema/SemaphoreLockUsageColumns.ddl.sql";
+	private static final String SEMAPHORE_LOCK_DROP_LEGACY_INDEXES_DDL_SQL = "schema/SemaphoreLockDropLegacyIndexes.ddl.sql";
+	private static final String SEMAPHORE_WAITER_DDL_SQL = "schema/SemaphoreWaiter.ddl.sql";
+
+	private static final String SQL_COUNT_HASH_COLUMNS = "SELECT COUNT(*) FROM information_schema.COLUMNS"
+			+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '" + TABLE_SEMAPHORE_LOCK + "'"
+			+ " AND COLUMN_NAME = '" + COL_TABLE_SEM_LOCK_KEY_HASH + "'";
+	private static final String SQL_COUNT_USAGE_COLUMNS = "SELECT COUNT(*) FROM information_schema.COLUMNS"
+			+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '" + TABLE_SEMAPHORE_LOCK + "'"
+			+ " AND COLUMN_NAME = '" + COL_TABLE_SEM_LOCK_LAST_USED_ON + "'";
+	private static final String SQL_COUNT_HASH_INDEXES = "SELECT COUNT(*) FROM information_schema.STATISTICS"
+			+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '" + TABLE_SEMAPHORE_LOCK + "'"
+			+ " AND INDEX_NAME = '" + IDX_TABLE_SEM_LOCK_KEY_HASH_LOCK_NUM + "'";
+	private static final String SQL_COUNT_UNIQUE_TOKEN_INDEXES = "SELECT COUNT(*) FROM information_schema.STATISTICS"
+			+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '" + TABLE_SEMAPHORE_LOCK + "'"
+			+ " AND INDEX_NAME = '" + IDX_TABLE_SEM_LOCK_TOKEN + "' AND NON_UNIQUE = 0";
 	private static final String PROCEDURE_DDL_SQL_TEMPLATE = "schema/%s.ddl.sql";
 	private static final String PROCEDURE_EXITS_TEMPLATE = "PROCEDURE %s already exists";
 	
 	private JdbcTemplate jdbcTemplate;
+	private final BootstrappedKeyCache bootstrappedKeyCache;
+	private volatile BootstrapStrategy bootstrapStrategy = DEFAULT_BOOTSTRAP_STRATEGY;
+	private volatile int bootstrapChunkSize = DEFAULT_BOOTSTRAP_CHUNK_SIZE;
+	private volatile int adaptiveBootstrapThreshold = DEFAULT_ADAPTIVE_BOOTSTRAP_THRESHOLD;
+	private volatile LocalPermitLedger localPermitLedger;
+	private volatile SaturatedKeyCache saturatedKeyCache;
+	private volatile RetentionPolicy retentionPolicy;
+	private volatile SemaphoreMetricsListener metricsListener;
+	private volatile LeanJdbcExecutor leanJdbcExecutor;
+	private volatile boolean fairReleaseEnabled;
+	private volatile boolean uniqueTokenIndex;
+	private volatile long ticketTimeoutSec = DEFAULT_TICKET_TIMEOUT_SEC;
+	private volatile long slowOperationThresholdNanos = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_SLOW_OPERATION_THRESHOLD_MS);
 
 	/**
 	 * Create a new CountingkSemaphore. This implementation depends on two
@@ -104,14 +265,328 @@ public class CountingSemaphoreImpl implements CountingSemaphore {
 			throw new IllegalArgumentException("DataSource cannot be null");
 		}
 		jdbcTemplate = new JdbcTemplate(dataSourcePool);
+		bootstrappedKeyCache = new BootstrappedKeyCache(BOOTSTRAPPED_KEY_CACHE_MAX_KEYS);
 		// Create the tables
 		this.jdbcTemplate.update(Utils
 				.loadStringFromClassPath(SEMAPHORE_LOCK_DDL_SQL));
+		// Migrate a table created before the hash columns existed.
+		applyMigrationStepIfNeeded(SQL_COUNT_HASH_COLUMNS, SEMAPHORE_LOCK_HASH_COLUMNS_DDL_SQL);
+		applyMigrationStepIfNeeded(SQL_COUNT_HASH_INDEXES, SEMAPHORE_LOCK_HASH_INDEXES_DDL_SQL);
+		// Migrate a table created before the usage columns existed.
+		applyMigrationStepIfNeeded(SQL_COUNT_USAGE_COLUMNS, SEMAPHORE_LOCK_USAGE_COLUMNS_DDL_SQL);
+		// A migrated table keeps its unique TOKEN index until it is dropped by hand.
+		uniqueTokenIndex = hasUniqueTokenIndex();
+		// The queue of waiting tickets, see: LockTicketQueue.
+		this.jdbcTemplate.update(Utils.loadStringFromClassPath(SEMAPHORE_WAITER_DDL_SQL));
+		/*
+		 * The original procedures are still created for older clients that share
+		 * the same database, but are no longer called by this class.
+		 */
 		createProcedureIfDoesNotExist(BOOTSTRAP_LOCK);
+		createProcedureIfDoesNotExist(BOOTSTRAP_LOCK_BY_HASH);
+		createProcedureIfDoesNotExist(BOOTSTRAP_LOCK_IN_CHUNKS);
 		createProcedureIfDoesNotExist(ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK);
+		createProcedureIfDoesNotExist(ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_BY_HASH);
+		createProcedureIfDoesNotExist(ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCKS);
+		createProcedureIfDoesNotExist(ATTEMPT_TO_ACQUIRE_BOOTSTRAPPED_SEMAPHORE_LOCK);
+		createProcedureIfDoesNotExist(ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_IN_CHUNKS);
 		createProcedureIfDoesNotExist(RELEASE_SEMAPHORE_LOCK);
+		createProcedureIfDoesNotExist(RELEASE_SEMAPHORE_LOCK_BY_HASH);
+		createProcedureIfDoesNotExist(RELEASE_SEMAPHORE_LOCK_BY_ROW_ID);
 		createProcedureIfDoesNotExist(REFRESH_SEMAPHORE_LOCK);
+		createProcedureIfDoesNotExist(REFRESH_SEMAPHORE_LOCK_BY_HASH);
+		createProcedureIfDoesNotExist(REFRESH_SEMAPHORE_LOCK_BY_ROW_ID);
+		createProcedureIfDoesNotExist(REFRESH_SEMAPHORE_LOCKS);
 		createProcedureIfDoesNotExist(GARBAGE_COLLECTION);
+		createProcedureIfDoesNotExist(GARBAGE_COLLECTION_IN_CHUNKS);
+		createProcedureIfDoesNotExist(GRANT_SEMAPHORE_TICKETS);
+		createProcedureIfDoesNotExist(ENQUEUE_SEMAPHORE_TICKET);
+		createProcedureIfDoesNotExist(CHECK_SEMAPHORE_TICKET);
+		createProcedureIfDoesNotExist(CANCEL_SEMAPHORE_TICKET);
+		createProcedureIfDoesNotExist(RELEASE_SEMAPHORE_LOCK_TO_WAITERS);
+		createProcedureIfDoesNotExist(RELEASE_SEMAPHORE_LOCK_BY_HASH_TO_WAITERS);
+		createProcedureIfDoesNotExist(ATTEMPT_TO_ACQUIRE_WEIGHTED_SEMAPHORE_LOCK);
+		createProcedureIfDoesNotExist(REFRESH_WEIGHTED_SEMAPHORE_LOCK);
+	}
+
+	/**
+	 * Enable or disable the local permit ledger (disabled by default). When
+	 * enabled, this object remembers the tokens it issued and has not yet
+	 * released, and an attempt to acquire a lock on a key for which this process
+	 * already holds maxLockCount unexpired tokens returns Optional.empty() without
+	 * calling the database.
+	 * <p>
+	 * Only enable the ledger when every token issued by this object is also
+	 * released through this object. A token released by another process (or
+	 * another instance) is still counted locally until it would have expired,
+	 * causing acquisitions on its key to be rejected in the meantime.
+	 * </p>
+	 * Note: When transactions are managed with the @Transactional annotations, a
+	 * connection is fetched from the pool before the ledger is checked. Wrap the
+	 * DataSource of the transaction manager in a Spring
+	 * LazyConnectionDataSourceProxy so that a rejected call never reaches the
+	 * database.
+	 * 
+	 * @param enabled
+	 */
+	public void setLocalPermitLedgerEnabled(boolean enabled) {
+		this.localPermitLedger = enabled ? new LocalPermitLedger() : null;
+	}
+
+	/**
+	 * Enable or disable the lean JDBC path (disabled by default). When enabled,
+	 * acquire, release and refresh call their procedures with plain JDBC instead
+	 * of the JdbcTemplate, which avoids most of the objects allocated for each
+	 * call. Both paths join the same transactions and report the same
+	 * exceptions.
+	 * <p>
+	 * Each call prepares its statement on the pooled connection, so enable
+	 * statement caching in the driver or the pool to avoid preparing the same
+	 * statement for each call. The statements are not cached by this class,
+	 * since a statement must not outlive the pooled connection it was prepared
+	 * on. For example, with the MySQL Connector/J URL
+	 * options: "useServerPrepStmts=true&amp;cachePrepStmts=true".
+	 * </p>
+	 * 
+	 * @param enabled
+	 */
+	public void setLeanJdbcEnabled(boolean enabled) {
+		this.leanJdbcExecutor = enabled
+				? new LeanJdbcExecutor(jdbcTemplate.getDataSource(), jdbcTemplate.getExceptionTranslator())
+				: null;
+	}
+
+	/**
+	 * Enable or disable fair release (disabled by default). When enabled, a lock
+	 * that is released through this object is granted to the oldest ticket waiting
+	 * for its key (see: {@link LockTicketQueue}), in the same call. The locks of a
+	 * weighted token are all granted to the waiting tickets at once. When
+	 * disabled, a released lock only reaches the queue the next time the oldest
+	 * ticket is checked.
+	 * 
+	 * @param enabled
+	 */
+	public void setFairReleaseEnabled(boolean enabled) {
+		this.fairReleaseEnabled = enabled;
+	}
+
+	/**
+	 * Set how long a waiting ticket stays in its queue without being checked.
+	 * 
+	 * @param ticketTimeoutSec Defaults to {@link #DEFAULT_TICKET_TIMEOUT_SEC}.
+	 */
+	public void setTicketTimeoutSec(long ticketTimeoutSec) {
+		if (ticketTimeoutSec < 1) {
+			throw new IllegalArgumentException("TicketTimeoutSec cannot be less then one.");
+		}
+		this.ticketTimeoutSec = ticketTimeoutSec;
+	}
+
+	/**
+	 * Enable the saturated key cache by setting its TTL, or disable it with zero
+	 * (the default). When enabled, a key that had no locks available is
+	 * remembered for the TTL. During this window, attempts to acquire a lock on
+	 * the key with the same or a smaller maxLockCount return Optional.empty()
+	 * without calling the database, and
+	 * {@link #getFirstUnexpiredLockContext(String)} only queries the database
+	 * once for the key. Releasing a lock through this object removes its key
+	 * from the cache.
+	 * <p>
+	 * A lock released by another process is not seen until the TTL elapses, so
+	 * the TTL bounds how long an available lock can be reported as unavailable.
+	 * </p>
+	 * 
+	 * @param ttlMs Between zero and {@link #SATURATED_KEY_CACHE_MAX_TTL_MS}.
+	 */
+	public void setSaturatedKeyCacheTtlMs(long ttlMs) {
+		if (ttlMs < 0 || ttlMs > SATURATED_KEY_CACHE_MAX_TTL_MS) {
+			throw new IllegalArgumentException(
+					"SaturatedKeyCacheTtlMs must be between zero and " + SATURATED_KEY_CACHE_MAX_TTL_MS);
+		}
+		this.saturatedKeyCache = ttlMs == 0 ? null
+				: new SaturatedKeyCache(TimeUnit.MILLISECONDS.toNanos(ttlMs), SATURATED_KEY_CACHE_MAX_KEYS,
+						System::nanoTime);
+	}
+
+	/**
+	 * Set how the lock rows of a key are created the first time a lock is
+	 * requested for the key (default: {@link BootstrapStrategy#SINGLE_ROW}).
+	 * 
+	 * @param bootstrapStrategy
+	 */
+	public void setBootstrapStrategy(BootstrapStrategy bootstrapStrategy) {
+		if (bootstrapStrategy == null) {
+			throw new IllegalArgumentException("BootstrapStrategy cannot be null");
+		}
+		this.bootstrapStrategy = bootstrapStrategy;
+	}
+
+	/**
+	 * Set the maximum number of rows inserted per transaction by the
+	 * {@link BootstrapStrategy#SET_BASED} strategy (default:
+	 * {@link #DEFAULT_BOOTSTRAP_CHUNK_SIZE}).
+	 * 
+	 * @param bootstrapChunkSize
+	 */
+	public void setBootstrapChunkSize(int bootstrapChunkSize) {
+		if (bootstrapChunkSize < 1) {
+			throw new IllegalArgumentException("BootstrapChunkSize cannot be less then one.");
+		}
+		this.bootstrapChunkSize = bootstrapChunkSize;
+	}
+
+	/**
+	 * Set the smallest maxLockCount for which the
+	 * {@link BootstrapStrategy#ADAPTIVE} strategy uses set-based inserts (default:
+	 * {@link #DEFAULT_ADAPTIVE_BOOTSTRAP_THRESHOLD}).
+	 * 
+	 * @param adaptiveBootstrapThreshold
+	 */
+	public void setAdaptiveBootstrapThreshold(int adaptiveBootstrapThreshold) {
+		if (adaptiveBootstrapThreshold < 1) {
+			throw new IllegalArgumentException("AdaptiveBootstrapThreshold cannot be less then one.");
+		}
+		this.adaptiveBootstrapThreshold = adaptiveBootstrapThreshold;
+	}
+
+	/**
+	 * Set the policy that decides which keys keep their lock rows during garbage
+	 * collection, or null to delete every expired row that has no token (the
+	 * default). Applies to both {@link #runGarbageCollection()} and
+	 * {@link #runGarbageCollection(int, int, long)}.
+	 * 
+	 * @param retentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy;
+	}
+
+	/**
+	 * Set the listener that receives the outcome and duration of each operation,
+	 * or null to disable metrics (the default). See: {@link SemaphoreMetrics} and
+	 * {@link MicrometerMetricsListener}.
+	 * 
+	 * @param metricsListener
+	 */
+	public void setMetricsListener(SemaphoreMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	/**
+	 * Set the duration above which an operation is flagged as slow in its
+	 * {@link SemaphoreOperationEvent} (default:
+	 * {@link #DEFAULT_SLOW_OPERATION_THRESHOLD_MS}).
+	 * 
+	 * @param slowOperationThresholdMs
+	 */
+	public void setSlowOperationThresholdMs(long slowOperationThresholdMs) {
+		if (slowOperationThresholdMs < 1) {
+			throw new IllegalArgumentException("SlowOperationThresholdMs cannot be less then one.");
+		}
+		this.slowOperationThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowOperationThresholdMs);
+	}
+
+	/**
+	 * 
+	 * @return A new flight recorder event that starts now, or null while no
+	 *         recording of the event is running.
+	 */
+	private static SemaphoreOperationEvent beginEvent() {
+		if (!OPERATION_EVENT_TYPE.isEnabled()) {
+			return null;
+		}
+		SemaphoreOperationEvent event = new SemaphoreOperationEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Report a completed operation to the flight recorder and to the metrics
+	 * listener, if any. A failing listener never fails the operation.
+	 * <p>
+	 * Each request of a batch call is committed from the same event, so all of
+	 * them span the whole call.
+	 * </p>
+	 * 
+	 * @param event      Null while no recording was running.
+	 * @param operation
+	 * @param key
+	 * @param outcome
+	 * @param startNanos
+	 */
+	private void recordOperation(final SemaphoreOperationEvent event, final Operation operation, final String key,
+			final Outcome outcome, final long startNanos) {
+		SemaphoreMetricsListener listener = metricsListener;
+		if (listener == null && event == null) {
+			return;
+		}
+		long durationNanos = System.nanoTime() - startNanos;
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.operation = operation.name();
+				event.key = key;
+				event.outcome = outcome.name();
+				event.slow = durationNanos > slowOperationThresholdNanos;
+				event.commit();
+			}
+		}
+		if (listener == null) {
+			return;
+		}
+		try {
+			listener.onOperation(operation, key, outcome, durationNanos);
+		} catch (RuntimeException e) {
+			log.warn("Metrics listener failed: {}", e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * 
+	 * @param e A failure of a release or refresh.
+	 * @return The outcome reported for the given failure.
+	 */
+	private static Outcome outcomeOf(final RuntimeException e) {
+		if (e instanceof LockReleaseFailedException || e instanceof LockKeyNotFoundException
+				|| e instanceof LockExpiredException) {
+			return Outcome.EXPIRED;
+		}
+		if (e instanceof TransientDataAccessException) {
+			return Outcome.TRANSIENT_FAILURE;
+		}
+		return Outcome.ERROR;
+	}
+
+	/**
+	 * Apply a single step of an online schema migration unless the given count
+	 * query shows it was already applied. Each step is a single DDL statement so
+	 * the step is either fully applied or not at all.
+	 * 
+	 * @param countSql     Counts the schema objects created by the step.
+	 * @param ddlFile
+	 */
+	private void applyMigrationStepIfNeeded(String countSql, String ddlFile) {
+		if (jdbcTemplate.queryForObject(countSql, Long.class) > 0) {
+			return;
+		}
+		try {
+			this.jdbcTemplate.update(Utils.loadStringFromClassPath(ddlFile));
+			log.info("Applied migration: {}", ddlFile);
+		} catch (DataAccessException e) {
+			// Another instance might have applied the same step at the same time.
+			if (jdbcTemplate.queryForObject(countSql, Long.class) < 1) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return True if SEMAPHORE_LOCK still has the unique TOKEN index of a table
+	 *         created before the TOKEN_BIN column existed.
+	 */
+	private boolean hasUniqueTokenIndex() {
+		return jdbcTemplate.queryForObject(SQL_COUNT_UNIQUE_TOKEN_INDEXES, Long.class) > 0;
 	}
 
 	/**
@@ -136,6 +611,317 @@ public class CountingSemaphoreImpl implements CountingSemaphore {
 	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
 	public Optional<String> attemptToAcquireLock(final String key, final long timeoutSec,
 			final int maxLockCount, final String inputContext) {
+		validateAcquireArguments(key, timeoutSec, maxLockCount, inputContext);
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		if (isRejectedLocally(key, maxLockCount, startNanos)) {
+			recordOperation(event, Operation.ACQUIRE, key, Outcome.REJECTED_LOCALLY, startNanos);
+			return Optional.empty();
+		}
+		try {
+			Optional<String> token = null;
+			if (bootstrappedKeyCache.isBootstrapped(key, maxLockCount)) {
+				token = attemptToAcquireBootstrappedLock(key, timeoutSec, maxLockCount, inputContext);
+				if (token == null) {
+					// The rows were removed since they were bootstrapped.
+					bootstrappedKeyCache.invalidate(key);
+				}
+			}
+			if (token == null) {
+				token = attemptToAcquireLockWithBootstrap(key, timeoutSec, maxLockCount, inputContext);
+				bootstrappedKeyCache.bootstrapped(key, maxLockCount);
+			}
+			recordAcquireResult(key, timeoutSec, maxLockCount, 1, token, startNanos);
+			recordOperation(event, Operation.ACQUIRE, key, token.isPresent() ? Outcome.SUCCESS : Outcome.UNAVAILABLE,
+					startNanos);
+			return token;
+		} catch (TransientDataAccessException e) {
+			log.warn("Failed to acquire lock on key {}: {}", key, e.getMessage(), e);
+			recordOperation(event, Operation.ACQUIRE, key, Outcome.TRANSIENT_FAILURE, startNanos);
+			return Optional.empty();
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.ACQUIRE, key, Outcome.ERROR, startNanos);
+			throw e;
+		}
+
+	}
+
+	@Override
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
+	public Optional<String> attemptToAcquireWeightedLock(final String key, final long timeoutSec,
+			final int maxLockCount, final int weight, final String inputContext) {
+		validateAcquireArguments(key, timeoutSec, maxLockCount, inputContext);
+		if (weight < 1) {
+			throw new IllegalArgumentException("Weight cannot be less then one.");
+		}
+		if (weight > maxLockCount) {
+			throw new IllegalArgumentException("Weight cannot be more than MaxLockCount.");
+		}
+		if (weight > 1 && uniqueTokenIndex) {
+			// The locks of a grant share one token. Checked again since the index can be dropped by hand at any time.
+			uniqueTokenIndex = hasUniqueTokenIndex();
+			if (uniqueTokenIndex) {
+				throw new IllegalStateException("Weighted locks cannot be issued while " + TABLE_SEMAPHORE_LOCK
+						+ " has a unique " + IDX_TABLE_SEM_LOCK_TOKEN + " index. Drop it by running: "
+						+ SEMAPHORE_LOCK_DROP_LEGACY_INDEXES_DDL_SQL);
+			}
+		}
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		if (isRejectedLocally(key, maxLockCount, weight, startNanos)) {
+			recordOperation(event, Operation.ACQUIRE, key, Outcome.REJECTED_LOCALLY, startNanos);
+			return Optional.empty();
+		}
+		try {
+			Optional<String> token = jdbcTemplate.queryForObject(CALL_ATTEMPT_TO_ACQUIRE_WEIGHTED_SEMAPHORE_LOCK,
+					(ResultSet rs, int rowNum) -> {
+						return Optional.ofNullable(rs.getString("TOKEN"));
+					}, key, timeoutSec, maxLockCount, weight, inputContext);
+			bootstrappedKeyCache.bootstrapped(key, maxLockCount);
+			// A failed attempt does not mean that no single lock is available.
+			if (token.isPresent()) {
+				recordAcquireResult(key, timeoutSec, maxLockCount, weight, token, startNanos);
+			}
+			recordOperation(event, Operation.ACQUIRE, key, token.isPresent() ? Outcome.SUCCESS : Outcome.UNAVAILABLE,
+					startNanos);
+			return token;
+		} catch (TransientDataAccessException e) {
+			log.warn("Failed to acquire weighted lock on key {}: {}", key, e.getMessage(), e);
+			recordOperation(event, Operation.ACQUIRE, key, Outcome.TRANSIENT_FAILURE, startNanos);
+			return Optional.empty();
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.ACQUIRE, key, Outcome.ERROR, startNanos);
+			throw e;
+		}
+	}
+
+	/**
+	 * A weighted token only counts as released or refreshed when all of its locks
+	 * were.
+	 * 
+	 * @param lockToken
+	 * @param result    The number of rows updated for the token.
+	 * @return
+	 */
+	private static int weightedResult(final LockToken lockToken, final int result) {
+		Integer weight = lockToken.getWeight();
+		return weight != null && result < weight ? 0 : result;
+	}
+
+	@Override
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
+	public List<Optional<String>> attemptToAcquireLocks(final List<LockRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		// No request is sent or reported unless all of them are valid.
+		for (LockRequest request : requests) {
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			validateAcquireArguments(request.getKey(), request.getTimeoutSec(), request.getMaxLockCount(),
+					request.getContext());
+		}
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		// The index of the request sent to the database at each position.
+		int[] requestIndexes = new int[requests.size()];
+		int sentCount = 0;
+		ArrayNode json = JsonNodeFactory.instance.arrayNode(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			LockRequest request = requests.get(i);
+			if (isRejectedLocally(request.getKey(), request.getMaxLockCount(), startNanos)) {
+				recordOperation(event, Operation.ACQUIRE, request.getKey(), Outcome.REJECTED_LOCALLY, startNanos);
+				continue;
+			}
+			requestIndexes[sentCount++] = i;
+			// The rows of a key known to exist are only bootstrapped if they were removed.
+			BootstrapStrategy bootstrap = bootstrappedKeyCache.isBootstrapped(request.getKey(),
+					request.getMaxLockCount()) ? null
+							: bootstrapStrategy.resolve(request.getMaxLockCount(), adaptiveBootstrapThreshold);
+			json.addObject().put("key", request.getKey()).put("timeoutSec", request.getTimeoutSec())
+					.put("maxLockCount", request.getMaxLockCount()).put("context", request.getContext())
+					.put("bootstrap", bootstrap != null ? bootstrap.name() : BOOTSTRAP_NONE)
+					.put("chunkSize", bootstrapChunkSize);
+		}
+		List<Optional<String>> results = new ArrayList<>(Collections.nCopies(requests.size(), Optional.empty()));
+		if (sentCount == 0) {
+			return results;
+		}
+		try {
+			jdbcTemplate.query(CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCKS, (ResultSet rs) -> {
+				results.set(requestIndexes[rs.getInt("REQUEST_INDEX") - 1], Optional.ofNullable(rs.getString("TOKEN")));
+			}, json.toString());
+		} catch (TransientDataAccessException e) {
+			log.warn("Failed to acquire {} locks: {}", sentCount, e.getMessage(), e);
+			recordBatchOperation(event, Operation.ACQUIRE, requests, requestIndexes, sentCount,
+					Outcome.TRANSIENT_FAILURE, startNanos);
+			// The requests were not answered so nothing can be learned from them.
+			return results;
+		} catch (RuntimeException e) {
+			recordBatchOperation(event, Operation.ACQUIRE, requests, requestIndexes, sentCount, Outcome.ERROR,
+					startNanos);
+			throw e;
+		}
+		for (int i = 0; i < sentCount; i++) {
+			LockRequest request = requests.get(requestIndexes[i]);
+			Optional<String> token = results.get(requestIndexes[i]);
+			// The procedure bootstraps the rows of every request it answers.
+			bootstrappedKeyCache.bootstrapped(request.getKey(), request.getMaxLockCount());
+			recordAcquireResult(request.getKey(), request.getTimeoutSec(), request.getMaxLockCount(), 1, token,
+					startNanos);
+			recordOperation(event, Operation.ACQUIRE, request.getKey(),
+					token.isPresent() ? Outcome.SUCCESS : Outcome.UNAVAILABLE, startNanos);
+		}
+		return results;
+	}
+
+	/**
+	 * Report the same outcome for each of the given requests that was sent to the
+	 * database.
+	 * 
+	 * @param event
+	 * @param operation
+	 * @param requests
+	 * @param requestIndexes
+	 * @param sentCount
+	 * @param outcome
+	 * @param startNanos
+	 */
+	private void recordBatchOperation(final SemaphoreOperationEvent event, final Operation operation,
+			final List<LockRequest> requests, final int[] requestIndexes, final int sentCount, final Outcome outcome,
+			final long startNanos) {
+		for (int i = 0; i < sentCount; i++) {
+			recordOperation(event, operation, requests.get(requestIndexes[i]).getKey(), outcome, startNanos);
+		}
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @param maxLockCount
+	 * @param startNanos
+	 * @return True if an attempt to acquire a lock can be rejected without calling
+	 *         the database.
+	 */
+	private boolean isRejectedLocally(final String key, final int maxLockCount, final long startNanos) {
+		return isRejectedLocally(key, maxLockCount, 1, startNanos);
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @param maxLockCount
+	 * @param weight       The number of locks the attempt needs at once.
+	 * @param startNanos
+	 * @return True if an attempt to acquire weight locks can be rejected without
+	 *         calling the database.
+	 */
+	private boolean isRejectedLocally(final String key, final int maxLockCount, final int weight,
+			final long startNanos) {
+		LocalPermitLedger ledger = localPermitLedger;
+		// Fewer than weight locks are free once more than maxLockCount - weight are held.
+		if (ledger != null && ledger.isSaturated(key, maxLockCount - weight + 1, startNanos)) {
+			return true;
+		}
+		// A key without a single free lock has no free locks for any weight.
+		SaturatedKeyCache cache = saturatedKeyCache;
+		return cache != null && cache.isSaturated(key, maxLockCount);
+	}
+
+	/**
+	 * Record the database's answer to an attempt to acquire a lock.
+	 * 
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param weight       The number of locks held with the token.
+	 * @param token
+	 * @param startNanos
+	 */
+	private void recordAcquireResult(final String key, final long timeoutSec, final int maxLockCount,
+			final int weight, final Optional<String> token, final long startNanos) {
+		if (token.isPresent()) {
+			LocalPermitLedger ledger = localPermitLedger;
+			if (ledger != null) {
+				ledger.issued(key, token.get(), weight, startNanos + TimeUnit.SECONDS.toNanos(timeoutSec));
+			}
+		} else {
+			SaturatedKeyCache cache = saturatedKeyCache;
+			if (cache != null) {
+				cache.saturated(key, maxLockCount, startNanos);
+			}
+		}
+	}
+
+	/**
+	 * Attempt to acquire a lock after bootstrapping the rows of the key with the
+	 * configured {@link BootstrapStrategy}.
+	 * 
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param inputContext
+	 * @return
+	 */
+	private Optional<String> attemptToAcquireLockWithBootstrap(final String key, final long timeoutSec,
+			final int maxLockCount, final String inputContext) {
+		boolean setBased = BootstrapStrategy.SET_BASED
+				.equals(bootstrapStrategy.resolve(maxLockCount, adaptiveBootstrapThreshold));
+		LeanJdbcExecutor lean = leanJdbcExecutor;
+		if (lean != null) {
+			return setBased
+					? lean.acquire(CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_IN_CHUNKS, key, timeoutSec, maxLockCount,
+							inputContext, bootstrapChunkSize)
+					: lean.acquire(CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_BY_HASH, key, timeoutSec, maxLockCount,
+							inputContext, 0);
+		}
+		RowMapper<Optional<String>> tokenMapper = (ResultSet rs, int rowNum) -> {
+			return Optional.ofNullable(rs.getString("TOKEN"));
+		};
+		if (setBased) {
+			return jdbcTemplate.queryForObject(CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_IN_CHUNKS, tokenMapper, key,
+					timeoutSec, maxLockCount, inputContext, bootstrapChunkSize);
+		}
+		return jdbcTemplate.queryForObject(CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK_BY_HASH, tokenMapper, key, timeoutSec,
+				maxLockCount, inputContext);
+	}
+
+	/**
+	 * Attempt to acquire a lock without first bootstrapping the rows of the key.
+	 * 
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param inputContext
+	 * @return The result of the attempt, or null if no lock was issued because
+	 *         some of the rows of the key do not exist.
+	 */
+	private Optional<String> attemptToAcquireBootstrappedLock(final String key, final long timeoutSec,
+			final int maxLockCount, final String inputContext) {
+		LeanJdbcExecutor lean = leanJdbcExecutor;
+		if (lean != null) {
+			return lean.acquireBootstrapped(CALL_ATTEMPT_TO_ACQUIRE_BOOTSTRAPPED_SEMAPHORE_LOCK, key, timeoutSec,
+					maxLockCount, inputContext);
+		}
+		return jdbcTemplate.query(CALL_ATTEMPT_TO_ACQUIRE_BOOTSTRAPPED_SEMAPHORE_LOCK, (ResultSet rs) -> {
+			if (!rs.next() || rs.getBoolean("NEEDS_BOOTSTRAP")) {
+				return null;
+			}
+			return Optional.ofNullable(rs.getString("TOKEN"));
+		}, key, timeoutSec, maxLockCount, inputContext);
+	}
+
+	/**
+	 * Validate the arguments of a single lock acquisition.
+	 * 
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param inputContext
+	 */
+	static void validateAcquireArguments(final String key, final long timeoutSec, final int maxLockCount,
+			final String inputContext) {
 		if (key == null) {
 			throw new IllegalArgumentException("Key cannot be null");
 		}
@@ -151,15 +937,6 @@ public class CountingSemaphoreImpl implements CountingSemaphore {
 		if (inputContext.length() > MAX_CONTEXT_CHARS) {
 			throw new IllegalArgumentException("Context length cannot be more than: "+MAX_CONTEXT_CHARS);
 		}
-		try {
-			return jdbcTemplate.queryForObject(CALL_ATTEMPT_TO_ACQUIRE_SEMAPHORE_LOCK, (ResultSet rs, int rowNum) -> {
-				return Optional.ofNullable(rs.getString("TOKEN"));
-			}, key, timeoutSec, maxLockCount, inputContext);
-		} catch (TransientDataAccessException e) {
-			log.warn("Failed to acquire lock on key {}: {}", key, e.getMessage(), e);
-			return Optional.empty();
-		}
-
 	}
 
 	@Override
@@ -171,15 +948,155 @@ public class CountingSemaphoreImpl implements CountingSemaphore {
 		if (token == null) {
 			throw new IllegalArgumentException("Token cannot be null.");
 		}
-		int result = jdbcTemplate.queryForObject(CALL_RELEASE_SEMAPHORE_LOCK,
-				Integer.class, token);
-		Utils.validateResults(key, token, result);
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		try {
+			LockToken lockToken = LockToken.parse(token);
+			LeanJdbcExecutor lean = leanJdbcExecutor;
+			int result;
+			String releaseByRowId = fairReleaseEnabled ? CALL_RELEASE_SEMAPHORE_LOCK_TO_WAITERS
+					: CALL_RELEASE_SEMAPHORE_LOCK_BY_ROW_ID;
+			// Includes weighted tokens, whose locks are all released at once.
+			String releaseByHash = fairReleaseEnabled ? CALL_RELEASE_SEMAPHORE_LOCK_BY_HASH_TO_WAITERS
+					: CALL_RELEASE_SEMAPHORE_LOCK_BY_HASH;
+			if (lean != null) {
+				result = lean.update(lockToken.getRowId() != null ? releaseByRowId : releaseByHash, lockToken,
+						lockToken.getSecret(), 0);
+			} else {
+				result = lockToken.getRowId() != null
+						? jdbcTemplate.queryForObject(releaseByRowId, Integer.class, lockToken.getRowId(),
+								lockToken.getSecret())
+						: jdbcTemplate.queryForObject(releaseByHash, Integer.class, lockToken.getSecret());
+			}
+			Utils.validateResults(key, token, weightedResult(lockToken, result));
+			recordOperation(event, Operation.RELEASE, key, Outcome.SUCCESS, startNanos);
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.RELEASE, key, outcomeOf(e), startNanos);
+			throw e;
+		} finally {
+			// Even when the release fails the token can no longer be counted as held.
+			LocalPermitLedger ledger = localPermitLedger;
+			if (ledger != null) {
+				ledger.released(key, token);
+			}
+			SaturatedKeyCache cache = saturatedKeyCache;
+			if (cache != null) {
+				cache.invalidate(key);
+			}
+		}
+
+	}
+
+	@Override
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
+	public LockTicket enqueueLockTicket(final String key, final long timeoutSec, final int maxLockCount,
+			final String inputContext) {
+		validateAcquireArguments(key, timeoutSec, maxLockCount, inputContext);
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		try {
+			LockTicket ticket = jdbcTemplate.queryForObject(CALL_ENQUEUE_SEMAPHORE_TICKET,
+					(ResultSet rs, int rowNum) -> {
+						return new LockTicket(rs.getLong("TICKET_ID"), key, timeoutSec, rs.getString("TOKEN"));
+					}, key, timeoutSec, maxLockCount, inputContext, ticketTimeoutSec);
+			recordGrantedTicket(key, timeoutSec, ticket.getToken(), startNanos);
+			recordOperation(event, Operation.ACQUIRE, key,
+					ticket.getToken().isPresent() ? Outcome.SUCCESS : Outcome.UNAVAILABLE, startNanos);
+			return ticket;
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.ACQUIRE, key, outcomeOf(e), startNanos);
+			throw e;
+		}
+	}
 
+	@Override
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
+	public Optional<String> checkLockTicket(final LockTicket ticket) {
+		if (ticket == null) {
+			throw new IllegalArgumentException("Ticket cannot be null");
+		}
+		if (ticket.getToken().isPresent()) {
+			// Granted when it was enqueued.
+			return ticket.getToken();
+		}
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		try {
+			Optional<String> token = jdbcTemplate.queryForObject(CALL_CHECK_SEMAPHORE_TICKET,
+					(ResultSet rs, int rowNum) -> {
+						if (!rs.getBoolean("FOUND")) {
+							throw new LockExpiredException("Ticket: " + ticket.getTicketId() + " of key: "
+									+ ticket.getKey() + " has expired.");
+						}
+						String granted = rs.getString("TOKEN");
+						if (granted != null) {
+							// The lock may have been granted long before this check, so its expiration comes
+							// from the lock row rather than the timeout of the ticket.
+							recordGrantedTicket(ticket.getKey(), rs.getLong("EXPIRES_IN_SEC"),
+									Optional.of(granted), startNanos);
+						}
+						return Optional.ofNullable(granted);
+					}, ticket.getTicketId(), ticketTimeoutSec);
+			recordOperation(event, Operation.ACQUIRE, ticket.getKey(),
+					token.isPresent() ? Outcome.SUCCESS : Outcome.UNAVAILABLE, startNanos);
+			return token;
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.ACQUIRE, ticket.getKey(), outcomeOf(e), startNanos);
+			throw e;
+		}
+	}
+
+	@Override
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
+	public void cancelLockTicket(final LockTicket ticket) {
+		if (ticket == null) {
+			throw new IllegalArgumentException("Ticket cannot be null");
+		}
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		try {
+			jdbcTemplate.query(CALL_CANCEL_SEMAPHORE_TICKET, (ResultSet rs) -> {
+				return null;
+			}, ticket.getTicketId());
+			recordOperation(event, Operation.RELEASE, ticket.getKey(), Outcome.SUCCESS, startNanos);
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.RELEASE, ticket.getKey(), outcomeOf(e), startNanos);
+			throw e;
+		}
+		SaturatedKeyCache cache = saturatedKeyCache;
+		if (cache != null) {
+			cache.invalidate(ticket.getKey());
+		}
+	}
+
+	/**
+	 * Record a lock granted to a ticket in the local permit ledger.
+	 * 
+	 * @param key
+	 * @param timeoutSec Seconds from startNanos until the lock expires.
+	 * @param token
+	 * @param startNanos
+	 */
+	private void recordGrantedTicket(final String key, final long timeoutSec, final Optional<String> token,
+			final long startNanos) {
+		LocalPermitLedger ledger = localPermitLedger;
+		if (ledger != null && token.isPresent()) {
+			ledger.issued(key, token.get(), startNanos + TimeUnit.SECONDS.toNanos(timeoutSec));
+		}
 	}
 
 	@Override
 	public void releaseAllLocks() {
 		jdbcTemplate.update(SQL_CLEAR_ALL_LOCKS);
+		jdbcTemplate.update(SQL_CLEAR_ALL_WAITERS);
+		LocalPermitLedger ledger = localPermitLedger;
+		if (ledger != null) {
+			ledger.clear();
+		}
+		SaturatedKeyCache cache = saturatedKeyCache;
+		if (cache != null) {
+			cache.clear();
+		}
 	}
 	
 	@Override
@@ -196,16 +1113,145 @@ public class CountingSemaphoreImpl implements CountingSemaphore {
 			throw new IllegalArgumentException(
 					"TimeoutSec cannot be less then one.");
 		}
-		int result = jdbcTemplate.queryForObject(CALL_REFRESH_SEMAPHORE_LOCK,
-				Integer.class, token, timeoutSec);
-		Utils.validateResults(key, token, result);
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		boolean refreshed = false;
+		try {
+			LockToken lockToken = LockToken.parse(token);
+			LeanJdbcExecutor lean = leanJdbcExecutor;
+			int result;
+			if (lockToken.getWeight() != null) {
+				// Only refreshed when none of the locks of the grant has been lost.
+				result = lean != null ? lean.refreshWeighted(CALL_REFRESH_WEIGHTED_SEMAPHORE_LOCK, lockToken, timeoutSec)
+						: jdbcTemplate.queryForObject(CALL_REFRESH_WEIGHTED_SEMAPHORE_LOCK, Integer.class,
+								lockToken.getSecret(), lockToken.getWeight(), timeoutSec);
+			} else if (lean != null) {
+				result = lean.update(lockToken.getRowId() != null ? CALL_REFRESH_SEMAPHORE_LOCK_BY_ROW_ID
+						: CALL_REFRESH_SEMAPHORE_LOCK_BY_HASH, lockToken, token, timeoutSec);
+			} else {
+				result = lockToken.getRowId() != null
+						? jdbcTemplate.queryForObject(CALL_REFRESH_SEMAPHORE_LOCK_BY_ROW_ID, Integer.class,
+								lockToken.getRowId(), lockToken.getSecret(), timeoutSec)
+						: jdbcTemplate.queryForObject(CALL_REFRESH_SEMAPHORE_LOCK_BY_HASH, Integer.class, token,
+								timeoutSec);
+			}
+			Utils.validateResults(key, token, result);
+			refreshed = true;
+			recordOperation(event, Operation.REFRESH, key, Outcome.SUCCESS, startNanos);
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.REFRESH, key, outcomeOf(e), startNanos);
+			throw e;
+		} finally {
+			updateLedgerAfterRefresh(key, token, timeoutSec, refreshed, startNanos);
+		}
+	}
+
+	/**
+	 * Extend the local expiration of a refreshed token or forget a token that
+	 * could not be refreshed.
+	 * 
+	 * @param key
+	 * @param token
+	 * @param timeoutSec
+	 * @param refreshed
+	 * @param startNanos
+	 */
+	private void updateLedgerAfterRefresh(final String key, final String token, final long timeoutSec,
+			final boolean refreshed, final long startNanos) {
+		LocalPermitLedger ledger = localPermitLedger;
+		if (ledger == null) {
+			return;
+		}
+		if (refreshed) {
+			ledger.refreshed(key, token, startNanos + TimeUnit.SECONDS.toNanos(timeoutSec));
+		} else {
+			ledger.released(key, token);
+		}
+	}
+
+	@Override
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
+	public List<LockRefreshResult> refreshLockTimeouts(final List<LockRefreshRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		ArrayNode json = JsonNodeFactory.instance.arrayNode(requests.size());
+		final LockToken[] lockTokens = new LockToken[requests.size()];
+		for (int i = 0; i < requests.size(); i++) {
+			LockRefreshRequest request = requests.get(i);
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			if (request.getKey() == null) {
+				throw new IllegalArgumentException("Key cannot be null");
+			}
+			if (request.getToken() == null) {
+				throw new IllegalArgumentException("Token cannot be null.");
+			}
+			if (request.getTimeoutSec() < 1) {
+				throw new IllegalArgumentException("TimeoutSec cannot be less then one.");
+			}
+			LockToken lockToken = LockToken.parse(request.getToken());
+			lockTokens[i] = lockToken;
+			ObjectNode element = json.addObject();
+			if (lockToken.getRowId() != null) {
+				element.put("rowId", lockToken.getRowId());
+			}
+			if (lockToken.getWeight() != null) {
+				// Only refreshed when none of the locks of the grant has been lost.
+				element.put("weight", lockToken.getWeight());
+			}
+			element.put("token", lockToken.getSecret()).put("timeoutSec", request.getTimeoutSec());
+		}
+		List<LockRefreshResult> results = new ArrayList<>(
+				Collections.nCopies(requests.size(), LockRefreshResult.EXPIRED));
+		if (requests.isEmpty()) {
+			return results;
+		}
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		try {
+			jdbcTemplate.query(CALL_REFRESH_SEMAPHORE_LOCKS, (ResultSet rs) -> {
+				int index = rs.getInt("REQUEST_INDEX") - 1;
+				results.set(index,
+						LockRefreshResult.fromUpdateCount(weightedResult(lockTokens[index], rs.getInt("RESULT"))));
+			}, json.toString());
+		} catch (RuntimeException e) {
+			Outcome outcome = outcomeOf(e);
+			for (LockRefreshRequest request : requests) {
+				recordOperation(event, Operation.REFRESH, request.getKey(), outcome, startNanos);
+			}
+			throw e;
+		}
+		for (int i = 0; i < requests.size(); i++) {
+			LockRefreshRequest request = requests.get(i);
+			boolean refreshed = LockRefreshResult.REFRESHED.equals(results.get(i));
+			updateLedgerAfterRefresh(request.getKey(), request.getToken(), request.getTimeoutSec(), refreshed,
+					startNanos);
+			recordOperation(event, Operation.REFRESH, request.getKey(), refreshed ? Outcome.SUCCESS : Outcome.EXPIRED,
+					startNanos);
+		}
+		return results;
 	}
 
 	@Override
 	public Optional<String> getFirstUnexpiredLockContext(final String key) {
+		SaturatedKeyCache cache = saturatedKeyCache;
+		SaturatedKeyCache.SaturatedKey entry = cache == null || key == null ? null : cache.get(key);
+		if (entry != null && entry.context != null) {
+			return Optional.of(entry.context);
+		}
 		try {
-			return Optional.of(jdbcTemplate.queryForObject(SQL_EXISTS_UNEXPIRED_LOCK, String.class, key));
+			String context = jdbcTemplate.queryForObject(SQL_EXISTS_UNEXPIRED_LOCK, String.class, key, key);
+			if (entry != null) {
+				entry.context = context;
+			}
+			return Optional.of(context);
 		}catch (EmptyResultDataAccessException e) {
+			if (entry != null) {
+				// The key is no longer saturated.
+				cache.invalidate(key);
+			}
 			return Optional.empty();
 		}
 	}
@@ -213,7 +1259,64 @@ public class CountingSemaphoreImpl implements CountingSemaphore {
 	@Override
 	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
 	public void runGarbageCollection() {
-		jdbcTemplate.update("CALL runGarbageCollection();");
+		// One row per transaction and no limits, just like the original procedure.
+		callGarbageCollection(1, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	@Override
+	@Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = Throwable.class, propagation = Propagation.REQUIRES_NEW)
+	public GarbageCollectionResult runGarbageCollection(final int chunkSize, final int maxRows,
+			final long maxDurationMs) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("ChunkSize cannot be less then one.");
+		}
+		if (maxRows < 1) {
+			throw new IllegalArgumentException("MaxRows cannot be less then one.");
+		}
+		if (maxDurationMs < 1) {
+			throw new IllegalArgumentException("MaxDurationMs cannot be less then one.");
+		}
+		return callGarbageCollection(chunkSize, maxRows, maxDurationMs);
+	}
+
+	/**
+	 * Run garbage collection with the current retention policy.
+	 * 
+	 * @param chunkSize
+	 * @param maxRows
+	 * @param maxDurationMs
+	 * @return
+	 */
+	private GarbageCollectionResult callGarbageCollection(final int chunkSize, final int maxRows,
+			final long maxDurationMs) {
+		RetentionPolicy policy = retentionPolicy;
+		// A maxIdleSec of zero disables retention.
+		long maxIdleSec = policy == null ? 0L : policy.getMaxIdleSec();
+		int minUseCount = policy == null ? 0 : policy.getMinUseCount();
+		long frequentMaxIdleSec = policy == null ? 0L : policy.getFrequentMaxIdleSec();
+		final long startNanos = System.nanoTime();
+		final SemaphoreOperationEvent event = beginEvent();
+		GarbageCollectionResult result;
+		try {
+			result = jdbcTemplate.queryForObject(CALL_GARBAGE_COLLECTION_IN_CHUNKS, (ResultSet rs, int rowNum) -> {
+				return new GarbageCollectionResult(rs.getLong("ROWS_DELETED"), rs.getBoolean("MORE_REMAINING"));
+			}, chunkSize, maxRows, maxDurationMs, maxIdleSec, minUseCount, frequentMaxIdleSec);
+			// Tickets of waiters that stopped checking them.
+			jdbcTemplate.update(SQL_DELETE_EXPIRED_WAITERS, maxRows);
+		} catch (RuntimeException e) {
+			recordOperation(event, Operation.GARBAGE_COLLECTION, null, outcomeOf(e), startNanos);
+			throw e;
+		}
+		recordOperation(event, Operation.GARBAGE_COLLECTION, null, Outcome.SUCCESS, startNanos);
+		SemaphoreMetricsListener listener = metricsListener;
+		if (listener != null) {
+			try {
+				listener.onGarbageCollection(result.getRowsDeleted());
+			} catch (RuntimeException e) {
+				log.warn("Metrics listener failed: {}", e.getMessage(), e);
+			}
+		}
+		return result;
 	}
 
 	@Override
@@ -221,4 +1324,9 @@ public class CountingSemaphoreImpl implements CountingSemaphore {
 		return jdbcTemplate.queryForObject(COUNT_LOCK_ROWS, Long.class) ;
 	}
 
+	@Override
+	public long getLockRowHighWaterMark() {
+		return jdbcTemplate.queryForObject(MAX_LOCK_ROW_ID, Long.class);
+	}
+
 }
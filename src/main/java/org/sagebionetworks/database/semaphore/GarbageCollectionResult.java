@@ -0,0 +1,75 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Objects;
+
+/**
+ * The outcome of a single call to
+ * {@link CountingSemaphore#runGarbageCollection(int, int, long)}.
+ *
+ */
+public class GarbageCollectionResult {
+
+	/**
+	 * The rows deleted by a call that cannot count the rows it deleted.
+	 */
+	public static final long UNKNOWN_ROWS_DELETED = -1L;
+
+	private final long rowsDeleted;
+	private final boolean moreRemaining;
+
+	/**
+	 *
+	 * @param rowsDeleted   The number of lock rows deleted by the call, or
+	 *                      {@link #UNKNOWN_ROWS_DELETED}.
+	 * @param moreRemaining True if the call stopped at one of its limits while
+	 *                      rows that can be deleted remain.
+	 */
+	public GarbageCollectionResult(long rowsDeleted, boolean moreRemaining) {
+		this.rowsDeleted = rowsDeleted;
+		this.moreRemaining = moreRemaining;
+	}
+
+	/**
+	 *
+	 * @return The number of lock rows deleted by the call, or
+	 *         {@link #UNKNOWN_ROWS_DELETED}.
+	 */
+	public long getRowsDeleted() {
+		return rowsDeleted;
+	}
+
+	/**
+	 *
+	 * @return False if the call could not count the rows it deleted.
+	 */
+	public boolean isRowsDeletedKnown() {
+		return rowsDeleted != UNKNOWN_ROWS_DELETED;
+	}
+
+	public boolean isMoreRemaining() {
+		return moreRemaining;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(moreRemaining, rowsDeleted);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof GarbageCollectionResult)) {
+			return false;
+		}
+		GarbageCollectionResult other = (GarbageCollectionResult) obj;
+		return moreRemaining == other.moreRemaining && rowsDeleted == other.rowsDeleted;
+	}
+
+	@Override
+	public String toString() {
+		return "GarbageCollectionResult [rowsDeleted=" + rowsDeleted + ", moreRemaining=" + moreRemaining + "]";
+	}
+
+}
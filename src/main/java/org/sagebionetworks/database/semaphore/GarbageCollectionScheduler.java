@@ -0,0 +1,300 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs {@link CountingSemaphore#runGarbageCollection(int, int, long)} on behalf
+ * of the application so each service does not need its own garbage collection
+ * timer. Can be wired as a Spring bean with destroy-method="close".
+ * <p>
+ * On each tick, the scheduler reads the
+ * {@link CountingSemaphore#getLockRowHighWaterMark()} of the lock table, which
+ * is far cheaper than counting the rows. A collection is started when the
+ * current interval has elapsed since the last collection, when the table grew
+ * by more than the growth threshold, or when the last collection stopped at its
+ * limits with rows remaining. The mark is read again once a collection
+ * finishes, so a mark that falls back to the row count, and therefore shrinks
+ * with each collection, still measures the growth since that collection.
+ * </p>
+ * <p>
+ * The interval adapts to the rows reclaimed by each collection. It is halved
+ * (down to the minimum) when a collection reclaims at least half of the maximum
+ * rows per run, and doubled (up to the maximum) when a collection reclaims
+ * nothing. A collection that cannot count the rows it reclaimed leaves the
+ * interval unchanged.
+ * </p>
+ * <p>
+ * Only one node in the cluster collects at a time. A collection is only
+ * started while holding the single lock of {@link #GARBAGE_COLLECTION_LOCK_KEY}
+ * issued by the semaphore itself. A node that cannot acquire the lock skips
+ * the collection until its next interval.
+ * </p>
+ * This class is thread-safe.
+ */
+public class GarbageCollectionScheduler implements AutoCloseable {
+
+	public static final String GARBAGE_COLLECTION_LOCK_KEY = "semaphore-garbage-collection";
+	public static final String GARBAGE_COLLECTION_LOCK_CONTEXT = "Garbage collection";
+	/**
+	 * Added to the maximum duration of a collection to get the timeout of the
+	 * garbage collection lock.
+	 */
+	public static final long LOCK_TIMEOUT_MARGIN_SEC = 60L;
+
+	public static final long DEFAULT_TICK_MS = 10_000L;
+	public static final long DEFAULT_MIN_INTERVAL_MS = 30_000L;
+	public static final long DEFAULT_MAX_INTERVAL_MS = 600_000L;
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+	public static final int DEFAULT_MAX_ROWS_PER_RUN = 10_000;
+	public static final long DEFAULT_MAX_DURATION_MS = 5_000L;
+	public static final long DEFAULT_GROWTH_THRESHOLD = 10_000L;
+
+	private static final Logger log = LogManager.getLogger(GarbageCollectionScheduler.class);
+
+	private final CountingSemaphore semaphore;
+	private final ScheduledExecutorService scheduler;
+	private final boolean ownsScheduler;
+	private final LongSupplier nanoClock;
+	private final ScheduledFuture<?> tickTask;
+
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile int maxRowsPerRun = DEFAULT_MAX_ROWS_PER_RUN;
+	private volatile long maxDurationMs = DEFAULT_MAX_DURATION_MS;
+	private volatile long growthThreshold = DEFAULT_GROWTH_THRESHOLD;
+
+	// Guarded by this.
+	private long minIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+	private long maxIntervalMs = DEFAULT_MAX_INTERVAL_MS;
+	private long intervalMs;
+	private long lastRunNanos;
+	private long highWaterMarkAtLastRun;
+	private boolean moreRemaining;
+
+	/**
+	 * Create a scheduler with its own thread and the default settings.
+	 *
+	 * @param semaphore
+	 */
+	public GarbageCollectionScheduler(CountingSemaphore semaphore) {
+		this(semaphore, Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "semaphore-garbage-collector");
+			thread.setDaemon(true);
+			return thread;
+		}), true, DEFAULT_TICK_MS, System::nanoTime);
+	}
+
+	/**
+	 *
+	 * @param semaphore The semaphore to collect.
+	 * @param scheduler The shared scheduler used to run the collections. The
+	 *                  caller remains responsible for shutting it down.
+	 * @param tickMs    How often the growth of the table is checked, in
+	 *                  milliseconds.
+	 */
+	public GarbageCollectionScheduler(CountingSemaphore semaphore, ScheduledExecutorService scheduler, long tickMs) {
+		this(semaphore, scheduler, false, tickMs, System::nanoTime);
+	}
+
+	GarbageCollectionScheduler(CountingSemaphore semaphore, ScheduledExecutorService scheduler,
+			boolean ownsScheduler, long tickMs, LongSupplier nanoClock) {
+		if (semaphore == null) {
+			throw new IllegalArgumentException("Semaphore cannot be null");
+		}
+		if (scheduler == null) {
+			throw new IllegalArgumentException("Scheduler cannot be null");
+		}
+		if (tickMs < 1) {
+			throw new IllegalArgumentException("TickMs cannot be less then one.");
+		}
+		this.semaphore = semaphore;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+		this.nanoClock = nanoClock;
+		this.intervalMs = DEFAULT_MIN_INTERVAL_MS;
+		this.lastRunNanos = nanoClock.getAsLong();
+		this.tickTask = this.scheduler.scheduleWithFixedDelay(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the maximum number of rows deleted per transaction (default:
+	 * {@link #DEFAULT_CHUNK_SIZE}).
+	 *
+	 * @param chunkSize
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("ChunkSize cannot be less then one.");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Set the maximum number of rows deleted by a single collection (default:
+	 * {@link #DEFAULT_MAX_ROWS_PER_RUN}).
+	 *
+	 * @param maxRowsPerRun
+	 */
+	public void setMaxRowsPerRun(int maxRowsPerRun) {
+		if (maxRowsPerRun < 1) {
+			throw new IllegalArgumentException("MaxRowsPerRun cannot be less then one.");
+		}
+		this.maxRowsPerRun = maxRowsPerRun;
+	}
+
+	/**
+	 * Set the time after which a collection does not start a new chunk (default:
+	 * {@link #DEFAULT_MAX_DURATION_MS}).
+	 *
+	 * @param maxDurationMs
+	 */
+	public void setMaxDurationMs(long maxDurationMs) {
+		if (maxDurationMs < 1) {
+			throw new IllegalArgumentException("MaxDurationMs cannot be less then one.");
+		}
+		this.maxDurationMs = maxDurationMs;
+	}
+
+	/**
+	 * Set how much the high-water mark of the table must grow to start a
+	 * collection before the current interval has elapsed (default:
+	 * {@link #DEFAULT_GROWTH_THRESHOLD}).
+	 *
+	 * @param growthThreshold
+	 */
+	public void setGrowthThreshold(long growthThreshold) {
+		if (growthThreshold < 1) {
+			throw new IllegalArgumentException("GrowthThreshold cannot be less then one.");
+		}
+		this.growthThreshold = growthThreshold;
+	}
+
+	/**
+	 * Set the bounds of the adaptive interval between collections (default:
+	 * {@link #DEFAULT_MIN_INTERVAL_MS} and {@link #DEFAULT_MAX_INTERVAL_MS}). The
+	 * interval restarts at the minimum.
+	 *
+	 * @param minIntervalMs
+	 * @param maxIntervalMs
+	 */
+	public synchronized void setIntervalBoundsMs(long minIntervalMs, long maxIntervalMs) {
+		if (minIntervalMs < 1) {
+			throw new IllegalArgumentException("MinIntervalMs cannot be less then one.");
+		}
+		if (maxIntervalMs < minIntervalMs) {
+			throw new IllegalArgumentException("MaxIntervalMs cannot be less than MinIntervalMs");
+		}
+		this.minIntervalMs = minIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+		this.intervalMs = minIntervalMs;
+	}
+
+	/**
+	 *
+	 * @return The current interval between collections in milliseconds.
+	 */
+	public synchronized long getIntervalMs() {
+		return intervalMs;
+	}
+
+	/**
+	 * Check the growth of the table and start a collection if one is due. Called
+	 * on each tick of the scheduler, which never runs two ticks at once.
+	 * <p>
+	 * The monitor is only held to read and update the state, not across the
+	 * database calls, so the interval can be read or changed while a collection
+	 * runs.
+	 * </p>
+	 */
+	void tick() {
+		try {
+			long now = nanoClock.getAsLong();
+			long highWaterMark = semaphore.getLockRowHighWaterMark();
+			synchronized (this) {
+				long growth = highWaterMark - highWaterMarkAtLastRun;
+				boolean intervalElapsed = now - lastRunNanos >= TimeUnit.MILLISECONDS.toNanos(intervalMs);
+				if (!moreRemaining && !intervalElapsed && growth < growthThreshold) {
+					return;
+				}
+				lastRunNanos = now;
+				highWaterMarkAtLastRun = highWaterMark;
+			}
+			Optional<GarbageCollectionResult> result = collect();
+			long highWaterMarkAfterRun = semaphore.getLockRowHighWaterMark();
+			synchronized (this) {
+				highWaterMarkAtLastRun = highWaterMarkAfterRun;
+				moreRemaining = result.map(GarbageCollectionResult::isMoreRemaining).orElse(false);
+				intervalMs = nextIntervalMs(result);
+			}
+		} catch (RuntimeException e) {
+			// An exception must not stop the scheduler from running the next tick.
+			synchronized (this) {
+				moreRemaining = false;
+			}
+			log.error("Failed to run garbage collection: {}", e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Run a single collection while holding the garbage collection lock.
+	 *
+	 * @return The result of the collection or Optional.empty() if another node
+	 *         holds the lock.
+	 */
+	private Optional<GarbageCollectionResult> collect() {
+		long runMaxDurationMs = maxDurationMs;
+		long lockTimeoutSec = TimeUnit.MILLISECONDS.toSeconds(runMaxDurationMs) + LOCK_TIMEOUT_MARGIN_SEC;
+		Optional<String> token = semaphore.attemptToAcquireLock(GARBAGE_COLLECTION_LOCK_KEY, lockTimeoutSec, 1,
+				GARBAGE_COLLECTION_LOCK_CONTEXT);
+		if (!token.isPresent()) {
+			log.debug("Garbage collection is running on another node");
+			return Optional.empty();
+		}
+		try {
+			GarbageCollectionResult result = semaphore.runGarbageCollection(chunkSize, maxRowsPerRun,
+					runMaxDurationMs);
+			log.info("Garbage collection: {}", result);
+			return Optional.of(result);
+		} finally {
+			semaphore.releaseLock(GARBAGE_COLLECTION_LOCK_KEY, token.get());
+		}
+	}
+
+	/**
+	 *
+	 * @param result
+	 * @return The interval to use after the given collection result.
+	 */
+	private long nextIntervalMs(Optional<GarbageCollectionResult> result) {
+		long next = intervalMs;
+		if (result.isPresent() && result.get().isRowsDeletedKnown()) {
+			long rowsDeleted = result.get().getRowsDeleted();
+			if (rowsDeleted == 0) {
+				next = next * 2;
+			} else if (rowsDeleted >= maxRowsPerRun / 2) {
+				next = next / 2;
+			}
+		}
+		return Math.max(minIntervalMs, Math.min(maxIntervalMs, next));
+	}
+
+	/**
+	 * Stop scheduling collections. A collection that is already running is
+	 * allowed to finish. If this scheduler created its own thread, the thread is
+	 * shut down.
+	 */
+	@Override
+	public void close() {
+		tickTask.cancel(false);
+		if (ownsScheduler) {
+			scheduler.shutdown();
+		}
+	}
+}
@@ -0,0 +1,530 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * An in-process {@link CountingSemaphore} with the same semantics as
+ * {@link CountingSemaphoreImpl}, for single-node deployments and tests that do
+ * not need a database.
+ * <p>
+ * The state of each key is kept in lock rows, just like the SEMAPHORE_LOCK
+ * table: the rows of a key are created the first time a lock is requested, a
+ * released row is kept for five minutes, and garbage collection deletes the
+ * rows that have no token and are past their expiration. Keys are spread over
+ * a fixed number of stripes, each guarded by its own lock, so operations on
+ * different keys rarely contend. The rows of a stripe that have no token are
+ * scheduled in a {@link TimerWheel}, so garbage collection only visits the rows
+ * that have expired rather than every row.
+ * </p>
+ * <p>
+ * Once the rows of a key exist, acquiring, releasing and refreshing a lock does
+ * not allocate, except for the token and Optional that are returned. Tokens
+ * have the form '&lt;ROW_ID&gt;.&lt;sequence&gt;' and are only valid in the
+ * instance that issued them. The locks are lost when the process exits.
+ * </p>
+ * This class is thread-safe.
+ */
+public class InMemoryCountingSemaphore implements CountingSemaphore {
+
+	public static final int DEFAULT_STRIPE_COUNT = 64;
+	public static final long DEFAULT_TICK_MS = 1000L;
+	/**
+	 * How long a new or released row is protected from garbage collection, the
+	 * same as the database procedures.
+	 */
+	static final long ROW_RETENTION_MS = TimeUnit.MINUTES.toMillis(5);
+	/**
+	 * How far in the past {@link #releaseAllLocks()} sets the expiration of every
+	 * row, the same as {@link CountingSemaphoreImpl}.
+	 */
+	static final long RELEASE_ALL_EXPIRED_MS = TimeUnit.SECONDS.toMillis(10);
+	/**
+	 * The largest number of digits parsed from either part of a token, so each
+	 * part always fits in a long.
+	 */
+	static final int MAX_TOKEN_PART_DIGITS = 18;
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final LongSupplier clock;
+	private final AtomicLong lastRowId;
+	private final LongAdder rowCount;
+
+	/**
+	 * Create a semaphore with {@link #DEFAULT_STRIPE_COUNT} stripes.
+	 */
+	public InMemoryCountingSemaphore() {
+		this(DEFAULT_STRIPE_COUNT);
+	}
+
+	/**
+	 *
+	 * @param stripeCount The number of independently locked stripes the keys are
+	 *                    spread over. Rounded up to a power of two.
+	 */
+	public InMemoryCountingSemaphore(int stripeCount) {
+		this(stripeCount, DEFAULT_TICK_MS, System::currentTimeMillis);
+	}
+
+	InMemoryCountingSemaphore(int stripeCount, long tickMs, LongSupplier clock) {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("StripeCount cannot be less then one.");
+		}
+		if (clock == null) {
+			throw new IllegalArgumentException("Clock cannot be null");
+		}
+		int size = stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+		this.clock = clock;
+		this.stripes = new Stripe[size];
+		long nowMs = clock.getAsLong();
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new Stripe(new TimerWheel(tickMs, nowMs));
+		}
+		this.stripeMask = size - 1;
+		this.lastRowId = new AtomicLong();
+		this.rowCount = new LongAdder();
+	}
+
+	/**
+	 * The keys of a stripe and the timer wheel of their rows that have no token.
+	 */
+	private static final class Stripe {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Map<String, KeyRows> keys = new HashMap<>();
+		private final TimerWheel wheel;
+		private long lastSequence;
+
+		private Stripe(TimerWheel wheel) {
+			this.wheel = wheel;
+		}
+	}
+
+	/**
+	 * The rows of a single key, indexed by their lock number.
+	 */
+	private static final class KeyRows {
+
+		private final String key;
+		private Row[] rows = new Row[0];
+		private int rowCount;
+
+		private KeyRows(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A single lock row. A row is scheduled in the timer wheel of its stripe if,
+	 * and only if, it has no token.
+	 */
+	private static final class Row extends TimerWheel.Node {
+
+		private final KeyRows owner;
+		private final int lockNum;
+		private final long rowId;
+		/**
+		 * The sequence of the token that holds the row, or zero when the row has no
+		 * token.
+		 */
+		private long sequence;
+		private long expiresOnMs;
+		private String context;
+
+		private Row(KeyRows owner, int lockNum, long rowId) {
+			this.owner = owner;
+			this.lockNum = lockNum;
+			this.rowId = rowId;
+		}
+	}
+
+	private Stripe stripeOf(String key) {
+		int hash = key.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & stripeMask];
+	}
+
+	@Override
+	public Optional<String> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount, String context) {
+		CountingSemaphoreImpl.validateAcquireArguments(key, timeoutSec, maxLockCount, context);
+		return acquire(key, timeoutSec, maxLockCount, context);
+	}
+
+	@Override
+	public List<Optional<String>> attemptToAcquireLocks(List<LockRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		// Validate every request before any lock is issued.
+		for (LockRequest request : requests) {
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			CountingSemaphoreImpl.validateAcquireArguments(request.getKey(), request.getTimeoutSec(),
+					request.getMaxLockCount(), request.getContext());
+		}
+		List<Optional<String>> results = new ArrayList<>(requests.size());
+		for (LockRequest request : requests) {
+			results.add(acquire(request.getKey(), request.getTimeoutSec(), request.getMaxLockCount(),
+					request.getContext()));
+		}
+		return results;
+	}
+
+	private Optional<String> acquire(String key, long timeoutSec, int maxLockCount, String context) {
+		Stripe stripe = stripeOf(key);
+		stripe.lock.lock();
+		try {
+			long nowMs = clock.getAsLong();
+			KeyRows keyRows = stripe.keys.get(key);
+			if (keyRows == null) {
+				keyRows = new KeyRows(key);
+				stripe.keys.put(key, keyRows);
+			}
+			bootstrap(stripe, keyRows, maxLockCount, nowMs);
+			Row[] rows = keyRows.rows;
+			for (int i = 0; i < maxLockCount; i++) {
+				Row row = rows[i];
+				if (row.sequence == 0 || row.expiresOnMs < nowMs) {
+					stripe.wheel.cancel(row);
+					row.sequence = ++stripe.lastSequence;
+					row.expiresOnMs = nowMs + TimeUnit.SECONDS.toMillis(timeoutSec);
+					row.context = context;
+					return Optional.of(row.rowId + "." + row.sequence);
+				}
+			}
+			return Optional.empty();
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Ensure the rows of the given key exist for each lock number below the
+	 * given maxLockCount.
+	 *
+	 * @param stripe
+	 * @param keyRows
+	 * @param maxLockCount
+	 * @param nowMs
+	 */
+	private void bootstrap(Stripe stripe, KeyRows keyRows, int maxLockCount, long nowMs) {
+		if (keyRows.rows.length < maxLockCount) {
+			keyRows.rows = Arrays.copyOf(keyRows.rows, maxLockCount);
+		}
+		for (int i = 0; i < maxLockCount; i++) {
+			if (keyRows.rows[i] == null) {
+				Row row = new Row(keyRows, i, lastRowId.incrementAndGet());
+				row.expiresOnMs = nowMs + ROW_RETENTION_MS;
+				stripe.wheel.schedule(row, row.expiresOnMs);
+				keyRows.rows[i] = row;
+				keyRows.rowCount++;
+				rowCount.increment();
+			}
+		}
+	}
+
+	@Override
+	public void refreshLockTimeout(String key, String token, long timeoutSec) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key cannot be null");
+		}
+		if (token == null) {
+			throw new IllegalArgumentException("Token cannot be null.");
+		}
+		if (timeoutSec < 1) {
+			throw new IllegalArgumentException("TimeoutSec cannot be less then one.");
+		}
+		Utils.validateResults(key, token, refresh(key, token, timeoutSec) ? 1 : 0);
+	}
+
+	@Override
+	public List<LockRefreshResult> refreshLockTimeouts(List<LockRefreshRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		for (LockRefreshRequest request : requests) {
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			if (request.getKey() == null) {
+				throw new IllegalArgumentException("Key cannot be null");
+			}
+			if (request.getToken() == null) {
+				throw new IllegalArgumentException("Token cannot be null.");
+			}
+			if (request.getTimeoutSec() < 1) {
+				throw new IllegalArgumentException("TimeoutSec cannot be less then one.");
+			}
+		}
+		List<LockRefreshResult> results = new ArrayList<>(requests.size());
+		for (LockRefreshRequest request : requests) {
+			results.add(refresh(request.getKey(), request.getToken(), request.getTimeoutSec())
+					? LockRefreshResult.REFRESHED
+					: LockRefreshResult.EXPIRED);
+		}
+		return results;
+	}
+
+	private boolean refresh(String key, String token, long timeoutSec) {
+		Stripe stripe = stripeOf(key);
+		stripe.lock.lock();
+		try {
+			Row row = findRow(stripe, key, token);
+			if (row == null) {
+				return false;
+			}
+			row.expiresOnMs = clock.getAsLong() + TimeUnit.SECONDS.toMillis(timeoutSec);
+			return true;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public void releaseLock(String key, String token) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key cannot be null");
+		}
+		if (token == null) {
+			throw new IllegalArgumentException("Token cannot be null.");
+		}
+		int result = 0;
+		Stripe stripe = stripeOf(key);
+		stripe.lock.lock();
+		try {
+			Row row = findRow(stripe, key, token);
+			if (row != null) {
+				clearToken(stripe, row, clock.getAsLong() + ROW_RETENTION_MS);
+				result = 1;
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+		Utils.validateResults(key, token, result);
+	}
+
+	/**
+	 * Remove the token of the given row and schedule the row for garbage
+	 * collection.
+	 *
+	 * @param stripe
+	 * @param row
+	 * @param expiresOnMs
+	 */
+	private static void clearToken(Stripe stripe, Row row, long expiresOnMs) {
+		row.sequence = 0;
+		row.context = null;
+		row.expiresOnMs = expiresOnMs;
+		stripe.wheel.schedule(row, expiresOnMs);
+	}
+
+	/**
+	 * Find the row currently held by the given token.
+	 *
+	 * @param stripe
+	 * @param key
+	 * @param token
+	 * @return The row or null if the token does not hold a row of the key.
+	 */
+	private static Row findRow(Stripe stripe, String key, String token) {
+		int separatorIndex = token.indexOf('.');
+		if (separatorIndex < 0) {
+			return null;
+		}
+		long rowId = parseTokenPart(token, 0, separatorIndex);
+		long sequence = parseTokenPart(token, separatorIndex + 1, token.length());
+		if (rowId < 0 || sequence < 1) {
+			return null;
+		}
+		KeyRows keyRows = stripe.keys.get(key);
+		if (keyRows == null) {
+			return null;
+		}
+		for (Row row : keyRows.rows) {
+			if (row != null && row.rowId == rowId) {
+				return row.sequence == sequence ? row : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parse part of a token without allocating.
+	 *
+	 * @param token
+	 * @param begin
+	 * @param end
+	 * @return The parsed value or -1 if the part is not a number.
+	 */
+	private static long parseTokenPart(String token, int begin, int end) {
+		if (end <= begin || end - begin > MAX_TOKEN_PART_DIGITS) {
+			return -1L;
+		}
+		long value = 0;
+		for (int i = begin; i < end; i++) {
+			char c = token.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1L;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	@Override
+	public void releaseAllLocks() {
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				long nowMs = clock.getAsLong();
+				stripe.wheel.advance(nowMs);
+				for (KeyRows keyRows : stripe.keys.values()) {
+					for (Row row : keyRows.rows) {
+						if (row != null) {
+							clearToken(stripe, row, nowMs - RELEASE_ALL_EXPIRED_MS);
+						}
+					}
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public Optional<String> getFirstUnexpiredLockContext(String key) {
+		if (key == null) {
+			return Optional.empty();
+		}
+		Stripe stripe = stripeOf(key);
+		stripe.lock.lock();
+		try {
+			KeyRows keyRows = stripe.keys.get(key);
+			if (keyRows == null) {
+				return Optional.empty();
+			}
+			long nowMs = clock.getAsLong();
+			for (Row row : keyRows.rows) {
+				if (row != null && row.sequence != 0 && row.expiresOnMs >= nowMs) {
+					return Optional.of(row.context);
+				}
+			}
+			return Optional.empty();
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public void runGarbageCollection() {
+		collectGarbage(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	@Override
+	public GarbageCollectionResult runGarbageCollection(int chunkSize, int maxRows, long maxDurationMs) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("ChunkSize cannot be less then one.");
+		}
+		if (maxRows < 1) {
+			throw new IllegalArgumentException("MaxRows cannot be less then one.");
+		}
+		if (maxDurationMs < 1) {
+			throw new IllegalArgumentException("MaxDurationMs cannot be less then one.");
+		}
+		return collectGarbage(chunkSize, maxRows, maxDurationMs);
+	}
+
+	/**
+	 * Delete the expired rows without a token, holding the lock of a stripe for
+	 * at most one chunk at a time.
+	 *
+	 * @param chunkSize
+	 * @param maxRows
+	 * @param maxDurationMs
+	 * @return
+	 */
+	private GarbageCollectionResult collectGarbage(int chunkSize, int maxRows, long maxDurationMs) {
+		long startNanos = System.nanoTime();
+		long rowsDeleted = 0;
+		boolean stopped = false;
+		for (int i = 0; i < stripes.length && !stopped; i++) {
+			int chunkDeleted;
+			int limit;
+			do {
+				if (rowsDeleted >= maxRows
+						|| TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) >= maxDurationMs) {
+					stopped = true;
+					break;
+				}
+				limit = (int) Math.min(chunkSize, maxRows - rowsDeleted);
+				chunkDeleted = deleteExpiredRows(stripes[i], limit);
+				rowsDeleted += chunkDeleted;
+			} while (chunkDeleted == limit);
+		}
+		boolean moreRemaining = false;
+		if (stopped) {
+			for (Stripe stripe : stripes) {
+				stripe.lock.lock();
+				try {
+					stripe.wheel.advance(clock.getAsLong());
+					moreRemaining = stripe.wheel.hasExpired();
+				} finally {
+					stripe.lock.unlock();
+				}
+				if (moreRemaining) {
+					break;
+				}
+			}
+		}
+		return new GarbageCollectionResult(rowsDeleted, moreRemaining);
+	}
+
+	/**
+	 * Delete up to the given number of expired rows from a single stripe.
+	 *
+	 * @param stripe
+	 * @param limit
+	 * @return The number of rows deleted.
+	 */
+	private int deleteExpiredRows(Stripe stripe, int limit) {
+		stripe.lock.lock();
+		try {
+			stripe.wheel.advance(clock.getAsLong());
+			int deleted = 0;
+			Row row;
+			while (deleted < limit && (row = (Row) stripe.wheel.pollExpired()) != null) {
+				KeyRows keyRows = row.owner;
+				keyRows.rows[row.lockNum] = null;
+				keyRows.rowCount--;
+				if (keyRows.rowCount == 0) {
+					stripe.keys.remove(keyRows.key);
+				}
+				rowCount.decrement();
+				deleted++;
+			}
+			return deleted;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public long getLockRowCount() {
+		return rowCount.sum();
+	}
+
+	@Override
+	public long getLockRowHighWaterMark() {
+		return lastRowId.get();
+	}
+}
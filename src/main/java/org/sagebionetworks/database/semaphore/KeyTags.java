@@ -0,0 +1,62 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Maps lock keys to metric tags, keeping at most maxTags distinct tags so the
+ * number of metrics stays bounded. Keys beyond the limit are tagged
+ * {@link SemaphoreMetrics#OTHER_TAG}.
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+class KeyTags {
+
+	private final Function<String, String> keyTagger;
+	private final int maxTags;
+	private final Set<String> tags;
+
+	/**
+	 *
+	 * @param keyTagger
+	 * @param maxTags
+	 */
+	KeyTags(Function<String, String> keyTagger, int maxTags) {
+		if (keyTagger == null) {
+			throw new IllegalArgumentException("KeyTagger cannot be null");
+		}
+		if (maxTags < 1) {
+			throw new IllegalArgumentException("MaxTags cannot be less then one.");
+		}
+		this.keyTagger = keyTagger;
+		this.maxTags = maxTags;
+		this.tags = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The tag of the given key, or {@link SemaphoreMetrics#NO_TAG} for a
+	 *         null key or tag.
+	 */
+	String tagOf(String key) {
+		if (key == null) {
+			return SemaphoreMetrics.NO_TAG;
+		}
+		String tag = keyTagger.apply(key);
+		if (tag == null) {
+			return SemaphoreMetrics.NO_TAG;
+		}
+		if (tags.contains(tag)) {
+			return tag;
+		}
+		if (tags.size() >= maxTags) {
+			return SemaphoreMetrics.OTHER_TAG;
+		}
+		// Concurrent callers can add a few tags past the limit.
+		tags.add(tag);
+		return tag;
+	}
+}
@@ -0,0 +1,124 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the style of
+ * HdrHistogram. Each power of two is divided into {@link #SUB_BUCKET_COUNT}
+ * linear buckets, so a recorded value is reported with a relative error of at
+ * most 1/{@link #SUB_BUCKET_COUNT} over the full range of a long, using a fixed
+ * amount of memory.
+ * <p>
+ * This class is thread-safe. Recording a value never blocks.
+ * </p>
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 3;
+	public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+	/**
+	 * Record a single duration. A negative duration is recorded as zero.
+	 *
+	 * @param durationNanos
+	 */
+	public void record(long durationNanos) {
+		long value = Math.max(0L, durationNanos);
+		buckets.incrementAndGet(bucketIndex(value));
+		count.increment();
+		totalNanos.add(value);
+		maxNanos.accumulate(value);
+	}
+
+	/**
+	 *
+	 * @return The number of recorded durations.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 *
+	 * @return The sum of all recorded durations.
+	 */
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	/**
+	 *
+	 * @return The largest recorded duration.
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 *
+	 * @param percentile Between zero and one hundred.
+	 * @return The upper bound of the bucket holding the given percentile of the
+	 *         recorded durations, or zero if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0.0 || percentile > 100.0) {
+			throw new IllegalArgumentException("Percentile must be between zero and one hundred");
+		}
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 *
+	 * @param value A non-negative value.
+	 * @return The index of the bucket for the given value.
+	 */
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+		return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @return The largest value that falls into the given bucket.
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+		long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+		long lower = (SUB_BUCKET_COUNT + subBucket) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
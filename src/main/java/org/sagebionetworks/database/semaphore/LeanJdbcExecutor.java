@@ -0,0 +1,230 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+
+/**
+ * Calls the acquire, release and refresh procedures of
+ * {@link CountingSemaphoreImpl} with plain JDBC. Each call binds its arguments
+ * with typed setters and reads the single row of the procedure's result
+ * directly, without the argument arrays, statement creators, row mappers and
+ * result lists that JdbcTemplate allocates for each call.
+ * <p>
+ * The connection is fetched with {@link DataSourceUtils}, so a call joins the
+ * transaction started by the @Transactional annotations exactly like a
+ * JdbcTemplate call. An SQLException is translated with the same translator as
+ * the JdbcTemplate, so transient failures are still reported as a
+ * TransientDataAccessException.
+ * </p>
+ * <p>
+ * Statements are marked as poolable and closed after each call. Statement
+ * reuse is left to the driver or the connection pool, for example with the
+ * MySQL Connector/J URL options:
+ * "useServerPrepStmts=true&amp;cachePrepStmts=true", which keep a server side
+ * prepared statement per pooled connection. This class does not cache
+ * statements itself: a connection handed out by a pool is a wrapper that can
+ * change on every call, and a statement held past the return of its connection
+ * would be leaked or closed under its owner when the pool closes the physical
+ * connection. The driver's cache has neither problem since it lives on the
+ * physical connection.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+class LeanJdbcExecutor {
+
+	private static final String TOKEN = "TOKEN";
+	private static final String NEEDS_BOOTSTRAP = "NEEDS_BOOTSTRAP";
+	private static final String RESULT = "RESULT";
+
+	private final DataSource dataSource;
+	private final SQLExceptionTranslator exceptionTranslator;
+
+	/**
+	 *
+	 * @param dataSource          The same DataSource as the transaction manager.
+	 * @param exceptionTranslator Translates the SQLException of a failed call.
+	 */
+	LeanJdbcExecutor(DataSource dataSource, SQLExceptionTranslator exceptionTranslator) {
+		if (dataSource == null) {
+			throw new IllegalArgumentException("DataSource cannot be null");
+		}
+		if (exceptionTranslator == null) {
+			throw new IllegalArgumentException("ExceptionTranslator cannot be null");
+		}
+		this.dataSource = dataSource;
+		this.exceptionTranslator = exceptionTranslator;
+	}
+
+	/**
+	 * Call an acquire procedure that returns a single TOKEN column.
+	 *
+	 * @param sql          The CALL statement.
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param context
+	 * @param chunkSize    Bound as the fifth argument when greater than zero.
+	 * @return
+	 */
+	Optional<String> acquire(String sql, String key, long timeoutSec, int maxLockCount, String context,
+			int chunkSize) {
+		Connection connection = DataSourceUtils.getConnection(dataSource);
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			statement = prepare(connection, sql);
+			bindAcquireArguments(statement, key, timeoutSec, maxLockCount, context);
+			if (chunkSize > 0) {
+				statement.setInt(5, chunkSize);
+			}
+			resultSet = statement.executeQuery();
+			if (!resultSet.next()) {
+				throw new EmptyResultDataAccessException(1);
+			}
+			return Optional.ofNullable(resultSet.getString(TOKEN));
+		} catch (SQLException e) {
+			throw translate("attemptToAcquireLock", sql, e);
+		} finally {
+			close(connection, statement, resultSet);
+		}
+	}
+
+	/**
+	 * Call the procedure that acquires a lock on a key whose rows are expected to
+	 * exist.
+	 *
+	 * @param sql          The CALL statement.
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param context
+	 * @return The result of the attempt, or null if no lock was issued because
+	 *         some of the rows of the key do not exist.
+	 */
+	Optional<String> acquireBootstrapped(String sql, String key, long timeoutSec, int maxLockCount,
+			String context) {
+		Connection connection = DataSourceUtils.getConnection(dataSource);
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			statement = prepare(connection, sql);
+			bindAcquireArguments(statement, key, timeoutSec, maxLockCount, context);
+			resultSet = statement.executeQuery();
+			if (!resultSet.next() || resultSet.getBoolean(NEEDS_BOOTSTRAP)) {
+				return null;
+			}
+			return Optional.ofNullable(resultSet.getString(TOKEN));
+		} catch (SQLException e) {
+			throw translate("attemptToAcquireLock", sql, e);
+		} finally {
+			close(connection, statement, resultSet);
+		}
+	}
+
+	/**
+	 * Call a release or refresh procedure that returns a single RESULT column.
+	 *
+	 * @param sql        The CALL statement.
+	 * @param lockToken  The row id (if any) and secret are bound first.
+	 * @param token      Bound instead of the secret of a token without a row id.
+	 * @param timeoutSec Bound as the last argument when greater than zero.
+	 * @return The RESULT column.
+	 */
+	int update(String sql, LockToken lockToken, String token, long timeoutSec) {
+		Connection connection = DataSourceUtils.getConnection(dataSource);
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			statement = prepare(connection, sql);
+			int index = 1;
+			if (lockToken.getRowId() != null) {
+				statement.setLong(index++, lockToken.getRowId());
+				statement.setString(index++, lockToken.getSecret());
+			} else {
+				statement.setString(index++, token);
+			}
+			if (timeoutSec > 0) {
+				statement.setLong(index, timeoutSec);
+			}
+			resultSet = statement.executeQuery();
+			if (!resultSet.next()) {
+				throw new EmptyResultDataAccessException(1);
+			}
+			return resultSet.getInt(RESULT);
+		} catch (SQLException e) {
+			throw translate("updateLock", sql, e);
+		} finally {
+			close(connection, statement, resultSet);
+		}
+	}
+
+	/**
+	 * Call the procedure that refreshes all of the locks of a weighted grant.
+	 *
+	 * @param sql        The CALL statement.
+	 * @param lockToken  A weighted token.
+	 * @param timeoutSec
+	 * @return The RESULT column, the number of locks refreshed.
+	 */
+	int refreshWeighted(String sql, LockToken lockToken, long timeoutSec) {
+		Connection connection = DataSourceUtils.getConnection(dataSource);
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			statement = prepare(connection, sql);
+			statement.setString(1, lockToken.getSecret());
+			statement.setInt(2, lockToken.getWeight());
+			statement.setLong(3, timeoutSec);
+			resultSet = statement.executeQuery();
+			if (!resultSet.next()) {
+				throw new EmptyResultDataAccessException(1);
+			}
+			return resultSet.getInt(RESULT);
+		} catch (SQLException e) {
+			throw translate("updateLock", sql, e);
+		} finally {
+			close(connection, statement, resultSet);
+		}
+	}
+
+	private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		statement.setPoolable(true);
+		// Honor the timeout of the current transaction, the same as JdbcTemplate.
+		DataSourceUtils.applyTransactionTimeout(statement, dataSource);
+		return statement;
+	}
+
+	private static void bindAcquireArguments(PreparedStatement statement, String key, long timeoutSec,
+			int maxLockCount, String context) throws SQLException {
+		statement.setString(1, key);
+		statement.setLong(2, timeoutSec);
+		statement.setInt(3, maxLockCount);
+		statement.setString(4, context);
+	}
+
+	private DataAccessException translate(String task, String sql, SQLException e) {
+		DataAccessException translated = exceptionTranslator.translate(task, sql, e);
+		return translated != null ? translated : new UncategorizedSQLException(task, sql, e);
+	}
+
+	private void close(Connection connection, PreparedStatement statement, ResultSet resultSet) {
+		JdbcUtils.closeResultSet(resultSet);
+		JdbcUtils.closeStatement(statement);
+		DataSourceUtils.releaseConnection(connection, dataSource);
+	}
+}
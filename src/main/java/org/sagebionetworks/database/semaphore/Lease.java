@@ -0,0 +1,97 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handle to a lock that is kept alive by a {@link LeaseKeeper}. The lock's
+ * timeout is refreshed automatically until the lease is closed. Closing the
+ * lease releases the lock, so it is intended to be used with
+ * try-with-resources:
+ *
+ * <pre>
+ * Optional&lt;Lease&gt; lease = leaseKeeper.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+ * if (lease.isPresent()) {
+ * 	try (Lease held = lease.get()) {
+ * 		// do work while holding the lock.
+ * 	}
+ * }
+ * </pre>
+ *
+ */
+public class Lease implements AutoCloseable {
+
+	private final LeaseKeeper keeper;
+	private final String key;
+	private final String token;
+	private final long timeoutSec;
+	private final AtomicBoolean closed;
+	private volatile long renewedOnNanos;
+	private volatile boolean lost;
+
+	Lease(LeaseKeeper keeper, String key, String token, long timeoutSec, long renewedOnNanos) {
+		this.keeper = keeper;
+		this.key = key;
+		this.token = token;
+		this.timeoutSec = timeoutSec;
+		this.renewedOnNanos = renewedOnNanos;
+		this.closed = new AtomicBoolean(false);
+		this.lost = false;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public long getTimeoutSec() {
+		return timeoutSec;
+	}
+
+	/**
+	 *
+	 * @return True if an attempt to renew this lease found that the lock had
+	 *         already expired. Work guarded by a lost lease is no longer
+	 *         protected.
+	 */
+	public boolean isLost() {
+		return lost;
+	}
+
+	/**
+	 * Stop renewing this lease and release the lock. Calling this method more
+	 * than once has no effect.
+	 *
+	 * @throws LockReleaseFailedException When the lock has already expired.
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			keeper.release(this);
+		}
+	}
+
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	long getRenewedOnNanos() {
+		return renewedOnNanos;
+	}
+
+	void setRenewedOnNanos(long renewedOnNanos) {
+		this.renewedOnNanos = renewedOnNanos;
+	}
+
+	void markLost() {
+		this.lost = true;
+	}
+
+	@Override
+	public String toString() {
+		return "Lease [key=" + key + ", token=" + token + ", timeoutSec=" + timeoutSec + ", lost=" + lost + "]";
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps locks alive on behalf of their holders so callers do not need their own
+ * timer to call
+ * {@link CountingSemaphore#refreshLockTimeout(String, String, long)}.
+ * <p>
+ * Every live {@link Lease} issued by this keeper is checked on each tick of a
+ * single shared scheduler. A lease is only renewed once the time since its
+ * last renewal passes the configured fraction of its timeout, and all of the
+ * leases that are due on a tick are renewed together with a single call to
+ * {@link CountingSemaphore#refreshLockTimeouts(List)}.
+ * </p>
+ * <p>
+ * This class is thread-safe and is intended to be used as a singleton per
+ * semaphore.
+ * </p>
+ */
+public class LeaseKeeper implements AutoCloseable {
+
+	public static final double DEFAULT_RENEW_FRACTION = 0.5;
+	public static final long DEFAULT_TICK_MS = 1000L;
+
+	private static final Logger log = LogManager.getLogger(LeaseKeeper.class);
+
+	private final CountingSemaphore semaphore;
+	private final ScheduledExecutorService scheduler;
+	private final boolean ownsScheduler;
+	private final double renewFraction;
+	private final LongSupplier nanoClock;
+	private final Set<Lease> leases;
+	private final ScheduledFuture<?> renewTask;
+
+	/**
+	 * Create a keeper with its own scheduler thread, that renews leases once half
+	 * of their timeout has passed.
+	 *
+	 * @param semaphore
+	 */
+	public LeaseKeeper(CountingSemaphore semaphore) {
+		this(semaphore, Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "semaphore-lease-keeper");
+			thread.setDaemon(true);
+			return thread;
+		}), true, DEFAULT_RENEW_FRACTION, DEFAULT_TICK_MS, System::nanoTime);
+	}
+
+	/**
+	 *
+	 * @param semaphore     The semaphore that issues the locks.
+	 * @param scheduler     The shared scheduler used to renew the leases. The
+	 *                      caller remains responsible for shutting it down.
+	 * @param renewFraction A lease is renewed once this fraction of its timeout
+	 *                      has passed since it was last renewed. Must be greater
+	 *                      than zero and less than one.
+	 * @param tickMs        How often the leases are checked, in milliseconds.
+	 *                      This should be well below the smallest timeout
+	 *                      multiplied by the renewFraction.
+	 */
+	public LeaseKeeper(CountingSemaphore semaphore, ScheduledExecutorService scheduler, double renewFraction,
+			long tickMs) {
+		this(semaphore, scheduler, false, renewFraction, tickMs, System::nanoTime);
+	}
+
+	LeaseKeeper(CountingSemaphore semaphore, ScheduledExecutorService scheduler, boolean ownsScheduler,
+			double renewFraction, long tickMs, LongSupplier nanoClock) {
+		if (semaphore == null) {
+			throw new IllegalArgumentException("Semaphore cannot be null");
+		}
+		if (scheduler == null) {
+			throw new IllegalArgumentException("Scheduler cannot be null");
+		}
+		if (renewFraction <= 0.0 || renewFraction >= 1.0) {
+			throw new IllegalArgumentException("RenewFraction must be greater than zero and less than one.");
+		}
+		if (tickMs < 1) {
+			throw new IllegalArgumentException("TickMs cannot be less then one.");
+		}
+		this.semaphore = semaphore;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+		this.renewFraction = renewFraction;
+		this.nanoClock = nanoClock;
+		this.leases = ConcurrentHashMap.newKeySet();
+		this.renewTask = this.scheduler.scheduleWithFixedDelay(this::renewLeases, tickMs, tickMs,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Attempt to acquire a lock that will be kept alive until the returned lease
+	 * is closed. See:
+	 * {@link CountingSemaphore#attemptToAcquireLock(String, long, int, String)}.
+	 *
+	 * @param key
+	 * @param timeoutSec
+	 * @param maxLockCount
+	 * @param context
+	 * @return The lease for the lock or Optional.empty() when no locks are
+	 *         available.
+	 */
+	public Optional<Lease> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount, String context) {
+		long now = nanoClock.getAsLong();
+		return semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context).map(token -> {
+			Lease lease = new Lease(this, key, token, timeoutSec, now);
+			leases.add(lease);
+			return lease;
+		});
+	}
+
+	/**
+	 *
+	 * @return The number of leases that are currently being kept alive.
+	 */
+	public int getLeaseCount() {
+		return leases.size();
+	}
+
+	/**
+	 * Renew every lease that has passed the renew fraction of its timeout with a
+	 * single call to the semaphore. Called on each tick of the scheduler.
+	 */
+	void renewLeases() {
+		try {
+			long now = nanoClock.getAsLong();
+			List<Lease> due = new ArrayList<>();
+			for (Lease lease : leases) {
+				long renewAfterNanos = (long) (TimeUnit.SECONDS.toNanos(lease.getTimeoutSec()) * renewFraction);
+				if (now - lease.getRenewedOnNanos() >= renewAfterNanos) {
+					due.add(lease);
+				}
+			}
+			if (due.isEmpty()) {
+				return;
+			}
+			List<LockRefreshRequest> requests = new ArrayList<>(due.size());
+			for (Lease lease : due) {
+				requests.add(new LockRefreshRequest(lease.getKey(), lease.getToken(), lease.getTimeoutSec()));
+			}
+			List<LockRefreshResult> results = semaphore.refreshLockTimeouts(requests);
+			for (int i = 0; i < due.size(); i++) {
+				Lease lease = due.get(i);
+				if (LockRefreshResult.REFRESHED.equals(results.get(i))) {
+					lease.setRenewedOnNanos(now);
+				} else if (leases.remove(lease)) {
+					lease.markLost();
+					log.warn("Lost lease on key {}: {}", lease.getKey(), results.get(i));
+				}
+			}
+		} catch (RuntimeException e) {
+			// An exception must not stop the scheduler from running the next tick.
+			log.error("Failed to renew leases: {}", e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Stop tracking the given lease and release its lock.
+	 *
+	 * @param lease
+	 */
+	void release(Lease lease) {
+		leases.remove(lease);
+		semaphore.releaseLock(lease.getKey(), lease.getToken());
+	}
+
+	/**
+	 * Stop renewing all leases. The locks of any open leases are not released and
+	 * will expire at the end of their current timeout. If this keeper created its
+	 * own scheduler, the scheduler is shut down.
+	 */
+	@Override
+	public void close() {
+		renewTask.cancel(false);
+		leases.clear();
+		if (ownsScheduler) {
+			scheduler.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the tokens issued to, and not yet released by, this process along
+ * with their local expiration times. Used by {@link CountingSemaphoreImpl} to
+ * reject an acquisition without a database call when this process alone
+ * already holds every permit for a key. A weighted token counts as all of the
+ * permits it holds.
+ * <p>
+ * Expiration times are measured from the start of the call that issued or
+ * refreshed a token, so a token always expires locally no later than it does
+ * in the database. As a result the ledger can only under-count the permits
+ * that are actually held and never rejects a lock that the database would
+ * grant, as long as tokens are only released by the process that acquired
+ * them.
+ * </p>
+ * This class is thread-safe.
+ */
+class LocalPermitLedger {
+
+	/**
+	 * Key -> (token -> permit)
+	 */
+	private final ConcurrentHashMap<String, Map<String, Permit>> permits;
+
+	LocalPermitLedger() {
+		this.permits = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param maxLockCount
+	 * @param nowNanos
+	 * @return True if this process holds at least maxLockCount unexpired permits
+	 *         for the given key.
+	 */
+	boolean isSaturated(String key, int maxLockCount, long nowNanos) {
+		Map<String, Permit> tokens = permits.get(key);
+		if (tokens == null) {
+			return false;
+		}
+		int held = 0;
+		boolean expired = false;
+		for (Permit permit : tokens.values()) {
+			if (permit.expiresOnNanos - nowNanos > 0L) {
+				held += permit.weight;
+			} else {
+				expired = true;
+			}
+		}
+		if (expired) {
+			removeExpired(key, nowNanos);
+		}
+		return held >= maxLockCount;
+	}
+
+	/**
+	 * Record a token of a single lock issued to this process.
+	 *
+	 * @param key
+	 * @param token
+	 * @param expiresOnNanos
+	 */
+	void issued(String key, String token, long expiresOnNanos) {
+		issued(key, token, 1, expiresOnNanos);
+	}
+
+	/**
+	 * Record a token issued to this process.
+	 *
+	 * @param key
+	 * @param token
+	 * @param weight         The number of locks held with the token.
+	 * @param expiresOnNanos
+	 */
+	void issued(String key, String token, int weight, long expiresOnNanos) {
+		permits.compute(key, (k, tokens) -> {
+			Map<String, Permit> map = tokens == null ? new ConcurrentHashMap<>() : tokens;
+			map.put(token, new Permit(weight, expiresOnNanos));
+			return map;
+		});
+	}
+
+	/**
+	 * Extend the local expiration of a token that is still held.
+	 *
+	 * @param key
+	 * @param token
+	 * @param expiresOnNanos
+	 */
+	void refreshed(String key, String token, long expiresOnNanos) {
+		permits.computeIfPresent(key, (k, tokens) -> {
+			tokens.computeIfPresent(token, (t, permit) -> new Permit(permit.weight, expiresOnNanos));
+			return tokens;
+		});
+	}
+
+	/**
+	 * Forget a token that was released or is known to be expired.
+	 *
+	 * @param key
+	 * @param token
+	 */
+	void released(String key, String token) {
+		permits.computeIfPresent(key, (k, tokens) -> {
+			tokens.remove(token);
+			return tokens.isEmpty() ? null : tokens;
+		});
+	}
+
+	/**
+	 * Forget all tokens.
+	 */
+	void clear() {
+		permits.clear();
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The number of tokens tracked for the given key, including expired
+	 *         tokens that have not yet been removed.
+	 */
+	int getTokenCount(String key) {
+		Map<String, Permit> tokens = permits.get(key);
+		return tokens == null ? 0 : tokens.size();
+	}
+
+	private void removeExpired(String key, long nowNanos) {
+		permits.computeIfPresent(key, (k, tokens) -> {
+			tokens.values().removeIf(permit -> permit.expiresOnNanos - nowNanos <= 0L);
+			return tokens.isEmpty() ? null : tokens;
+		});
+	}
+
+	/**
+	 * The locks held with a single token.
+	 */
+	private static final class Permit {
+
+		private final int weight;
+		/**
+		 * In System.nanoTime() units.
+		 */
+		private final long expiresOnNanos;
+
+		private Permit(int weight, long expiresOnNanos) {
+			this.weight = weight;
+			this.expiresOnNanos = expiresOnNanos;
+		}
+	}
+}
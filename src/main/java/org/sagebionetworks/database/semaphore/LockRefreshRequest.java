@@ -0,0 +1,63 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Objects;
+
+/**
+ * The parameters of a single lock refresh. Used to refresh many locks in a
+ * single call with
+ * {@link CountingSemaphore#refreshLockTimeouts(java.util.List)}.
+ *
+ */
+public class LockRefreshRequest {
+
+	private final String key;
+	private final String token;
+	private final long timeoutSec;
+
+	/**
+	 * 
+	 * @param key        The unique key for the lock.
+	 * @param token      The lock token issued when the lock was acquired.
+	 * @param timeoutSec The new life of the lock in seconds, starting now.
+	 */
+	public LockRefreshRequest(String key, String token, long timeoutSec) {
+		this.key = key;
+		this.token = token;
+		this.timeoutSec = timeoutSec;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public long getTimeoutSec() {
+		return timeoutSec;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(key, timeoutSec, token);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof LockRefreshRequest)) {
+			return false;
+		}
+		LockRefreshRequest other = (LockRefreshRequest) obj;
+		return Objects.equals(key, other.key) && timeoutSec == other.timeoutSec && Objects.equals(token, other.token);
+	}
+
+	@Override
+	public String toString() {
+		return "LockRefreshRequest [key=" + key + ", token=" + token + ", timeoutSec=" + timeoutSec + "]";
+	}
+
+}
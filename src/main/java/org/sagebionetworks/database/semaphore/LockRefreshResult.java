@@ -0,0 +1,65 @@
+package org.sagebionetworks.database.semaphore;
+
+/**
+ * The outcome of refreshing a single lock with
+ * {@link CountingSemaphore#refreshLockTimeouts(java.util.List)}.
+ *
+ */
+public enum LockRefreshResult {
+
+	/**
+	 * The lock is still held and its timeout was extended.
+	 */
+	REFRESHED,
+	/**
+	 * The token has already expired. The equivalent of a
+	 * {@link LockReleaseFailedException} from
+	 * {@link CountingSemaphore#refreshLockTimeout(String, String, long)}.
+	 */
+	EXPIRED,
+	/**
+	 * The key does not exist. The equivalent of a
+	 * {@link LockKeyNotFoundException} from
+	 * {@link CountingSemaphore#refreshLockTimeout(String, String, long)}.
+	 */
+	KEY_NOT_FOUND;
+
+	/**
+	 * Translate the number of rows updated for a single token into a result,
+	 * using the same rules as {@link Utils#validateResults(String, String, int)}.
+	 * 
+	 * @param result
+	 * @return
+	 */
+	public static LockRefreshResult fromUpdateCount(int result) {
+		if (result < 0) {
+			return KEY_NOT_FOUND;
+		} else if (result == 0) {
+			return EXPIRED;
+		}
+		return REFRESHED;
+	}
+
+	/**
+	 * Throw the same exception that
+	 * {@link CountingSemaphore#refreshLockTimeout(String, String, long)} would
+	 * have thrown for this result.
+	 * 
+	 * @param key
+	 * @param token
+	 * @throws LockKeyNotFoundException   for {@link #KEY_NOT_FOUND}
+	 * @throws LockReleaseFailedException for {@link #EXPIRED}
+	 */
+	public void validate(String key, String token) {
+		switch (this) {
+		case KEY_NOT_FOUND:
+			Utils.validateResults(key, token, -1);
+			break;
+		case EXPIRED:
+			Utils.validateResults(key, token, 0);
+			break;
+		default:
+			break;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Objects;
+
+/**
+ * The parameters of a single lock acquisition. Used to request many locks in a
+ * single call with {@link CountingSemaphore#attemptToAcquireLocks(java.util.List)}.
+ *
+ */
+public class LockRequest {
+
+	private final String key;
+	private final long timeoutSec;
+	private final int maxLockCount;
+	private final String context;
+
+	/**
+	 *
+	 * @param key          A unique key to lock on
+	 * @param timeoutSec   The maximum life of the lock in seconds.
+	 * @param maxLockCount The maximum number of locks of that can be issued to the
+	 *                     given key.
+	 * @param context      Describes the context for which the lock will be used.
+	 */
+	public LockRequest(String key, long timeoutSec, int maxLockCount, String context) {
+		this.key = key;
+		this.timeoutSec = timeoutSec;
+		this.maxLockCount = maxLockCount;
+		this.context = context;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public long getTimeoutSec() {
+		return timeoutSec;
+	}
+
+	public int getMaxLockCount() {
+		return maxLockCount;
+	}
+
+	public String getContext() {
+		return context;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(context, key, maxLockCount, timeoutSec);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof LockRequest)) {
+			return false;
+		}
+		LockRequest other = (LockRequest) obj;
+		return Objects.equals(context, other.context) && Objects.equals(key, other.key)
+				&& maxLockCount == other.maxLockCount && timeoutSec == other.timeoutSec;
+	}
+
+	@Override
+	public String toString() {
+		return "LockRequest [key=" + key + ", timeoutSec=" + timeoutSec + ", maxLockCount=" + maxLockCount
+				+ ", context=" + context + "]";
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A place in the queue of a key. Issued by
+ * {@link LockTicketQueue#enqueueLockTicket(String, long, int, String)}.
+ *
+ */
+public class LockTicket {
+
+	private final long ticketId;
+	private final String key;
+	private final long timeoutSec;
+	private final String token;
+
+	/**
+	 *
+	 * @param ticketId The identifier of the ticket.
+	 * @param key        The key the ticket is waiting for.
+	 * @param timeoutSec The maximum life of the granted lock in seconds.
+	 * @param token      The token of the lock if it was granted when the ticket
+	 *                   was enqueued, otherwise null.
+	 */
+	public LockTicket(long ticketId, String key, long timeoutSec, String token) {
+		this.ticketId = ticketId;
+		this.key = key;
+		this.timeoutSec = timeoutSec;
+		this.token = token;
+	}
+
+	public long getTicketId() {
+		return ticketId;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public long getTimeoutSec() {
+		return timeoutSec;
+	}
+
+	/**
+	 *
+	 * @return The token of the lock if it was granted when the ticket was
+	 *         enqueued.
+	 */
+	public Optional<String> getToken() {
+		return Optional.ofNullable(token);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(key, ticketId, timeoutSec, token);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof LockTicket)) {
+			return false;
+		}
+		LockTicket other = (LockTicket) obj;
+		return Objects.equals(key, other.key) && ticketId == other.ticketId
+				&& timeoutSec == other.timeoutSec && Objects.equals(token, other.token);
+	}
+
+	@Override
+	public String toString() {
+		return "LockTicket [ticketId=" + ticketId + ", key=" + key + ", timeoutSec=" + timeoutSec + ", token=" + token + "]";
+	}
+}
@@ -0,0 +1,60 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Optional;
+
+/**
+ * A fair queue of waiters for the locks of a {@link CountingSemaphore}. A
+ * waiter enqueues a ticket and the locks of the key are granted to the waiting
+ * tickets in the order they were enqueued, so a waiter on a slow node cannot be
+ * starved by faster ones.
+ * <p>
+ * While waiting, the ticket is checked with
+ * {@link #checkLockTicket(LockTicket)}, which only looks up the ticket rather
+ * than attempting to acquire a lock. A ticket that is not checked within the
+ * ticket timeout is dropped from the queue.
+ * </p>
+ * Locks acquired with {@link CountingSemaphore#attemptToAcquireLock(String, long, int, String)}
+ * do not wait in the queue, so all callers of a key should use tickets for the
+ * queue to be fair.
+ */
+public interface LockTicketQueue {
+
+	/**
+	 * Add a ticket to the end of the queue of the given key. The lock is granted
+	 * right away when it is free and no other ticket is waiting for it.
+	 * 
+	 * @param key          A unique key to lock on
+	 * @param timeoutSec   The maximum life of the granted lock in seconds.
+	 * @param maxLockCount The maximum number of locks of that can be issued to the
+	 *                     given key.
+	 * @param context      Describes the context for which the lock will be used.
+	 * @return The ticket. When the lock was granted right away,
+	 *         {@link LockTicket#getToken()} is the token of the lock and the ticket
+	 *         no longer needs to be checked.
+	 */
+	public LockTicket enqueueLockTicket(String key, long timeoutSec, int maxLockCount, String context);
+
+	/**
+	 * Check whether the lock has been granted to the given ticket. Each check also
+	 * keeps the ticket in the queue for another ticket timeout.
+	 * 
+	 * @param ticket A ticket issued by
+	 *               {@link #enqueueLockTicket(String, long, int, String)}.
+	 * @return The token of the lock once it has been granted, otherwise
+	 *         Optional.empty(). The caller is expected to release the lock with
+	 *         {@link CountingSemaphore#releaseLock(String, String)}.
+	 * @throws LockExpiredException When the ticket is no longer in the queue, for
+	 *                              example, because it was not checked within the
+	 *                              ticket timeout.
+	 */
+	public Optional<String> checkLockTicket(LockTicket ticket);
+
+	/**
+	 * Remove the given ticket from its queue. If the lock was granted to the ticket
+	 * but its token was not yet returned by {@link #checkLockTicket(LockTicket)},
+	 * the lock is released.
+	 * 
+	 * @param ticket
+	 */
+	public void cancelLockTicket(LockTicket ticket);
+}
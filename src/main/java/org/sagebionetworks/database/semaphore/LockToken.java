@@ -0,0 +1,117 @@
+package org.sagebionetworks.database.semaphore;
+
+/**
+ * A token issued by {@link CountingSemaphoreImpl}. Tokens are issued in the
+ * form: '&lt;ROW_ID&gt;.&lt;secret&gt;' where the ROW_ID is the primary key of
+ * the lock's row and the secret is the value stored in the row's TOKEN column.
+ * This allows a lock to be released or refreshed through the primary key.
+ * <p>
+ * A weighted token, issued for several locks of a key at once, has the form
+ * '&lt;WEIGHT&gt;:&lt;secret&gt;' where the secret is stored in the TOKEN
+ * column of each of the rows. It has no row id and all of its rows are found
+ * with the TOKEN_BIN index.
+ * </p>
+ * <p>
+ * Tokens issued by earlier versions are opaque (the secret alone). An opaque
+ * token has no row id and must be found with the TOKEN_BIN index.
+ * </p>
+ */
+final class LockToken {
+
+	static final char SEPARATOR = '.';
+
+	static final char WEIGHT_SEPARATOR = ':';
+
+	/**
+	 * The largest number of digits parsed as a row id, so the row id always fits
+	 * in a long.
+	 */
+	static final int MAX_ROW_ID_DIGITS = 18;
+
+	/**
+	 * The largest number of digits parsed as a weight. LOCK_NUM is a TINYINT so a
+	 * weight never exceeds 127.
+	 */
+	static final int MAX_WEIGHT_DIGITS = 3;
+
+	private final Long rowId;
+	private final Integer weight;
+	private final String secret;
+
+	private LockToken(Long rowId, Integer weight, String secret) {
+		this.rowId = rowId;
+		this.weight = weight;
+		this.secret = secret;
+	}
+
+	/**
+	 * Parse the given token.
+	 *
+	 * @param token
+	 * @return
+	 */
+	static LockToken parse(String token) {
+		if (token == null) {
+			throw new IllegalArgumentException("Token cannot be null.");
+		}
+		int weightIndex = numericPrefixEnd(token, WEIGHT_SEPARATOR, MAX_WEIGHT_DIGITS);
+		if (weightIndex > 0) {
+			return new LockToken(null, Integer.parseInt(token.substring(0, weightIndex)),
+					token.substring(weightIndex + 1));
+		}
+		int separatorIndex = numericPrefixEnd(token, SEPARATOR, MAX_ROW_ID_DIGITS);
+		if (separatorIndex < 0) {
+			return new LockToken(null, null, token);
+		}
+		return new LockToken(Long.parseLong(token.substring(0, separatorIndex)), null,
+				token.substring(separatorIndex + 1));
+	}
+
+	/**
+	 * Find the end of a numeric prefix terminated by the given separator.
+	 *
+	 * @param token
+	 * @param separator
+	 * @param maxDigits
+	 * @return The index of the separator, or -1 if the token does not start with
+	 *         one to maxDigits digits followed by the separator.
+	 */
+	private static int numericPrefixEnd(String token, char separator, int maxDigits) {
+		int separatorIndex = token.indexOf(separator);
+		if (separatorIndex < 1 || separatorIndex > maxDigits) {
+			return -1;
+		}
+		for (int i = 0; i < separatorIndex; i++) {
+			char c = token.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+		}
+		return separatorIndex;
+	}
+
+	/**
+	 *
+	 * @return The primary key of the lock's row, or null for an opaque token.
+	 */
+	Long getRowId() {
+		return rowId;
+	}
+
+	/**
+	 *
+	 * @return The number of locks of a weighted token, or null for a token of a
+	 *         single lock.
+	 */
+	Integer getWeight() {
+		return weight;
+	}
+
+	/**
+	 *
+	 * @return The value stored in the TOKEN column of the lock's row.
+	 */
+	String getSecret() {
+		return secret;
+	}
+}
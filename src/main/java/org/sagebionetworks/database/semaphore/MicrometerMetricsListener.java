@@ -0,0 +1,88 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * A {@link SemaphoreMetricsListener} that records each operation in a
+ * Micrometer {@link MeterRegistry}. Each combination of operation, outcome and
+ * key tag is recorded by a {@link Timer} named {@link #OPERATION_TIMER_NAME}
+ * with the tags 'operation', 'outcome' and 'key.tag', and publishes a
+ * percentile histogram. The rows deleted by garbage collection are counted by
+ * {@link #GARBAGE_COLLECTED_ROWS_COUNTER_NAME}.
+ * <p>
+ * Micrometer is an optional dependency of this library, so the application
+ * must provide it to use this class.
+ * </p>
+ * This class is thread-safe.
+ */
+public class MicrometerMetricsListener implements SemaphoreMetricsListener {
+
+	public static final String OPERATION_TIMER_NAME = "semaphore.operation";
+	public static final String GARBAGE_COLLECTED_ROWS_COUNTER_NAME = "semaphore.gc.rows.deleted";
+
+	private final MeterRegistry registry;
+	private final KeyTags keyTags;
+	private final ConcurrentMap<SemaphoreMetrics.MetricId, Timer> timers;
+	private final Counter garbageCollectedRows;
+
+	/**
+	 * Create a listener without key tags.
+	 *
+	 * @param registry
+	 */
+	public MicrometerMetricsListener(MeterRegistry registry) {
+		this(registry, key -> SemaphoreMetrics.NO_TAG, 1);
+	}
+
+	/**
+	 *
+	 * @param registry
+	 * @param keyTagger Maps each key to its tag. See:
+	 *                  {@link SemaphoreMetrics#keyPrefixTagger(char)}.
+	 * @param maxTags   The maximum number of distinct tags.
+	 */
+	public MicrometerMetricsListener(MeterRegistry registry, Function<String, String> keyTagger, int maxTags) {
+		if (registry == null) {
+			throw new IllegalArgumentException("Registry cannot be null");
+		}
+		this.registry = registry;
+		this.keyTags = new KeyTags(keyTagger, maxTags);
+		this.timers = new ConcurrentHashMap<>();
+		this.garbageCollectedRows = Counter.builder(GARBAGE_COLLECTED_ROWS_COUNTER_NAME)
+				.description("Lock rows deleted by garbage collection").register(registry);
+	}
+
+	@Override
+	public void onOperation(Operation operation, String key, Outcome outcome, long durationNanos) {
+		SemaphoreMetrics.MetricId id = new SemaphoreMetrics.MetricId(operation, outcome, keyTags.tagOf(key));
+		Timer timer = timers.get(id);
+		if (timer == null) {
+			timer = timers.computeIfAbsent(id, this::registerTimer);
+		}
+		timer.record(Math.max(0L, durationNanos), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void onGarbageCollection(long rowsDeleted) {
+		garbageCollectedRows.increment(rowsDeleted);
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return A new timer registered for the given metric.
+	 */
+	private Timer registerTimer(SemaphoreMetrics.MetricId id) {
+		return Timer.builder(OPERATION_TIMER_NAME).description("Semaphore operations")
+				.tag("operation", id.getOperation().name().toLowerCase())
+				.tag("outcome", id.getOutcome().name().toLowerCase()).tag("key.tag", id.getTag())
+				.publishPercentileHistogram().register(registry);
+	}
+}
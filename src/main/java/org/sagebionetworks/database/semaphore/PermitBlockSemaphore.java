@@ -0,0 +1,688 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A {@link CountingSemaphore} that leases blocks of permits from the semaphore
+ * it wraps and hands them out locally, for keys with many permits.
+ * <p>
+ * When a lock is requested on a key with a maxLockCount of at least
+ * {@link #setMinBlockLockCount(int)}, and this JVM has no unused permit for the
+ * key, a block of permits is acquired from the wrapped semaphore with a single
+ * {@link CountingSemaphore#attemptToAcquireLocks(List)} call. Until the block
+ * is returned, each permit of the block is issued and released in memory,
+ * without a database call. The permits leased by this JVM still count towards
+ * the maxLockCount of the key, so the cluster-wide limit is unchanged.
+ * </p>
+ * <p>
+ * On each tick of a scheduler, the leases of the block are refreshed with a
+ * single {@link CountingSemaphore#refreshLockTimeouts(List)} call once half of
+ * the block timeout has passed, a local lock that outlived its own timeout is
+ * reclaimed, and a permit that was unused for the idle timeout is released back
+ * to the wrapped semaphore so other JVMs can get it.
+ * </p>
+ * <p>
+ * Each local lock gets its own token, so a token that was released or expired
+ * can never release the lock of the next holder of the same permit. A key is
+ * expected to be used with a single maxLockCount. Requests for a leased key
+ * with another maxLockCount, and for keys below the minimum, are passed to the
+ * wrapped semaphore. The context of a leased lock row is the context of the
+ * request that leased the block.
+ * </p>
+ * This class is thread-safe and is intended to be used as a singleton per
+ * semaphore.
+ */
+public class PermitBlockSemaphore implements CountingSemaphore, AutoCloseable {
+
+	public static final int DEFAULT_MIN_BLOCK_LOCK_COUNT = 64;
+	public static final int DEFAULT_BLOCK_SIZE = 16;
+	public static final long DEFAULT_BLOCK_TIMEOUT_SEC = 60L;
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 5_000L;
+	public static final long DEFAULT_TICK_MS = 1000L;
+	/**
+	 * Separates the token of a leased permit from the sequence number of a local
+	 * lock. Tokens issued by the wrapped semaphore never contain it.
+	 */
+	public static final char LOCAL_TOKEN_DELIMITER = '#';
+
+	private static final Logger log = LogManager.getLogger(PermitBlockSemaphore.class);
+
+	private final CountingSemaphore delegate;
+	private final ScheduledExecutorService scheduler;
+	private final boolean ownsScheduler;
+	private final LongSupplier nanoClock;
+	private final ConcurrentHashMap<String, KeyBlock> blocks;
+	private final AtomicLong localSequence;
+	private final ScheduledFuture<?> tickTask;
+
+	private volatile int minBlockLockCount = DEFAULT_MIN_BLOCK_LOCK_COUNT;
+	private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+	private volatile long blockTimeoutSec = DEFAULT_BLOCK_TIMEOUT_SEC;
+	private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MS);
+
+	/**
+	 * Create a semaphore with its own scheduler thread and the default settings.
+	 *
+	 * @param delegate The semaphore that issues the blocks.
+	 */
+	public PermitBlockSemaphore(CountingSemaphore delegate) {
+		this(delegate, Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "semaphore-permit-blocks");
+			thread.setDaemon(true);
+			return thread;
+		}), true, DEFAULT_TICK_MS, System::nanoTime);
+	}
+
+	/**
+	 *
+	 * @param delegate  The semaphore that issues the blocks.
+	 * @param scheduler The shared scheduler used to maintain the blocks. The
+	 *                  caller remains responsible for shutting it down.
+	 * @param tickMs    How often the blocks are maintained, in milliseconds.
+	 */
+	public PermitBlockSemaphore(CountingSemaphore delegate, ScheduledExecutorService scheduler, long tickMs) {
+		this(delegate, scheduler, false, tickMs, System::nanoTime);
+	}
+
+	PermitBlockSemaphore(CountingSemaphore delegate, ScheduledExecutorService scheduler, boolean ownsScheduler,
+			long tickMs, LongSupplier nanoClock) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("Delegate cannot be null");
+		}
+		if (scheduler == null) {
+			throw new IllegalArgumentException("Scheduler cannot be null");
+		}
+		if (tickMs < 1) {
+			throw new IllegalArgumentException("TickMs cannot be less then one.");
+		}
+		this.delegate = delegate;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+		this.nanoClock = nanoClock;
+		this.blocks = new ConcurrentHashMap<>();
+		this.localSequence = new AtomicLong();
+		this.tickTask = this.scheduler.scheduleWithFixedDelay(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the smallest maxLockCount for which permits are leased in blocks
+	 * (default: {@link #DEFAULT_MIN_BLOCK_LOCK_COUNT}).
+	 *
+	 * @param minBlockLockCount
+	 */
+	public void setMinBlockLockCount(int minBlockLockCount) {
+		if (minBlockLockCount < 1) {
+			throw new IllegalArgumentException("MinBlockLockCount cannot be less then one.");
+		}
+		this.minBlockLockCount = minBlockLockCount;
+	}
+
+	/**
+	 * Set the maximum number of permits leased with a single call (default:
+	 * {@link #DEFAULT_BLOCK_SIZE}).
+	 *
+	 * @param blockSize
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("BlockSize cannot be less then one.");
+		}
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Set the timeout of the leased permits in the wrapped semaphore (default:
+	 * {@link #DEFAULT_BLOCK_TIMEOUT_SEC}). If this JVM dies, its permits become
+	 * available to the cluster once this timeout elapses.
+	 *
+	 * @param blockTimeoutSec
+	 */
+	public void setBlockTimeoutSec(long blockTimeoutSec) {
+		if (blockTimeoutSec < 1) {
+			throw new IllegalArgumentException("BlockTimeoutSec cannot be less then one.");
+		}
+		this.blockTimeoutSec = blockTimeoutSec;
+	}
+
+	/**
+	 * Set how long a permit can stay unused before it is released back to the
+	 * wrapped semaphore (default: {@link #DEFAULT_IDLE_TIMEOUT_MS}).
+	 *
+	 * @param idleTimeoutMs
+	 */
+	public void setIdleTimeoutMs(long idleTimeoutMs) {
+		if (idleTimeoutMs < 1) {
+			throw new IllegalArgumentException("IdleTimeoutMs cannot be less then one.");
+		}
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The number of permits of the given key currently leased by this JVM,
+	 *         whether in use or not.
+	 */
+	public int getLeasedPermitCount(String key) {
+		KeyBlock block = blocks.get(key);
+		if (block == null) {
+			return 0;
+		}
+		synchronized (block) {
+			return block.free.size() + block.held.size();
+		}
+	}
+
+	@Override
+	public Optional<String> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount, String context) {
+		// A local permit is issued without the checks of the wrapped semaphore.
+		CountingSemaphoreImpl.validateAcquireArguments(key, timeoutSec, maxLockCount, context);
+		if (maxLockCount < minBlockLockCount) {
+			return delegate.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		}
+		while (true) {
+			KeyBlock block = blocks.computeIfAbsent(key, k -> new KeyBlock(key, maxLockCount));
+			if (block.maxLockCount != maxLockCount) {
+				return delegate.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+			}
+			String token = takeFromBlock(block, timeoutSec);
+			if (token != null) {
+				return Optional.of(token);
+			}
+			// Only one thread leases a new block for a key at a time.
+			block.leaseLock.lock();
+			try {
+				token = takeFromBlock(block, timeoutSec);
+				if (token != null) {
+					return Optional.of(token);
+				}
+				if (isRetired(block)) {
+					continue;
+				}
+				Optional<String> leased = leaseBlock(block, timeoutSec, context);
+				if (leased != null) {
+					return leased;
+				}
+			} finally {
+				block.leaseLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param block
+	 * @param timeoutSec
+	 * @return The token of a new local lock on an unused permit of the given block,
+	 *         or null if all of its permits are in use.
+	 */
+	private String takeFromBlock(KeyBlock block, long timeoutSec) {
+		long now = nanoClock.getAsLong();
+		synchronized (block) {
+			return block.take(newLocalSuffix(), now + TimeUnit.SECONDS.toNanos(timeoutSec));
+		}
+	}
+
+	private static boolean isRetired(KeyBlock block) {
+		synchronized (block) {
+			return block.retired;
+		}
+	}
+
+	/**
+	 * Lease a new block of permits for the key and issue a local lock on one of
+	 * them. Called while holding the lease lock of the block.
+	 *
+	 * @param block
+	 * @param timeoutSec
+	 * @param context
+	 * @return The token of the local lock, Optional.empty() if no permit was
+	 *         available, or null if the block was retired during the call.
+	 */
+	private Optional<String> leaseBlock(KeyBlock block, long timeoutSec, String context) {
+		int count = Math.min(blockSize, block.maxLockCount);
+		LockRequest request = new LockRequest(block.key, blockTimeoutSec, block.maxLockCount, context);
+		long now = nanoClock.getAsLong();
+		List<Optional<String>> results = delegate.attemptToAcquireLocks(Collections.nCopies(count, request));
+		List<String> tokens = new ArrayList<>(count);
+		for (Optional<String> result : results) {
+			result.ifPresent(tokens::add);
+		}
+		if (tokens.isEmpty()) {
+			return Optional.empty();
+		}
+		synchronized (block) {
+			if (!block.retired) {
+				for (int i = tokens.size() - 1; i >= 0; i--) {
+					block.free.push(new Permit(tokens.get(i), now));
+				}
+				return Optional.of(block.take(newLocalSuffix(), now + TimeUnit.SECONDS.toNanos(timeoutSec)));
+			}
+		}
+		// The block was retired during the call so the permits cannot be kept.
+		releaseQuietly(block.key, tokens);
+		return null;
+	}
+
+	private String newLocalSuffix() {
+		return LOCAL_TOKEN_DELIMITER + Long.toString(localSequence.incrementAndGet());
+	}
+
+	/**
+	 * Each request for a leased key is handled like a call to
+	 * {@link #attemptToAcquireLock(String, long, int, String)}. All other
+	 * requests are passed to the wrapped semaphore with a single call.
+	 */
+	@Override
+	public List<Optional<String>> attemptToAcquireLocks(List<LockRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		List<Optional<String>> results = new ArrayList<>(Collections.nCopies(requests.size(), Optional.empty()));
+		List<Integer> delegatedIndexes = new ArrayList<>();
+		List<LockRequest> delegated = new ArrayList<>();
+		for (int i = 0; i < requests.size(); i++) {
+			LockRequest request = requests.get(i);
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			if (request.getMaxLockCount() < minBlockLockCount) {
+				delegatedIndexes.add(i);
+				delegated.add(request);
+			} else {
+				results.set(i, attemptToAcquireLock(request.getKey(), request.getTimeoutSec(),
+						request.getMaxLockCount(), request.getContext()));
+			}
+		}
+		if (!delegated.isEmpty()) {
+			List<Optional<String>> delegatedResults = delegate.attemptToAcquireLocks(delegated);
+			for (int i = 0; i < delegated.size(); i++) {
+				results.set(delegatedIndexes.get(i), delegatedResults.get(i));
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public void refreshLockTimeout(String key, String token, long timeoutSec) {
+		if (!isLocalToken(token)) {
+			delegate.refreshLockTimeout(key, token, timeoutSec);
+			return;
+		}
+		if (timeoutSec < 1) {
+			throw new IllegalArgumentException("TimeoutSec cannot be less then one.");
+		}
+		if (!refreshLocal(key, token, timeoutSec)) {
+			throw new LockReleaseFailedException("Key: " + key + " token: " + token + " has expired.");
+		}
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param token
+	 * @param timeoutSec
+	 * @return True if the given local lock is still held and was extended.
+	 */
+	private boolean refreshLocal(String key, String token, long timeoutSec) {
+		KeyBlock block = key == null ? null : blocks.get(key);
+		if (block == null) {
+			return false;
+		}
+		long now = nanoClock.getAsLong();
+		synchronized (block) {
+			Permit permit = block.held.get(token);
+			if (permit == null || permit.holdExpiresNanos - now < 0) {
+				return false;
+			}
+			permit.holdExpiresNanos = now + TimeUnit.SECONDS.toNanos(timeoutSec);
+			return true;
+		}
+	}
+
+	@Override
+	public List<LockRefreshResult> refreshLockTimeouts(List<LockRefreshRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		List<LockRefreshResult> results = new ArrayList<>(
+				Collections.nCopies(requests.size(), LockRefreshResult.EXPIRED));
+		List<Integer> delegatedIndexes = new ArrayList<>();
+		List<LockRefreshRequest> delegated = new ArrayList<>();
+		for (int i = 0; i < requests.size(); i++) {
+			LockRefreshRequest request = requests.get(i);
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			if (isLocalToken(request.getToken())) {
+				if (request.getTimeoutSec() < 1) {
+					throw new IllegalArgumentException("TimeoutSec cannot be less then one.");
+				}
+				if (refreshLocal(request.getKey(), request.getToken(), request.getTimeoutSec())) {
+					results.set(i, LockRefreshResult.REFRESHED);
+				}
+			} else {
+				delegatedIndexes.add(i);
+				delegated.add(request);
+			}
+		}
+		if (!delegated.isEmpty()) {
+			List<LockRefreshResult> delegatedResults = delegate.refreshLockTimeouts(delegated);
+			for (int i = 0; i < delegated.size(); i++) {
+				results.set(delegatedIndexes.get(i), delegatedResults.get(i));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * A local lock is released in memory. Its permit stays leased until it is
+	 * idle for the idle timeout.
+	 */
+	@Override
+	public void releaseLock(String key, String token) {
+		if (!isLocalToken(token)) {
+			delegate.releaseLock(key, token);
+			return;
+		}
+		KeyBlock block = key == null ? null : blocks.get(key);
+		if (block != null) {
+			long now = nanoClock.getAsLong();
+			synchronized (block) {
+				Permit permit = block.held.remove(token);
+				if (permit != null) {
+					// A lock that outlived its timeout is still returned to the block.
+					permit.freeSinceNanos = now;
+					block.free.push(permit);
+					return;
+				}
+			}
+		}
+		throw new LockReleaseFailedException("Key: " + key + " token: " + token + " has expired.");
+	}
+
+	/**
+	 *
+	 * @param token
+	 * @return True if the given token was issued locally from a block.
+	 */
+	private static boolean isLocalToken(String token) {
+		if (token == null) {
+			throw new IllegalArgumentException("Token cannot be null.");
+		}
+		return token.indexOf(LOCAL_TOKEN_DELIMITER) >= 0;
+	}
+
+	/**
+	 * Forget all leased permits and release all locks of the wrapped semaphore.
+	 */
+	@Override
+	public void releaseAllLocks() {
+		retireAll();
+		delegate.releaseAllLocks();
+	}
+
+	@Override
+	public Optional<String> getFirstUnexpiredLockContext(String key) {
+		return delegate.getFirstUnexpiredLockContext(key);
+	}
+
+	@Override
+	public void runGarbageCollection() {
+		delegate.runGarbageCollection();
+	}
+
+	@Override
+	public GarbageCollectionResult runGarbageCollection(int chunkSize, int maxRows, long maxDurationMs) {
+		return delegate.runGarbageCollection(chunkSize, maxRows, maxDurationMs);
+	}
+
+	@Override
+	public long getLockRowCount() {
+		return delegate.getLockRowCount();
+	}
+
+	@Override
+	public long getLockRowHighWaterMark() {
+		return delegate.getLockRowHighWaterMark();
+	}
+
+	/**
+	 * Reclaim expired local locks, return idle permits and refresh the leases
+	 * that are due. Called on each tick of the scheduler.
+	 */
+	void tick() {
+		try {
+			long now = nanoClock.getAsLong();
+			long renewAfterNanos = TimeUnit.SECONDS.toNanos(blockTimeoutSec) / 2;
+			long idleNanos = idleTimeoutNanos;
+			List<Permit> idle = new ArrayList<>();
+			List<Permit> due = new ArrayList<>();
+			List<KeyBlock> dueBlocks = new ArrayList<>();
+			for (KeyBlock block : blocks.values()) {
+				synchronized (block) {
+					block.reclaimExpired(now);
+					// The least recently used permits are at the end.
+					while (!block.free.isEmpty() && now - block.free.peekLast().freeSinceNanos >= idleNanos) {
+						idle.add(block.free.pollLast());
+					}
+					for (Permit permit : block.free) {
+						if (now - permit.renewedNanos >= renewAfterNanos) {
+							due.add(permit);
+							dueBlocks.add(block);
+						}
+					}
+					for (Permit permit : block.held.values()) {
+						if (now - permit.renewedNanos >= renewAfterNanos) {
+							due.add(permit);
+							dueBlocks.add(block);
+						}
+					}
+					if (block.free.isEmpty() && block.held.isEmpty()) {
+						block.retired = true;
+						blocks.remove(block.key, block);
+					}
+				}
+				for (Permit permit : idle) {
+					releaseQuietly(block.key, Collections.singletonList(permit.token));
+				}
+				idle.clear();
+			}
+			renew(due, dueBlocks, now);
+		} catch (RuntimeException e) {
+			// An exception must not stop the scheduler from running the next tick.
+			log.error("Failed to maintain permit blocks: {}", e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Refresh the given leases with a single call. A permit that could not be
+	 * refreshed is dropped from its block.
+	 *
+	 * @param due
+	 * @param dueBlocks The block of each permit.
+	 * @param now
+	 */
+	private void renew(List<Permit> due, List<KeyBlock> dueBlocks, long now) {
+		if (due.isEmpty()) {
+			return;
+		}
+		long timeoutSec = blockTimeoutSec;
+		List<LockRefreshRequest> requests = new ArrayList<>(due.size());
+		for (int i = 0; i < due.size(); i++) {
+			requests.add(new LockRefreshRequest(dueBlocks.get(i).key, due.get(i).token, timeoutSec));
+		}
+		List<LockRefreshResult> results = delegate.refreshLockTimeouts(requests);
+		for (int i = 0; i < due.size(); i++) {
+			KeyBlock block = dueBlocks.get(i);
+			Permit permit = due.get(i);
+			synchronized (block) {
+				if (LockRefreshResult.REFRESHED.equals(results.get(i))) {
+					permit.renewedNanos = now;
+				} else {
+					block.drop(permit);
+					log.warn("Lost leased permit on key {}: {}", block.key, results.get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Release the given leased permits, logging any failure.
+	 *
+	 * @param key
+	 * @param tokens
+	 */
+	private void releaseQuietly(String key, List<String> tokens) {
+		for (String token : tokens) {
+			try {
+				delegate.releaseLock(key, token);
+			} catch (RuntimeException e) {
+				log.warn("Failed to return leased permit on key {}: {}", key, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Retire every block and return the permits that are not in use.
+	 */
+	private void retireAll() {
+		for (KeyBlock block : blocks.values()) {
+			List<String> tokens = new ArrayList<>();
+			synchronized (block) {
+				block.retired = true;
+				blocks.remove(block.key, block);
+				for (Permit permit : block.free) {
+					tokens.add(permit.token);
+				}
+				block.free.clear();
+				block.held.clear();
+			}
+			releaseQuietly(block.key, tokens);
+		}
+	}
+
+	/**
+	 * Stop maintaining the blocks and return their unused permits. Local locks
+	 * that are still held are forfeit: their permits expire in the wrapped
+	 * semaphore at the end of the block timeout. If this semaphore created its
+	 * own scheduler, the scheduler is shut down.
+	 */
+	@Override
+	public void close() {
+		tickTask.cancel(false);
+		retireAll();
+		if (ownsScheduler) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * The permits of a single key leased by this JVM. All fields other than the
+	 * key, maxLockCount and leaseLock are guarded by this.
+	 */
+	private static class KeyBlock {
+
+		final String key;
+		final int maxLockCount;
+		final ReentrantLock leaseLock;
+		/**
+		 * The unused permits, most recently used first.
+		 */
+		final ArrayDeque<Permit> free;
+		/**
+		 * The permits in use by local token.
+		 */
+		final Map<String, Permit> held;
+		boolean retired;
+
+		KeyBlock(String key, int maxLockCount) {
+			this.key = key;
+			this.maxLockCount = maxLockCount;
+			this.leaseLock = new ReentrantLock();
+			this.free = new ArrayDeque<>();
+			this.held = new HashMap<>();
+			this.retired = false;
+		}
+
+		/**
+		 *
+		 * @param localSuffix
+		 * @param holdExpiresNanos
+		 * @return The local token of the permit taken, or null if none is free.
+		 */
+		String take(String localSuffix, long holdExpiresNanos) {
+			if (retired) {
+				return null;
+			}
+			Permit permit = free.poll();
+			if (permit == null) {
+				return null;
+			}
+			permit.localToken = permit.token + localSuffix;
+			permit.holdExpiresNanos = holdExpiresNanos;
+			held.put(permit.localToken, permit);
+			return permit.localToken;
+		}
+
+		/**
+		 * Return the permits of local locks that outlived their timeout.
+		 *
+		 * @param now
+		 */
+		void reclaimExpired(long now) {
+			Iterator<Permit> iterator = held.values().iterator();
+			while (iterator.hasNext()) {
+				Permit permit = iterator.next();
+				if (permit.holdExpiresNanos - now < 0) {
+					iterator.remove();
+					permit.freeSinceNanos = now;
+					free.push(permit);
+				}
+			}
+		}
+
+		void drop(Permit permit) {
+			free.remove(permit);
+			if (permit.localToken != null) {
+				held.remove(permit.localToken, permit);
+			}
+		}
+	}
+
+	/**
+	 * A single permit leased from the wrapped semaphore. Guarded by its block.
+	 */
+	private static class Permit {
+
+		final String token;
+		long renewedNanos;
+		long freeSinceNanos;
+		String localToken;
+		long holdExpiresNanos;
+
+		Permit(String token, long now) {
+			this.token = token;
+			this.renewedNanos = now;
+			this.freeSinceNanos = now;
+		}
+	}
+}
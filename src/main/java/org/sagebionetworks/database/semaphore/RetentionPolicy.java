@@ -0,0 +1,88 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Objects;
+
+/**
+ * Decides which keys keep their lock rows during garbage collection. Without a
+ * policy, garbage collection deletes every released row once it expires, so a
+ * key that is used a few times an hour has its rows deleted and bootstrapped
+ * again on each use. With a policy, the rows of a key are only deleted once the
+ * key is cold. A key is hot while:
+ * <ul>
+ * <li>any of its rows was used within the last maxIdleSec seconds (LRU),
+ * or</li>
+ * <li>any of its rows was used at least minUseCount times and was used within
+ * the last frequentMaxIdleSec seconds (LFU).</li>
+ * </ul>
+ * A row is used each time a lock is issued for it. Rows created by earlier
+ * versions have no usage and are collected as before. See:
+ * {@link CountingSemaphoreImpl#setRetentionPolicy(RetentionPolicy)}.
+ *
+ */
+public class RetentionPolicy {
+
+	private final long maxIdleSec;
+	private final int minUseCount;
+	private final long frequentMaxIdleSec;
+
+	/**
+	 *
+	 * @param maxIdleSec         Keys used within this many seconds are kept.
+	 * @param minUseCount        The number of uses that makes a row frequently
+	 *                           used.
+	 * @param frequentMaxIdleSec Keys with a frequently used row are kept while
+	 *                           used within this many seconds. Cannot be less
+	 *                           than maxIdleSec.
+	 */
+	public RetentionPolicy(long maxIdleSec, int minUseCount, long frequentMaxIdleSec) {
+		if (maxIdleSec < 1) {
+			throw new IllegalArgumentException("MaxIdleSec cannot be less then one.");
+		}
+		if (minUseCount < 1) {
+			throw new IllegalArgumentException("MinUseCount cannot be less then one.");
+		}
+		if (frequentMaxIdleSec < maxIdleSec) {
+			throw new IllegalArgumentException("FrequentMaxIdleSec cannot be less than MaxIdleSec");
+		}
+		this.maxIdleSec = maxIdleSec;
+		this.minUseCount = minUseCount;
+		this.frequentMaxIdleSec = frequentMaxIdleSec;
+	}
+
+	public long getMaxIdleSec() {
+		return maxIdleSec;
+	}
+
+	public int getMinUseCount() {
+		return minUseCount;
+	}
+
+	public long getFrequentMaxIdleSec() {
+		return frequentMaxIdleSec;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(frequentMaxIdleSec, maxIdleSec, minUseCount);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RetentionPolicy)) {
+			return false;
+		}
+		RetentionPolicy other = (RetentionPolicy) obj;
+		return frequentMaxIdleSec == other.frequentMaxIdleSec && maxIdleSec == other.maxIdleSec
+				&& minUseCount == other.minUseCount;
+	}
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy [maxIdleSec=" + maxIdleSec + ", minUseCount=" + minUseCount + ", frequentMaxIdleSec="
+				+ frequentMaxIdleSec + "]";
+	}
+
+}
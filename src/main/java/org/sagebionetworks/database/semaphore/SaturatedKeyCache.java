@@ -0,0 +1,133 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A short lived negative cache of the keys that had no locks available. Used
+ * by {@link CountingSemaphoreImpl} to reject repeated attempts to acquire a
+ * saturated key without a database call, and to answer
+ * {@link CountingSemaphore#getFirstUnexpiredLockContext(String)} for such a
+ * key.
+ * <p>
+ * The cache is bounded to a maximum number of keys with the least recently
+ * used keys evicted first. Entries are held with soft references so they can
+ * also be reclaimed when memory is low.
+ * </p>
+ * This class is thread-safe.
+ */
+class SaturatedKeyCache {
+
+	private final long ttlNanos;
+	private final LongSupplier nanoClock;
+	private final LinkedHashMap<String, SoftReference<SaturatedKey>> entries;
+
+	/**
+	 *
+	 * @param ttlNanos  How long a key is considered saturated after it was
+	 *                  observed to be saturated.
+	 * @param maxKeys   The maximum number of keys in the cache.
+	 * @param nanoClock
+	 */
+	SaturatedKeyCache(long ttlNanos, int maxKeys, LongSupplier nanoClock) {
+		this.ttlNanos = ttlNanos;
+		this.nanoClock = nanoClock;
+		// access order for LRU eviction.
+		this.entries = new LinkedHashMap<String, SoftReference<SaturatedKey>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SoftReference<SaturatedKey>> eldest) {
+				return size() > maxKeys;
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param maxLockCount
+	 * @return True if the given key was recently observed to have no locks
+	 *         available for the same or a larger maxLockCount.
+	 */
+	boolean isSaturated(String key, int maxLockCount) {
+		SaturatedKey entry = get(key);
+		return entry != null && maxLockCount <= entry.maxLockCount;
+	}
+
+	/**
+	 * Record that the given key had no locks available.
+	 *
+	 * @param key
+	 * @param maxLockCount
+	 * @param observedOnNanos The time at which the call that observed the key
+	 *                        started.
+	 */
+	synchronized void saturated(String key, int maxLockCount, long observedOnNanos) {
+		entries.put(key, new SoftReference<>(new SaturatedKey(maxLockCount, observedOnNanos + ttlNanos)));
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The unexpired entry for the given key or null.
+	 */
+	synchronized SaturatedKey get(String key) {
+		SoftReference<SaturatedKey> reference = entries.get(key);
+		if (reference == null) {
+			return null;
+		}
+		SaturatedKey entry = reference.get();
+		if (entry == null || entry.expiresOnNanos - nanoClock.getAsLong() <= 0L) {
+			entries.remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Forget the given key.
+	 *
+	 * @param key
+	 */
+	synchronized void invalidate(String key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Forget all keys.
+	 */
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 *
+	 * @return The number of keys in the cache, including expired keys that have
+	 *         not yet been removed.
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * A single saturated key.
+	 */
+	static class SaturatedKey {
+
+		final int maxLockCount;
+		final long expiresOnNanos;
+		/**
+		 * The context of a lock blocking the key, loaded on first use.
+		 */
+		volatile String context;
+
+		SaturatedKey(int maxLockCount, long expiresOnNanos) {
+			this.maxLockCount = maxLockCount;
+			this.expiresOnNanos = expiresOnNanos;
+		}
+	}
+}
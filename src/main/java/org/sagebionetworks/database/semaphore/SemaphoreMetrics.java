@@ -0,0 +1,189 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A low-overhead, in-memory {@link SemaphoreMetricsListener} that keeps a
+ * {@link LatencyHistogram} (which includes a counter) for each combination of
+ * operation, outcome and key tag.
+ * <p>
+ * Keys can optionally be tagged, for example by their prefix, so contention can
+ * be broken down by the type of work a lock guards. To bound memory, at most
+ * maxTags distinct tags are kept and all other keys are tagged
+ * {@link #OTHER_TAG}.
+ * </p>
+ * This class is thread-safe.
+ */
+public class SemaphoreMetrics implements SemaphoreMetricsListener {
+
+	/**
+	 * The tag of all keys when keys are not tagged, and of garbage collection.
+	 */
+	public static final String NO_TAG = "";
+	/**
+	 * The tag of the keys that do not fit within maxTags.
+	 */
+	public static final String OTHER_TAG = "other";
+	public static final int DEFAULT_MAX_TAGS = 100;
+
+	private final KeyTags keyTags;
+	private final ConcurrentMap<MetricId, LatencyHistogram> histograms;
+	private final LongAdder garbageCollectedRows;
+
+	/**
+	 * Create metrics without key tags.
+	 */
+	public SemaphoreMetrics() {
+		this(key -> NO_TAG, 1);
+	}
+
+	/**
+	 * Create metrics with at most {@link #DEFAULT_MAX_TAGS} distinct tags.
+	 *
+	 * @param keyTagger Maps each key to its tag. See:
+	 *                  {@link #keyPrefixTagger(char)}.
+	 */
+	public SemaphoreMetrics(Function<String, String> keyTagger) {
+		this(keyTagger, DEFAULT_MAX_TAGS);
+	}
+
+	/**
+	 *
+	 * @param keyTagger Maps each key to its tag. See:
+	 *                  {@link #keyPrefixTagger(char)}.
+	 * @param maxTags   The maximum number of distinct tags.
+	 */
+	public SemaphoreMetrics(Function<String, String> keyTagger, int maxTags) {
+		this.keyTags = new KeyTags(keyTagger, maxTags);
+		this.histograms = new ConcurrentHashMap<>();
+		this.garbageCollectedRows = new LongAdder();
+	}
+
+	/**
+	 *
+	 * @param delimiter
+	 * @return A tagger that tags each key with the part of the key before the
+	 *         first occurrence of the given delimiter, or {@link #NO_TAG} if the
+	 *         key does not contain the delimiter.
+	 */
+	public static Function<String, String> keyPrefixTagger(char delimiter) {
+		return key -> {
+			int index = key.indexOf(delimiter);
+			return index < 0 ? NO_TAG : key.substring(0, index);
+		};
+	}
+
+	@Override
+	public void onOperation(Operation operation, String key, Outcome outcome, long durationNanos) {
+		MetricId id = new MetricId(operation, outcome, keyTags.tagOf(key));
+		LatencyHistogram histogram = histograms.get(id);
+		if (histogram == null) {
+			histogram = histograms.computeIfAbsent(id, k -> new LatencyHistogram());
+		}
+		histogram.record(durationNanos);
+	}
+
+	@Override
+	public void onGarbageCollection(long rowsDeleted) {
+		garbageCollectedRows.add(rowsDeleted);
+	}
+
+	/**
+	 *
+	 * @return The identifiers of every histogram with at least one value.
+	 */
+	public Set<MetricId> getMetricIds() {
+		return Collections.unmodifiableSet(histograms.keySet());
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return The histogram of the given metric, or null if nothing was recorded
+	 *         for it.
+	 */
+	public LatencyHistogram getHistogram(MetricId id) {
+		return histograms.get(id);
+	}
+
+	/**
+	 *
+	 * @param operation
+	 * @param outcome
+	 * @return The number of operations with the given outcome, across all tags.
+	 */
+	public long getCount(Operation operation, Outcome outcome) {
+		long count = 0;
+		for (Map.Entry<MetricId, LatencyHistogram> entry : histograms.entrySet()) {
+			if (entry.getKey().getOperation() == operation && entry.getKey().getOutcome() == outcome) {
+				count += entry.getValue().getCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * @return The total number of rows deleted by garbage collection.
+	 */
+	public long getGarbageCollectedRowCount() {
+		return garbageCollectedRows.sum();
+	}
+
+	/**
+	 * Identifies a single histogram.
+	 */
+	public static final class MetricId {
+
+		private final Operation operation;
+		private final Outcome outcome;
+		private final String tag;
+
+		public MetricId(Operation operation, Outcome outcome, String tag) {
+			this.operation = operation;
+			this.outcome = outcome;
+			this.tag = tag;
+		}
+
+		public Operation getOperation() {
+			return operation;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		public String getTag() {
+			return tag;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(operation, outcome, tag);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof MetricId)) {
+				return false;
+			}
+			MetricId other = (MetricId) obj;
+			return operation == other.operation && outcome == other.outcome && Objects.equals(tag, other.tag);
+		}
+
+		@Override
+		public String toString() {
+			return "MetricId [operation=" + operation + ", outcome=" + outcome + ", tag=" + tag + "]";
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.sagebionetworks.database.semaphore;
+
+/**
+ * Receives the outcome and duration of each operation of a
+ * {@link CountingSemaphoreImpl}. See:
+ * {@link CountingSemaphoreImpl#setMetricsListener(SemaphoreMetricsListener)}.
+ * <p>
+ * Listeners are called on the caller's thread, after the operation completes,
+ * so an implementation must be thread-safe and fast. An exception thrown by a
+ * listener is logged and otherwise ignored.
+ * </p>
+ * {@link SemaphoreMetrics} is a low-overhead in-memory implementation, and
+ * {@link MicrometerMetricsListener} forwards to a Micrometer MeterRegistry.
+ */
+public interface SemaphoreMetricsListener {
+
+	/**
+	 * The operations of the semaphore. Each request of a batch call
+	 * ({@link CountingSemaphore#attemptToAcquireLocks(java.util.List)} or
+	 * {@link CountingSemaphore#refreshLockTimeouts(java.util.List)}) is reported
+	 * as its own operation with the duration of the whole call.
+	 */
+	enum Operation {
+		ACQUIRE, RELEASE, REFRESH, GARBAGE_COLLECTION
+	}
+
+	enum Outcome {
+		/**
+		 * A lock was issued, released or refreshed, or garbage collection completed.
+		 */
+		SUCCESS,
+		/**
+		 * No lock was available.
+		 */
+		UNAVAILABLE,
+		/**
+		 * No lock was available according to local state, so the database was not
+		 * called.
+		 */
+		REJECTED_LOCALLY,
+		/**
+		 * The token of a release or refresh, or a lock ticket, had already expired.
+		 */
+		EXPIRED,
+		/**
+		 * The database reported a transient failure such as a deadlock or a lock wait
+		 * timeout.
+		 */
+		TRANSIENT_FAILURE,
+		/**
+		 * Any other failure.
+		 */
+		ERROR
+	}
+
+	/**
+	 * Called once per operation.
+	 *
+	 * @param operation
+	 * @param key           The key of the lock, or null for garbage collection.
+	 * @param outcome
+	 * @param durationNanos
+	 */
+	void onOperation(Operation operation, String key, Outcome outcome, long durationNanos);
+
+	/**
+	 * Called after each successful garbage collection, in addition to
+	 * {@link #onOperation(Operation, String, Outcome, long)}.
+	 *
+	 * @param rowsDeleted The number of lock rows deleted.
+	 */
+	default void onGarbageCollection(long rowsDeleted) {
+	}
+}
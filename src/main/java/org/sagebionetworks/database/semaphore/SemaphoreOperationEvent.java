@@ -0,0 +1,43 @@
+package org.sagebionetworks.database.semaphore;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event emitted by {@link CountingSemaphoreImpl} for
+ * each acquire, release, refresh and garbage collection. The event spans the
+ * call, so it lines up with the JDBC, socket and thread park events of the same
+ * thread in a recording.
+ * <p>
+ * The event is enabled by default. While no recording of the event is running,
+ * no event is allocated. Record only slow calls with the JFR threshold
+ * setting, or filter on the slow field, which is set from
+ * {@link CountingSemaphoreImpl#setSlowOperationThresholdMs(long)}.
+ * </p>
+ */
+@Name(SemaphoreOperationEvent.NAME)
+@Label("Semaphore Operation")
+@Description("An acquire, release, refresh or garbage collection of the database semaphore")
+@Category({ "Database", "Semaphore" })
+@StackTrace(false)
+class SemaphoreOperationEvent extends Event {
+
+	static final String NAME = "org.sagebionetworks.database.semaphore.Operation";
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Key")
+	String key;
+
+	@Label("Outcome")
+	String outcome;
+
+	@Label("Slow")
+	@Description("True if the call took longer than the slow operation threshold")
+	boolean slow;
+}
@@ -0,0 +1,500 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A {@link CountingSemaphore} that spreads its keys over several semaphores,
+ * typically one {@link CountingSemaphoreImpl} per database. Each key is routed
+ * to a single shard with a {@link ConsistentHashRing}, so all of the locks of a
+ * key are counted by the same shard.
+ * <p>
+ * The id of the issuing shard is prefixed to each token (shardId/token), so a
+ * lock is always released and refreshed on the shard that issued it, even after
+ * its key moved to another shard. Tokens without a prefix, issued before the
+ * semaphore was sharded, are routed by their key.
+ * </p>
+ * <p>
+ * Adding a shard moves about 1/N of the keys to the new shard. Locks issued by
+ * the previous owner of a moved key are not drained. Instead, pass the shard ids
+ * of the previous ring to {@link #setPreviousShardIds(Collection)}. While set, a
+ * lock on a moved key is only issued by its new shard once the previous shard
+ * holds no unexpired lock on the key. Clear the previous shard ids once the
+ * longest lock timeout has passed.
+ * </p>
+ * <p>
+ * This check is not atomic with the acquire: it reads the previous shard and
+ * then acquires on the new one, two calls on different databases. While the
+ * new ring is being rolled out, a node still on the previous ring can acquire
+ * on the previous shard between the two calls. Until every node has switched
+ * rings, a moved key can therefore be held by more than maxLockCount callers
+ * in total. Keys whose limit must never be exceeded should not be moved while
+ * they are in use, for example by adding shards during a quiet period.
+ * </p>
+ * <p>
+ * {@link #releaseAllLocks()}, garbage collection and the row counts are run on
+ * every shard in parallel. This class is thread-safe and can be used as a
+ * singleton.
+ * </p>
+ */
+public class ShardedCountingSemaphore implements CountingSemaphore, AutoCloseable {
+
+	public static final char SHARD_DELIMITER = '/';
+
+	private final Map<String, CountingSemaphore> shards;
+	private final ConsistentHashRing ring;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private volatile ConsistentHashRing previousRing;
+
+	/**
+	 * Create a sharded semaphore with its own thread pool for the calls that run
+	 * on every shard.
+	 *
+	 * @param shards The semaphore of each shard by shard id.
+	 */
+	public ShardedCountingSemaphore(Map<String, ? extends CountingSemaphore> shards) {
+		this(shards, newExecutor(shards), true);
+	}
+
+	/**
+	 *
+	 * @param shards   The semaphore of each shard by shard id. A shard id cannot
+	 *                 contain the {@link #SHARD_DELIMITER} and must never be
+	 *                 reused for another database.
+	 * @param executor The shared executor used to call every shard in parallel.
+	 *                 The caller remains responsible for shutting it down.
+	 */
+	public ShardedCountingSemaphore(Map<String, ? extends CountingSemaphore> shards, ExecutorService executor) {
+		this(shards, executor, false);
+	}
+
+	private ShardedCountingSemaphore(Map<String, ? extends CountingSemaphore> shards, ExecutorService executor,
+			boolean ownsExecutor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor cannot be null");
+		}
+		validateShards(shards);
+		this.shards = Collections.unmodifiableMap(new LinkedHashMap<>(shards));
+		this.ring = new ConsistentHashRing(shards.keySet(), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	private static void validateShards(Map<String, ? extends CountingSemaphore> shards) {
+		if (shards == null || shards.isEmpty()) {
+			throw new IllegalArgumentException("Shards cannot be null or empty");
+		}
+		for (Map.Entry<String, ? extends CountingSemaphore> entry : shards.entrySet()) {
+			if (entry.getKey() == null || entry.getKey().isBlank()) {
+				throw new IllegalArgumentException("ShardId cannot be null or empty");
+			}
+			if (entry.getKey().indexOf(SHARD_DELIMITER) >= 0) {
+				throw new IllegalArgumentException("ShardId cannot contain: " + SHARD_DELIMITER);
+			}
+			if (entry.getValue() == null) {
+				throw new IllegalArgumentException("Shard cannot be null");
+			}
+		}
+	}
+
+	private static ExecutorService newExecutor(Map<String, ? extends CountingSemaphore> shards) {
+		validateShards(shards);
+		return Executors.newFixedThreadPool(shards.size(), r -> {
+			Thread thread = new Thread(r, "semaphore-shard-fan-out");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Set the shard ids of the ring used before shards were added, or null to
+	 * route every key by the current ring only (the default). Every previous
+	 * shard must still be one of the shards of this semaphore.
+	 *
+	 * @param previousShardIds
+	 */
+	public void setPreviousShardIds(Collection<String> previousShardIds) {
+		if (previousShardIds == null || previousShardIds.isEmpty()) {
+			this.previousRing = null;
+			return;
+		}
+		for (String shardId : previousShardIds) {
+			if (!shards.containsKey(shardId)) {
+				throw new IllegalArgumentException("Unknown shard: " + shardId);
+			}
+		}
+		this.previousRing = new ConsistentHashRing(previousShardIds, ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The id of the shard that issues the locks of the given key.
+	 */
+	public String getShardId(String key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key cannot be null");
+		}
+		return ring.shardOf(key);
+	}
+
+	@Override
+	public Optional<String> attemptToAcquireLock(String key, long timeoutSec, int maxLockCount, String context) {
+		String shardId = getShardId(key);
+		if (isHeldByPreviousOwner(key, shardId)) {
+			return Optional.empty();
+		}
+		return shards.get(shardId).attemptToAcquireLock(key, timeoutSec, maxLockCount, context)
+				.map(token -> prefixToken(shardId, token));
+	}
+
+	/**
+	 * The requests of each shard are sent to it with a single call, and the shards
+	 * are called in parallel. When any shard fails, the locks granted by the other
+	 * shards are released before the failure is thrown.
+	 */
+	@Override
+	public List<Optional<String>> attemptToAcquireLocks(List<LockRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		List<Optional<String>> results = new ArrayList<>(Collections.nCopies(requests.size(), Optional.empty()));
+		// The indexes of the requests sent to each shard.
+		Map<String, List<Integer>> indexesByShard = new LinkedHashMap<>();
+		for (int i = 0; i < requests.size(); i++) {
+			LockRequest request = requests.get(i);
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			String shardId = getShardId(request.getKey());
+			if (isHeldByPreviousOwner(request.getKey(), shardId)) {
+				continue;
+			}
+			indexesByShard.computeIfAbsent(shardId, k -> new ArrayList<>()).add(i);
+		}
+		List<Supplier<Void>> calls = new ArrayList<>(indexesByShard.size());
+		for (Map.Entry<String, List<Integer>> entry : indexesByShard.entrySet()) {
+			String shardId = entry.getKey();
+			List<Integer> indexes = entry.getValue();
+			calls.add(() -> {
+				List<LockRequest> shardRequests = new ArrayList<>(indexes.size());
+				for (int index : indexes) {
+					shardRequests.add(requests.get(index));
+				}
+				List<Optional<String>> shardResults = shards.get(shardId).attemptToAcquireLocks(shardRequests);
+				for (int i = 0; i < indexes.size(); i++) {
+					// Each call writes a distinct set of indexes.
+					results.set(indexes.get(i), shardResults.get(i).map(token -> prefixToken(shardId, token)));
+				}
+				return null;
+			});
+		}
+		try {
+			callAll(calls);
+		} catch (RuntimeException e) {
+			releaseGranted(requests, results, e);
+			throw e;
+		}
+		return results;
+	}
+
+	/**
+	 * Release the locks granted by a batch call that failed, since the caller
+	 * never receives their tokens.
+	 *
+	 * @param requests
+	 * @param results  The token granted for each request, if any.
+	 * @param failure  Receives the failure of each release as a suppressed
+	 *                 exception.
+	 */
+	private void releaseGranted(List<LockRequest> requests, List<Optional<String>> results,
+			RuntimeException failure) {
+		for (int i = 0; i < results.size(); i++) {
+			Optional<String> token = results.get(i);
+			if (token.isPresent()) {
+				try {
+					releaseLock(requests.get(i).getKey(), token.get());
+				} catch (RuntimeException e) {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * While the previous ring is set, check the shard that owned the key on the
+	 * previous ring for locks that it issued before the key moved.
+	 *
+	 * @param key
+	 * @param shardId The current owner of the key.
+	 * @return True if the previous owner of a moved key still holds an unexpired
+	 *         lock on it.
+	 */
+	private boolean isHeldByPreviousOwner(String key, String shardId) {
+		ConsistentHashRing previous = previousRing;
+		if (previous == null) {
+			return false;
+		}
+		String previousShardId = previous.shardOf(key);
+		if (previousShardId.equals(shardId)) {
+			return false;
+		}
+		return shards.get(previousShardId).getFirstUnexpiredLockContext(key).isPresent();
+	}
+
+	@Override
+	public void refreshLockTimeout(String key, String token, long timeoutSec) {
+		ShardToken shardToken = parseToken(key, token);
+		if (shardToken.shardId == null) {
+			throw new LockReleaseFailedException("Key: " + key + " token: " + token + " has expired.");
+		}
+		shards.get(shardToken.shardId).refreshLockTimeout(key, shardToken.token, timeoutSec);
+	}
+
+	@Override
+	public List<LockRefreshResult> refreshLockTimeouts(List<LockRefreshRequest> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("Requests cannot be null");
+		}
+		// A token of an unknown shard cannot be refreshed.
+		List<LockRefreshResult> results = new ArrayList<>(
+				Collections.nCopies(requests.size(), LockRefreshResult.EXPIRED));
+		Map<String, List<Integer>> indexesByShard = new LinkedHashMap<>();
+		Map<String, List<LockRefreshRequest>> requestsByShard = new LinkedHashMap<>();
+		for (int i = 0; i < requests.size(); i++) {
+			LockRefreshRequest request = requests.get(i);
+			if (request == null) {
+				throw new IllegalArgumentException("Request cannot be null");
+			}
+			ShardToken shardToken = parseToken(request.getKey(), request.getToken());
+			if (shardToken.shardId == null) {
+				continue;
+			}
+			indexesByShard.computeIfAbsent(shardToken.shardId, k -> new ArrayList<>()).add(i);
+			requestsByShard.computeIfAbsent(shardToken.shardId, k -> new ArrayList<>())
+					.add(new LockRefreshRequest(request.getKey(), shardToken.token, request.getTimeoutSec()));
+		}
+		List<Supplier<Void>> calls = new ArrayList<>(indexesByShard.size());
+		for (Map.Entry<String, List<Integer>> entry : indexesByShard.entrySet()) {
+			String shardId = entry.getKey();
+			List<Integer> indexes = entry.getValue();
+			calls.add(() -> {
+				List<LockRefreshResult> shardResults = shards.get(shardId)
+						.refreshLockTimeouts(requestsByShard.get(shardId));
+				for (int i = 0; i < indexes.size(); i++) {
+					results.set(indexes.get(i), shardResults.get(i));
+				}
+				return null;
+			});
+		}
+		callAll(calls);
+		return results;
+	}
+
+	@Override
+	public void releaseLock(String key, String token) {
+		ShardToken shardToken = parseToken(key, token);
+		if (shardToken.shardId == null) {
+			throw new LockReleaseFailedException("Key: " + key + " token: " + token + " has expired.");
+		}
+		shards.get(shardToken.shardId).releaseLock(key, shardToken.token);
+	}
+
+	@Override
+	public void releaseAllLocks() {
+		callEachShard(shard -> {
+			shard.releaseAllLocks();
+			return null;
+		});
+	}
+
+	@Override
+	public Optional<String> getFirstUnexpiredLockContext(String key) {
+		String shardId = getShardId(key);
+		Optional<String> context = shards.get(shardId).getFirstUnexpiredLockContext(key);
+		ConsistentHashRing previous = previousRing;
+		if (context.isPresent() || previous == null) {
+			return context;
+		}
+		String previousShardId = previous.shardOf(key);
+		if (previousShardId.equals(shardId)) {
+			return context;
+		}
+		return shards.get(previousShardId).getFirstUnexpiredLockContext(key);
+	}
+
+	@Override
+	public void runGarbageCollection() {
+		callEachShard(shard -> {
+			shard.runGarbageCollection();
+			return null;
+		});
+	}
+
+	/**
+	 * Run garbage collection on every shard in parallel, each with the given
+	 * limits.
+	 *
+	 * @return The total number of rows deleted (unknown if any shard's count is
+	 *         unknown), and whether more rows remain on any shard.
+	 */
+	@Override
+	public GarbageCollectionResult runGarbageCollection(int chunkSize, int maxRows, long maxDurationMs) {
+		long rowsDeleted = 0L;
+		boolean rowsDeletedKnown = true;
+		boolean moreRemaining = false;
+		for (GarbageCollectionResult result : callEachShard(
+				shard -> shard.runGarbageCollection(chunkSize, maxRows, maxDurationMs))) {
+			rowsDeleted += result.getRowsDeleted();
+			rowsDeletedKnown &= result.isRowsDeletedKnown();
+			moreRemaining |= result.isMoreRemaining();
+		}
+		return new GarbageCollectionResult(
+				rowsDeletedKnown ? rowsDeleted : GarbageCollectionResult.UNKNOWN_ROWS_DELETED, moreRemaining);
+	}
+
+	/**
+	 * @return The total number of lock rows of all shards.
+	 */
+	@Override
+	public long getLockRowCount() {
+		return callEachShard(CountingSemaphore::getLockRowCount).stream().mapToLong(Long::longValue).sum();
+	}
+
+	/**
+	 * @return The sum of the high-water marks of all shards, which only grows as
+	 *         new lock rows are created on any shard.
+	 */
+	@Override
+	public long getLockRowHighWaterMark() {
+		return callEachShard(CountingSemaphore::getLockRowHighWaterMark).stream().mapToLong(Long::longValue).sum();
+	}
+
+	/**
+	 * Stop the thread pool of this semaphore, if it created its own.
+	 */
+	@Override
+	public void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 *
+	 * @param shardId
+	 * @param token
+	 * @return The token issued by the given shard, prefixed with its id.
+	 */
+	private static String prefixToken(String shardId, String token) {
+		return shardId + SHARD_DELIMITER + token;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param token
+	 * @return The shard that issued the given token and the token of that shard.
+	 *         The shard id is null if the token was issued by an unknown shard.
+	 */
+	private ShardToken parseToken(String key, String token) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key cannot be null");
+		}
+		if (token == null) {
+			throw new IllegalArgumentException("Token cannot be null.");
+		}
+		int index = token.indexOf(SHARD_DELIMITER);
+		if (index < 0) {
+			// Issued before sharding, by the owner of the key on the previous ring.
+			ConsistentHashRing previous = previousRing;
+			return new ShardToken(previous == null ? ring.shardOf(key) : previous.shardOf(key), token);
+		}
+		String shardId = token.substring(0, index);
+		return new ShardToken(shards.containsKey(shardId) ? shardId : null, token.substring(index + 1));
+	}
+
+	/**
+	 *
+	 * @param call
+	 * @return The result of the given call on each shard.
+	 */
+	private <T> List<T> callEachShard(Function<CountingSemaphore, T> call) {
+		List<Supplier<T>> calls = new ArrayList<>(shards.size());
+		for (CountingSemaphore shard : shards.values()) {
+			calls.add(() -> call.apply(shard));
+		}
+		return callAll(calls);
+	}
+
+	/**
+	 * Run the given calls in parallel and wait for all of them. A single call is
+	 * run on the caller's thread.
+	 *
+	 * @param calls
+	 * @return The result of each call, in the same order as the calls.
+	 * @throws RuntimeException The first failure, once all of the calls have
+	 *                          finished.
+	 */
+	private <T> List<T> callAll(List<Supplier<T>> calls) {
+		if (calls.isEmpty()) {
+			return Collections.emptyList();
+		}
+		if (calls.size() == 1) {
+			return Collections.singletonList(calls.get(0).get());
+		}
+		List<Future<T>> futures = new ArrayList<>(calls.size());
+		for (Supplier<T> call : calls) {
+			futures.add(executor.submit(call::get));
+		}
+		List<T> results = new ArrayList<>(calls.size());
+		RuntimeException failure = null;
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				results.add(null);
+				if (failure == null) {
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+							: new IllegalStateException(e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Future<T> other : futures) {
+					other.cancel(true);
+				}
+				throw new IllegalStateException("Interrupted while waiting for the shards", e);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * A token split into the id of its shard and the token of that shard.
+	 */
+	private static class ShardToken {
+
+		final String shardId;
+		final String token;
+
+		ShardToken(String shardId, String token) {
+			this.shardId = shardId;
+			this.token = token;
+		}
+	}
+}
@@ -15,5 +15,13 @@ public class Sql {
 	public static final String COL_TABLE_SEM_LOCK_LOCK_KEY = "LOCK_KEY";
 	public static final String COL_TABLE_SEM_LOCK_TOKEN = "TOKEN";
 	public static final String COL_TABLE_SEM_LOCK_EXPIRES_ON = "EXPIRES_ON";
+	public static final String COL_TABLE_SEM_LOCK_KEY_HASH = "KEY_HASH";
+	public static final String COL_TABLE_SEM_LOCK_TOKEN_BIN = "TOKEN_BIN";
+	public static final String COL_TABLE_SEM_LOCK_LAST_USED_ON = "LAST_USED_ON";
+	public static final String IDX_TABLE_SEM_LOCK_KEY_HASH_LOCK_NUM = "KEY_HASH_LOCK_NUM";
+	public static final String IDX_TABLE_SEM_LOCK_TOKEN = "TOKEN";
+
+	// SEMAPHORE_WAITER
+	public static final String TABLE_SEMAPHORE_WAITER = "SEMAPHORE_WAITER";
 
 }
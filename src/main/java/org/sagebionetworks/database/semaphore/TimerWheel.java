@@ -0,0 +1,216 @@
+package org.sagebionetworks.database.semaphore;
+
+/**
+ * A hierarchical timer wheel that tracks the deadlines of intrusive
+ * {@link Node}s. Each of the {@link #LEVELS} levels has {@link #WHEEL_SIZE}
+ * buckets, and each bucket of a level spans {@link #WHEEL_SIZE} times the
+ * ticks of a bucket of the level below. A node is placed in the lowest level
+ * that can hold its deadline and moves down a level each time the wheel passes
+ * its bucket, until its deadline has passed and it is moved to the expired
+ * list. Scheduling, cancelling and expiring a node is O(1) and never allocates.
+ * <p>
+ * A node only expires once the wheel has been advanced past its deadline, and at
+ * most one tick after its deadline.
+ * </p>
+ * This class is not thread-safe.
+ */
+final class TimerWheel {
+
+	static final int WHEEL_BITS = 6;
+	static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	static final int LEVELS = 4;
+	private static final long WHEEL_MASK = WHEEL_SIZE - 1;
+
+	/**
+	 * A node that can be scheduled in a single timer wheel. A node is linked into
+	 * at most one bucket, or the expired list, at a time.
+	 */
+	static class Node {
+
+		private Node previous;
+		private Node next;
+		private long deadlineTick;
+
+		/**
+		 *
+		 * @return True if the node is scheduled or expired and not yet polled or
+		 *         cancelled.
+		 */
+		boolean isScheduled() {
+			return next != null;
+		}
+
+		private void unlink() {
+			previous.next = next;
+			next.previous = previous;
+			previous = null;
+			next = null;
+		}
+	}
+
+	private final long tickMs;
+	private final Node[][] buckets;
+	private final Node expired;
+	private long currentTick;
+
+	/**
+	 *
+	 * @param tickMs The duration of a single tick in milliseconds.
+	 * @param nowMs  The current time in milliseconds.
+	 */
+	TimerWheel(long tickMs, long nowMs) {
+		if (tickMs < 1) {
+			throw new IllegalArgumentException("TickMs cannot be less then one.");
+		}
+		this.tickMs = tickMs;
+		this.buckets = new Node[LEVELS][WHEEL_SIZE];
+		for (int level = 0; level < LEVELS; level++) {
+			for (int index = 0; index < WHEEL_SIZE; index++) {
+				buckets[level][index] = newList();
+			}
+		}
+		this.expired = newList();
+		this.currentTick = Math.floorDiv(nowMs, tickMs);
+	}
+
+	private static Node newList() {
+		Node head = new Node();
+		head.previous = head;
+		head.next = head;
+		return head;
+	}
+
+	private static void append(Node head, Node node) {
+		node.previous = head.previous;
+		node.next = head;
+		head.previous.next = node;
+		head.previous = node;
+	}
+
+	/**
+	 * Schedule the given node to expire at the given time, replacing any previous
+	 * schedule of the node.
+	 *
+	 * @param node
+	 * @param deadlineMs
+	 */
+	void schedule(Node node, long deadlineMs) {
+		if (node.isScheduled()) {
+			node.unlink();
+		}
+		// The first tick that starts after the deadline.
+		node.deadlineTick = Math.floorDiv(deadlineMs, tickMs) + 1;
+		place(node);
+	}
+
+	/**
+	 * Link the node into the bucket for its deadline, relative to the current
+	 * tick.
+	 *
+	 * @param node
+	 */
+	private void place(Node node) {
+		long delta = node.deadlineTick - currentTick;
+		if (delta <= 0) {
+			append(expired, node);
+			return;
+		}
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = WHEEL_BITS * (level + 1);
+			if (level == LEVELS - 1 || delta < (1L << shift)) {
+				// A deadline beyond the last level waits in its furthest bucket.
+				long tick = level == LEVELS - 1 && delta >= (1L << shift)
+						? currentTick + (1L << shift) - 1
+						: node.deadlineTick;
+				append(buckets[level][(int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK)], node);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove the given node from the wheel. A node that is not scheduled is
+	 * ignored.
+	 *
+	 * @param node
+	 */
+	void cancel(Node node) {
+		if (node.isScheduled()) {
+			node.unlink();
+		}
+	}
+
+	/**
+	 * Advance the wheel to the given time, moving every node with a deadline
+	 * that has passed to the expired list.
+	 *
+	 * @param nowMs
+	 */
+	void advance(long nowMs) {
+		long previousTick = currentTick;
+		long nowTick = Math.floorDiv(nowMs, tickMs);
+		if (nowTick <= previousTick) {
+			return;
+		}
+		currentTick = nowTick;
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = WHEEL_BITS * level;
+			long previousIndex = previousTick >>> shift;
+			long nowIndex = nowTick >>> shift;
+			if (nowIndex == previousIndex) {
+				// The higher levels have not moved either.
+				break;
+			}
+			long passed = Math.min(nowIndex - previousIndex, WHEEL_SIZE);
+			for (long i = 1; i <= passed; i++) {
+				cascade(buckets[level][(int) ((previousIndex + i) & WHEEL_MASK)]);
+			}
+		}
+	}
+
+	/**
+	 * Place each node of the given bucket again, relative to the current tick.
+	 *
+	 * @param head
+	 */
+	private void cascade(Node head) {
+		Node node = head.next;
+		if (node == head) {
+			return;
+		}
+		// Detach the whole bucket first, since nodes might be placed back into it.
+		Node last = head.previous;
+		head.next = head;
+		head.previous = head;
+		last.next = null;
+		while (node != null) {
+			Node next = node.next;
+			node.previous = null;
+			node.next = null;
+			place(node);
+			node = next;
+		}
+	}
+
+	/**
+	 *
+	 * @return The next expired node, which is no longer scheduled, or null if no
+	 *         node has expired.
+	 */
+	Node pollExpired() {
+		Node node = expired.next;
+		if (node == expired) {
+			return null;
+		}
+		node.unlink();
+		return node;
+	}
+
+	/**
+	 *
+	 * @return True if at least one node has expired and has not been polled.
+	 */
+	boolean hasExpired() {
+		return expired.next != expired;
+	}
+}
@@ -0,0 +1,40 @@
+package org.sagebionetworks.database.semaphore;
+
+import java.util.Optional;
+
+/**
+ * A {@link CountingSemaphore} that can issue several of the locks of a key to a
+ * single caller at once, for work that needs more than one of a key's slots.
+ * <p>
+ * The locks of a weighted grant share one token. The token is released with
+ * {@link #releaseLock(String, String)} and refreshed with
+ * {@link #refreshLockTimeout(String, String, long)} or
+ * {@link #refreshLockTimeouts(java.util.List)}, which act on all of its locks
+ * at once.
+ * </p>
+ */
+public interface WeightedCountingSemaphore extends CountingSemaphore {
+
+	/**
+	 * Attempt to acquire weight of the maxLockCount locks of the given key with a
+	 * single database call. Either all of the locks are acquired or none of them
+	 * are. This method is non-blocking.
+	 * 
+	 * @param key          A unique key to lock on
+	 * @param timeoutSec   The maximum life of the locks in seconds.
+	 * @param maxLockCount The maximum number of locks of that can be issued to the
+	 *                     given key.
+	 * @param weight       The number of locks to acquire. Cannot be more than
+	 *                     maxLockCount.
+	 * @param context      Describes the context for which the locks will be used.
+	 * @return A single token for all of the locks, or Optional.empty() when fewer
+	 *         than weight locks are available. When any of the locks expires, the
+	 *         whole token is treated as expired.
+	 * @throws IllegalStateException When the weight is more than one and the
+	 *                               database still has the unique TOKEN index of a
+	 *                               table migrated from an older version. See:
+	 *                               SemaphoreLockDropLegacyIndexes.ddl.sql
+	 */
+	public Optional<String> attemptToAcquireWeightedLock(String key, long timeoutSec, int maxLockCount, int weight,
+			String context);
+}
@@ -5,7 +5,12 @@ CREATE TABLE IF NOT EXISTS `SEMAPHORE_LOCK` (
   `TOKEN` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin DEFAULT NULL,
   `EXPIRES_ON` TIMESTAMP NOT NULL,
   `CONTEXT` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin DEFAULT NULL,
+  `LAST_USED_ON` TIMESTAMP NULL DEFAULT NULL,
+  `USE_COUNT` INT NOT NULL DEFAULT 0,
+  `KEY_HASH` BINARY(16) AS (UNHEX(MD5(`LOCK_KEY`))) VIRTUAL,
+  `TOKEN_BIN` BINARY(16) AS (UNHEX(REPLACE(`TOKEN`, '-', ''))) VIRTUAL,
   PRIMARY KEY (`ROW_ID`),
   UNIQUE (`LOCK_KEY`, `LOCK_NUM`),
-  UNIQUE (`TOKEN`)
+  KEY `KEY_HASH_LOCK_NUM` (`KEY_HASH`, `LOCK_NUM`),
+  KEY `TOKEN_BIN` (`TOKEN_BIN`)
 )
\ No newline at end of file
@@ -0,0 +1,14 @@
+/*
+ * The final (contract) step of the migration of a SEMAPHORE_LOCK table created before the
+ * KEY_HASH and TOKEN_BIN columns were added.  This script is never applied automatically,
+ * not even by the constructor of CountingSemaphoreImpl, and must be run by hand.
+ *
+ * Only run it once every client of the database has been upgraded to a version that looks
+ * up locks with the TOKEN_BIN index.  Older clients find locks with the TOKEN index dropped
+ * here and would have to scan the whole table.  Weighted grants store the same token in
+ * several rows, so until this unique index is dropped attemptToAcquireWeightedLock() throws
+ * an IllegalStateException for any weight above one.  The LOCK_KEY index is kept since it
+ * enforces the uniqueness of (LOCK_KEY, LOCK_NUM).
+ */
+ALTER TABLE `SEMAPHORE_LOCK`
+  DROP INDEX `TOKEN`;
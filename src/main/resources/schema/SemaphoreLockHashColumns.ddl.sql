@@ -0,0 +1,8 @@
+/*
+ * Step one of the online migration of a SEMAPHORE_LOCK table created before the KEY_HASH
+ * and TOKEN_BIN columns were added.  Both columns are virtual so adding them does not
+ * rewrite the table.
+ */
+ALTER TABLE `SEMAPHORE_LOCK`
+  ADD COLUMN `KEY_HASH` BINARY(16) AS (UNHEX(MD5(`LOCK_KEY`))) VIRTUAL,
+  ADD COLUMN `TOKEN_BIN` BINARY(16) AS (UNHEX(REPLACE(`TOKEN`, '-', ''))) VIRTUAL
\ No newline at end of file
@@ -0,0 +1,10 @@
+/*
+ * Step two of the online migration of a SEMAPHORE_LOCK table created before the KEY_HASH
+ * and TOKEN_BIN columns were added.  The indexes are built in place while the table
+ * remains available for reads and writes.  KEY_HASH_LOCK_NUM is only used for lookups: two
+ * keys can share an MD5 hash, so the uniqueness of (LOCK_KEY, LOCK_NUM) stays with the
+ * LOCK_KEY index.
+ */
+ALTER TABLE `SEMAPHORE_LOCK`
+  ADD KEY `KEY_HASH_LOCK_NUM` (`KEY_HASH`, `LOCK_NUM`),
+  ADD KEY `TOKEN_BIN` (`TOKEN_BIN`)
\ No newline at end of file
@@ -0,0 +1,8 @@
+/*
+ * Online migration of a SEMAPHORE_LOCK table created before the LAST_USED_ON and USE_COUNT
+ * columns were added.  Both columns are added at the end of the table with constant defaults
+ * so the change does not need to copy the table.
+ */
+ALTER TABLE `SEMAPHORE_LOCK`
+  ADD COLUMN `LAST_USED_ON` TIMESTAMP NULL DEFAULT NULL,
+  ADD COLUMN `USE_COUNT` INT NOT NULL DEFAULT 0
\ No newline at end of file
@@ -0,0 +1,12 @@
+CREATE TABLE IF NOT EXISTS `SEMAPHORE_WAITER` (
+  `TICKET_ID` BIGINT NOT NULL AUTO_INCREMENT,
+  `LOCK_KEY` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin NOT NULL,
+  `MAX_LOCK_COUNT` TINYINT NOT NULL,
+  `TIMEOUT_SEC` INT NOT NULL,
+  `CONTEXT` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin NOT NULL,
+  `TOKEN` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin DEFAULT NULL,
+  `EXPIRES_ON` TIMESTAMP NOT NULL,
+  `KEY_HASH` BINARY(16) AS (UNHEX(MD5(`LOCK_KEY`))) VIRTUAL,
+  PRIMARY KEY (`TICKET_ID`),
+  KEY `KEY_HASH_TICKET_ID` (`KEY_HASH`, `TICKET_ID`)
+)
@@ -0,0 +1,111 @@
+/**
+ * Attempt to acquire a lock for each request in the provided JSON array in a single call.
+ * Each element of the array must have the form:
+ * {"key": "someKey", "timeoutSec": 60, "maxLockCount": 2, "context": "some context",
+ *  "bootstrap": "SINGLE_ROW", "chunkSize": 100}
+ *
+ * The bootstrap of a request selects how the rows of its key are created before the attempt:
+ * SINGLE_ROW like attemptToAcquireSemaphoreLockByHash(), SET_BASED in chunks of chunkSize rows
+ * like attemptToAcquireSemaphoreLockInChunks(), or NONE for a key whose rows are expected to
+ * exist.  Like attemptToAcquireBootstrappedSemaphoreLock(), a NONE request that could not claim
+ * a row counts the rows of its key, and when any are missing they are bootstrapped one row at a
+ * time and the attempt is repeated.
+ *
+ * Each request is processed in its own short transaction so exclusive locks are never held on
+ * more than one key at a time.  A transient
+ * failure (deadlock or lock wait timeout) on one request only results in no token for that
+ * request.
+ *
+ * Returns one row per request, REQUEST_INDEX (starting at one) and TOKEN, where the TOKEN
+ * is null if a lock could not be acquired for that request.
+ *
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.
+ */
+CREATE PROCEDURE attemptToAcquireSemaphoreLocks(IN requests JSON)
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE requestCount INT DEFAULT JSON_LENGTH(requests);
+	DECLARE requestIndex INT DEFAULT 0;
+	DECLARE requestPath VARCHAR(32);
+	DECLARE lockKey VARCHAR(256);
+	DECLARE keyHash BINARY(16);
+	DECLARE timeoutSec INT(4);
+	DECLARE maxLockCount INT(4);
+	DECLARE inContext VARCHAR(256);
+	DECLARE bootstrap VARCHAR(16);
+	DECLARE chunkSize INT(4);
+	DECLARE lockCount INT;
+	DECLARE newToken VARCHAR(256) DEFAULT NULL;
+	DECLARE rowId MEDIUMINT DEFAULT NULL;
+	DECLARE transientFailure BOOLEAN DEFAULT FALSE;
+	DECLARE results JSON DEFAULT JSON_ARRAY();
+	/* A deadlock or lock wait timeout must only fail the current request. */
+	DECLARE CONTINUE HANDLER FOR 1205, 1213 SET transientFailure = TRUE;
+
+	WHILE requestIndex < requestCount DO
+		SET requestPath = CONCAT('$[', requestIndex, ']');
+		SET lockKey = JSON_UNQUOTE(JSON_EXTRACT(requests, CONCAT(requestPath, '.key')));
+		SET timeoutSec = JSON_EXTRACT(requests, CONCAT(requestPath, '.timeoutSec'));
+		SET maxLockCount = JSON_EXTRACT(requests, CONCAT(requestPath, '.maxLockCount'));
+		SET inContext = JSON_UNQUOTE(JSON_EXTRACT(requests, CONCAT(requestPath, '.context')));
+		SET bootstrap = JSON_UNQUOTE(JSON_EXTRACT(requests, CONCAT(requestPath, '.bootstrap')));
+		SET chunkSize = JSON_EXTRACT(requests, CONCAT(requestPath, '.chunkSize'));
+		SET keyHash = UNHEX(MD5(CONVERT(lockKey USING latin1)));
+
+		attempt_loop: LOOP
+			SET newToken = NULL;
+			SET rowId = NULL;
+			SET transientFailure = FALSE;
+
+			/* Ensure the lock rows exist for this key */
+			IF bootstrap = 'SET_BASED' THEN
+				CALL bootstrapLockKeyRowsInChunks(lockKey, maxLockCount, chunkSize);
+			ELSEIF bootstrap = 'SINGLE_ROW' THEN
+				CALL bootstrapLockKeyRowsByHash(lockKey, maxLockCount);
+			END IF;
+
+			START TRANSACTION;
+			/* Find the first number for the given lock that has a null token or is expired. */
+			SELECT ROW_ID INTO rowId FROM SEMAPHORE_LOCK WHERE KEY_HASH = keyHash AND LOCK_KEY = lockKey AND LOCK_NUM < maxLockCount
+				AND (TOKEN IS NULL OR EXPIRES_ON < current_timestamp) LIMIT 1 FOR UPDATE SKIP LOCKED;
+
+			/* Claim this number and issue a token */
+			IF rowId IS NOT NULL AND NOT transientFailure THEN
+				SET newToken = UUID();
+				UPDATE SEMAPHORE_LOCK SET TOKEN = newToken, EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL timeoutSec SECOND),
+						CONTEXT = inContext, LAST_USED_ON = CURRENT_TIMESTAMP, USE_COUNT = LEAST(USE_COUNT, 2147483646) + 1
+					WHERE ROW_ID = rowId;
+			END IF;
+
+			IF transientFailure THEN
+				ROLLBACK;
+				SET newToken = NULL;
+			ELSE
+				COMMIT;
+			END IF;
+
+			IF newToken IS NOT NULL OR transientFailure OR bootstrap <> 'NONE' THEN
+				LEAVE attempt_loop;
+			END IF;
+			/* Only a failed attempt pays for checking that all of the rows exist. */
+			SELECT COUNT(LOCK_NUM) INTO lockCount FROM SEMAPHORE_LOCK WHERE KEY_HASH = keyHash AND LOCK_KEY = lockKey
+				AND LOCK_NUM < maxLockCount;
+			IF lockCount >= maxLockCount THEN
+				LEAVE attempt_loop;
+			END IF;
+			/* The rows were removed since they were bootstrapped, for example by garbage collection. */
+			SET bootstrap = 'SINGLE_ROW';
+		END LOOP attempt_loop;
+
+		SET results = JSON_ARRAY_APPEND(results, '$', CONCAT(rowId, '.', newToken));
+		SET requestIndex = requestIndex + 1;
+	END WHILE;
+
+	/* Return the new token (or null) for each request */
+	SELECT REQUEST_INDEX, TOKEN FROM JSON_TABLE(results, '$[*]'
+		COLUMNS (REQUEST_INDEX FOR ORDINALITY, TOKEN VARCHAR(256) PATH '$')) AS R;
+END;
\ No newline at end of file
@@ -0,0 +1,50 @@
+/**
+ * Attempt to claim weight of the maxLockCount locks of a key at once.  Either all of the
+ * requested locks are claimed in a single transaction or none of them are.  All of the
+ * claimed rows are given the same UUID in their TOKEN column, and the returned token has the
+ * form '<WEIGHT>:<UUID>', so the whole grant can be released and refreshed with the
+ * TOKEN_BIN index.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE attemptToAcquireWeightedSemaphoreLock(IN lockKey VARCHAR(256), IN timeoutSec INT(4), IN maxLockCount INT(4),
+		IN weight INT(4), IN inContext VARCHAR(256))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE keyHash BINARY(16) DEFAULT UNHEX(MD5(CONVERT(lockKey USING latin1)));
+	DECLARE newToken VARCHAR(256) DEFAULT NULL;
+	DECLARE rowId MEDIUMINT DEFAULT NULL;
+	DECLARE claimed INT DEFAULT 0;
+
+    /* Ensure the lock rows exist for this key */
+    CALL bootstrapLockKeyRowsByHash(lockKey, maxLockCount);
+
+	SET newToken = UUID();
+    START TRANSACTION;
+	/* Claim free numbers one at a time.  A claimed row no longer matches the search. */
+	claim: WHILE claimed < weight DO
+		SET rowId = NULL;
+		SELECT ROW_ID INTO rowId FROM SEMAPHORE_LOCK WHERE KEY_HASH = keyHash AND LOCK_KEY = lockKey AND LOCK_NUM < maxLockCount
+			AND (TOKEN IS NULL OR EXPIRES_ON < current_timestamp) LIMIT 1 FOR UPDATE SKIP LOCKED;
+		IF rowId IS NULL THEN
+			LEAVE claim;
+		END IF;
+        UPDATE SEMAPHORE_LOCK SET TOKEN = newToken, EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL timeoutSec SECOND),
+        		CONTEXT = inContext, LAST_USED_ON = CURRENT_TIMESTAMP, USE_COUNT = LEAST(USE_COUNT, 2147483646) + 1
+        	WHERE ROW_ID = rowId;
+		SET claimed = claimed + 1;
+	END WHILE;
+
+	/* A partial grant is never visible to other sessions */
+	IF claimed < weight THEN
+		ROLLBACK;
+		SELECT NULL AS TOKEN;
+	ELSE
+		COMMIT;
+		SELECT CONCAT(weight, ':', newToken) AS TOKEN;
+	END IF;
+END;
@@ -0,0 +1,50 @@
+/*
+ * Ensure all of the rows needed for a lock exist, using set-based inserts.
+ * 
+ * Unlike bootstrapLockKeyRowsByHash(), which inserts each row in its own transaction, the missing
+ * LOCK_NUM values are inserted with one INSERT per chunk of up to chunkSize numbers.  Only the
+ * numbers that do not already exist are inserted.  Larger chunks need fewer commits but hold
+ * their exclusive locks for longer, see PLFM-8236, so a chunkSize of one is equivalent to
+ * bootstrapLockKeyRowsByHash().
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE bootstrapLockKeyRowsInChunks(IN lockKey VARCHAR(256), IN maxLockCount INT(4), IN chunkSize INT(4))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+    DECLARE keyHash BINARY(16) DEFAULT UNHEX(MD5(CONVERT(lockKey USING latin1)));
+    DECLARE chunkStart INT;
+    DECLARE chunkEnd INT;
+    DECLARE lockCount INT;
+	  
+    /* Ensure the correct number of lock rows exist. */ 
+    SELECT COUNT(LOCK_NUM) INTO lockCount FROM SEMAPHORE_LOCK WHERE KEY_HASH = keyHash AND LOCK_KEY = lockKey
+    	AND LOCK_NUM < maxLockCount;
+    IF lockCount < maxLockCount THEN
+    	SET chunkStart = 0;
+    	WHILE chunkStart < maxLockCount DO
+    		SET chunkEnd = LEAST(chunkStart + GREATEST(chunkSize, 1), maxLockCount);
+    		/*
+    		 * Note: By setting the expires_on to be 5 minutes into the future, we block garbage collection from
+    		 * removing the newly added rows.  The IGNORE covers rows added by a concurrent bootstrap after the
+    		 * NOT EXISTS check.
+    		 */
+    		START TRANSACTION;
+			INSERT IGNORE INTO SEMAPHORE_LOCK (LOCK_KEY, LOCK_NUM, TOKEN, EXPIRES_ON)
+				SELECT lockKey, N.LOCK_NUM, NULL, (NOW() + INTERVAL 5 MINUTE) FROM (
+					WITH RECURSIVE NUMBERS (LOCK_NUM) AS (
+						SELECT chunkStart
+						UNION ALL
+						SELECT LOCK_NUM + 1 FROM NUMBERS WHERE LOCK_NUM + 1 < chunkEnd
+					) SELECT LOCK_NUM FROM NUMBERS
+				) N WHERE NOT EXISTS (SELECT 1 FROM SEMAPHORE_LOCK S WHERE S.KEY_HASH = keyHash AND S.LOCK_KEY = lockKey
+					AND S.LOCK_NUM = N.LOCK_NUM);
+			COMMIT;
+			SET chunkStart = chunkEnd;
+		END WHILE;
+	END IF;
+END;
@@ -0,0 +1,30 @@
+/*
+ * Remove a ticket issued by enqueueSemaphoreTicket() from its queue.  If the ticket was already
+ * granted, the lock it was granted is released.  The remaining tickets of the key are then
+ * granted, since they might have been waiting behind the removed ticket.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE cancelSemaphoreTicket(IN ticketIdIn BIGINT)
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE lockKey VARCHAR(256) DEFAULT NULL;
+	DECLARE ticketToken VARCHAR(256) DEFAULT NULL;
+
+	START TRANSACTION;
+	SELECT LOCK_KEY, TOKEN INTO lockKey, ticketToken FROM SEMAPHORE_WAITER WHERE TICKET_ID = ticketIdIn FOR UPDATE;
+	DELETE FROM SEMAPHORE_WAITER WHERE TICKET_ID = ticketIdIn;
+	IF ticketToken IS NOT NULL THEN
+		UPDATE SEMAPHORE_LOCK SET TOKEN = NULL, CONTEXT = NULL, EXPIRES_ON = (NOW() + INTERVAL 5 MINUTE)
+			WHERE ROW_ID = SUBSTRING_INDEX(ticketToken, '.', 1) AND TOKEN = SUBSTRING_INDEX(ticketToken, '.', -1);
+	END IF;
+	COMMIT;
+
+	IF lockKey IS NOT NULL THEN
+		CALL grantSemaphoreTickets(lockKey);
+	END IF;
+END;
@@ -0,0 +1,58 @@
+/*
+ * Check the status of a ticket issued by enqueueSemaphoreTicket().
+ * 
+ * A waiting ticket is found with the primary key and its expiration is extended by
+ * ticketTimeoutSec seconds.  Only the oldest waiting ticket of a key also runs
+ * grantSemaphoreTickets(), so lock rows that expired rather than being released reach the
+ * queue, while the other waiters never run the acquire logic.  The head also bootstraps the
+ * rows of its key, in case they were removed by garbage collection while it was waiting.  A
+ * granted ticket is deleted once its token is returned.
+ * 
+ * Returns a single row with the TOKEN of a granted ticket (or null while waiting), FOUND
+ * which is false if the ticket does not exist, for example, because it expired, and
+ * EXPIRES_IN_SEC, the number of seconds left before the granted lock expires.  The lock may
+ * have been granted well before this check, so its remaining time is read from the lock row.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE checkSemaphoreTicket(IN ticketIdIn BIGINT, IN ticketTimeoutSec INT)
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE lockKey VARCHAR(256) DEFAULT NULL;
+	DECLARE keyHash BINARY(16) DEFAULT NULL;
+	DECLARE maxLockCount INT DEFAULT NULL;
+	DECLARE ticketToken VARCHAR(256) DEFAULT NULL;
+	DECLARE isHead BOOLEAN DEFAULT FALSE;
+
+	START TRANSACTION;
+	SELECT LOCK_KEY, KEY_HASH, MAX_LOCK_COUNT, TOKEN INTO lockKey, keyHash, maxLockCount, ticketToken FROM SEMAPHORE_WAITER
+		WHERE TICKET_ID = ticketIdIn AND EXPIRES_ON >= current_timestamp;
+	IF lockKey IS NOT NULL AND ticketToken IS NULL THEN
+		UPDATE SEMAPHORE_WAITER SET EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL ticketTimeoutSec SECOND)
+			WHERE TICKET_ID = ticketIdIn;
+		SET isHead = NOT EXISTS (SELECT 1 FROM SEMAPHORE_WAITER WHERE KEY_HASH = keyHash AND TICKET_ID < ticketIdIn
+			AND TOKEN IS NULL AND EXPIRES_ON >= current_timestamp);
+	END IF;
+	COMMIT;
+
+	IF isHead THEN
+		CALL bootstrapLockKeyRowsByHash(lockKey, maxLockCount);
+		CALL grantSemaphoreTickets(lockKey);
+		START TRANSACTION;
+		SELECT TOKEN INTO ticketToken FROM SEMAPHORE_WAITER WHERE TICKET_ID = ticketIdIn;
+		COMMIT;
+	END IF;
+
+	IF ticketToken IS NOT NULL THEN
+		START TRANSACTION;
+		DELETE FROM SEMAPHORE_WAITER WHERE TICKET_ID = ticketIdIn;
+		COMMIT;
+	END IF;
+	SELECT ticketToken AS TOKEN, lockKey IS NOT NULL AS FOUND,
+		(SELECT TIMESTAMPDIFF(SECOND, CURRENT_TIMESTAMP, EXPIRES_ON) FROM SEMAPHORE_LOCK
+			WHERE ROW_ID = SUBSTRING_INDEX(ticketToken, '.', 1)) AS EXPIRES_IN_SEC;
+END;
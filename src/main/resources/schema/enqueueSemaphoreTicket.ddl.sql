@@ -0,0 +1,38 @@
+/*
+ * Add a ticket to the end of the queue of a key and grant the free lock rows of the key in
+ * ticket order.  Returns the TICKET_ID and, if the new ticket was granted right away, its TOKEN.
+ * A granted ticket is deleted once its token is returned.  A ticket that is not granted
+ * expires unless it is checked with checkSemaphoreTicket() within ticketTimeoutSec seconds.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE enqueueSemaphoreTicket(IN lockKey VARCHAR(256), IN timeoutSec INT(4), IN maxLockCount INT(4),
+		IN inContext VARCHAR(256), IN ticketTimeoutSec INT)
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE ticketId BIGINT;
+	DECLARE ticketToken VARCHAR(256) DEFAULT NULL;
+
+	/* Ensure the lock rows exist for this key */
+	CALL bootstrapLockKeyRowsByHash(lockKey, maxLockCount);
+
+	START TRANSACTION;
+	INSERT INTO SEMAPHORE_WAITER (LOCK_KEY, MAX_LOCK_COUNT, TIMEOUT_SEC, CONTEXT, TOKEN, EXPIRES_ON)
+		VALUES (lockKey, maxLockCount, timeoutSec, inContext, NULL, (CURRENT_TIMESTAMP + INTERVAL ticketTimeoutSec SECOND));
+	SET ticketId = LAST_INSERT_ID();
+	COMMIT;
+
+	CALL grantSemaphoreTickets(lockKey);
+
+	START TRANSACTION;
+	SELECT TOKEN INTO ticketToken FROM SEMAPHORE_WAITER WHERE TICKET_ID = ticketId;
+	IF ticketToken IS NOT NULL THEN
+		DELETE FROM SEMAPHORE_WAITER WHERE TICKET_ID = ticketId;
+	END IF;
+	COMMIT;
+	SELECT ticketId AS TICKET_ID, ticketToken AS TOKEN;
+END;
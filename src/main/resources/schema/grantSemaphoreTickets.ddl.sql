@@ -0,0 +1,53 @@
+/*
+ * Assign the free lock rows of a key to its waiting tickets in ticket order.
+ * 
+ * The oldest unexpired ticket without a token is locked first, so concurrent grants of the same
+ * key are serialized, and is then given the first row that has a null token or is expired.  The
+ * tickets are served strictly in order: once the oldest ticket cannot be served no later ticket
+ * is served either.  The token of a granted ticket ('<ROW_ID>.<UUID>') is stored on the ticket
+ * until its waiter collects it or the lock expires.  Expired tickets of the key are deleted first.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE grantSemaphoreTickets(IN lockKey VARCHAR(256))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE keyHash BINARY(16) DEFAULT UNHEX(MD5(CONVERT(lockKey USING latin1)));
+	DECLARE ticketId BIGINT;
+	DECLARE ticketMaxLockCount TINYINT;
+	DECLARE ticketTimeoutSec INT;
+	DECLARE ticketContext VARCHAR(256);
+	DECLARE rowId MEDIUMINT;
+	DECLARE newToken VARCHAR(256);
+
+	START TRANSACTION;
+	DELETE FROM SEMAPHORE_WAITER WHERE KEY_HASH = keyHash AND LOCK_KEY = lockKey AND EXPIRES_ON < current_timestamp;
+	grant_loop: LOOP
+		SET ticketId = NULL;
+		SELECT TICKET_ID, MAX_LOCK_COUNT, TIMEOUT_SEC, CONTEXT INTO ticketId, ticketMaxLockCount, ticketTimeoutSec, ticketContext
+			FROM SEMAPHORE_WAITER WHERE KEY_HASH = keyHash AND LOCK_KEY = lockKey AND TOKEN IS NULL
+			ORDER BY TICKET_ID LIMIT 1 FOR UPDATE;
+		IF ticketId IS NULL THEN
+			LEAVE grant_loop;
+		END IF;
+		SET rowId = NULL;
+		SELECT ROW_ID INTO rowId FROM SEMAPHORE_LOCK WHERE KEY_HASH = keyHash AND LOCK_KEY = lockKey
+			AND LOCK_NUM < ticketMaxLockCount AND (TOKEN IS NULL OR EXPIRES_ON < current_timestamp) LIMIT 1 FOR UPDATE SKIP LOCKED;
+		IF rowId IS NULL THEN
+			LEAVE grant_loop;
+		END IF;
+		SET newToken = UUID();
+		UPDATE SEMAPHORE_LOCK SET TOKEN = newToken, EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL ticketTimeoutSec SECOND),
+				CONTEXT = ticketContext, LAST_USED_ON = CURRENT_TIMESTAMP, USE_COUNT = LEAST(USE_COUNT, 2147483646) + 1
+			WHERE ROW_ID = rowId;
+		/* The granted ticket is kept until its waiter collects the token or the lock expires */
+		UPDATE SEMAPHORE_WAITER SET TOKEN = CONCAT(rowId, '.', newToken),
+				EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL ticketTimeoutSec SECOND)
+			WHERE TICKET_ID = ticketId;
+	END LOOP grant_loop;
+	COMMIT;
+END;
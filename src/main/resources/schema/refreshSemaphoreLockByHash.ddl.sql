@@ -0,0 +1,21 @@
+/*
+ * Attempt to refresh an existing lock.
+ * 
+ * The same as refreshSemaphoreLock() except the token is found with the fixed-width TOKEN_BIN
+ * index.  The TOKEN is also compared so only the exact token that was issued will match.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE refreshSemaphoreLockByHash(IN tokenIn VARCHAR(256), IN timeoutSec INT(4))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+    START TRANSACTION;
+	UPDATE SEMAPHORE_LOCK SET EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL timeoutSec SECOND)
+		WHERE TOKEN_BIN = UNHEX(REPLACE(tokenIn, '-', '')) AND TOKEN = tokenIn;
+	SELECT ROW_COUNT() AS RESULT;
+	COMMIT;
+END;
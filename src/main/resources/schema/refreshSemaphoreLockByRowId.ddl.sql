@@ -0,0 +1,22 @@
+/*
+ * Attempt to refresh an existing lock.
+ * 
+ * The same as refreshSemaphoreLockByHash() except the row is found with the primary key
+ * using the ROW_ID encoded in the token that was issued.  The TOKEN is also compared so
+ * only the exact token that was issued will match.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE refreshSemaphoreLockByRowId(IN rowIdIn BIGINT, IN tokenIn VARCHAR(256), IN timeoutSec INT(4))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+    START TRANSACTION;
+	UPDATE SEMAPHORE_LOCK SET EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL timeoutSec SECOND)
+		WHERE ROW_ID = rowIdIn AND TOKEN = tokenIn;
+	SELECT ROW_COUNT() AS RESULT;
+	COMMIT;
+END;
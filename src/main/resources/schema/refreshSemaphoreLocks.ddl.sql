@@ -0,0 +1,74 @@
+/*
+ * Attempt to refresh many existing locks with a single statement.  Each element of the
+ * provided JSON array must have the form: {"rowId": 123, "token": "someToken", "timeoutSec": 60}
+ * where the rowId is the ROW_ID encoded in the issued token.  The rowId is omitted for an
+ * opaque token, which is then found with the TOKEN_BIN index.  The token of a grant issued by
+ * attemptToAcquireWeightedSemaphoreLock() has no rowId but includes its "weight".  Exactly like
+ * refreshWeightedSemaphoreLock(), its locks are only refreshed when all weight of them are
+ * still held, otherwise the locks that are still held are released instead.
+ *
+ * Returns one row per request, REQUEST_INDEX (starting at one) and RESULT, where the RESULT
+ * is the number of rows refreshed for that token (zero if the token no longer exists).
+ *
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.
+ */
+CREATE PROCEDURE refreshSemaphoreLocks(IN requests JSON)
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE requestCount INT DEFAULT JSON_LENGTH(requests);
+	DECLARE requestIndex INT DEFAULT 0;
+	DECLARE requestPath VARCHAR(32);
+	DECLARE weightedToken VARCHAR(256);
+	DECLARE weight INT;
+	DECLARE timeoutSec INT;
+	DECLARE lockCount INT;
+
+    START TRANSACTION;
+	/* Tokens with a row id are found with the primary key */
+	UPDATE SEMAPHORE_LOCK S JOIN JSON_TABLE(requests, '$[*]' COLUMNS (
+			ROW_ID BIGINT PATH '$.rowId',
+			TOKEN VARCHAR(256) CHARACTER SET latin1 COLLATE latin1_bin PATH '$.token',
+			TIMEOUT_SEC INT PATH '$.timeoutSec')) AS R ON S.ROW_ID = R.ROW_ID AND S.TOKEN = R.TOKEN
+		SET S.EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL R.TIMEOUT_SEC SECOND);
+	/* Opaque tokens are found with the TOKEN_BIN index */
+	UPDATE SEMAPHORE_LOCK S JOIN JSON_TABLE(requests, '$[*]' COLUMNS (
+			ROW_ID BIGINT PATH '$.rowId',
+			WEIGHT INT PATH '$.weight',
+			TOKEN VARCHAR(256) CHARACTER SET latin1 COLLATE latin1_bin PATH '$.token',
+			TIMEOUT_SEC INT PATH '$.timeoutSec')) AS R ON R.ROW_ID IS NULL AND R.WEIGHT IS NULL
+				AND S.TOKEN_BIN = UNHEX(REPLACE(R.TOKEN, '-', '')) AND S.TOKEN = R.TOKEN
+		SET S.EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL R.TIMEOUT_SEC SECOND);
+	/* Weighted tokens are refreshed one grant at a time, see: refreshWeightedSemaphoreLock() */
+	WHILE requestIndex < requestCount DO
+		SET requestPath = CONCAT('$[', requestIndex, ']');
+		SET weight = JSON_EXTRACT(requests, CONCAT(requestPath, '.weight'));
+		IF weight IS NOT NULL THEN
+			SET weightedToken = JSON_UNQUOTE(JSON_EXTRACT(requests, CONCAT(requestPath, '.token')));
+			SET timeoutSec = JSON_EXTRACT(requests, CONCAT(requestPath, '.timeoutSec'));
+			SELECT COUNT(*) INTO lockCount FROM SEMAPHORE_LOCK
+				WHERE TOKEN_BIN = UNHEX(REPLACE(weightedToken, '-', '')) AND TOKEN = weightedToken FOR UPDATE;
+			IF lockCount = weight THEN
+				UPDATE SEMAPHORE_LOCK SET EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL timeoutSec SECOND)
+					WHERE TOKEN_BIN = UNHEX(REPLACE(weightedToken, '-', '')) AND TOKEN = weightedToken;
+			ELSE
+				/* Note: The expires_on is five minutes into the future to block garbage collection. */
+				UPDATE SEMAPHORE_LOCK SET TOKEN = NULL, CONTEXT = NULL, EXPIRES_ON = (NOW() + INTERVAL 5 MINUTE)
+					WHERE TOKEN_BIN = UNHEX(REPLACE(weightedToken, '-', '')) AND TOKEN = weightedToken;
+			END IF;
+		END IF;
+		SET requestIndex = requestIndex + 1;
+	END WHILE;
+	SELECT R.REQUEST_INDEX, COUNT(P.ROW_ID) + COUNT(O.ROW_ID) AS RESULT FROM JSON_TABLE(requests, '$[*]' COLUMNS (
+			REQUEST_INDEX FOR ORDINALITY,
+			ROW_ID BIGINT PATH '$.rowId',
+			TOKEN VARCHAR(256) CHARACTER SET latin1 COLLATE latin1_bin PATH '$.token')) AS R
+		LEFT JOIN SEMAPHORE_LOCK P ON P.ROW_ID = R.ROW_ID AND P.TOKEN = R.TOKEN
+		LEFT JOIN SEMAPHORE_LOCK O ON R.ROW_ID IS NULL
+			AND O.TOKEN_BIN = UNHEX(REPLACE(R.TOKEN, '-', '')) AND O.TOKEN = R.TOKEN
+		GROUP BY R.REQUEST_INDEX ORDER BY R.REQUEST_INDEX;
+	COMMIT;
+END;
\ No newline at end of file
@@ -0,0 +1,35 @@
+/*
+ * Attempt to refresh all of the locks of a grant issued by attemptToAcquireWeightedSemaphoreLock().
+ * 
+ * The rows of the grant are found with the TOKEN_BIN index.  The locks are only refreshed when
+ * all weight of them are still held.  Otherwise the grant has been broken by an expiration, so
+ * the locks that are still held are released instead of being refreshed.
+ * 
+ * Returns RESULT, the number of locks refreshed (zero if the grant has expired).
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE refreshWeightedSemaphoreLock(IN tokenIn VARCHAR(256), IN weight INT(4), IN timeoutSec INT(4))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE lockCount INT DEFAULT 0;
+
+    START TRANSACTION;
+	SELECT COUNT(*) INTO lockCount FROM SEMAPHORE_LOCK
+		WHERE TOKEN_BIN = UNHEX(REPLACE(tokenIn, '-', '')) AND TOKEN = tokenIn FOR UPDATE;
+	IF lockCount = weight THEN
+		UPDATE SEMAPHORE_LOCK SET EXPIRES_ON = (CURRENT_TIMESTAMP + INTERVAL timeoutSec SECOND)
+			WHERE TOKEN_BIN = UNHEX(REPLACE(tokenIn, '-', '')) AND TOKEN = tokenIn;
+	ELSE
+		/* Note: The expires_on is five minutes into the future to block garbage collection. */
+		UPDATE SEMAPHORE_LOCK SET TOKEN = NULL, CONTEXT = NULL, EXPIRES_ON = (NOW() + INTERVAL 5 MINUTE)
+			WHERE TOKEN_BIN = UNHEX(REPLACE(tokenIn, '-', '')) AND TOKEN = tokenIn;
+		SET lockCount = 0;
+	END IF;
+	SELECT lockCount AS RESULT;
+	COMMIT;
+END;
@@ -0,0 +1,36 @@
+/*
+ * The same as releaseSemaphoreLockByHash() except that when the key has waiting tickets,
+ * the released rows are granted to them in ticket order (see: grantSemaphoreTickets()).
+ * This is used for tokens without a row id, including the grants issued by
+ * attemptToAcquireWeightedSemaphoreLock(), so all of the rows of a grant are handed to the
+ * waiters at once.  The tickets are only looked for with the KEY_HASH index after the
+ * release commits.
+ *
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.
+ */
+CREATE PROCEDURE releaseSemaphoreLockByHashToWaiters(IN tokenIn VARCHAR(256))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE released INT DEFAULT 0;
+	DECLARE lockKey VARCHAR(256) DEFAULT NULL;
+
+	START TRANSACTION;
+	/* The key must be found before the token is cleared */
+	SELECT L.LOCK_KEY INTO lockKey FROM SEMAPHORE_LOCK L
+		WHERE L.TOKEN_BIN = UNHEX(REPLACE(tokenIn, '-', '')) AND L.TOKEN = tokenIn
+			AND EXISTS (SELECT 1 FROM SEMAPHORE_WAITER W WHERE W.KEY_HASH = L.KEY_HASH AND W.TOKEN IS NULL)
+		LIMIT 1;
+	UPDATE SEMAPHORE_LOCK SET TOKEN = NULL, CONTEXT = NULL, EXPIRES_ON = (NOW() + INTERVAL 5 MINUTE)
+		WHERE TOKEN_BIN = UNHEX(REPLACE(tokenIn, '-', '')) AND TOKEN = tokenIn;
+	SET released = ROW_COUNT();
+	COMMIT;
+
+	IF lockKey IS NOT NULL AND released > 0 THEN
+		CALL grantSemaphoreTickets(lockKey);
+	END IF;
+	SELECT released AS RESULT;
+END;
@@ -0,0 +1,26 @@
+/*
+ * Will attempt to release an existing lock.
+ * 
+ * The same as releaseSemaphoreLockByHash() except the row is found with the primary key
+ * using the ROW_ID encoded in the token that was issued.  The TOKEN is also compared so
+ * only the exact token that was issued will match.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE releaseSemaphoreLockByRowId(IN rowIdIn BIGINT, IN tokenIn VARCHAR(256))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	/*
+	 * Note: We set the expires_on to be five minutes into the future to block garbage collection from
+	 * immediately deleting this row.
+	 */
+    START TRANSACTION;
+	UPDATE SEMAPHORE_LOCK SET TOKEN = NULL, CONTEXT = NULL, EXPIRES_ON = (NOW() + INTERVAL 5 MINUTE)
+		WHERE ROW_ID = rowIdIn AND TOKEN = tokenIn;
+	SELECT ROW_COUNT() AS RESULT;
+	COMMIT;
+END;
@@ -0,0 +1,32 @@
+/*
+ * The same as releaseSemaphoreLockByRowId() except that when the key has waiting tickets,
+ * the released row is granted to them in ticket order (see: grantSemaphoreTickets()).
+ * The tickets are only looked for with the KEY_HASH index after the release commits.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE releaseSemaphoreLockToWaiters(IN rowIdIn BIGINT, IN tokenIn VARCHAR(256))
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	DECLARE released INT DEFAULT 0;
+	DECLARE lockKey VARCHAR(256) DEFAULT NULL;
+
+	START TRANSACTION;
+	UPDATE SEMAPHORE_LOCK SET TOKEN = NULL, CONTEXT = NULL, EXPIRES_ON = (NOW() + INTERVAL 5 MINUTE)
+		WHERE ROW_ID = rowIdIn AND TOKEN = tokenIn;
+	SET released = ROW_COUNT();
+	IF released > 0 THEN
+		SELECT L.LOCK_KEY INTO lockKey FROM SEMAPHORE_LOCK L WHERE L.ROW_ID = rowIdIn
+			AND EXISTS (SELECT 1 FROM SEMAPHORE_WAITER W WHERE W.KEY_HASH = L.KEY_HASH AND W.TOKEN IS NULL);
+	END IF;
+	COMMIT;
+
+	IF lockKey IS NOT NULL THEN
+		CALL grantSemaphoreTickets(lockKey);
+	END IF;
+	SELECT released AS RESULT;
+END;
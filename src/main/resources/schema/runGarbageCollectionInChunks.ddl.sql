@@ -0,0 +1,73 @@
+/*
+ * Will delete rows where the token is null and the expires_on is expired, like runGarbageCollection(),
+ * but commits once per chunk of deleted rows rather than once per row.  Stops after deleting maxRows
+ * rows or once maxDurationMs milliseconds have elapsed (checked between chunks), whichever comes first.
+ * The rows of each chunk are selected with a single scan into the SEMAPHORE_GC_CANDIDATE temporary
+ * table and then deleted with a join, so retained rows are scanned once per chunk rather than once
+ * per deleted row.
+ *
+ * When maxIdleSec is greater than zero, the rows of a key are only deleted once the key is cold.  A key
+ * is hot while any of its rows was used within the last maxIdleSec seconds, or has a USE_COUNT of at
+ * least minUseCount and was used within the last frequentMaxIdleSec seconds.  Rows that were never
+ * used (a NULL LAST_USED_ON) do not keep their key hot.
+ *
+ * Returns a single row with ROWS_DELETED, the number of rows deleted by this call, and MORE_REMAINING,
+ * which is true if the call stopped at one of its limits while rows that can be deleted remain.
+ * 
+ * This procedure manages it own transactions to guarantee that a slow-down from a caller
+ * cannot extend the duration of its exclusive locks.  Therefore, it must be called from
+ * a new database session (i.e. using Propagation.REQUIRES_NEW) to prevent the auto commit
+ * of any existing transaction managed by the caller.  
+ */
+CREATE PROCEDURE runGarbageCollectionInChunks(IN chunkSize INT, IN maxRows INT, IN maxDurationMs BIGINT,
+		IN maxIdleSec BIGINT, IN minUseCount INT, IN frequentMaxIdleSec BIGINT)
+    MODIFIES SQL DATA
+    SQL SECURITY INVOKER
+BEGIN
+	/* SYSDATE() is used since NOW() does not change for the duration of the procedure */
+	DECLARE startTime DATETIME(6) DEFAULT SYSDATE(6);
+	DECLARE idleCutoff TIMESTAMP DEFAULT NOW() - INTERVAL maxIdleSec SECOND;
+	DECLARE frequentIdleCutoff TIMESTAMP DEFAULT NOW() - INTERVAL frequentMaxIdleSec SECOND;
+	DECLARE rowsDeleted INT DEFAULT 0;
+	DECLARE chunkLimit INT DEFAULT 0;
+	DECLARE chunkDeleted INT DEFAULT 0;
+	DECLARE exhausted BOOLEAN DEFAULT FALSE;
+	DECLARE moreRemaining BOOLEAN DEFAULT FALSE;
+
+	/* The candidates of a chunk, a temporary table does not commit the current transaction */
+	CREATE TEMPORARY TABLE IF NOT EXISTS SEMAPHORE_GC_CANDIDATE (ROW_ID MEDIUMINT NOT NULL PRIMARY KEY) ENGINE = MEMORY;
+
+	chunk_loop: WHILE rowsDeleted < maxRows
+			AND TIMESTAMPDIFF(MICROSECOND, startTime, SYSDATE(6)) DIV 1000 < maxDurationMs DO
+		SET chunkLimit = LEAST(chunkSize, maxRows - rowsDeleted);
+		DELETE FROM SEMAPHORE_GC_CANDIDATE;
+	   	START TRANSACTION;
+		/* 
+		 * Find all of the rows of the chunk with a single scan, skipping rows locked by other sessions,
+		 * rather than restarting the scan past the retained rows for each deleted row.
+		 */
+		INSERT INTO SEMAPHORE_GC_CANDIDATE (ROW_ID)
+			SELECT S.ROW_ID FROM SEMAPHORE_LOCK S WHERE S.TOKEN IS NULL AND (now() > S.EXPIRES_ON)
+				AND (maxIdleSec = 0 OR NOT EXISTS (SELECT 1 FROM SEMAPHORE_LOCK H
+					WHERE H.KEY_HASH = S.KEY_HASH AND H.LOCK_KEY = S.LOCK_KEY AND (H.LAST_USED_ON >= idleCutoff
+						OR (H.USE_COUNT >= minUseCount AND H.LAST_USED_ON >= frequentIdleCutoff))))
+				LIMIT chunkLimit FOR UPDATE SKIP LOCKED;
+		DELETE S FROM SEMAPHORE_LOCK S JOIN SEMAPHORE_GC_CANDIDATE C ON C.ROW_ID = S.ROW_ID;
+		SET chunkDeleted = ROW_COUNT();
+		COMMIT;
+		SET rowsDeleted = rowsDeleted + chunkDeleted;
+		IF chunkDeleted < chunkLimit THEN
+			SET exhausted = TRUE;
+			LEAVE chunk_loop;
+		END IF;
+	END WHILE chunk_loop;
+	DROP TEMPORARY TABLE SEMAPHORE_GC_CANDIDATE;
+
+	IF NOT exhausted THEN
+		SET moreRemaining = EXISTS (SELECT 1 FROM SEMAPHORE_LOCK S WHERE S.TOKEN IS NULL AND (now() > S.EXPIRES_ON)
+			AND (maxIdleSec = 0 OR NOT EXISTS (SELECT 1 FROM SEMAPHORE_LOCK H
+				WHERE H.KEY_HASH = S.KEY_HASH AND H.LOCK_KEY = S.LOCK_KEY AND (H.LAST_USED_ON >= idleCutoff
+					OR (H.USE_COUNT >= minUseCount AND H.LAST_USED_ON >= frequentIdleCutoff)))));
+	END IF;
+	SELECT rowsDeleted AS ROWS_DELETED, moreRemaining AS MORE_REMAINING;
+END;
@@ -0,0 +1,571 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The scenarios that every {@link CountingSemaphore} implementation must pass.
+ * The test of each implementation extends this class and provides the
+ * semaphore under test.
+ */
+public abstract class AbstractCountingSemaphoreTest {
+
+	private static final Logger log = LogManager.getLogger(AbstractCountingSemaphoreTest.class);
+
+	protected CountingSemaphore semaphore;
+	protected String key;
+	protected String context;
+
+	/**
+	 * Called before each test.
+	 * 
+	 * @return The semaphore under test.
+	 */
+	protected abstract CountingSemaphore createSemaphore();
+
+	@BeforeEach
+	public void before() {
+		semaphore = createSemaphore();
+		semaphore.releaseAllLocks();
+		key = "sampleKey";
+		context = "sample context";
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithNullKey() {
+		key = null;
+		int maxLockCount = 2;
+		long timeoutSec = 60;
+		context = "some context";
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		}).getMessage();
+		assertEquals("Key cannot be null", message);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithNullContext() {
+		key = "aKey";
+		int maxLockCount = 2;
+		long timeoutSec = 60;
+		context = null;
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		}).getMessage();
+		assertEquals("Context cannot be null or empty", message);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithEmptyContext() {
+		key = "aKey";
+		int maxLockCount = 2;
+		long timeoutSec = 60;
+		context = " \t";
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		}).getMessage();
+		assertEquals("Context cannot be null or empty", message);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithContextAtMaxLength() {
+		key = "aKey";
+		int maxLockCount = 2;
+		long timeoutSec = 60;
+		context = "a".repeat(CountingSemaphoreImpl.MAX_CONTEXT_CHARS);
+		Optional<String> token = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token.isPresent());
+		Optional<String> contextOp = semaphore.getFirstUnexpiredLockContext(key);
+		assertEquals(Optional.of(context), contextOp);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithContextOverLimit() {
+		key = "aKey";
+		int maxLockCount = 2;
+		long timeoutSec = 60;
+		context = "a".repeat(CountingSemaphoreImpl.MAX_CONTEXT_CHARS + 1);
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		}).getMessage();
+		assertEquals("Context length cannot be more than: " + CountingSemaphoreImpl.MAX_CONTEXT_CHARS, message);
+	}
+
+	@Test
+	public void testAcquireRelease() {
+		int maxLockCount = 2;
+		long timeoutSec = 60;
+		// get one lock
+		long start = System.currentTimeMillis();
+		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token1.isPresent());
+		log.info("AcquiredLock in " + (System.currentTimeMillis() - start) + " MS");
+		// get another
+		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token2.isPresent());
+		// Try for a third should not acquire a lock
+		Optional<String> token3 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertFalse(token3.isPresent());
+		// release
+		semaphore.releaseLock(key, token2.get());
+		// we should now be able to get a new lock
+		token3 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertNotNull(token3);
+	}
+
+	@Test
+	public void testAttemptToAcquireLocks() {
+		long timeoutSec = 60;
+		List<LockRequest> requests = Arrays.asList(new LockRequest("keyOne", timeoutSec, 2, context),
+				new LockRequest("keyTwo", timeoutSec, 1, context), new LockRequest("keyOne", timeoutSec, 2, context),
+				new LockRequest("keyTwo", timeoutSec, 1, context), new LockRequest("keyOne", timeoutSec, 2, context));
+		// call under test
+		List<Optional<String>> results = semaphore.attemptToAcquireLocks(requests);
+		assertEquals(5, results.size());
+		assertTrue(results.get(0).isPresent());
+		assertTrue(results.get(1).isPresent());
+		assertTrue(results.get(2).isPresent());
+		// each key is now at its limit
+		assertFalse(results.get(3).isPresent());
+		assertFalse(results.get(4).isPresent());
+		assertNotEquals(results.get(0).get(), results.get(2).get());
+		// the issued tokens must work like any other token.
+		semaphore.releaseLock("keyOne", results.get(0).get());
+		semaphore.releaseLock("keyTwo", results.get(1).get());
+		semaphore.refreshLockTimeout("keyOne", results.get(2).get(), timeoutSec);
+		assertTrue(semaphore.attemptToAcquireLock("keyTwo", timeoutSec, 1, context).isPresent());
+	}
+
+	@Test
+	public void testAttemptToAcquireLocksWithSpecialCharacters() {
+		String specialKey = "quote\" back\\slash\ttab";
+		String specialContext = "context with \"quotes\" and \\";
+		// call under test
+		List<Optional<String>> results = semaphore
+				.attemptToAcquireLocks(Arrays.asList(new LockRequest(specialKey, 60, 1, specialContext)));
+		assertTrue(results.get(0).isPresent());
+		assertEquals(Optional.of(specialContext), semaphore.getFirstUnexpiredLockContext(specialKey));
+		assertFalse(semaphore.attemptToAcquireLock(specialKey, 60, 1, context).isPresent());
+	}
+
+	@Test
+	public void testAttemptToAcquireLocksWithEmptyList() {
+		// call under test
+		assertEquals(Collections.emptyList(), semaphore.attemptToAcquireLocks(Collections.emptyList()));
+	}
+
+	@Test
+	public void testAttemptToAcquireLocksWithInvalidRequest() {
+		List<LockRequest> requests = Arrays.asList(new LockRequest("keyOne", 60, 1, context),
+				new LockRequest("keyTwo", 60, 1, null));
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLocks(requests);
+		}).getMessage();
+		assertEquals("Context cannot be null or empty", message);
+		// no locks should be issued when any request is invalid.
+		assertEquals(Optional.empty(), semaphore.getFirstUnexpiredLockContext("keyOne"));
+	}
+
+	@Test
+	public void testLockExpired() throws InterruptedException {
+		int maxLockCount = 1;
+		long timeoutSec = 1;
+		// get one lock
+		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token1.isPresent());
+		// Should not be able to get a lock
+		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertFalse(token2.isPresent());
+		// Wait for the lock first lock to expire
+		Thread.sleep(timeoutSec * 1000 * 2);
+		// We should now be able to get the lock as the first is expired.
+		token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token2.isPresent());
+	}
+
+	@Test
+	public void testReleaseExpiredLock() throws InterruptedException {
+		int maxLockCount = 1;
+		long timeoutSec = 1;
+		// get one lock
+		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token1.isPresent());
+		// Wait until the lock expires
+		Thread.sleep(timeoutSec * 1000 * 2);
+		// another should be able to get the lock
+		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token2.isPresent());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// this should fail as the lock has already expired.
+			semaphore.releaseLock(key, token1.get());
+		});
+	}
+
+	@Test
+	public void testRefreshLockTimeout() throws InterruptedException {
+		int maxLockCount = 1;
+		long timeoutSec = 2;
+		// get one lock
+		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token1.isPresent());
+		// We should be able to refresh the lock.
+		for (int i = 0; i < timeoutSec + 1; i++) {
+			semaphore.refreshLockTimeout(key, token1.get(), timeoutSec);
+			Thread.sleep(1000);
+		}
+		// The lock should still be held even though we have now exceeded to original
+		// timeout.
+		semaphore.releaseLock(key, token1.get());
+	}
+
+	@Test
+	public void testRefreshExpiredLock() throws InterruptedException {
+		int maxLockCount = 1;
+		long timeoutSec = 1;
+		// get one lock
+		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token1.isPresent());
+		// Wait until the lock expires
+		Thread.sleep(timeoutSec * 1000 * 2);
+		// another should be able to get the lock
+		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token2.isPresent());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// this should fail as the lock has already expired.
+			semaphore.refreshLockTimeout(key, token1.get(), timeoutSec);
+		});
+	}
+
+	@Test
+	public void testRefreshLockTimeouts() throws InterruptedException {
+		long timeoutSec = 1;
+		String tokenOne = semaphore.attemptToAcquireLock("keyOne", timeoutSec, 1, context).get();
+		String tokenTwo = semaphore.attemptToAcquireLock("keyTwo", timeoutSec, 1, context).get();
+		String expiredToken = semaphore.attemptToAcquireLock("keyThree", timeoutSec, 1, context).get();
+		// Wait until all of the locks expire then take keyThree with a new token.
+		Thread.sleep(timeoutSec * 1000 * 2);
+		assertTrue(semaphore.attemptToAcquireLock("keyThree", 60, 1, context).isPresent());
+		List<LockRefreshRequest> requests = Arrays.asList(new LockRefreshRequest("keyOne", tokenOne, 60),
+				new LockRefreshRequest("keyThree", expiredToken, 60), new LockRefreshRequest("keyTwo", tokenTwo, 60));
+		// call under test
+		List<LockRefreshResult> results = semaphore.refreshLockTimeouts(requests);
+		assertEquals(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.EXPIRED, LockRefreshResult.REFRESHED),
+				results);
+		// the refreshed locks must still be held
+		Thread.sleep(timeoutSec * 1000 * 2);
+		assertFalse(semaphore.attemptToAcquireLock("keyOne", timeoutSec, 1, context).isPresent());
+		assertFalse(semaphore.attemptToAcquireLock("keyTwo", timeoutSec, 1, context).isPresent());
+		semaphore.releaseLock("keyOne", tokenOne);
+		semaphore.releaseLock("keyTwo", tokenTwo);
+		assertThrows(LockReleaseFailedException.class, () -> {
+			results.get(1).validate("keyThree", expiredToken);
+		});
+	}
+
+	@Test
+	public void testRefreshLockTimeoutsWithEmptyList() {
+		// call under test
+		assertEquals(Collections.emptyList(), semaphore.refreshLockTimeouts(Collections.emptyList()));
+	}
+
+	@Test
+	public void testRefreshLockTimeoutsWithNullToken() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.refreshLockTimeouts(Arrays.asList(new LockRefreshRequest("keyOne", null, 60)));
+		}).getMessage();
+		assertEquals("Token cannot be null.", message);
+	}
+
+	@Test
+	public void testReleaseLockAfterReleaseAllLocks() {
+		int maxLockCount = 1;
+		long timeoutSec = 1;
+		// get one lock
+		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token1.isPresent());
+		// Force the release of all locks
+		semaphore.releaseAllLocks();
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// Now try to release the lock
+			semaphore.releaseLock(key, token1.get());
+		});
+	}
+
+	/**
+	 * Test concurrent threads can acquire and release locks
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrent() throws Exception {
+		int maxThreads = 25;
+		long lockTimeoutSec = 20;
+		int maxLockCount = maxThreads - 1;
+		ExecutorService executorService = Executors.newFixedThreadPool(maxThreads);
+		List<Callable<Boolean>> runners = new LinkedList<Callable<Boolean>>();
+		for (int i = 0; i < maxThreads; i++) {
+			TestRunner runner = new TestRunner(semaphore, key, lockTimeoutSec, maxLockCount, context);
+			runners.add(runner);
+		}
+		// run all runners
+		List<Future<Boolean>> futures = executorService.invokeAll(runners);
+		int locksAcquired = countLocksAcquired(futures);
+		assertEquals(maxLockCount, locksAcquired, "24 of 25 threads should have been issued a lock");
+	}
+
+	/**
+	 * If two process attempt to get two separate locks at the same time the the
+	 * 'NOWAIT' condition should not trigger, and each process should receive a
+	 * lock.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentDifferentKeys() throws Exception {
+		int maxThreads = 25;
+		long lockTimeoutSec = 20;
+		int maxLocksPerThread = 1;
+		// create a different key for each thread.
+		List<String> keys = createUniqueKeys(maxThreads, maxLocksPerThread);
+		ExecutorService executorService = Executors.newFixedThreadPool(maxThreads);
+		List<Callable<Boolean>> runners = new LinkedList<Callable<Boolean>>();
+		for (String key : keys) {
+			TestRunner runner = new TestRunner(semaphore, key, lockTimeoutSec, maxLocksPerThread, context);
+			runners.add(runner);
+		}
+		// run all runners
+		List<Future<Boolean>> futures = executorService.invokeAll(runners);
+		int locksAcquired = countLocksAcquired(futures);
+		assertTrue(locksAcquired >= maxThreads - 3, "Most threads should have received a lock");
+	}
+
+	private int countLocksAcquired(List<Future<Boolean>> futures)
+			throws InterruptedException, java.util.concurrent.ExecutionException {
+		int locksAcquired = 0;
+		for (Future<Boolean> future : futures) {
+			if (future.get()) {
+				locksAcquired++;
+			}
+		}
+		return locksAcquired;
+	}
+
+	private void holdLocksOfSameKeyWithTimeouts(String lockKey, List<Long> lockTimeouts, String context)
+			throws InterruptedException, java.util.concurrent.ExecutionException {
+		int locksAcquired = 0;
+		for (long timeoutSec : lockTimeouts) {
+			Optional<String> token = semaphore.attemptToAcquireLock(lockKey, timeoutSec, lockTimeouts.size(), context);
+			if (token.isPresent()) {
+				locksAcquired++;
+			}
+		}
+
+		assertEquals(lockTimeouts.size(), locksAcquired);
+	}
+
+	@Test
+	public void testExistsUnexpiredLock_notExist() throws Exception {
+		// set up unexpired locks held by other threads with a different key;
+		String unrelatedLockKey = "unrelatedLock";
+		List<Long> lockTimeouts = Collections.nCopies(5, 50L); // 5 locks w/ expiration of 50 seconds each
+		holdLocksOfSameKeyWithTimeouts(unrelatedLockKey, lockTimeouts, context);
+		// method under test
+		assertEquals(Optional.empty(), semaphore.getFirstUnexpiredLockContext("otherKey"));
+	}
+
+	@Test
+	public void testExistsUnexpiredLock_existButAllExpired() throws ExecutionException, InterruptedException {
+		// set up locks that will expire
+		String lockKey = "sameKey";
+		List<Long> lockTimeouts = Collections.nCopies(5, 1L); // 5 locks w/ expiration of 1 second each
+		holdLocksOfSameKeyWithTimeouts(lockKey, lockTimeouts, context);
+		Thread.sleep(2000);
+
+		// method under test
+		assertEquals(Optional.empty(), semaphore.getFirstUnexpiredLockContext(lockKey));
+	}
+
+	@Test
+	public void testExistsUnexpiredLock_existAndSomeUnexpired() throws ExecutionException, InterruptedException {
+		// set up locks that will expire
+		String lockKey = "sameKey";
+		List<Long> lockTimeouts = Arrays.asList(1L, 1L, 600L, 1L, 1L);
+		holdLocksOfSameKeyWithTimeouts(lockKey, lockTimeouts, context);
+		Thread.sleep(1000);
+
+		// method under test
+		assertEquals(Optional.of(context), semaphore.getFirstUnexpiredLockContext(lockKey));
+	}
+
+	@Test
+	public void testGarbageCollection() throws InterruptedException {
+		// Start clean
+		semaphore.runGarbageCollection();
+		assertEquals(0, semaphore.getLockRowCount());
+		
+		long lockTimeoutSec = 2;
+		int maxLockCount = 3;
+		semaphore.attemptToAcquireLock("keyOne", lockTimeoutSec, maxLockCount, context);
+		assertEquals(3, semaphore.getLockRowCount());
+		// set all three rows to be expired and therefore eligible for garbage collection.
+		semaphore.releaseAllLocks();
+		assertEquals(3, semaphore.getLockRowCount());
+		// add three new rows
+		semaphore.attemptToAcquireLock("keyTwo", lockTimeoutSec, maxLockCount, context);
+		assertEquals(6, semaphore.getLockRowCount());
+		String keyTwoTokenTwo = semaphore.attemptToAcquireLock("keyTwo", lockTimeoutSec, maxLockCount, context).get();
+		// releasing a lock clears its token but it should not expire for at least 5 minutes.
+		semaphore.releaseLock("keyTwo", keyTwoTokenTwo);
+		assertEquals(6, semaphore.getLockRowCount());
+		
+		// call under test
+		semaphore.runGarbageCollection();
+		// Garbage collection should only remove the first three throw since their tokens are null and they are expired (due to releaseAllLocks()).
+		assertEquals(3, semaphore.getLockRowCount());
+		semaphore.releaseAllLocks();
+		
+		// call under test
+		semaphore.runGarbageCollection();
+		assertEquals(0, semaphore.getLockRowCount());
+	}
+
+	@Test
+	public void testGarbageCollectionInChunks() {
+		semaphore.runGarbageCollection();
+		assertEquals(0, semaphore.getLockRowCount());
+		semaphore.attemptToAcquireLock("keyOne", 60, 5, context);
+		semaphore.attemptToAcquireLock("keyTwo", 60, 2, context);
+		// all seven rows can now be deleted.
+		semaphore.releaseAllLocks();
+		// a held lock must not be deleted.
+		String token = semaphore.attemptToAcquireLock("keyThree", 60, 1, context).get();
+		assertEquals(8, semaphore.getLockRowCount());
+
+		// call under test
+		assertEquals(new GarbageCollectionResult(4, true), semaphore.runGarbageCollection(3, 4, 10_000L));
+		assertEquals(4, semaphore.getLockRowCount());
+		// call under test
+		assertEquals(new GarbageCollectionResult(3, false), semaphore.runGarbageCollection(3, 100, 10_000L));
+		assertEquals(1, semaphore.getLockRowCount());
+		// call under test
+		assertEquals(new GarbageCollectionResult(0, false), semaphore.runGarbageCollection(3, 100, 10_000L));
+		semaphore.releaseLock("keyThree", token);
+	}
+
+	@Test
+	public void testGetLockRowHighWaterMark() {
+		semaphore.attemptToAcquireLock("keyOne", 60, 1, context);
+		long start = semaphore.getLockRowHighWaterMark();
+		assertTrue(start > 0);
+		semaphore.attemptToAcquireLock("keyTwo", 60, 3, context);
+		// call under test, auto-increment values can have gaps.
+		assertTrue(semaphore.getLockRowHighWaterMark() >= start + 3);
+	}
+
+	@Test
+	public void testGarbageCollectionInChunksWithChunkSizeLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.runGarbageCollection(0, 100, 10_000L);
+		}).getMessage();
+		assertEquals("ChunkSize cannot be less then one.", message);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithNonAsciiKey() {
+		key = "caf\u00e9";
+		// call under test
+		Optional<String> token = semaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		assertEquals(Optional.empty(), semaphore.attemptToAcquireLock(key, 60, 1, context));
+		assertEquals(Optional.of(context), semaphore.getFirstUnexpiredLockContext(key));
+		assertEquals(Optional.empty(), semaphore.getFirstUnexpiredLockContext("cafe"));
+		semaphore.releaseLock(key, token.get());
+	}
+
+	/**
+	 * Create n unique keys and ensure the lock rows of each key already exist.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	public List<String> createUniqueKeys(int count, int maxKeys) {
+		List<String> keys = new LinkedList<String>();
+		for (int i = 0; i < count; i++) {
+			String key = "i-" + i;
+			Optional<String> token = semaphore.attemptToAcquireLock(key, 1000, maxKeys, context);
+			semaphore.releaseLock(key, token.get());
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	private class TestRunner implements Callable<Boolean> {
+		CountingSemaphore semaphore;
+		String key;
+		long lockTimeoutSec;
+		int maxLockCount;
+		long sleepTimeMs;
+		String context;
+
+		public TestRunner(CountingSemaphore semaphore, String key, long lockTimeoutSec, int maxLockCount,
+				String context) {
+			super();
+			this.semaphore = semaphore;
+			this.key = key;
+			this.lockTimeoutSec = lockTimeoutSec;
+			this.maxLockCount = maxLockCount;
+			this.sleepTimeMs = 1000L;
+			this.context = context;
+		}
+
+		public Boolean call() throws Exception {
+			long start = System.currentTimeMillis();
+			Optional<String> result = semaphore.attemptToAcquireLock(key, lockTimeoutSec, maxLockCount, context);
+
+			log.info("AttemptToAcquiredLock in " + (System.currentTimeMillis() - start) + " MS with token: "
+					+ result.orElseGet(() -> null));
+			if (result.isPresent()) {
+				try {
+					Thread.sleep(sleepTimeMs);
+					// the lock was acquired and held
+					return true;
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				} finally {
+					semaphore.releaseLock(key, result.get());
+				}
+			} else {
+				// lock was not acquired
+				return false;
+			}
+		}
+	}
+
+}
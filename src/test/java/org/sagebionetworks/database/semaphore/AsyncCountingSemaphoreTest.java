@@ -0,0 +1,235 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class AsyncCountingSemaphoreTest {
+
+	@Mock
+	private CountingSemaphore mockSemaphore;
+
+	private List<Runnable> tasks;
+	private AsyncCountingSemaphore async;
+	private String context;
+
+	@BeforeEach
+	public void before() {
+		tasks = new ArrayList<>();
+		Executor executor = tasks::add;
+		async = new AsyncCountingSemaphore(mockSemaphore, executor, 2);
+		context = "some context";
+	}
+
+	/**
+	 * Run each task that was passed to the executor, including the tasks started
+	 * by the tasks that were run.
+	 */
+	private void runTasks() {
+		while (!tasks.isEmpty()) {
+			tasks.remove(0).run();
+		}
+	}
+
+	@Test
+	public void testAttemptToAcquireLock() throws Exception {
+		when(mockSemaphore.attemptToAcquireLock("key", 60, 2, context)).thenReturn(Optional.of("token"));
+		// call under test
+		CompletableFuture<Optional<String>> future = async.attemptToAcquireLock("key", 60, 2, context);
+		assertFalse(future.isDone());
+		runTasks();
+		assertEquals(Optional.of("token"), future.get());
+	}
+
+	@Test
+	public void testReleaseLock() throws Exception {
+		// call under test
+		CompletableFuture<Void> future = async.releaseLock("key", "token");
+		runTasks();
+		future.get();
+		verify(mockSemaphore).releaseLock("key", "token");
+	}
+
+	@Test
+	public void testReleaseLockFailure() {
+		LockReleaseFailedException exception = new LockReleaseFailedException("expired");
+		doThrow(exception).when(mockSemaphore).releaseLock("key", "token");
+		// call under test
+		CompletableFuture<Void> future = async.releaseLock("key", "token");
+		runTasks();
+		ExecutionException thrown = assertThrows(ExecutionException.class, () -> {
+			future.get();
+		});
+		assertSame(exception, thrown.getCause());
+	}
+
+	@Test
+	public void testRefreshLockTimeout() throws Exception {
+		// call under test
+		CompletableFuture<Void> future = async.refreshLockTimeout("key", "token", 60);
+		runTasks();
+		future.get();
+		verify(mockSemaphore).refreshLockTimeout("key", "token", 60);
+	}
+
+	@Test
+	public void testGetFirstUnexpiredLockContext() throws Exception {
+		when(mockSemaphore.getFirstUnexpiredLockContext("key")).thenReturn(Optional.of(context));
+		// call under test
+		CompletableFuture<Optional<String>> future = async.getFirstUnexpiredLockContext("key");
+		runTasks();
+		assertEquals(Optional.of(context), future.get());
+	}
+
+	@Test
+	public void testCancelBeforeStart() {
+		CompletableFuture<Optional<String>> future = async.attemptToAcquireLock("key", 60, 2, context);
+		// call under test
+		future.cancel(true);
+		runTasks();
+		verifyZeroInteractions(mockSemaphore);
+	}
+
+	@Test
+	public void testCancelWhileAcquiring() {
+		AtomicReference<CompletableFuture<Optional<String>>> futureRef = new AtomicReference<>();
+		when(mockSemaphore.attemptToAcquireLock("key", 60, 2, context)).thenAnswer(invocation -> {
+			// the caller gives up while the lock is acquired.
+			futureRef.get().cancel(true);
+			return Optional.of("token");
+		});
+		// call under test
+		futureRef.set(async.attemptToAcquireLock("key", 60, 2, context));
+		runTasks();
+		assertTrue(futureRef.get().isCancelled());
+		// nobody holds the token so it must be released.
+		verify(mockSemaphore).releaseLock("key", "token");
+	}
+
+	@Test
+	public void testTimeoutWhileAcquiringWithReleaseFailure() {
+		AtomicReference<CompletableFuture<Optional<String>>> futureRef = new AtomicReference<>();
+		when(mockSemaphore.attemptToAcquireLock("key", 60, 2, context)).thenAnswer(invocation -> {
+			futureRef.get().completeExceptionally(new TimeoutException());
+			return Optional.of("token");
+		});
+		doThrow(new LockReleaseFailedException("expired")).when(mockSemaphore).releaseLock("key", "token");
+		// call under test
+		futureRef.set(async.attemptToAcquireLock("key", 60, 2, context));
+		runTasks();
+		assertTrue(futureRef.get().isCompletedExceptionally());
+		verify(mockSemaphore).releaseLock("key", "token");
+	}
+
+	@Test
+	public void testMaxInFlight() throws Exception {
+		when(mockSemaphore.getFirstUnexpiredLockContext("key")).thenReturn(Optional.empty());
+		// call under test
+		List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(async.getFirstUnexpiredLockContext("key"));
+		}
+		assertEquals(2, tasks.size());
+		assertEquals(2, async.getInFlightCount());
+		assertEquals(3, async.getPendingCount());
+		// each completed call starts the next.
+		tasks.remove(0).run();
+		assertEquals(2, tasks.size());
+		assertEquals(2, async.getPendingCount());
+		runTasks();
+		assertEquals(0, async.getInFlightCount());
+		assertEquals(0, async.getPendingCount());
+		for (CompletableFuture<Optional<String>> future : futures) {
+			assertEquals(Optional.empty(), future.get());
+		}
+	}
+
+	@Test
+	public void testRejectedExecution() {
+		RejectedExecutionException exception = new RejectedExecutionException("shut down");
+		async = new AsyncCountingSemaphore(mockSemaphore, task -> {
+			throw exception;
+		}, 2);
+		// call under test
+		CompletableFuture<Void> future = async.releaseLock("key", "token");
+		ExecutionException thrown = assertThrows(ExecutionException.class, () -> {
+			future.get();
+		});
+		assertSame(exception, thrown.getCause());
+		assertEquals(0, async.getInFlightCount());
+		verifyZeroInteractions(mockSemaphore);
+	}
+
+	@Test
+	public void testOwnedExecutor() throws Exception {
+		when(mockSemaphore.attemptToAcquireLock("key", 60, 2, context)).thenReturn(Optional.of("token"));
+		try (AsyncCountingSemaphore owned = new AsyncCountingSemaphore(mockSemaphore)) {
+			// call under test
+			assertEquals(Optional.of("token"),
+					owned.attemptToAcquireLock("key", 60, 2, context).get(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void testNewVirtualThreadPerTaskExecutor() throws Exception {
+		if (Runtime.version().feature() < 21) {
+			assertThrows(UnsupportedOperationException.class, () -> {
+				// call under test
+				AsyncCountingSemaphore.newVirtualThreadPerTaskExecutor();
+			});
+			return;
+		}
+		when(mockSemaphore.getFirstUnexpiredLockContext("key")).thenReturn(Optional.of(context));
+		// call under test
+		ExecutorService executor = AsyncCountingSemaphore.newVirtualThreadPerTaskExecutor();
+		try {
+			AsyncCountingSemaphore virtual = new AsyncCountingSemaphore(mockSemaphore, executor, 10);
+			assertEquals(Optional.of(context), virtual.getFirstUnexpiredLockContext("key").get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testMaxInFlightLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new AsyncCountingSemaphore(mockSemaphore, Runnable::run, 0);
+		}).getMessage();
+		assertEquals("MaxInFlight cannot be less then one.", message);
+	}
+
+	@Test
+	public void testNullSemaphore() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new AsyncCountingSemaphore(null, Runnable::run, 1);
+		}).getMessage();
+		assertEquals("Semaphore cannot be null", message);
+	}
+}
@@ -0,0 +1,133 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Runs the scenarios of {@link AbstractCountingSemaphoreTest} against an
+ * {@link AutocommitCountingSemaphore} with its own connection pool. Requires
+ * the same system properties as {@link CountingSemaphoreImplTest}.
+ */
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(locations = { "classpath:autocommit-test-context.spb.xml" })
+public class AutocommitCountingSemaphoreTest extends AbstractCountingSemaphoreTest {
+
+	@Autowired
+	private CountingSemaphore semaphoreBean;
+
+	@Autowired
+	private DataSourceTransactionManager txManager;
+
+	@Autowired
+	private BasicDataSource semaphoreDataSourcePool;
+
+	private AutocommitCountingSemaphore target;
+
+	@Override
+	protected CountingSemaphore createSemaphore() {
+		target = AopTestUtils.getTargetObject(semaphoreBean);
+		return semaphoreBean;
+	}
+
+	@AfterEach
+	public void after() {
+		target.setMetricsListener(null);
+	}
+
+	@Test
+	public void testOneConnectionPerOperation() {
+		List<String> observed = new ArrayList<>();
+		target.setMetricsListener((operation, lockKey, outcome, durationNanos) -> {
+			observed.add(operation + " transaction: " + TransactionSynchronizationManager.isActualTransactionActive()
+					+ " active: " + semaphoreDataSourcePool.getNumActive());
+		});
+		TransactionTemplate txTemplate = new TransactionTemplate(txManager);
+		txTemplate.executeWithoutResult((txStatus) -> {
+			// call under test
+			String token = semaphore.attemptToAcquireLock(key, 60, 1, context).get();
+			semaphore.refreshLockTimeout(key, token, 60);
+			semaphore.releaseLock(key, token);
+		});
+		assertEquals(List.of("ACQUIRE transaction: false active: 1", "REFRESH transaction: false active: 1",
+				"RELEASE transaction: false active: 1"), observed);
+		assertEquals(0, semaphoreDataSourcePool.getNumActive());
+	}
+
+	@Test
+	public void testCallerTransactionIsNotCommitted() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY IN ('someKey', ?)", key);
+		TransactionTemplate txTemplate = new TransactionTemplate(txManager);
+		assertThrows(IllegalStateException.class, () -> {
+			txTemplate.executeWithoutResult((txStatus) -> {
+				jdbcTemplate.update(
+						"INSERT INTO SEMAPHORE_LOCK (ROW_ID, LOCK_KEY, LOCK_NUM, TOKEN, EXPIRES_ON, CONTEXT) VALUES(-1, 'someKey', 0, NULL, NOW(), NULL)");
+				// call under test
+				assertTrue(semaphore.attemptToAcquireLock(key, 60, 1, context).isPresent());
+				throw new IllegalStateException("Something went wrong");
+			});
+		});
+		// the caller's work was rolled back while the lock was committed.
+		assertEquals(0L, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = 'someKey'",
+				Long.class));
+		assertEquals(Optional.of(context), semaphore.getFirstUnexpiredLockContext(key));
+	}
+
+	@Test
+	public void testWithoutCallerTransaction() {
+		List<Boolean> transactionActive = new ArrayList<>();
+		target.setMetricsListener((operation, lockKey, outcome, durationNanos) -> {
+			transactionActive.add(TransactionSynchronizationManager.isActualTransactionActive());
+		});
+		// call under test
+		String token = semaphore.attemptToAcquireLock(key, 60, 1, context).get();
+		assertFalse(semaphore.attemptToAcquireLock(key, 60, 1, context).isPresent());
+		semaphore.releaseLock(key, token);
+		assertEquals(List.of(false, false, false), transactionActive);
+		assertEquals(0, semaphoreDataSourcePool.getNumActive());
+	}
+
+	@Test
+	public void testReadCommittedConnections() {
+		// the procedures run at the default isolation of the pool's connections.
+		assertEquals("READ-COMMITTED", new JdbcTemplate(semaphoreDataSourcePool)
+				.queryForObject("SELECT @@SESSION.transaction_isolation", String.class));
+	}
+
+	@Test
+	public void testConstructorWithRepeatableReadConnections() throws Exception {
+		try (BasicDataSource repeatableReadPool = new BasicDataSource()) {
+			repeatableReadPool.setDriverClassName(semaphoreDataSourcePool.getDriverClassName());
+			repeatableReadPool.setUrl(semaphoreDataSourcePool.getUrl());
+			repeatableReadPool.setUsername(semaphoreDataSourcePool.getUsername());
+			repeatableReadPool.setPassword(semaphoreDataSourcePool.getPassword());
+			repeatableReadPool.setDefaultTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			String message = assertThrows(IllegalArgumentException.class, () -> {
+				// call under test
+				new AutocommitCountingSemaphore(repeatableReadPool);
+			}).getMessage();
+			assertEquals("The connections of the DataSource must default to READ COMMITTED."
+					+ " Set the defaultTransactionIsolation of the pool.", message);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class BlockingCountingSemaphoreTest {
+
+	@Mock
+	private CountingSemaphore mockDelegate;
+
+	private BlockingCountingSemaphore semaphore;
+	private ExecutorService executor;
+	private String context;
+
+	@BeforeEach
+	public void before() {
+		semaphore = new BlockingCountingSemaphore(mockDelegate, 1, Duration.ofMillis(10), Duration.ofMillis(100));
+		executor = Executors.newCachedThreadPool();
+		context = "some context";
+	}
+
+	@AfterEach
+	public void after() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testAcquireLockAvailable() throws InterruptedException {
+		when(mockDelegate.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.of("token"));
+		// call under test
+		assertEquals(Optional.of("token"), semaphore.acquireLock("key", 10, 1, context, Duration.ofSeconds(1)));
+		assertEquals(0, semaphore.getWaiterCount("key"));
+	}
+
+	@Test
+	public void testAcquireLockRetry() throws InterruptedException {
+		when(mockDelegate.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.empty(),
+				Optional.empty(), Optional.of("token"));
+		// call under test
+		assertEquals(Optional.of("token"), semaphore.acquireLock("key", 10, 1, context, Duration.ofSeconds(5)));
+		verify(mockDelegate, times(3)).attemptToAcquireLock("key", 10, 1, context);
+	}
+
+	@Test
+	@Timeout(value = 5, unit = TimeUnit.SECONDS)
+	public void testAcquireLockMaxWait() throws InterruptedException {
+		when(mockDelegate.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.empty());
+		long start = System.nanoTime();
+		// call under test
+		assertEquals(Optional.empty(), semaphore.acquireLock("key", 10, 1, context, Duration.ofMillis(300)));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+		assertEquals(0, semaphore.getWaiterCount("key"));
+	}
+
+	@Test
+	@Timeout(value = 5, unit = TimeUnit.SECONDS)
+	public void testReleaseWakesLocalWaiter() throws Exception {
+		// a backoff that is much longer than the test timeout.
+		semaphore = new BlockingCountingSemaphore(mockDelegate, 1, Duration.ofMinutes(1), Duration.ofMinutes(1));
+		when(mockDelegate.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.empty(),
+				Optional.of("newToken"));
+		Future<Optional<String>> waiter = executor
+				.submit(() -> semaphore.acquireLock("key", 10, 1, context, Duration.ofMinutes(2)));
+		while (semaphore.getWaiterCount("key") < 1) {
+			Thread.sleep(10);
+		}
+		// call under test
+		semaphore.releaseLock("key", "oldToken");
+		assertEquals(Optional.of("newToken"), waiter.get());
+		verify(mockDelegate).releaseLock("key", "oldToken");
+	}
+
+	@Test
+	@Timeout(value = 5, unit = TimeUnit.SECONDS)
+	public void testFailedReleaseWakesLocalWaiter() throws Exception {
+		// a backoff that is much longer than the test timeout.
+		semaphore = new BlockingCountingSemaphore(mockDelegate, 1, Duration.ofMinutes(1), Duration.ofMinutes(1));
+		when(mockDelegate.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.empty(),
+				Optional.of("newToken"));
+		doThrow(new LockReleaseFailedException("expired")).when(mockDelegate).releaseLock("key", "expiredToken");
+		Future<Optional<String>> waiter = executor
+				.submit(() -> semaphore.acquireLock("key", 10, 1, context, Duration.ofMinutes(2)));
+		while (semaphore.getWaiterCount("key") < 1) {
+			Thread.sleep(10);
+		}
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			semaphore.releaseLock("key", "expiredToken");
+		});
+		// the expired lock is free so the waiter probes again.
+		assertEquals(Optional.of("newToken"), waiter.get());
+	}
+
+	@Test
+	@Timeout(value = 10, unit = TimeUnit.SECONDS)
+	public void testProbesAreBounded() throws Exception {
+		AtomicInteger concurrent = new AtomicInteger();
+		AtomicInteger maxConcurrent = new AtomicInteger();
+		AtomicInteger calls = new AtomicInteger();
+		when(mockDelegate.attemptToAcquireLock("key", 10, 1, context)).thenAnswer(invocation -> {
+			int current = concurrent.incrementAndGet();
+			maxConcurrent.accumulateAndGet(current, Math::max);
+			Thread.sleep(5);
+			concurrent.decrementAndGet();
+			return calls.incrementAndGet() % 5 == 0 ? Optional.of("token") : Optional.empty();
+		});
+		List<Future<Optional<String>>> futures = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(executor.submit(() -> semaphore.acquireLock("key", 10, 1, context, Duration.ofSeconds(8))));
+		}
+		for (Future<Optional<String>> future : futures) {
+			assertTrue(future.get().isPresent());
+		}
+		assertEquals(1, maxConcurrent.get());
+		assertEquals(0, semaphore.getWaiterCount("key"));
+	}
+
+	@Test
+	public void testBackoffNanos() {
+		long initial = TimeUnit.MILLISECONDS.toNanos(10);
+		long max = TimeUnit.MILLISECONDS.toNanos(100);
+		for (int attempt = 0; attempt < 40; attempt++) {
+			long expected = Math.min(max, initial << Math.min(attempt, 30));
+			// call under test
+			long backoff = semaphore.backoffNanos(attempt);
+			assertTrue(backoff >= expected / 2 && backoff <= expected, "attempt: " + attempt);
+		}
+	}
+
+	@Test
+	public void testBackoffNanosWithLongInitialBackoff() {
+		long max = TimeUnit.DAYS.toNanos(1);
+		// About 17 seconds, shifted by 30 it wraps around to about one second.
+		long initial = (1L << 34) + 1L;
+		semaphore = new BlockingCountingSemaphore(mockDelegate, 1, Duration.ofNanos(initial), Duration.ofDays(1));
+		for (int attempt = 0; attempt < 100; attempt++) {
+			long expected = Math.min(max, initial << Math.min(attempt, 13));
+			// call under test, the exponential delay must not overflow.
+			long backoff = semaphore.backoffNanos(attempt);
+			assertTrue(backoff >= expected / 2 && backoff <= expected, "attempt: " + attempt);
+		}
+	}
+
+	@Test
+	public void testAcquireLockWithNegativeMaxWait() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.acquireLock("key", 10, 1, context, Duration.ofMillis(-1));
+		}).getMessage();
+		assertEquals("MaxWait cannot be null or negative.", message);
+	}
+}
@@ -0,0 +1,16 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class BootstrapStrategyTest {
+
+	@Test
+	public void testResolve() {
+		assertEquals(BootstrapStrategy.SINGLE_ROW, BootstrapStrategy.SINGLE_ROW.resolve(100, 8));
+		assertEquals(BootstrapStrategy.SET_BASED, BootstrapStrategy.SET_BASED.resolve(1, 8));
+		assertEquals(BootstrapStrategy.SINGLE_ROW, BootstrapStrategy.ADAPTIVE.resolve(7, 8));
+		assertEquals(BootstrapStrategy.SET_BASED, BootstrapStrategy.ADAPTIVE.resolve(8, 8));
+	}
+}
@@ -0,0 +1,59 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BootstrappedKeyCacheTest {
+
+	private BootstrappedKeyCache cache;
+
+	@BeforeEach
+	public void before() {
+		cache = new BootstrappedKeyCache(2);
+	}
+
+	@Test
+	public void testIsBootstrapped() {
+		cache.bootstrapped("key", 5);
+		// call under test
+		assertTrue(cache.isBootstrapped("key", 5));
+		assertTrue(cache.isBootstrapped("key", 1));
+		assertFalse(cache.isBootstrapped("key", 6));
+		assertFalse(cache.isBootstrapped("otherKey", 1));
+	}
+
+	@Test
+	public void testBootstrappedKeepsLargestCount() {
+		cache.bootstrapped("key", 5);
+		// call under test
+		cache.bootstrapped("key", 2);
+		assertTrue(cache.isBootstrapped("key", 5));
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		cache.bootstrapped("one", 1);
+		cache.bootstrapped("two", 1);
+		cache.isBootstrapped("one", 1);
+		// call under test
+		cache.bootstrapped("three", 1);
+		assertEquals(2, cache.size());
+		assertTrue(cache.isBootstrapped("one", 1));
+		assertFalse(cache.isBootstrapped("two", 1));
+	}
+
+	@Test
+	public void testInvalidateAndClear() {
+		cache.bootstrapped("one", 1);
+		cache.bootstrapped("two", 1);
+		// call under test
+		cache.invalidate("one");
+		assertFalse(cache.isBootstrapped("one", 1));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+}
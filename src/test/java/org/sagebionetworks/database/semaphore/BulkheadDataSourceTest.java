@@ -0,0 +1,175 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.jdbc.datasource.ConnectionProxy;
+
+@ExtendWith(MockitoExtension.class)
+public class BulkheadDataSourceTest {
+
+	@Mock
+	private DataSource mockDataSource;
+	@Mock
+	private Connection mockConnection;
+
+	@Test
+	public void testGetConnection() throws SQLException {
+		when(mockDataSource.getConnection()).thenReturn(mockConnection);
+		when(mockConnection.getAutoCommit()).thenReturn(true);
+		BulkheadDataSource bulkhead = new BulkheadDataSource(mockDataSource, 2, 0L);
+		// call under test
+		Connection connection = bulkhead.getConnection();
+		assertEquals(1, bulkhead.getActiveCount());
+		assertTrue(connection.getAutoCommit());
+		assertSame(mockConnection, ((ConnectionProxy) connection).getTargetConnection());
+		assertFalse(connection.isClosed());
+		connection.close();
+		assertTrue(connection.isClosed());
+		assertEquals(0, bulkhead.getActiveCount());
+		assertEquals(1L, bulkhead.getWaitHistogram().getCount());
+		verify(mockConnection).close();
+	}
+
+	@Test
+	public void testCloseTwice() throws SQLException {
+		when(mockDataSource.getConnection()).thenReturn(mockConnection);
+		BulkheadDataSource bulkhead = new BulkheadDataSource(mockDataSource, 1, 0L);
+		Connection connection = bulkhead.getConnection();
+		// call under test
+		connection.close();
+		connection.close();
+		// only one permit was returned.
+		assertEquals(0, bulkhead.getActiveCount());
+		bulkhead.getConnection();
+		assertThrows(SQLTransientConnectionException.class, () -> {
+			bulkhead.getConnection();
+		});
+		verify(mockConnection, times(1)).close();
+	}
+
+	@Test
+	public void testFailFastWhenSaturated() throws SQLException {
+		when(mockDataSource.getConnection()).thenReturn(mockConnection);
+		BulkheadDataSource bulkhead = new BulkheadDataSource(mockDataSource, 1, 0L);
+		Connection connection = bulkhead.getConnection();
+		String message = assertThrows(SQLTransientConnectionException.class, () -> {
+			// call under test
+			bulkhead.getConnection();
+		}).getMessage();
+		assertEquals("All 1 semaphore connections are in use", message);
+		assertEquals(1L, bulkhead.getRejectedCount());
+		// the target is not asked for a connection it would have to queue for.
+		verify(mockDataSource, times(1)).getConnection();
+		connection.close();
+		bulkhead.getConnection().close();
+	}
+
+	@Test
+	public void testWaitForConnection() throws Exception {
+		when(mockDataSource.getConnection()).thenReturn(mockConnection);
+		BulkheadDataSource bulkhead = new BulkheadDataSource(mockDataSource, 1, 10_000L);
+		Connection connection = bulkhead.getConnection();
+		// call under test
+		CompletableFuture<Connection> waiting = CompletableFuture.supplyAsync(() -> {
+			try {
+				return bulkhead.getConnection();
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		while (bulkhead.getWaitingCount() < 1) {
+			Thread.sleep(1L);
+		}
+		assertFalse(waiting.isDone());
+		connection.close();
+		waiting.get(10, TimeUnit.SECONDS).close();
+		assertEquals(0L, bulkhead.getRejectedCount());
+		assertEquals(2L, bulkhead.getWaitHistogram().getCount());
+		assertTrue(bulkhead.getWaitHistogram().getMaxNanos() > 0L);
+	}
+
+	@Test
+	public void testWaitTimeout() throws SQLException {
+		when(mockDataSource.getConnection()).thenReturn(mockConnection);
+		BulkheadDataSource bulkhead = new BulkheadDataSource(mockDataSource, 1, 20L);
+		bulkhead.getConnection();
+		long startNanos = System.nanoTime();
+		assertThrows(SQLTransientConnectionException.class, () -> {
+			// call under test
+			bulkhead.getConnection();
+		});
+		assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(20L));
+		assertEquals(1L, bulkhead.getRejectedCount());
+		assertEquals(0, bulkhead.getWaitingCount());
+	}
+
+	@Test
+	public void testTargetFailureReleasesPermit() throws SQLException {
+		SQLException exception = new SQLException("no connection");
+		when(mockDataSource.getConnection()).thenThrow(exception);
+		BulkheadDataSource bulkhead = new BulkheadDataSource(mockDataSource, 1, 0L);
+		SQLException thrown = assertThrows(SQLException.class, () -> {
+			// call under test
+			bulkhead.getConnection();
+		});
+		assertSame(exception, thrown);
+		assertEquals(0, bulkhead.getActiveCount());
+	}
+
+	@Test
+	public void testGetConnectionWithCredentials() throws SQLException {
+		when(mockDataSource.getConnection("user", "password")).thenReturn(mockConnection);
+		BulkheadDataSource bulkhead = new BulkheadDataSource(mockDataSource, 1, 0L);
+		// call under test
+		Connection connection = bulkhead.getConnection("user", "password");
+		assertEquals(1, bulkhead.getActiveCount());
+		connection.close();
+		assertEquals(0, bulkhead.getActiveCount());
+	}
+
+	@Test
+	public void testMaxConnectionsLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new BulkheadDataSource(mockDataSource, 0, 0L);
+		}).getMessage();
+		assertEquals("MaxConnections cannot be less then one.", message);
+	}
+
+	@Test
+	public void testNegativeAcquireTimeout() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new BulkheadDataSource(mockDataSource, 1, -1L);
+		}).getMessage();
+		assertEquals("AcquireTimeoutMs cannot be negative.", message);
+	}
+
+	@Test
+	public void testNullDataSource() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new BulkheadDataSource(null, 1, 0L);
+		}).getMessage();
+		assertEquals("DataSource cannot be null", message);
+	}
+}
@@ -0,0 +1,98 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class ConsistentHashRingTest {
+
+	private static final int KEY_COUNT = 30_000;
+
+	@Test
+	public void testShardOfIsDeterministic() {
+		ConsistentHashRing one = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 160);
+		ConsistentHashRing two = new ConsistentHashRing(Arrays.asList("c", "a", "b"), 160);
+		for (int i = 0; i < 1000; i++) {
+			String key = "key-" + i;
+			// call under test
+			assertEquals(one.shardOf(key), two.shardOf(key));
+		}
+		assertEquals(Arrays.asList("a", "b", "c"), two.getShardIds());
+	}
+
+	@Test
+	public void testShardOfIsBalanced() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), 160);
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < KEY_COUNT; i++) {
+			// call under test
+			counts.merge(ring.shardOf("key-" + i), 1, Integer::sum);
+		}
+		assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			// within 25% of a fair share.
+			assertTrue(Math.abs(count - KEY_COUNT / 4) < KEY_COUNT / 16, "count: " + count);
+		}
+	}
+
+	@Test
+	public void testAddShardOnlyMovesKeysToNewShard() {
+		ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 160);
+		ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), 160);
+		int moved = 0;
+		for (int i = 0; i < KEY_COUNT; i++) {
+			String key = "key-" + i;
+			// call under test
+			String owner = after.shardOf(key);
+			if (!owner.equals(before.shardOf(key))) {
+				assertEquals("d", owner);
+				moved++;
+			}
+		}
+		// about a quarter of the keys move.
+		assertTrue(Math.abs(moved - KEY_COUNT / 4) < KEY_COUNT / 16, "moved: " + moved);
+	}
+
+	@Test
+	public void testSingleShard() {
+		ConsistentHashRing ring = new ConsistentHashRing(Collections.singletonList("only"), 1);
+		// call under test
+		assertEquals("only", ring.shardOf("anything"));
+		assertEquals("only", ring.shardOf(""));
+	}
+
+	@Test
+	public void testHash() {
+		// call under test
+		assertEquals(ConsistentHashRing.hash("key-1"), ConsistentHashRing.hash(new String("key-1")));
+		List<Long> hashes = Arrays.asList(ConsistentHashRing.hash("key-1"), ConsistentHashRing.hash("key-2"),
+				ConsistentHashRing.hash("key-1\u00e9"));
+		assertEquals(3, hashes.stream().distinct().count());
+	}
+
+	@Test
+	public void testConstructorWithEmptyShardIds() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new ConsistentHashRing(Collections.emptyList(), 160);
+		}).getMessage();
+		assertEquals("ShardIds cannot be null or empty", message);
+	}
+
+	@Test
+	public void testConstructorWithVirtualNodesLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new ConsistentHashRing(Arrays.asList("a"), 0);
+		}).getMessage();
+		assertEquals("VirtualNodes cannot be less then one.", message);
+	}
+}
@@ -7,27 +7,29 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-import org.junit.jupiter.api.BeforeEach;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.test.context.ContextConfiguration;
@@ -37,9 +39,11 @@ import org.springframework.transaction.support.DefaultTransactionDefinition;
 import org.springframework.transaction.support.TransactionTemplate;
 
 /**
- * This is a database level integration test for the CountingSemaphore. In order
- * to run this test you will need ensure the following system properties are
- * set: "-Djdbc.url=jdbc:mysql://localhost/semaphore"
+ * This is a database level integration test for the CountingSemaphore. It runs
+ * the scenarios of {@link AbstractCountingSemaphoreTest} along with the tests
+ * that depend on the database. In order to run this test you will need ensure
+ * the following system properties are set:
+ * "-Djdbc.url=jdbc:mysql://localhost/semaphore"
  * "-Djdbc.username=your_username" "-Djdbc.password=your_password"
  * 
  * To run in eclipse make sure the above properties are added to the "VM
@@ -47,333 +51,292 @@ import org.springframework.transaction.support.TransactionTemplate;
  */
 @ExtendWith(SpringExtension.class)
 @ContextConfiguration(locations = { "classpath:test-context.spb.xml" })
-public class CountingSemaphoreImplTest {
-
-	private static final Logger log = LogManager.getLogger(CountingSemaphoreImplTest.class);
+public class CountingSemaphoreImplTest extends AbstractCountingSemaphoreTest {
 
 	@Autowired
-	private CountingSemaphore semaphore;
+	private CountingSemaphore semaphoreBean;
 
 	@Autowired
 	private DataSourceTransactionManager txManager;
 
-	private String key;
-	private String context;
-
-	@BeforeEach
-	public void before() {
-		semaphore.releaseAllLocks();
-		key = "sampleKey";
-		context = "sample context";
+	@Override
+	protected CountingSemaphore createSemaphore() {
+		return semaphoreBean;
 	}
 
 	@Test
-	public void testAttemptToAcquireLockWithNullKey() {
-		key = null;
-		int maxLockCount = 2;
+	public void testAttemptToAcquireLockWithLocalPermitLedger() {
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		int maxLockCount = 1;
 		long timeoutSec = 60;
-		context = "some context";
-		String message = assertThrows(IllegalArgumentException.class, () -> {
-			// call under test
-			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		}).getMessage();
-		assertEquals("Key cannot be null", message);
+		Optional<String> token = ledgerSemaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token.isPresent());
+		// Release the lock behind the ledger's back so only the ledger can reject the next attempt.
+		semaphore.releaseLock(key, token.get());
+		// call under test
+		assertEquals(Optional.empty(), ledgerSemaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context));
+		// a higher limit is not rejected locally.
+		Optional<String> token2 = ledgerSemaphore.attemptToAcquireLock(key, timeoutSec, 2, context);
+		assertTrue(token2.isPresent());
+		ledgerSemaphore.releaseLock(key, token2.get());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			ledgerSemaphore.releaseLock(key, token.get());
+		});
+		// the failed release still removed the token from the ledger.
+		Optional<String> token3 = ledgerSemaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertTrue(token3.isPresent());
+		ledgerSemaphore.releaseLock(key, token3.get());
 	}
 
 	@Test
-	public void testAttemptToAcquireLockWithNullContext() {
-		key = "aKey";
-		int maxLockCount = 2;
-		long timeoutSec = 60;
-		context = null;
-		String message = assertThrows(IllegalArgumentException.class, () -> {
-			// call under test
-			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		}).getMessage();
-		assertEquals("Context cannot be null or empty", message);
+	public void testAttemptToAcquireLocksWithLocalPermitLedger() {
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		Optional<String> token = ledgerSemaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		semaphore.releaseLock(key, token.get());
+		// call under test
+		List<Optional<String>> results = ledgerSemaphore.attemptToAcquireLocks(
+				Arrays.asList(new LockRequest(key, 60, 1, context), new LockRequest("otherKey", 60, 1, context)));
+		assertEquals(2, results.size());
+		assertEquals(Optional.empty(), results.get(0));
+		assertTrue(results.get(1).isPresent());
+		// the token issued by the batch is also tracked.
+		assertEquals(Optional.empty(), ledgerSemaphore.attemptToAcquireLock("otherKey", 60, 1, context));
+		ledgerSemaphore.releaseAllLocks();
+		assertTrue(ledgerSemaphore.attemptToAcquireLock(key, 60, 1, context).isPresent());
 	}
 
 	@Test
-	public void testAttemptToAcquireLockWithEmptyContext() {
-		key = "aKey";
-		int maxLockCount = 2;
-		long timeoutSec = 60;
-		context = " \t";
-		String message = assertThrows(IllegalArgumentException.class, () -> {
-			// call under test
-			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		}).getMessage();
-		assertEquals("Context cannot be null or empty", message);
+	public void testRefreshLockTimeoutsWithLocalPermitLedger() {
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		Optional<String> token = ledgerSemaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		semaphore.releaseAllLocks();
+		// call under test
+		assertEquals(Collections.singletonList(LockRefreshResult.EXPIRED),
+				ledgerSemaphore.refreshLockTimeouts(Collections.singletonList(new LockRefreshRequest(key, token.get(), 60))));
+		// the expired token is no longer counted.
+		Optional<String> token2 = ledgerSemaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token2.isPresent());
+		ledgerSemaphore.releaseLock(key, token2.get());
 	}
 
 	@Test
-	public void testAttemptToAcquireLockWithContextAtMaxLength() {
-		key = "aKey";
-		int maxLockCount = 2;
+	public void testAttemptToAcquireLockWithSaturatedKeyCache() {
+		CountingSemaphoreImpl cachedSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		cachedSemaphore.setSaturatedKeyCacheTtlMs(1000L);
+		int maxLockCount = 1;
 		long timeoutSec = 60;
-		context = "a".repeat(CountingSemaphoreImpl.MAX_CONTEXT_CHARS);
 		Optional<String> token = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
 		assertTrue(token.isPresent());
-		Optional<String> contextOp = semaphore.getFirstUnexpiredLockContext(key);
-		assertEquals(Optional.of(context), contextOp);
-	}
-
-	@Test
-	public void testAttemptToAcquireLockWithContextOverLimit() {
-		key = "aKey";
-		int maxLockCount = 2;
-		long timeoutSec = 60;
-		context = "a".repeat(CountingSemaphoreImpl.MAX_CONTEXT_CHARS + 1);
-		String message = assertThrows(IllegalArgumentException.class, () -> {
-			// call under test
-			semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		}).getMessage();
-		assertEquals("Context length cannot be more than: " + CountingSemaphoreImpl.MAX_CONTEXT_CHARS, message);
-	}
-
-	@Test
-	public void testAcquireRelease() {
-		int maxLockCount = 2;
-		long timeoutSec = 60;
-		// get one lock
-		long start = System.currentTimeMillis();
-		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token1.isPresent());
-		log.info("AcquiredLock in " + (System.currentTimeMillis() - start) + " MS");
-		// get another
-		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+		assertEquals(Optional.empty(), cachedSemaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, "other context"));
+		assertEquals(Optional.of(context), cachedSemaphore.getFirstUnexpiredLockContext(key));
+		// Release the lock behind the cache's back so only the cache can answer.
+		semaphore.releaseLock(key, token.get());
+		// call under test
+		assertEquals(Optional.empty(), cachedSemaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, "other context"));
+		assertEquals(Optional.of(context), cachedSemaphore.getFirstUnexpiredLockContext(key));
+		// a larger limit is not answered from the cache.
+		Optional<String> token2 = cachedSemaphore.attemptToAcquireLock(key, timeoutSec, 2, "other context");
 		assertTrue(token2.isPresent());
-		// Try for a third should not acquire a lock
-		Optional<String> token3 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertFalse(token3.isPresent());
-		// release
-		semaphore.releaseLock(key, token2.get());
-		// we should now be able to get a new lock
-		token3 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertNotNull(token3);
+		// a local release invalidates the key.
+		cachedSemaphore.releaseLock(key, token2.get());
+		Optional<String> token3 = cachedSemaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, "other context");
+		assertTrue(token3.isPresent());
+		cachedSemaphore.releaseLock(key, token3.get());
 	}
 
 	@Test
-	public void testLockExpired() throws InterruptedException {
-		int maxLockCount = 1;
-		long timeoutSec = 1;
-		// get one lock
-		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token1.isPresent());
-		// Should not be able to get a lock
-		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertFalse(token2.isPresent());
-		// Wait for the lock first lock to expire
-		Thread.sleep(timeoutSec * 1000 * 2);
-		// We should now be able to get the lock as the first is expired.
-		token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
+	public void testSaturatedKeyCacheExpires() throws InterruptedException {
+		CountingSemaphoreImpl cachedSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		cachedSemaphore.setSaturatedKeyCacheTtlMs(100L);
+		Optional<String> token = semaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		assertEquals(Optional.empty(), cachedSemaphore.attemptToAcquireLock(key, 60, 1, "other context"));
+		semaphore.releaseLock(key, token.get());
+		Thread.sleep(200L);
+		// call under test
+		assertEquals(Optional.empty(), cachedSemaphore.getFirstUnexpiredLockContext(key));
+		Optional<String> token2 = cachedSemaphore.attemptToAcquireLock(key, 60, 1, "other context");
 		assertTrue(token2.isPresent());
+		cachedSemaphore.releaseLock(key, token2.get());
 	}
 
 	@Test
-	public void testReleaseExpiredLock() throws InterruptedException {
-		int maxLockCount = 1;
-		long timeoutSec = 1;
-		// get one lock
-		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token1.isPresent());
-		// Wait until the lock expires
-		Thread.sleep(timeoutSec * 1000 * 2);
-		// another should be able to get the lock
-		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token2.isPresent());
-		assertThrows(LockReleaseFailedException.class, () -> {
-			// this should fail as the lock has already expired.
-			semaphore.releaseLock(key, token1.get());
-		});
-	}
-
-	@Test
-	public void testRefreshLockTimeout() throws InterruptedException {
-		int maxLockCount = 1;
-		long timeoutSec = 2;
-		// get one lock
-		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token1.isPresent());
-		// We should be able to refresh the lock.
-		for (int i = 0; i < timeoutSec + 1; i++) {
-			semaphore.refreshLockTimeout(key, token1.get(), timeoutSec);
-			Thread.sleep(1000);
-		}
-		// The lock should still be held even though we have now exceeded to original
-		// timeout.
-		semaphore.releaseLock(key, token1.get());
+	public void testSetSaturatedKeyCacheTtlMsTooLarge() {
+		CountingSemaphoreImpl cachedSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			cachedSemaphore.setSaturatedKeyCacheTtlMs(1001L);
+		}).getMessage();
+		assertEquals("SaturatedKeyCacheTtlMs must be between zero and 1000", message);
 	}
 
 	@Test
-	public void testRefreshExpiredLock() throws InterruptedException {
-		int maxLockCount = 1;
-		long timeoutSec = 1;
-		// get one lock
-		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token1.isPresent());
-		// Wait until the lock expires
-		Thread.sleep(timeoutSec * 1000 * 2);
-		// another should be able to get the lock
-		Optional<String> token2 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token2.isPresent());
-		assertThrows(LockReleaseFailedException.class, () -> {
-			// this should fail as the lock has already expired.
-			semaphore.refreshLockTimeout(key, token1.get(), timeoutSec);
-		});
+	public void testAttemptToAcquireLockRecordsUsage() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		// call under test
+		semaphore.releaseLock(key, semaphore.attemptToAcquireLock(key, 60, 2, context).get());
+		semaphore.attemptToAcquireLock(key, 60, 2, context).get();
+		// the second row was never used.
+		assertEquals(Arrays.asList(2, 0), jdbcTemplate.queryForList(
+				"SELECT USE_COUNT FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ? ORDER BY LOCK_NUM", Integer.class, key));
+		assertEquals(Long.valueOf(1L), jdbcTemplate.queryForObject(
+				"SELECT COUNT(LAST_USED_ON) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", Long.class, key));
 	}
 
 	@Test
-	public void testReleaseLockAfterReleaseAllLocks() {
-		int maxLockCount = 1;
-		long timeoutSec = 1;
-		// get one lock
-		Optional<String> token1 = semaphore.attemptToAcquireLock(key, timeoutSec, maxLockCount, context);
-		assertTrue(token1.isPresent());
-		// Force the release of all locks
-		semaphore.releaseAllLocks();
-		assertThrows(LockReleaseFailedException.class, () -> {
-			// Now try to release the lock
-			semaphore.releaseLock(key, token1.get());
-		});
+	public void testGarbageCollectionWithRetentionPolicy() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		CountingSemaphoreImpl newSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		newSemaphore.runGarbageCollection();
+		newSemaphore.attemptToAcquireLock("hotKey", 60, 2, context);
+		newSemaphore.attemptToAcquireLock("frequentKey", 60, 1, context);
+		newSemaphore.attemptToAcquireLock("coldKey", 60, 1, context);
+		newSemaphore.attemptToAcquireLock("legacyKey", 60, 1, context);
+		newSemaphore.releaseAllLocks();
+		String setUsage = "UPDATE SEMAPHORE_LOCK SET USE_COUNT = ?, LAST_USED_ON = NOW() - INTERVAL ? SECOND WHERE LOCK_KEY = ?";
+		jdbcTemplate.update(setUsage, 10, 3600, "frequentKey");
+		jdbcTemplate.update(setUsage, 1, 3600, "coldKey");
+		jdbcTemplate.update("UPDATE SEMAPHORE_LOCK SET USE_COUNT = 0, LAST_USED_ON = NULL WHERE LOCK_KEY = 'legacyKey'");
+		newSemaphore.setRetentionPolicy(new RetentionPolicy(600, 10, 7200));
+		// call under test
+		assertEquals(new GarbageCollectionResult(2, false), newSemaphore.runGarbageCollection(10, 100, 10_000L));
+		assertEquals(Arrays.asList("frequentKey", "hotKey", "hotKey"), jdbcTemplate
+				.queryForList("SELECT LOCK_KEY FROM SEMAPHORE_LOCK ORDER BY LOCK_KEY", String.class));
+		// The frequently used key is cold once idle for longer than the frequentMaxIdleSec.
+		newSemaphore.setRetentionPolicy(new RetentionPolicy(600, 10, 1800));
+		// call under test
+		newSemaphore.runGarbageCollection();
+		assertEquals(2, newSemaphore.getLockRowCount());
+		newSemaphore.setRetentionPolicy(null);
+		// call under test
+		newSemaphore.runGarbageCollection();
+		assertEquals(0, newSemaphore.getLockRowCount());
 	}
 
-	/**
-	 * Test concurrent threads can acquire and release locks
-	 * 
-	 * @throws Exception
-	 */
 	@Test
-	public void testConcurrent() throws Exception {
-		int maxThreads = 25;
-		long lockTimeoutSec = 20;
-		int maxLockCount = maxThreads - 1;
-		ExecutorService executorService = Executors.newFixedThreadPool(maxThreads);
-		List<Callable<Boolean>> runners = new LinkedList<Callable<Boolean>>();
-		for (int i = 0; i < maxThreads; i++) {
-			TestRunner runner = new TestRunner(semaphore, key, lockTimeoutSec, maxLockCount, context);
-			runners.add(runner);
-		}
-		// run all runners
-		List<Future<Boolean>> futures = executorService.invokeAll(runners);
-		int locksAcquired = countLocksAcquired(futures);
-		assertEquals(maxLockCount, locksAcquired, "24 of 25 threads should have been issued a lock");
+	public void testRetentionPolicyWithFrequentMaxIdleSecLessThanMaxIdleSec() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new RetentionPolicy(600, 10, 599);
+		}).getMessage();
+		assertEquals("FrequentMaxIdleSec cannot be less than MaxIdleSec", message);
 	}
 
-	/**
-	 * If two process attempt to get two separate locks at the same time the the
-	 * 'NOWAIT' condition should not trigger, and each process should receive a
-	 * lock.
-	 * 
-	 * @throws Exception
-	 */
 	@Test
-	public void testConcurrentDifferentKeys() throws Exception {
-		int maxThreads = 25;
-		long lockTimeoutSec = 20;
-		int maxLocksPerThread = 1;
-		// create a different key for each thread.
-		List<String> keys = createUniqueKeys(maxThreads, maxLocksPerThread);
-		ExecutorService executorService = Executors.newFixedThreadPool(maxThreads);
-		List<Callable<Boolean>> runners = new LinkedList<Callable<Boolean>>();
-		for (String key : keys) {
-			TestRunner runner = new TestRunner(semaphore, key, lockTimeoutSec, maxLocksPerThread, context);
-			runners.add(runner);
-		}
-		// run all runners
-		List<Future<Boolean>> futures = executorService.invokeAll(runners);
-		int locksAcquired = countLocksAcquired(futures);
-		assertTrue(locksAcquired >= maxThreads - 3, "Most threads should have received a lock");
-	}
-
-	private int countLocksAcquired(List<Future<Boolean>> futures)
-			throws InterruptedException, java.util.concurrent.ExecutionException {
-		int locksAcquired = 0;
-		for (Future<Boolean> future : futures) {
-			if (future.get()) {
-				locksAcquired++;
+	public void testPermitBlockSemaphore() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		String countHeld = "SELECT COUNT(*) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ? AND TOKEN IS NOT NULL";
+		try (PermitBlockSemaphore blockSemaphore = new PermitBlockSemaphore(semaphore)) {
+			blockSemaphore.setBlockSize(4);
+			List<String> tokens = new LinkedList<>();
+			for (int i = 0; i < 6; i++) {
+				// call under test
+				tokens.add(blockSemaphore.attemptToAcquireLock(key, 60, 100, context).get());
 			}
-		}
-		return locksAcquired;
-	}
-
-	private void holdLocksOfSameKeyWithTimeouts(String lockKey, List<Long> lockTimeouts, String context)
-			throws InterruptedException, java.util.concurrent.ExecutionException {
-		int locksAcquired = 0;
-		for (long timeoutSec : lockTimeouts) {
-			Optional<String> token = semaphore.attemptToAcquireLock(lockKey, timeoutSec, lockTimeouts.size(), context);
-			if (token.isPresent()) {
-				locksAcquired++;
+			// Two blocks were leased.
+			assertEquals(Long.valueOf(8L), jdbcTemplate.queryForObject(countHeld, Long.class, key));
+			// The leased permits count towards the limit of the key.
+			assertEquals(Optional.empty(), semaphore.attemptToAcquireLock(key, 60, 8, context));
+			for (String token : tokens) {
+				blockSemaphore.releaseLock(key, token);
 			}
+			assertEquals(Long.valueOf(8L), jdbcTemplate.queryForObject(countHeld, Long.class, key));
 		}
-
-		assertEquals(lockTimeouts.size(), locksAcquired);
+		// Closing returns the unused permits.
+		assertEquals(Long.valueOf(0L), jdbcTemplate.queryForObject(countHeld, Long.class, key));
 	}
 
 	@Test
-	public void testExistsUnexpiredLock_notExist() throws Exception {
-		// set up unexpired locks held by other threads with a different key;
-		String unrelatedLockKey = "unrelatedLock";
-		List<Long> lockTimeouts = Collections.nCopies(5, 50L); // 5 locks w/ expiration of 50 seconds each
-		holdLocksOfSameKeyWithTimeouts(unrelatedLockKey, lockTimeouts, context);
-		// method under test
-		assertEquals(Optional.empty(), semaphore.getFirstUnexpiredLockContext("otherKey"));
+	public void testMetricsListener() {
+		SemaphoreMetrics metrics = new SemaphoreMetrics();
+		CountingSemaphoreImpl metricsSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		metricsSemaphore.setMetricsListener(metrics);
+		// call under test
+		Optional<String> token = metricsSemaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		assertEquals(Optional.empty(), metricsSemaphore.attemptToAcquireLock(key, 60, 1, context));
+		metricsSemaphore.refreshLockTimeout(key, token.get(), 60);
+		metricsSemaphore.refreshLockTimeouts(Arrays.asList(new LockRefreshRequest(key, token.get(), 60),
+				new LockRefreshRequest(key, "1.unknown", 60)));
+		metricsSemaphore.releaseLock(key, token.get());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			metricsSemaphore.releaseLock(key, token.get());
+		});
+		GarbageCollectionResult collected = metricsSemaphore.runGarbageCollection(10, 100, 10_000L);
+
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.ACQUIRE,
+				SemaphoreMetricsListener.Outcome.SUCCESS));
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.ACQUIRE,
+				SemaphoreMetricsListener.Outcome.UNAVAILABLE));
+		assertEquals(2L, metrics.getCount(SemaphoreMetricsListener.Operation.REFRESH,
+				SemaphoreMetricsListener.Outcome.SUCCESS));
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.REFRESH,
+				SemaphoreMetricsListener.Outcome.EXPIRED));
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.RELEASE,
+				SemaphoreMetricsListener.Outcome.SUCCESS));
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.RELEASE,
+				SemaphoreMetricsListener.Outcome.EXPIRED));
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.GARBAGE_COLLECTION,
+				SemaphoreMetricsListener.Outcome.SUCCESS));
+		assertEquals(collected.getRowsDeleted(), metrics.getGarbageCollectedRowCount());
 	}
 
 	@Test
-	public void testExistsUnexpiredLock_existButAllExpired() throws ExecutionException, InterruptedException {
-		// set up locks that will expire
-		String lockKey = "sameKey";
-		List<Long> lockTimeouts = Collections.nCopies(5, 1L); // 5 locks w/ expiration of 1 second each
-		holdLocksOfSameKeyWithTimeouts(lockKey, lockTimeouts, context);
-		Thread.sleep(2000);
-
-		// method under test
-		assertEquals(Optional.empty(), semaphore.getFirstUnexpiredLockContext(lockKey));
+	public void testFlightRecorderEvents() throws IOException {
+		CountingSemaphoreImpl recordedSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		recordedSemaphore.setSlowOperationThresholdMs(60_000L);
+		Path file = Files.createTempFile("semaphore", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(SemaphoreOperationEvent.NAME);
+			recording.start();
+			// call under test
+			Optional<String> token = recordedSemaphore.attemptToAcquireLock(key, 60, 1, context);
+			recordedSemaphore.attemptToAcquireLock(key, 60, 1, context);
+			recordedSemaphore.refreshLockTimeouts(Arrays.asList(new LockRefreshRequest(key, token.get(), 60),
+					new LockRefreshRequest(key, "1.unknown", 60)));
+			recordedSemaphore.releaseLock(key, token.get());
+			recording.stop();
+			recording.dump(file);
+			List<String> events = new LinkedList<>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				assertEquals(key, event.getString("key"));
+				assertFalse(event.getBoolean("slow"));
+				assertFalse(event.getDuration().isNegative());
+				events.add(event.getString("operation") + ":" + event.getString("outcome"));
+			}
+			assertEquals(Arrays.asList("ACQUIRE:SUCCESS", "ACQUIRE:UNAVAILABLE", "REFRESH:SUCCESS", "REFRESH:EXPIRED",
+					"RELEASE:SUCCESS"), events);
+		} finally {
+			Files.delete(file);
+		}
 	}
 
 	@Test
-	public void testExistsUnexpiredLock_existAndSomeUnexpired() throws ExecutionException, InterruptedException {
-		// set up locks that will expire
-		String lockKey = "sameKey";
-		List<Long> lockTimeouts = Arrays.asList(1L, 1L, 600L, 1L, 1L);
-		holdLocksOfSameKeyWithTimeouts(lockKey, lockTimeouts, context);
-		Thread.sleep(1000);
-
-		// method under test
-		assertEquals(Optional.of(context), semaphore.getFirstUnexpiredLockContext(lockKey));
+	public void testSetSlowOperationThresholdMsLessThanOne() {
+		CountingSemaphoreImpl newSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			newSemaphore.setSlowOperationThresholdMs(0L);
+		}).getMessage();
+		assertEquals("SlowOperationThresholdMs cannot be less then one.", message);
 	}
 
 	@Test
-	public void testGarbageCollection() throws InterruptedException {
-		// Start clean
-		semaphore.runGarbageCollection();
-		assertEquals(0, semaphore.getLockRowCount());
-		
-		long lockTimeoutSec = 2;
-		int maxLockCount = 3;
-		semaphore.attemptToAcquireLock("keyOne", lockTimeoutSec, maxLockCount, context);
-		assertEquals(3, semaphore.getLockRowCount());
-		// set all three rows to be expired and therefore eligible for garbage collection.
-		semaphore.releaseAllLocks();
-		assertEquals(3, semaphore.getLockRowCount());
-		// add three new rows
-		semaphore.attemptToAcquireLock("keyTwo", lockTimeoutSec, maxLockCount, context);
-		assertEquals(6, semaphore.getLockRowCount());
-		String keyTwoTokenTwo = semaphore.attemptToAcquireLock("keyTwo", lockTimeoutSec, maxLockCount, context).get();
-		// releasing a lock clears its token but it should not expire for at least 5 minutes.
-		semaphore.releaseLock("keyTwo", keyTwoTokenTwo);
-		assertEquals(6, semaphore.getLockRowCount());
-		
-		// call under test
-		semaphore.runGarbageCollection();
-		// Garbage collection should only remove the first three throw since their tokens are null and they are expired (due to releaseAllLocks()).
-		assertEquals(3, semaphore.getLockRowCount());
-		semaphore.releaseAllLocks();
-		
+	public void testMetricsListenerFailureIsIgnored() {
+		CountingSemaphoreImpl metricsSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		metricsSemaphore.setMetricsListener((operation, lockKey, outcome, durationNanos) -> {
+			throw new IllegalStateException("listener failure");
+		});
 		// call under test
-		semaphore.runGarbageCollection();
-		assertEquals(0, semaphore.getLockRowCount());
+		Optional<String> token = metricsSemaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		metricsSemaphore.releaseLock(key, token.get());
 	}
 
 	@Test
@@ -389,7 +352,7 @@ public class CountingSemaphoreImplTest {
 
 		assertThrows(RuntimeException.class, () -> {
 			txTemplate.executeWithoutResult((txStatus) -> {
-				jdbcTemplate.update("INSERT INTO SEMAPHORE_LOCK VALUES(-1, 'someKey', 0, NULL, NOW(), NULL)");
+				jdbcTemplate.update("INSERT INTO SEMAPHORE_LOCK (ROW_ID, LOCK_KEY, LOCK_NUM, TOKEN, EXPIRES_ON, CONTEXT) VALUES(-1, 'someKey', 0, NULL, NOW(), NULL)");
 
 				// Call under test
 				semaphore.attemptToAcquireLock("key", 5, 1, context);
@@ -419,7 +382,7 @@ public class CountingSemaphoreImplTest {
 
 		assertThrows(RuntimeException.class, () -> {
 			txTemplate.executeWithoutResult((txStatus) -> {
-				jdbcTemplate.update("INSERT INTO SEMAPHORE_LOCK VALUES(-1, 'someKey', 0, NULL, NOW(), NULL)");
+				jdbcTemplate.update("INSERT INTO SEMAPHORE_LOCK (ROW_ID, LOCK_KEY, LOCK_NUM, TOKEN, EXPIRES_ON, CONTEXT) VALUES(-1, 'someKey', 0, NULL, NOW(), NULL)");
 
 				// Call under test
 				semaphore.releaseLock("key", token);
@@ -452,7 +415,7 @@ public class CountingSemaphoreImplTest {
 
 		assertThrows(RuntimeException.class, () -> {
 			txTemplate.executeWithoutResult((txStatus) -> {
-				jdbcTemplate.update("INSERT INTO SEMAPHORE_LOCK VALUES(-1, 'someKey', 0, NULL, NOW(), NULL)");
+				jdbcTemplate.update("INSERT INTO SEMAPHORE_LOCK (ROW_ID, LOCK_KEY, LOCK_NUM, TOKEN, EXPIRES_ON, CONTEXT) VALUES(-1, 'someKey', 0, NULL, NOW(), NULL)");
 
 				// Call under test
 				semaphore.refreshLockTimeout("key", token, 10);
@@ -508,6 +471,772 @@ public class CountingSemaphoreImplTest {
 		});
 	}
 
+	@Test
+	public void testAttemptToAcquireBootstrappedSemaphoreLock() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		String call = "CALL attemptToAcquireBootstrappedSemaphoreLock(?, ?, ?, ?)";
+
+		// call under test
+		jdbcTemplate.query(call, (ResultSet rs) -> {
+			assertEquals(null, rs.getString("TOKEN"));
+			assertTrue(rs.getBoolean("NEEDS_BOOTSTRAP"));
+		}, key, 30, 2, context);
+
+		Optional<String> token = semaphore.attemptToAcquireLock(key, 30, 2, context);
+		assertTrue(token.isPresent());
+		// call under test
+		jdbcTemplate.query(call, (ResultSet rs) -> {
+			assertNotNull(rs.getString("TOKEN"));
+			assertFalse(rs.getBoolean("NEEDS_BOOTSTRAP"));
+		}, key, 30, 2, context);
+		// saturated but all of the rows exist.
+		jdbcTemplate.query(call, (ResultSet rs) -> {
+			assertEquals(null, rs.getString("TOKEN"));
+			assertFalse(rs.getBoolean("NEEDS_BOOTSTRAP"));
+		}, key, 30, 2, context);
+		// a larger limit needs more rows.
+		jdbcTemplate.query(call, (ResultSet rs) -> {
+			assertEquals(null, rs.getString("TOKEN"));
+			assertTrue(rs.getBoolean("NEEDS_BOOTSTRAP"));
+		}, key, 30, 3, context);
+	}
+
+	@Test
+	public void testMigrateLegacyTable() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		createLegacyTable(jdbcTemplate);
+		// a lock issued by an older client before the migration.
+		Optional<String> legacyToken = directAttemptToAcquireSemaphoreLock(jdbcTemplate, key, 60, 2, context);
+		assertTrue(legacyToken.isPresent());
+
+		// call under test
+		CountingSemaphoreImpl migrated = new CountingSemaphoreImpl(txManager.getDataSource());
+		// applying the migration again must be a no-op.
+		new CountingSemaphoreImpl(txManager.getDataSource());
+
+		List<String> indexes = jdbcTemplate.queryForList("SELECT DISTINCT INDEX_NAME FROM information_schema.STATISTICS"
+				+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'SEMAPHORE_LOCK' ORDER BY INDEX_NAME", String.class);
+		assertEquals(Arrays.asList("KEY_HASH_LOCK_NUM", "LOCK_KEY", "PRIMARY", "TOKEN", "TOKEN_BIN"), indexes);
+		Optional<String> token = migrated.attemptToAcquireLock(key, 60, 2, context);
+		assertTrue(token.isPresent());
+		assertEquals(Optional.empty(), migrated.attemptToAcquireLock(key, 60, 2, context));
+		migrated.refreshLockTimeout(key, legacyToken.get(), 60);
+		migrated.releaseLock(key, legacyToken.get());
+
+		// contract
+		jdbcTemplate.update(Utils.loadStringFromClassPath("schema/SemaphoreLockDropLegacyIndexes.ddl.sql"));
+		indexes = jdbcTemplate.queryForList("SELECT DISTINCT INDEX_NAME FROM information_schema.STATISTICS"
+				+ " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'SEMAPHORE_LOCK' ORDER BY INDEX_NAME", String.class);
+		// the same indexes as a new table.
+		assertEquals(Arrays.asList("KEY_HASH_LOCK_NUM", "LOCK_KEY", "PRIMARY", "TOKEN_BIN"), indexes);
+		Optional<String> token2 = migrated.attemptToAcquireLock(key, 60, 2, context);
+		assertTrue(token2.isPresent());
+		assertEquals(Optional.of(context), migrated.getFirstUnexpiredLockContext(key));
+		migrated.releaseLock(key, token.get());
+		migrated.releaseLock(key, token2.get());
+	}
+
+	@Test
+	public void testAttemptToAcquireWeightedLockOnMigratedTable() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		createLegacyTable(jdbcTemplate);
+		CountingSemaphoreImpl migrated = new CountingSemaphoreImpl(txManager.getDataSource());
+		String message = assertThrows(IllegalStateException.class, () -> {
+			// call under test
+			migrated.attemptToAcquireWeightedLock(key, 60, 3, 2, context);
+		}).getMessage();
+		assertEquals("Weighted locks cannot be issued while SEMAPHORE_LOCK has a unique TOKEN index."
+				+ " Drop it by running: schema/SemaphoreLockDropLegacyIndexes.ddl.sql", message);
+		// a single lock only needs one row.
+		Optional<String> token = migrated.attemptToAcquireWeightedLock(key, 60, 3, 1, context);
+		assertTrue(token.isPresent());
+		migrated.releaseLock(key, token.get());
+
+		// contract, while the semaphore is in use.
+		jdbcTemplate.update(Utils.loadStringFromClassPath("schema/SemaphoreLockDropLegacyIndexes.ddl.sql"));
+		// call under test
+		token = migrated.attemptToAcquireWeightedLock(key, 60, 3, 2, context);
+		assertTrue(token.isPresent());
+		assertEquals(2L, countHeldLocks());
+		migrated.releaseLock(key, token.get());
+	}
+
+	/**
+	 * Replace SEMAPHORE_LOCK with the table layout before the hash columns were
+	 * added.
+	 * 
+	 * @param jdbcTemplate
+	 */
+	private static void createLegacyTable(JdbcTemplate jdbcTemplate) {
+		jdbcTemplate.update("DROP TABLE SEMAPHORE_LOCK");
+		jdbcTemplate.update("CREATE TABLE `SEMAPHORE_LOCK` ("
+				+ " `ROW_ID` MEDIUMINT NOT NULL AUTO_INCREMENT,"
+				+ " `LOCK_KEY` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin NOT NULL,"
+				+ " `LOCK_NUM` TINYINT NOT NULL,"
+				+ " `TOKEN` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin DEFAULT NULL,"
+				+ " `EXPIRES_ON` TIMESTAMP NOT NULL,"
+				+ " `CONTEXT` varchar(256) CHARACTER SET latin1 COLLATE latin1_bin DEFAULT NULL,"
+				+ " PRIMARY KEY (`ROW_ID`), UNIQUE (`LOCK_KEY`, `LOCK_NUM`), UNIQUE (`TOKEN`))");
+	}
+
+	@Test
+	public void testReleaseLockWithTokenInDifferentCase() {
+		Optional<String> token = semaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			semaphore.releaseLock(key, token.get().toUpperCase());
+		});
+		semaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testAttemptToAcquireLockIssuesRowIdToken() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		// call under test
+		String token = semaphore.attemptToAcquireLock(key, 60, 1, context).get();
+		LockToken lockToken = LockToken.parse(token);
+		assertNotNull(lockToken.getRowId());
+		assertEquals(lockToken.getSecret(), jdbcTemplate.queryForObject(
+				"SELECT TOKEN FROM SEMAPHORE_LOCK WHERE ROW_ID = ?", String.class, lockToken.getRowId()));
+		semaphore.releaseLock(key, token);
+	}
+
+	@Test
+	public void testReleaseAndRefreshOpaqueToken() {
+		String token = semaphore.attemptToAcquireLock(key, 60, 1, context).get();
+		// A token issued by an earlier version only has the secret.
+		String opaqueToken = LockToken.parse(token).getSecret();
+		// call under test
+		semaphore.refreshLockTimeout(key, opaqueToken, 60);
+		assertEquals(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.REFRESHED), semaphore
+				.refreshLockTimeouts(Arrays.asList(new LockRefreshRequest(key, opaqueToken, 60), new LockRefreshRequest(key, token, 60))));
+		semaphore.releaseLock(key, opaqueToken);
+		assertThrows(LockReleaseFailedException.class, () -> {
+			semaphore.releaseLock(key, token);
+		});
+	}
+
+	@Test
+	public void testReleaseLockWithWrongRowId() {
+		String token = semaphore.attemptToAcquireLock(key, 60, 1, context).get();
+		LockToken lockToken = LockToken.parse(token);
+		String wrongToken = (lockToken.getRowId() + 1) + "." + lockToken.getSecret();
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			semaphore.refreshLockTimeout(key, wrongToken, 60);
+		});
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			semaphore.releaseLock(key, wrongToken);
+		});
+		semaphore.releaseLock(key, token);
+	}
+
+	@Test
+	public void testBootstrapLockKeyRowsInChunks() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		// an existing row in the middle of a chunk must be kept.
+		jdbcTemplate.update("INSERT INTO SEMAPHORE_LOCK (LOCK_KEY, LOCK_NUM, TOKEN, EXPIRES_ON) VALUES (?, 4, 'existing', NOW() + INTERVAL 1 MINUTE)", key);
+		// call under test
+		jdbcTemplate.update("CALL bootstrapLockKeyRowsInChunks(?, ?, ?)", key, 10, 3);
+		List<Integer> lockNumbers = jdbcTemplate.queryForList(
+				"SELECT LOCK_NUM FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ? ORDER BY LOCK_NUM", Integer.class, key);
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), lockNumbers);
+		assertEquals("existing", jdbcTemplate.queryForObject(
+				"SELECT TOKEN FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ? AND LOCK_NUM = 4", String.class, key));
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithSetBasedBootstrap() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		CountingSemaphoreImpl setBasedSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		setBasedSemaphore.setBootstrapStrategy(BootstrapStrategy.SET_BASED);
+		setBasedSemaphore.setBootstrapChunkSize(7);
+		int maxLockCount = 50;
+		// call under test
+		Optional<String> token = setBasedSemaphore.attemptToAcquireLock(key, 30, maxLockCount, context);
+		assertTrue(token.isPresent());
+		assertEquals(maxLockCount, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?",
+				Integer.class, key));
+		setBasedSemaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testAttemptToAcquireLocksWithSetBasedBootstrap() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		CountingSemaphoreImpl setBasedSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		setBasedSemaphore.setBootstrapStrategy(BootstrapStrategy.SET_BASED);
+		setBasedSemaphore.setBootstrapChunkSize(7);
+		int maxLockCount = 50;
+		// call under test
+		List<Optional<String>> results = setBasedSemaphore
+				.attemptToAcquireLocks(Collections.singletonList(new LockRequest(key, 30, maxLockCount, context)));
+		assertTrue(results.get(0).isPresent());
+		assertEquals(maxLockCount, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?",
+				Integer.class, key));
+		setBasedSemaphore.releaseLock(key, results.get(0).get());
+	}
+
+	@Test
+	public void testAttemptToAcquireLocksAfterRowsDeleted() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		CountingSemaphoreImpl newSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		List<LockRequest> requests = Collections.singletonList(new LockRequest(key, 30, 2, context));
+		Optional<String> token = newSemaphore.attemptToAcquireLocks(requests).get(0);
+		assertTrue(token.isPresent());
+		newSemaphore.releaseLock(key, token.get());
+		// Simulate garbage collection from another process while the key is cached as bootstrapped.
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		// call under test
+		token = newSemaphore.attemptToAcquireLocks(requests).get(0);
+		assertTrue(token.isPresent());
+		assertEquals(2, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?",
+				Integer.class, key));
+		newSemaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testAttemptToAcquireLocksWithInvalidRequestAfterLocalRejection() {
+		SemaphoreMetrics metrics = new SemaphoreMetrics();
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		ledgerSemaphore.setMetricsListener(metrics);
+		Optional<String> token = ledgerSemaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(token.isPresent());
+		assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			ledgerSemaphore.attemptToAcquireLocks(Arrays.asList(new LockRequest(key, 60, 1, context),
+					new LockRequest("otherKey", 0, 1, context)));
+		});
+		// The request rejected locally is not reported since the batch was invalid.
+		assertEquals(0L, metrics.getCount(SemaphoreMetricsListener.Operation.ACQUIRE,
+				SemaphoreMetricsListener.Outcome.REJECTED_LOCALLY));
+		ledgerSemaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testSetBootstrapChunkSizeLessThanOne() {
+		CountingSemaphoreImpl newSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			newSemaphore.setBootstrapChunkSize(0);
+		}).getMessage();
+		assertEquals("BootstrapChunkSize cannot be less then one.", message);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockAfterRowsDeleted() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		CountingSemaphoreImpl newSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		Optional<String> token = newSemaphore.attemptToAcquireLock(key, 30, 1, context);
+		assertTrue(token.isPresent());
+		newSemaphore.releaseLock(key, token.get());
+		// the next attempt uses the fast path.
+		token = newSemaphore.attemptToAcquireLock(key, 30, 1, context);
+		assertTrue(token.isPresent());
+		assertEquals(Optional.empty(), newSemaphore.attemptToAcquireLock(key, 30, 1, context));
+		newSemaphore.releaseLock(key, token.get());
+		// Simulate garbage collection from another process.
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		// call under test
+		token = newSemaphore.attemptToAcquireLock(key, 30, 1, context);
+		assertTrue(token.isPresent());
+		newSemaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testAttemptToAcquireLockAfterGarbageCollection() {
+		CountingSemaphoreImpl newSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		newSemaphore.releaseLock(key, newSemaphore.attemptToAcquireLock(key, 60, 2, context).get());
+		newSemaphore.releaseAllLocks();
+		newSemaphore.runGarbageCollection();
+		assertEquals(0, newSemaphore.getLockRowCount());
+		// call under test
+		Optional<String> token = newSemaphore.attemptToAcquireLock(key, 60, 2, context);
+		// the key is still cached as bootstrapped so its rows are recreated on demand.
+		assertTrue(token.isPresent());
+		newSemaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testLeanJdbc() {
+		CountingSemaphoreImpl leanSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		leanSemaphore.setLeanJdbcEnabled(true);
+		// call under test
+		Optional<String> token = leanSemaphore.attemptToAcquireLock(key, 60, 2, context);
+		assertTrue(token.isPresent());
+		// the rows now exist so the bootstrapped path is used.
+		Optional<String> token2 = leanSemaphore.attemptToAcquireLock(key, 60, 2, context);
+		assertTrue(token2.isPresent());
+		assertEquals(Optional.empty(), leanSemaphore.attemptToAcquireLock(key, 60, 2, context));
+		leanSemaphore.refreshLockTimeout(key, token.get(), 120);
+		leanSemaphore.releaseLock(key, token.get());
+		// tokens are interchangeable with the JdbcTemplate path.
+		semaphore.releaseLock(key, token2.get());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			leanSemaphore.releaseLock(key, token.get());
+		});
+		assertThrows(LockReleaseFailedException.class, () -> {
+			leanSemaphore.refreshLockTimeout(key, token2.get(), 60);
+		});
+		assertThrows(LockReleaseFailedException.class, () -> {
+			leanSemaphore.releaseLock(key, "opaqueToken");
+		});
+		leanSemaphore.setLeanJdbcEnabled(false);
+		Optional<String> token3 = leanSemaphore.attemptToAcquireLock(key, 60, 2, context);
+		assertTrue(token3.isPresent());
+		leanSemaphore.releaseLock(key, token3.get());
+	}
+
+	@Test
+	public void testLeanJdbcWithSetBasedBootstrap() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		CountingSemaphoreImpl leanSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		leanSemaphore.setLeanJdbcEnabled(true);
+		leanSemaphore.setBootstrapStrategy(BootstrapStrategy.SET_BASED);
+		leanSemaphore.setBootstrapChunkSize(7);
+		// call under test
+		Optional<String> token = leanSemaphore.attemptToAcquireLock(key, 30, 20, context);
+		assertTrue(token.isPresent());
+		assertEquals(20, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?",
+				Integer.class, key));
+		leanSemaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testBulkheadDataSource() throws SQLException {
+		BulkheadDataSource bulkhead = new BulkheadDataSource(txManager.getDataSource(), 1, 0L);
+		CountingSemaphoreImpl bulkheadSemaphore = new CountingSemaphoreImpl(bulkhead);
+		bulkheadSemaphore.setLeanJdbcEnabled(true);
+		// call under test
+		String token = bulkheadSemaphore.attemptToAcquireLock(key, 60, 1, context).get();
+		bulkheadSemaphore.refreshLockTimeout(key, token, 60);
+		assertEquals(0, bulkhead.getActiveCount());
+		try (Connection held = bulkhead.getConnection()) {
+			// the only connection is in use so the release fails fast.
+			assertThrows(CannotGetJdbcConnectionException.class, () -> {
+				bulkheadSemaphore.releaseLock(key, token);
+			});
+		}
+		assertEquals(1L, bulkhead.getRejectedCount());
+		bulkheadSemaphore.releaseLock(key, token);
+		assertEquals(0, bulkhead.getActiveCount());
+	}
+
+	@Test
+	public void testEnqueueLockTicketGrantedRightAway() {
+		LockTicketQueue queue = (LockTicketQueue) semaphoreBean;
+		// call under test
+		LockTicket ticket = queue.enqueueLockTicket(key, 60, 1, context);
+		assertTrue(ticket.getToken().isPresent());
+		assertEquals(key, ticket.getKey());
+		assertEquals(ticket.getToken(), queue.checkLockTicket(ticket));
+		// the granted ticket no longer waits in the queue.
+		assertEquals(0L, countWaiters());
+		assertEquals(Optional.empty(), semaphore.attemptToAcquireLock(key, 60, 1, context));
+		semaphore.releaseLock(key, ticket.getToken().get());
+	}
+
+	@Test
+	public void testLockTicketsGrantedInOrder() {
+		CountingSemaphoreImpl fairSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		fairSemaphore.setFairReleaseEnabled(true);
+		LockTicket first = fairSemaphore.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = fairSemaphore.enqueueLockTicket(key, 60, 1, context);
+		LockTicket third = fairSemaphore.enqueueLockTicket(key, 60, 1, context);
+		assertFalse(second.getToken().isPresent());
+		assertFalse(third.getToken().isPresent());
+		assertEquals(Optional.empty(), fairSemaphore.checkLockTicket(third));
+		assertEquals(Optional.empty(), fairSemaphore.checkLockTicket(second));
+		// call under test
+		fairSemaphore.releaseLock(key, first.getToken().get());
+		// the released lock went to the oldest ticket.
+		assertEquals(Optional.empty(), fairSemaphore.checkLockTicket(third));
+		Optional<String> secondToken = fairSemaphore.checkLockTicket(second);
+		assertTrue(secondToken.isPresent());
+		fairSemaphore.releaseLock(key, secondToken.get());
+		Optional<String> thirdToken = fairSemaphore.checkLockTicket(third);
+		assertTrue(thirdToken.isPresent());
+		assertEquals(0L, countWaiters());
+		fairSemaphore.releaseLock(key, thirdToken.get());
+	}
+
+	@Test
+	public void testLockTicketNotBypassedByNewTicket() {
+		LockTicketQueue queue = (LockTicketQueue) semaphoreBean;
+		LockTicket first = queue.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = queue.enqueueLockTicket(key, 60, 1, context);
+		// without fair release the lock stays free until the head checks.
+		semaphore.releaseLock(key, first.getToken().get());
+		// call under test
+		LockTicket third = queue.enqueueLockTicket(key, 60, 1, context);
+		// the new ticket granted the free lock to the older ticket.
+		assertFalse(third.getToken().isPresent());
+		assertTrue(queue.checkLockTicket(second).isPresent());
+		assertEquals(Optional.empty(), queue.checkLockTicket(third));
+	}
+
+	@Test
+	public void testCheckLockTicketAfterLockExpired() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		LockTicketQueue queue = (LockTicketQueue) semaphoreBean;
+		LockTicket first = queue.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = queue.enqueueLockTicket(key, 60, 1, context);
+		// Simulate the holder of the first lock dying.
+		jdbcTemplate.update("UPDATE SEMAPHORE_LOCK SET EXPIRES_ON = NOW() - INTERVAL 1 SECOND WHERE LOCK_KEY = ?", key);
+		// call under test
+		Optional<String> token = queue.checkLockTicket(second);
+		assertTrue(token.isPresent());
+		assertNotEquals(first.getToken(), token);
+		semaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testCheckLockTicketAfterRowsDeleted() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		LockTicketQueue queue = (LockTicketQueue) semaphoreBean;
+		queue.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = queue.enqueueLockTicket(key, 60, 1, context);
+		// Simulate garbage collection from another process.
+		jdbcTemplate.update("DELETE FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ?", key);
+		// call under test
+		Optional<String> token = queue.checkLockTicket(second);
+		assertTrue(token.isPresent());
+		semaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testCheckExpiredLockTicket() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		LockTicketQueue queue = (LockTicketQueue) semaphoreBean;
+		LockTicket first = queue.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = queue.enqueueLockTicket(key, 60, 1, context);
+		jdbcTemplate.update("UPDATE SEMAPHORE_WAITER SET EXPIRES_ON = NOW() - INTERVAL 1 SECOND WHERE TICKET_ID = ?",
+				second.getTicketId());
+		String message = assertThrows(LockExpiredException.class, () -> {
+			// call under test
+			queue.checkLockTicket(second);
+		}).getMessage();
+		assertEquals("Ticket: " + second.getTicketId() + " of key: " + key + " has expired.", message);
+		// garbage collection removes the expired ticket.
+		semaphore.runGarbageCollection();
+		assertEquals(0L, countWaiters());
+		semaphore.releaseLock(key, first.getToken().get());
+	}
+
+	@Test
+	public void testCancelLockTicket() {
+		LockTicketQueue queue = (LockTicketQueue) semaphoreBean;
+		LockTicket first = queue.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = queue.enqueueLockTicket(key, 60, 1, context);
+		LockTicket third = queue.enqueueLockTicket(key, 60, 1, context);
+		// call under test
+		queue.cancelLockTicket(second);
+		assertThrows(LockExpiredException.class, () -> {
+			queue.checkLockTicket(second);
+		});
+		semaphore.releaseLock(key, first.getToken().get());
+		Optional<String> token = queue.checkLockTicket(third);
+		assertTrue(token.isPresent());
+		semaphore.releaseLock(key, token.get());
+		// cancelling a ticket that is gone does nothing.
+		queue.cancelLockTicket(third);
+	}
+
+	@Test
+	public void testCheckLockTicketGrantedEarlierWithLocalPermitLedger() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		ledgerSemaphore.setFairReleaseEnabled(true);
+		LockTicket first = ledgerSemaphore.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = ledgerSemaphore.enqueueLockTicket(key, 60, 1, context);
+		// The release grants the lock to the second ticket before it is checked.
+		ledgerSemaphore.releaseLock(key, first.getToken().get());
+		// The lock granted to the ticket expires before it is collected.
+		jdbcTemplate.update("UPDATE SEMAPHORE_LOCK SET EXPIRES_ON = NOW() - INTERVAL 1 SECOND WHERE LOCK_KEY = ?",
+				key);
+		// call under test
+		Optional<String> token = ledgerSemaphore.checkLockTicket(second);
+		assertTrue(token.isPresent());
+		// The ledger uses the expiration of the lock row, so it does not reject the expired lock.
+		Optional<String> next = ledgerSemaphore.attemptToAcquireLock(key, 60, 1, context);
+		assertTrue(next.isPresent());
+		ledgerSemaphore.releaseLock(key, next.get());
+	}
+
+	@Test
+	public void testLockTicketMetrics() {
+		SemaphoreMetrics metrics = new SemaphoreMetrics();
+		CountingSemaphoreImpl metricsSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		metricsSemaphore.setMetricsListener(metrics);
+		LockTicket first = metricsSemaphore.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = metricsSemaphore.enqueueLockTicket(key, 60, 1, context);
+		// call under test
+		assertEquals(Optional.empty(), metricsSemaphore.checkLockTicket(second));
+		metricsSemaphore.cancelLockTicket(second);
+		assertThrows(LockExpiredException.class, () -> {
+			metricsSemaphore.checkLockTicket(second);
+		});
+		metricsSemaphore.releaseLock(key, first.getToken().get());
+
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.ACQUIRE,
+				SemaphoreMetricsListener.Outcome.SUCCESS));
+		// The enqueue and the check of the waiting ticket.
+		assertEquals(2L, metrics.getCount(SemaphoreMetricsListener.Operation.ACQUIRE,
+				SemaphoreMetricsListener.Outcome.UNAVAILABLE));
+		assertEquals(1L, metrics.getCount(SemaphoreMetricsListener.Operation.ACQUIRE,
+				SemaphoreMetricsListener.Outcome.EXPIRED));
+		// The cancel and the release.
+		assertEquals(2L, metrics.getCount(SemaphoreMetricsListener.Operation.RELEASE,
+				SemaphoreMetricsListener.Outcome.SUCCESS));
+	}
+
+	@Test
+	public void testCancelGrantedLockTicket() {
+		CountingSemaphoreImpl fairSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		fairSemaphore.setFairReleaseEnabled(true);
+		LockTicket first = fairSemaphore.enqueueLockTicket(key, 60, 1, context);
+		LockTicket second = fairSemaphore.enqueueLockTicket(key, 60, 1, context);
+		LockTicket third = fairSemaphore.enqueueLockTicket(key, 60, 1, context);
+		// the lock is granted to the second ticket but its token is never returned.
+		fairSemaphore.releaseLock(key, first.getToken().get());
+		// call under test
+		fairSemaphore.cancelLockTicket(second);
+		// the lock of the cancelled ticket went to the next ticket.
+		Optional<String> token = fairSemaphore.checkLockTicket(third);
+		assertTrue(token.isPresent());
+		fairSemaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testEnqueueLockTicketWithLocalPermitLedger() {
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		// call under test
+		LockTicket ticket = ledgerSemaphore.enqueueLockTicket(key, 60, 1, context);
+		assertTrue(ticket.getToken().isPresent());
+		// the granted lock is counted by the ledger.
+		assertEquals(Optional.empty(), ledgerSemaphore.attemptToAcquireLock(key, 60, 1, context));
+		assertEquals(0L, countWaiters());
+		ledgerSemaphore.releaseLock(key, ticket.getToken().get());
+	}
+
+	@Test
+	public void testEnqueueLockTicketValidation() {
+		LockTicketQueue queue = (LockTicketQueue) semaphoreBean;
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			queue.enqueueLockTicket(key, 60, 0, context);
+		}).getMessage();
+		assertEquals("MaxLockCount cannot be less then one.", message);
+		message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			queue.checkLockTicket(null);
+		}).getMessage();
+		assertEquals("Ticket cannot be null", message);
+	}
+
+	@Test
+	public void testSetTicketTimeoutSecLessThanOne() {
+		CountingSemaphoreImpl newSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			newSemaphore.setTicketTimeoutSec(0);
+		}).getMessage();
+		assertEquals("TicketTimeoutSec cannot be less then one.", message);
+	}
+
+	@Test
+	public void testAttemptToAcquireWeightedLock() {
+		WeightedCountingSemaphore weighted = (WeightedCountingSemaphore) semaphoreBean;
+		int maxLockCount = 16;
+		// call under test
+		Optional<String> token = weighted.attemptToAcquireWeightedLock(key, 60, maxLockCount, 4, context);
+		assertTrue(token.isPresent());
+		assertTrue(token.get().startsWith("4:"));
+		assertEquals(4L, countHeldLocks());
+		Optional<String> token2 = weighted.attemptToAcquireWeightedLock(key, 60, maxLockCount, 12, context);
+		assertTrue(token2.isPresent());
+		// all of the locks are held.
+		assertEquals(Optional.empty(), semaphore.attemptToAcquireLock(key, 60, maxLockCount, context));
+		weighted.refreshLockTimeout(key, token.get(), 120);
+		weighted.releaseLock(key, token.get());
+		assertEquals(12L, countHeldLocks());
+		weighted.releaseLock(key, token2.get());
+		assertEquals(0L, countHeldLocks());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			weighted.releaseLock(key, token.get());
+		});
+	}
+
+	@Test
+	public void testAttemptToAcquireWeightedLockAllOrNothing() {
+		WeightedCountingSemaphore weighted = (WeightedCountingSemaphore) semaphoreBean;
+		Optional<String> single = semaphore.attemptToAcquireLock(key, 60, 4, context);
+		assertTrue(single.isPresent());
+		// call under test
+		assertEquals(Optional.empty(), weighted.attemptToAcquireWeightedLock(key, 60, 4, 4, context));
+		// the partial grant was rolled back.
+		assertEquals(1L, countHeldLocks());
+		Optional<String> token = weighted.attemptToAcquireWeightedLock(key, 60, 4, 3, context);
+		assertTrue(token.isPresent());
+		semaphore.releaseLock(key, single.get());
+		semaphore.releaseLock(key, token.get());
+	}
+
+	@Test
+	public void testRefreshWeightedLockAfterLockLost() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		WeightedCountingSemaphore weighted = (WeightedCountingSemaphore) semaphoreBean;
+		String token = weighted.attemptToAcquireWeightedLock(key, 60, 4, 3, context).get();
+		String secret = token.substring(token.indexOf(':') + 1);
+		// Simulate one of the locks expiring and being issued to another caller.
+		jdbcTemplate.update("UPDATE SEMAPHORE_LOCK SET TOKEN = 'other' WHERE TOKEN = ? LIMIT 1", secret);
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			weighted.refreshLockTimeout(key, token, 60);
+		});
+		// the remaining locks of the broken grant were released.
+		assertEquals(1L, countHeldLocks());
+	}
+
+	@Test
+	public void testRefreshWeightedLocksAfterLockLost() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(txManager.getDataSource());
+		WeightedCountingSemaphore weighted = (WeightedCountingSemaphore) semaphoreBean;
+		String token = weighted.attemptToAcquireWeightedLock(key, 60, 4, 3, context).get();
+		String single = semaphore.attemptToAcquireLock(key, 60, 4, context).get();
+		String secret = token.substring(token.indexOf(':') + 1);
+		// Simulate one of the locks expiring and being issued to another caller.
+		jdbcTemplate.update("UPDATE SEMAPHORE_LOCK SET TOKEN = 'other' WHERE TOKEN = ? LIMIT 1", secret);
+		// call under test
+		List<LockRefreshResult> results = weighted.refreshLockTimeouts(
+				Arrays.asList(new LockRefreshRequest(key, token, 60), new LockRefreshRequest(key, single, 60)));
+		assertEquals(Arrays.asList(LockRefreshResult.EXPIRED, LockRefreshResult.REFRESHED), results);
+		// the remaining locks of the broken grant were released, not refreshed.
+		assertEquals(2L, countHeldLocks());
+		semaphore.releaseLock(key, single);
+	}
+
+	@Test
+	public void testRefreshWeightedLocks() {
+		WeightedCountingSemaphore weighted = (WeightedCountingSemaphore) semaphoreBean;
+		String token = weighted.attemptToAcquireWeightedLock(key, 60, 4, 2, context).get();
+		String single = semaphore.attemptToAcquireLock(key, 60, 4, context).get();
+		// call under test
+		List<LockRefreshResult> results = weighted.refreshLockTimeouts(
+				Arrays.asList(new LockRefreshRequest(key, token, 60), new LockRefreshRequest(key, single, 60)));
+		assertEquals(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.REFRESHED), results);
+		weighted.releaseLock(key, token);
+		weighted.releaseLock(key, single);
+	}
+
+	@Test
+	public void testReleaseWeightedLockToWaiters() {
+		CountingSemaphoreImpl fairSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		fairSemaphore.setFairReleaseEnabled(true);
+		String token = fairSemaphore.attemptToAcquireWeightedLock(key, 60, 2, 2, context).get();
+		LockTicket first = fairSemaphore.enqueueLockTicket(key, 60, 2, context);
+		LockTicket second = fairSemaphore.enqueueLockTicket(key, 60, 2, context);
+		assertFalse(first.getToken().isPresent());
+		// call under test
+		fairSemaphore.releaseLock(key, token);
+		// both released locks went to the waiting tickets.
+		assertEquals(2L, countHeldLocks());
+		Optional<String> firstToken = fairSemaphore.checkLockTicket(first);
+		Optional<String> secondToken = fairSemaphore.checkLockTicket(second);
+		assertTrue(firstToken.isPresent());
+		assertTrue(secondToken.isPresent());
+		fairSemaphore.releaseLock(key, firstToken.get());
+		fairSemaphore.releaseLock(key, secondToken.get());
+	}
+
+	@Test
+	public void testAttemptToAcquireWeightedLockWithLocalPermitLedger() {
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		String token = ledgerSemaphore.attemptToAcquireWeightedLock(key, 60, 4, 3, context).get();
+		String single = ledgerSemaphore.attemptToAcquireLock(key, 60, 4, context).get();
+		// Release the single lock behind the ledger's back so only the ledger can reject the next attempt.
+		semaphore.releaseLock(key, single);
+		// call under test
+		assertEquals(Optional.empty(), ledgerSemaphore.attemptToAcquireLock(key, 60, 4, context));
+		ledgerSemaphore.releaseLock(key, token);
+		assertThrows(LockReleaseFailedException.class, () -> {
+			ledgerSemaphore.releaseLock(key, single);
+		});
+	}
+
+	@Test
+	public void testAttemptToAcquireWeightedLockRejectedLocallyByWeight() {
+		CountingSemaphoreImpl ledgerSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		ledgerSemaphore.setLocalPermitLedgerEnabled(true);
+		String single = ledgerSemaphore.attemptToAcquireLock(key, 60, 4, context).get();
+		// Release the single lock behind the ledger's back so only the ledger can reject the next attempt.
+		semaphore.releaseLock(key, single);
+		// call under test
+		assertEquals(Optional.empty(), ledgerSemaphore.attemptToAcquireWeightedLock(key, 60, 4, 4, context));
+		// the ledger still has room for a smaller weight.
+		Optional<String> token = ledgerSemaphore.attemptToAcquireWeightedLock(key, 60, 4, 3, context);
+		assertTrue(token.isPresent());
+		ledgerSemaphore.releaseLock(key, token.get());
+		assertThrows(LockReleaseFailedException.class, () -> {
+			ledgerSemaphore.releaseLock(key, single);
+		});
+	}
+
+	@Test
+	public void testAttemptToAcquireWeightedLockWithLeanJdbc() {
+		CountingSemaphoreImpl leanSemaphore = new CountingSemaphoreImpl(txManager.getDataSource());
+		leanSemaphore.setLeanJdbcEnabled(true);
+		// call under test
+		String token = leanSemaphore.attemptToAcquireWeightedLock(key, 60, 3, 3, context).get();
+		leanSemaphore.refreshLockTimeout(key, token, 60);
+		leanSemaphore.releaseLock(key, token);
+		assertEquals(0L, countHeldLocks());
+	}
+
+	@Test
+	public void testAttemptToAcquireWeightedLockValidation() {
+		WeightedCountingSemaphore weighted = (WeightedCountingSemaphore) semaphoreBean;
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			weighted.attemptToAcquireWeightedLock(key, 60, 4, 0, context);
+		}).getMessage();
+		assertEquals("Weight cannot be less then one.", message);
+		message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			weighted.attemptToAcquireWeightedLock(key, 60, 4, 5, context);
+		}).getMessage();
+		assertEquals("Weight cannot be more than MaxLockCount.", message);
+	}
+
+	/**
+	 * 
+	 * @return The number of locks held on the key.
+	 */
+	long countHeldLocks() {
+		return new JdbcTemplate(txManager.getDataSource()).queryForObject(
+				"SELECT COUNT(*) FROM SEMAPHORE_LOCK WHERE LOCK_KEY = ? AND TOKEN IS NOT NULL", Long.class, key);
+	}
+
+	/**
+	 * 
+	 * @return The number of tickets in all queues.
+	 */
+	long countWaiters() {
+		return new JdbcTemplate(txManager.getDataSource()).queryForObject("SELECT COUNT(*) FROM SEMAPHORE_WAITER",
+				Long.class);
+	}
+
 	/**
 	 * A direct call to attemptToAcquireSemaphoreLock without transactions
 	 * annotations.
@@ -526,63 +1255,4 @@ public class CountingSemaphoreImplTest {
 		}, key, timeoutSec, maxLockCount, inputContext);
 	}
 
-	/**
-	 * Create n unique keys and ensure each key already exists in the database.
-	 * 
-	 * @param count
-	 * @return
-	 */
-	public List<String> createUniqueKeys(int count, int maxKeys) {
-		List<String> keys = new LinkedList<String>();
-		for (int i = 0; i < count; i++) {
-			String key = "i-" + i;
-			Optional<String> token = semaphore.attemptToAcquireLock(key, 1000, maxKeys, context);
-			semaphore.releaseLock(key, token.get());
-			keys.add(key);
-		}
-		return keys;
-	}
-
-	private class TestRunner implements Callable<Boolean> {
-		CountingSemaphore semaphore;
-		String key;
-		long lockTimeoutSec;
-		int maxLockCount;
-		long sleepTimeMs;
-		String context;
-
-		public TestRunner(CountingSemaphore semaphore, String key, long lockTimeoutSec, int maxLockCount,
-				String context) {
-			super();
-			this.semaphore = semaphore;
-			this.key = key;
-			this.lockTimeoutSec = lockTimeoutSec;
-			this.maxLockCount = maxLockCount;
-			this.sleepTimeMs = 1000L;
-			this.context = context;
-		}
-
-		public Boolean call() throws Exception {
-			long start = System.currentTimeMillis();
-			Optional<String> result = semaphore.attemptToAcquireLock(key, lockTimeoutSec, maxLockCount, context);
-
-			log.info("AttemptToAcquiredLock in " + (System.currentTimeMillis() - start) + " MS with token: "
-					+ result.orElseGet(() -> null));
-			if (result.isPresent()) {
-				try {
-					Thread.sleep(sleepTimeMs);
-					// the lock was acquired and held
-					return true;
-				} catch (InterruptedException e) {
-					throw new RuntimeException(e);
-				} finally {
-					semaphore.releaseLock(key, result.get());
-				}
-			} else {
-				// lock was not acquired
-				return false;
-			}
-		}
-	}
-
 }
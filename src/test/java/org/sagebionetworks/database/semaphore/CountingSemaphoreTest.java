@@ -0,0 +1,82 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+/**
+ * Tests the default methods of {@link CountingSemaphore} used by
+ * implementations that only provide the single-item calls.
+ *
+ */
+@ExtendWith(MockitoExtension.class)
+public class CountingSemaphoreTest {
+
+	@Mock(answer = Answers.CALLS_REAL_METHODS)
+	private CountingSemaphore mockSemaphore;
+
+	@Test
+	public void testAttemptToAcquireLocks() {
+		doReturn(Optional.of("token")).when(mockSemaphore).attemptToAcquireLock("key", 10, 1, "context");
+		doReturn(Optional.empty()).when(mockSemaphore).attemptToAcquireLock("otherKey", 10, 1, "context");
+		// call under test
+		List<Optional<String>> results = mockSemaphore.attemptToAcquireLocks(
+				Arrays.asList(new LockRequest("key", 10, 1, "context"), new LockRequest("otherKey", 10, 1, "context")));
+		assertEquals(Arrays.asList(Optional.of("token"), Optional.empty()), results);
+	}
+
+	@Test
+	public void testRefreshLockTimeouts() {
+		doThrow(new LockReleaseFailedException("expired")).when(mockSemaphore).refreshLockTimeout("key", "expired",
+				10);
+		doThrow(new LockKeyNotFoundException("not found")).when(mockSemaphore).refreshLockTimeout("otherKey", "token",
+				10);
+		// call under test
+		List<LockRefreshResult> results = mockSemaphore.refreshLockTimeouts(
+				Arrays.asList(new LockRefreshRequest("key", "token", 10), new LockRefreshRequest("key", "expired", 10),
+						new LockRefreshRequest("otherKey", "token", 10)));
+		assertEquals(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.EXPIRED,
+				LockRefreshResult.KEY_NOT_FOUND), results);
+		verify(mockSemaphore).refreshLockTimeout("key", "token", 10);
+	}
+
+	@Test
+	public void testRunGarbageCollectionWithLimits() {
+		// call under test
+		GarbageCollectionResult result = mockSemaphore.runGarbageCollection(2, 5, 1000L);
+		assertEquals(new GarbageCollectionResult(GarbageCollectionResult.UNKNOWN_ROWS_DELETED, false), result);
+		assertFalse(result.isRowsDeletedKnown());
+		verify(mockSemaphore).runGarbageCollection();
+		verify(mockSemaphore, never()).getLockRowCount();
+	}
+
+	@Test
+	public void testRunGarbageCollectionWithLimitsValidation() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			mockSemaphore.runGarbageCollection(0, 5, 1000L);
+		}).getMessage();
+		assertEquals("ChunkSize cannot be less then one.", message);
+	}
+
+	@Test
+	public void testGetLockRowHighWaterMark() {
+		doReturn(12L).when(mockSemaphore).getLockRowCount();
+		// call under test
+		assertEquals(12L, mockSemaphore.getLockRowHighWaterMark());
+	}
+}
@@ -0,0 +1,218 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class GarbageCollectionSchedulerTest {
+
+	@Mock
+	private CountingSemaphore mockSemaphore;
+	@Mock
+	private ScheduledExecutorService mockScheduler;
+	@Mock
+	private ScheduledFuture<Object> mockFuture;
+
+	private AtomicLong clock;
+	private GarbageCollectionScheduler gcScheduler;
+	private long lockTimeoutSec;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@BeforeEach
+	public void before() {
+		clock = new AtomicLong(0L);
+		when(mockScheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class)))
+				.thenReturn((ScheduledFuture) mockFuture);
+		gcScheduler = new GarbageCollectionScheduler(mockSemaphore, mockScheduler, false, 1000L, clock::get);
+		gcScheduler.setIntervalBoundsMs(1_000L, 8_000L);
+		gcScheduler.setMaxRowsPerRun(100);
+		gcScheduler.setChunkSize(10);
+		gcScheduler.setMaxDurationMs(2_000L);
+		gcScheduler.setGrowthThreshold(50L);
+		lockTimeoutSec = 2 + GarbageCollectionScheduler.LOCK_TIMEOUT_MARGIN_SEC;
+	}
+
+	private void mockLockAvailable() {
+		when(mockSemaphore.attemptToAcquireLock(GarbageCollectionScheduler.GARBAGE_COLLECTION_LOCK_KEY,
+				lockTimeoutSec, 1, GarbageCollectionScheduler.GARBAGE_COLLECTION_LOCK_CONTEXT))
+				.thenReturn(Optional.of("token"));
+	}
+
+	private void advanceMs(long ms) {
+		clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+	}
+
+	@Test
+	public void testTickNotDue() {
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		advanceMs(999L);
+		// call under test
+		gcScheduler.tick();
+		verify(mockSemaphore, never()).attemptToAcquireLock(anyString(), anyLong(), anyInt(), anyString());
+	}
+
+	@Test
+	public void testTickIntervalElapsed() {
+		mockLockAvailable();
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenReturn(new GarbageCollectionResult(5, false));
+		advanceMs(1_000L);
+		// call under test
+		gcScheduler.tick();
+		verify(mockSemaphore).runGarbageCollection(10, 100, 2_000L);
+		verify(mockSemaphore).releaseLock(GarbageCollectionScheduler.GARBAGE_COLLECTION_LOCK_KEY, "token");
+		assertEquals(1_000L, gcScheduler.getIntervalMs());
+	}
+
+	@Test
+	public void testTickWithGrowth() {
+		mockLockAvailable();
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(50L);
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenReturn(new GarbageCollectionResult(5, false));
+		// call under test, the table grew before the interval elapsed.
+		gcScheduler.tick();
+		verify(mockSemaphore).runGarbageCollection(10, 100, 2_000L);
+	}
+
+	@Test
+	public void testTickWithGrowthAfterRowCountMark() {
+		mockLockAvailable();
+		// A mark that falls back to the row count shrinks with each collection.
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(100L, 20L, 60L, 75L);
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenReturn(new GarbageCollectionResult(80, false));
+		gcScheduler.tick();
+		verify(mockSemaphore, times(1)).runGarbageCollection(10, 100, 2_000L);
+		// call under test, grew by 40 since the collection.
+		gcScheduler.tick();
+		verify(mockSemaphore, times(1)).runGarbageCollection(10, 100, 2_000L);
+		// call under test, grew by 55 since the collection.
+		gcScheduler.tick();
+		verify(mockSemaphore, times(2)).runGarbageCollection(10, 100, 2_000L);
+	}
+
+	@Test
+	public void testGetIntervalMsDuringCollection() {
+		mockLockAvailable();
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		AtomicLong intervalDuringRun = new AtomicLong();
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenAnswer(invocation -> {
+			// Another thread must not wait for the collection to read the interval.
+			Thread reader = new Thread(() -> intervalDuringRun.set(gcScheduler.getIntervalMs()));
+			reader.start();
+			reader.join(10_000L);
+			return new GarbageCollectionResult(5, false);
+		});
+		advanceMs(1_000L);
+		// call under test
+		gcScheduler.tick();
+		assertEquals(1_000L, intervalDuringRun.get());
+	}
+
+	@Test
+	public void testTickWithMoreRemaining() {
+		mockLockAvailable();
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenReturn(new GarbageCollectionResult(100, true),
+				new GarbageCollectionResult(20, false));
+		advanceMs(1_000L);
+		gcScheduler.tick();
+		// call under test, the next tick continues the collection.
+		gcScheduler.tick();
+		verify(mockSemaphore, times(2)).runGarbageCollection(10, 100, 2_000L);
+		// call under test, nothing is due.
+		gcScheduler.tick();
+		verify(mockSemaphore, times(2)).runGarbageCollection(10, 100, 2_000L);
+	}
+
+	@Test
+	public void testIntervalAdapts() {
+		mockLockAvailable();
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenReturn(new GarbageCollectionResult(0, false));
+		for (long expected : new long[] { 2_000L, 4_000L, 8_000L, 8_000L }) {
+			advanceMs(gcScheduler.getIntervalMs());
+			// call under test
+			gcScheduler.tick();
+			assertEquals(expected, gcScheduler.getIntervalMs());
+		}
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenReturn(new GarbageCollectionResult(50, false));
+		advanceMs(gcScheduler.getIntervalMs());
+		// call under test
+		gcScheduler.tick();
+		assertEquals(4_000L, gcScheduler.getIntervalMs());
+	}
+
+	@Test
+	public void testIntervalWithUnknownRowsDeleted() {
+		mockLockAvailable();
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L))
+				.thenReturn(new GarbageCollectionResult(GarbageCollectionResult.UNKNOWN_ROWS_DELETED, false));
+		advanceMs(1_000L);
+		// call under test
+		gcScheduler.tick();
+		verify(mockSemaphore).runGarbageCollection(10, 100, 2_000L);
+		assertEquals(1_000L, gcScheduler.getIntervalMs());
+	}
+
+	@Test
+	public void testTickWithLockHeldByAnotherNode() {
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		when(mockSemaphore.attemptToAcquireLock(GarbageCollectionScheduler.GARBAGE_COLLECTION_LOCK_KEY,
+				lockTimeoutSec, 1, GarbageCollectionScheduler.GARBAGE_COLLECTION_LOCK_CONTEXT))
+				.thenReturn(Optional.empty());
+		advanceMs(1_000L);
+		// call under test
+		gcScheduler.tick();
+		verify(mockSemaphore, never()).runGarbageCollection(anyInt(), anyInt(), anyLong());
+		assertEquals(1_000L, gcScheduler.getIntervalMs());
+	}
+
+	@Test
+	public void testTickWithException() {
+		mockLockAvailable();
+		when(mockSemaphore.getLockRowHighWaterMark()).thenReturn(10L);
+		when(mockSemaphore.runGarbageCollection(10, 100, 2_000L)).thenThrow(new IllegalStateException("database is down"));
+		advanceMs(1_000L);
+		// call under test, the exception must not escape to the scheduler.
+		gcScheduler.tick();
+		verify(mockSemaphore).releaseLock(GarbageCollectionScheduler.GARBAGE_COLLECTION_LOCK_KEY, "token");
+	}
+
+	@Test
+	public void testSetIntervalBoundsMsWithMaxLessThanMin() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			gcScheduler.setIntervalBoundsMs(10L, 5L);
+		}).getMessage();
+		assertEquals("MaxIntervalMs cannot be less than MinIntervalMs", message);
+	}
+
+	@Test
+	public void testClose() {
+		// call under test
+		gcScheduler.close();
+		verify(mockFuture).cancel(false);
+		verify(mockScheduler, never()).shutdown();
+	}
+}
@@ -0,0 +1,132 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the scenarios of {@link AbstractCountingSemaphoreTest} against the
+ * in-memory semaphore, along with tests that control its clock.
+ */
+public class InMemoryCountingSemaphoreTest extends AbstractCountingSemaphoreTest {
+
+	private AtomicLong clock;
+	private InMemoryCountingSemaphore clockedSemaphore;
+
+	@Override
+	protected CountingSemaphore createSemaphore() {
+		clock = new AtomicLong(1_000_000L);
+		clockedSemaphore = new InMemoryCountingSemaphore(4, InMemoryCountingSemaphore.DEFAULT_TICK_MS, clock::get);
+		return new InMemoryCountingSemaphore();
+	}
+
+	@Test
+	public void testLockExpiresWithClock() {
+		String token = clockedSemaphore.attemptToAcquireLock(key, 10, 1, context).get();
+		clock.addAndGet(10_000L);
+		assertEquals(Optional.of(context), clockedSemaphore.getFirstUnexpiredLockContext(key));
+		assertFalse(clockedSemaphore.attemptToAcquireLock(key, 10, 1, context).isPresent());
+		clock.incrementAndGet();
+		assertEquals(Optional.empty(), clockedSemaphore.getFirstUnexpiredLockContext(key));
+		// call under test
+		String newToken = clockedSemaphore.attemptToAcquireLock(key, 10, 1, context).get();
+		assertNotEquals(token, newToken);
+		assertThrows(LockReleaseFailedException.class, () -> {
+			clockedSemaphore.releaseLock(key, token);
+		});
+		clockedSemaphore.releaseLock(key, newToken);
+	}
+
+	@Test
+	public void testGarbageCollectionKeepsReleasedRows() {
+		String token = clockedSemaphore.attemptToAcquireLock(key, 10, 2, context).get();
+		clockedSemaphore.releaseLock(key, token);
+		assertEquals(2, clockedSemaphore.getLockRowCount());
+		clock.addAndGet(InMemoryCountingSemaphore.ROW_RETENTION_MS);
+		// call under test
+		clockedSemaphore.runGarbageCollection();
+		assertEquals(2, clockedSemaphore.getLockRowCount());
+		clock.addAndGet(InMemoryCountingSemaphore.DEFAULT_TICK_MS);
+		clockedSemaphore.runGarbageCollection();
+		assertEquals(0, clockedSemaphore.getLockRowCount());
+		// the rows are created again with new row ids.
+		assertTrue(clockedSemaphore.attemptToAcquireLock(key, 10, 2, context).isPresent());
+		assertEquals(2, clockedSemaphore.getLockRowCount());
+		assertEquals(4, clockedSemaphore.getLockRowHighWaterMark());
+	}
+
+	@Test
+	public void testGarbageCollectionKeepsExpiredHeldRows() {
+		clockedSemaphore.attemptToAcquireLock(key, 10, 1, context).get();
+		clock.addAndGet(InMemoryCountingSemaphore.ROW_RETENTION_MS * 2);
+		// call under test
+		assertEquals(new GarbageCollectionResult(0, false), clockedSemaphore.runGarbageCollection(10, 10, 1_000L));
+		assertEquals(1, clockedSemaphore.getLockRowCount());
+	}
+
+	@Test
+	public void testRefreshExpiredLockBeforeItIsTaken() {
+		String token = clockedSemaphore.attemptToAcquireLock(key, 10, 1, context).get();
+		clock.addAndGet(20_000L);
+		// call under test, the same as the database the lock can be refreshed until another holder takes it.
+		clockedSemaphore.refreshLockTimeout(key, token, 10);
+		assertFalse(clockedSemaphore.attemptToAcquireLock(key, 10, 1, context).isPresent());
+	}
+
+	@Test
+	public void testMaxLockCountReduced() {
+		assertTrue(clockedSemaphore.attemptToAcquireLock(key, 10, 3, context).isPresent());
+		// call under test
+		assertFalse(clockedSemaphore.attemptToAcquireLock(key, 10, 1, context).isPresent());
+		assertTrue(clockedSemaphore.attemptToAcquireLock(key, 10, 2, context).isPresent());
+		assertEquals(3, clockedSemaphore.getLockRowCount());
+	}
+
+	@Test
+	public void testReleaseLockWithTokenOfOtherKey() {
+		String token = semaphore.attemptToAcquireLock("keyOne", 60, 1, context).get();
+		semaphore.attemptToAcquireLock("keyTwo", 60, 1, context).get();
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			semaphore.releaseLock("keyTwo", token);
+		});
+		semaphore.releaseLock("keyOne", token);
+	}
+
+	@Test
+	public void testReleaseLockWithMalformedToken() {
+		semaphore.attemptToAcquireLock(key, 60, 1, context).get();
+		for (String token : new String[] { "", "1", "1.", ".1", "a.1", "1.a", "1.0", "1.1234567890123456789" }) {
+			assertThrows(LockReleaseFailedException.class, () -> {
+				// call under test
+				semaphore.releaseLock(key, token);
+			}, token);
+		}
+	}
+
+	@Test
+	public void testStripeCountLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new InMemoryCountingSemaphore(0);
+		}).getMessage();
+		assertEquals("StripeCount cannot be less then one.", message);
+	}
+
+	@Test
+	public void testSingleStripe() {
+		InMemoryCountingSemaphore singleStripe = new InMemoryCountingSemaphore(1);
+		// call under test
+		String tokenOne = singleStripe.attemptToAcquireLock("keyOne", 60, 1, context).get();
+		String tokenTwo = singleStripe.attemptToAcquireLock("keyTwo", 60, 1, context).get();
+		singleStripe.releaseLock("keyOne", tokenOne);
+		singleStripe.releaseLock("keyTwo", tokenTwo);
+	}
+}
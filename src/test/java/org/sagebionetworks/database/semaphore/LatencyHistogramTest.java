@@ -0,0 +1,89 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0L, histogram.getCount());
+		assertEquals(0L, histogram.getTotalNanos());
+		assertEquals(0L, histogram.getMaxNanos());
+		// call under test
+		assertEquals(0L, histogram.getValueAtPercentile(99.0));
+	}
+
+	@Test
+	public void testRecord() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// call under test
+		histogram.record(5L);
+		histogram.record(100L);
+		histogram.record(-3L);
+		assertEquals(3L, histogram.getCount());
+		assertEquals(105L, histogram.getTotalNanos());
+		assertEquals(100L, histogram.getMaxNanos());
+	}
+
+	@Test
+	public void testGetValueAtPercentile() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		// call under test
+		long median = histogram.getValueAtPercentile(50.0);
+		long p99 = histogram.getValueAtPercentile(99.0);
+		assertWithinRelativeError(500_000L, median);
+		assertWithinRelativeError(990_000L, p99);
+		assertEquals(1_000_000L, histogram.getValueAtPercentile(100.0));
+	}
+
+	@Test
+	public void testGetValueAtPercentileOutOfRange() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			histogram.getValueAtPercentile(100.1);
+		}).getMessage();
+		assertEquals("Percentile must be between zero and one hundred", message);
+		assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			histogram.getValueAtPercentile(-1.0);
+		});
+	}
+
+	@Test
+	public void testBucketBoundaries() {
+		long[] values = new long[] { 0L, 1L, 7L, 8L, 9L, 15L, 16L, 17L, 1000L, 123_456_789L, Long.MAX_VALUE };
+		for (long value : values) {
+			// call under test
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue(index >= 0 && index < LatencyHistogram.BUCKET_COUNT, "index of " + value);
+			long upper = LatencyHistogram.bucketUpperBound(index);
+			assertTrue(upper >= value, "upper bound of " + value);
+			assertTrue(upper - value <= value / LatencyHistogram.SUB_BUCKET_COUNT, "error of " + value);
+			if (index > 0) {
+				assertTrue(LatencyHistogram.bucketUpperBound(index - 1) < value, "lower bound of " + value);
+			}
+		}
+		assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram.BUCKET_COUNT - 1));
+	}
+
+	/**
+	 * 
+	 * @param expected
+	 * @param actual
+	 */
+	private static void assertWithinRelativeError(long expected, long actual) {
+		long error = Math.abs(actual - expected);
+		assertTrue(error <= expected / LatencyHistogram.SUB_BUCKET_COUNT,
+				"expected: " + expected + " actual: " + actual);
+	}
+}
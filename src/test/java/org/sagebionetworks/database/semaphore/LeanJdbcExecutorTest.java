@@ -0,0 +1,216 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.datasource.ConnectionHolder;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+@ExtendWith(MockitoExtension.class)
+public class LeanJdbcExecutorTest {
+
+	private static final String SQL = "CALL someProcedure(?)";
+
+	@Mock
+	private DataSource mockDataSource;
+	@Mock
+	private Connection mockConnection;
+	@Mock
+	private PreparedStatement mockStatement;
+	@Mock
+	private ResultSet mockResultSet;
+	@Mock
+	private SQLExceptionTranslator mockTranslator;
+
+	private LeanJdbcExecutor executor;
+
+	@BeforeEach
+	public void before() {
+		executor = new LeanJdbcExecutor(mockDataSource, mockTranslator);
+	}
+
+	private void setupStatement() throws SQLException {
+		when(mockDataSource.getConnection()).thenReturn(mockConnection);
+		when(mockConnection.prepareStatement(SQL)).thenReturn(mockStatement);
+	}
+
+	private void setupResult() throws SQLException {
+		setupStatement();
+		when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+	}
+
+	@Test
+	public void testAcquire() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(true);
+		when(mockResultSet.getString("TOKEN")).thenReturn("1.token");
+		// call under test
+		assertEquals(Optional.of("1.token"), executor.acquire(SQL, "key", 60, 2, "context", 0));
+		verify(mockStatement).setPoolable(true);
+		verify(mockStatement).setString(1, "key");
+		verify(mockStatement).setLong(2, 60);
+		verify(mockStatement).setInt(3, 2);
+		verify(mockStatement).setString(4, "context");
+		verify(mockStatement, never()).setInt(5, 0);
+		verify(mockResultSet).close();
+		verify(mockStatement).close();
+		verify(mockConnection).close();
+	}
+
+	@Test
+	public void testAcquireWithChunkSize() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(true);
+		// call under test
+		assertEquals(Optional.empty(), executor.acquire(SQL, "key", 60, 2, "context", 7));
+		verify(mockStatement).setInt(5, 7);
+	}
+
+	@Test
+	public void testAcquireWithNoRows() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(false);
+		assertThrows(EmptyResultDataAccessException.class, () -> {
+			// call under test
+			executor.acquire(SQL, "key", 60, 2, "context", 0);
+		});
+		verify(mockConnection).close();
+	}
+
+	@Test
+	public void testAcquireBootstrapped() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(true);
+		when(mockResultSet.getBoolean("NEEDS_BOOTSTRAP")).thenReturn(false);
+		when(mockResultSet.getString("TOKEN")).thenReturn("1.token");
+		// call under test
+		assertEquals(Optional.of("1.token"), executor.acquireBootstrapped(SQL, "key", 60, 2, "context"));
+	}
+
+	@Test
+	public void testAcquireBootstrappedNeedsBootstrap() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(true);
+		when(mockResultSet.getBoolean("NEEDS_BOOTSTRAP")).thenReturn(true);
+		// call under test
+		assertNull(executor.acquireBootstrapped(SQL, "key", 60, 2, "context"));
+	}
+
+	@Test
+	public void testUpdateWithRowId() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(true);
+		when(mockResultSet.getInt("RESULT")).thenReturn(1);
+		// call under test
+		assertEquals(1, executor.update(SQL, LockToken.parse("12.secret"), "12.secret", 30));
+		verify(mockStatement).setLong(1, 12L);
+		verify(mockStatement).setString(2, "secret");
+		verify(mockStatement).setLong(3, 30L);
+	}
+
+	@Test
+	public void testUpdateOpaqueWithoutTimeout() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(true);
+		when(mockResultSet.getInt("RESULT")).thenReturn(0);
+		// call under test
+		assertEquals(0, executor.update(SQL, LockToken.parse("opaque"), "opaque", 0));
+		verify(mockStatement).setString(1, "opaque");
+		verify(mockStatement, never()).setLong(2, 0L);
+	}
+
+	@Test
+	public void testRefreshWeighted() throws SQLException {
+		setupResult();
+		when(mockResultSet.next()).thenReturn(true);
+		when(mockResultSet.getInt("RESULT")).thenReturn(3);
+		// call under test
+		assertEquals(3, executor.refreshWeighted(SQL, LockToken.parse("3:secret"), 30));
+		verify(mockStatement).setString(1, "secret");
+		verify(mockStatement).setInt(2, 3);
+		verify(mockStatement).setLong(3, 30L);
+		verify(mockStatement).close();
+		verify(mockConnection).close();
+	}
+
+	@Test
+	public void testTranslateException() throws SQLException {
+		setupStatement();
+		SQLException exception = new SQLException("deadlock", "40001", 1213);
+		TransientDataAccessResourceException translated = new TransientDataAccessResourceException("deadlock",
+				exception);
+		when(mockStatement.executeQuery()).thenThrow(exception);
+		when(mockTranslator.translate("attemptToAcquireLock", SQL, exception)).thenReturn(translated);
+		TransientDataAccessException thrown = assertThrows(TransientDataAccessException.class, () -> {
+			// call under test
+			executor.acquire(SQL, "key", 60, 2, "context", 0);
+		});
+		assertSame(translated, thrown);
+		verify(mockStatement).close();
+		verify(mockConnection).close();
+	}
+
+	@Test
+	public void testUntranslatedException() throws SQLException {
+		setupStatement();
+		SQLException exception = new SQLException("unknown");
+		when(mockStatement.executeQuery()).thenThrow(exception);
+		UncategorizedSQLException thrown = assertThrows(UncategorizedSQLException.class, () -> {
+			// call under test
+			executor.update(SQL, LockToken.parse("opaque"), "opaque", 0);
+		});
+		assertSame(exception, thrown.getSQLException());
+	}
+
+	@Test
+	public void testJoinsTransaction() throws SQLException {
+		// The connection of the current transaction is bound to the thread.
+		TransactionSynchronizationManager.bindResource(mockDataSource, new ConnectionHolder(mockConnection));
+		try {
+			when(mockConnection.prepareStatement(SQL)).thenReturn(mockStatement);
+			when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+			when(mockResultSet.next()).thenReturn(true);
+			when(mockResultSet.getInt("RESULT")).thenReturn(1);
+			// call under test
+			assertEquals(1, executor.update(SQL, LockToken.parse("opaque"), "opaque", 0));
+			verifyZeroInteractions(mockDataSource);
+			// the transaction's connection stays open.
+			verify(mockConnection, never()).close();
+		} finally {
+			TransactionSynchronizationManager.unbindResource(mockDataSource);
+		}
+	}
+
+	@Test
+	public void testNullDataSource() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new LeanJdbcExecutor(null, mockTranslator);
+		}).getMessage();
+		assertEquals("DataSource cannot be null", message);
+	}
+}
@@ -0,0 +1,175 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class LeaseKeeperTest {
+
+	@Mock
+	private CountingSemaphore mockSemaphore;
+	@Mock
+	private ScheduledExecutorService mockScheduler;
+	@Mock
+	private ScheduledFuture<Object> mockFuture;
+
+	private AtomicLong clock;
+	private LeaseKeeper keeper;
+	private String context;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@BeforeEach
+	public void before() {
+		clock = new AtomicLong(0L);
+		when(mockScheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class)))
+				.thenReturn((ScheduledFuture) mockFuture);
+		keeper = new LeaseKeeper(mockSemaphore, mockScheduler, false, 0.5, 100L, clock::get);
+		context = "some context";
+	}
+
+	@Test
+	public void testAttemptToAcquireLock() {
+		when(mockSemaphore.attemptToAcquireLock("key", 10, 2, context)).thenReturn(Optional.of("token"));
+		// call under test
+		Lease lease = keeper.attemptToAcquireLock("key", 10, 2, context).get();
+		assertEquals("key", lease.getKey());
+		assertEquals("token", lease.getToken());
+		assertEquals(1, keeper.getLeaseCount());
+	}
+
+	@Test
+	public void testAttemptToAcquireLockNotAvailable() {
+		when(mockSemaphore.attemptToAcquireLock("key", 10, 2, context)).thenReturn(Optional.empty());
+		// call under test
+		assertEquals(Optional.empty(), keeper.attemptToAcquireLock("key", 10, 2, context));
+		assertEquals(0, keeper.getLeaseCount());
+	}
+
+	@Test
+	public void testRenewLeasesOnlyWhenDue() {
+		when(mockSemaphore.attemptToAcquireLock("short", 10, 1, context)).thenReturn(Optional.of("tokenOne"));
+		when(mockSemaphore.attemptToAcquireLock("long", 60, 1, context)).thenReturn(Optional.of("tokenTwo"));
+		keeper.attemptToAcquireLock("short", 10, 1, context);
+		keeper.attemptToAcquireLock("long", 60, 1, context);
+		// not yet due
+		clock.set(TimeUnit.SECONDS.toNanos(4));
+		keeper.renewLeases();
+		verify(mockSemaphore, never()).refreshLockTimeouts(any());
+
+		// only the short lease is due.
+		clock.set(TimeUnit.SECONDS.toNanos(5));
+		when(mockSemaphore.refreshLockTimeouts(any()))
+				.thenReturn(Collections.singletonList(LockRefreshResult.REFRESHED));
+		// call under test
+		keeper.renewLeases();
+		verify(mockSemaphore)
+				.refreshLockTimeouts(Collections.singletonList(new LockRefreshRequest("short", "tokenOne", 10)));
+
+		// both are now due and must be refreshed together.
+		clock.set(TimeUnit.SECONDS.toNanos(30));
+		when(mockSemaphore.refreshLockTimeouts(any()))
+				.thenReturn(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.REFRESHED));
+		// call under test
+		keeper.renewLeases();
+		verify(mockSemaphore, times(2)).refreshLockTimeouts(any());
+		assertEquals(2, keeper.getLeaseCount());
+	}
+
+	@Test
+	public void testRenewLeasesWithLostLease() {
+		when(mockSemaphore.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.of("token"));
+		Lease lease = keeper.attemptToAcquireLock("key", 10, 1, context).get();
+		clock.set(TimeUnit.SECONDS.toNanos(6));
+		when(mockSemaphore.refreshLockTimeouts(any()))
+				.thenReturn(Collections.singletonList(LockRefreshResult.EXPIRED));
+		// call under test
+		keeper.renewLeases();
+		assertTrue(lease.isLost());
+		assertEquals(0, keeper.getLeaseCount());
+	}
+
+	@Test
+	public void testRenewLeasesWithException() {
+		when(mockSemaphore.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.of("token"));
+		Lease lease = keeper.attemptToAcquireLock("key", 10, 1, context).get();
+		clock.set(TimeUnit.SECONDS.toNanos(6));
+		when(mockSemaphore.refreshLockTimeouts(any())).thenThrow(new IllegalStateException("database is down"));
+		// call under test, the exception must not escape to the scheduler.
+		keeper.renewLeases();
+		assertFalse(lease.isLost());
+		assertEquals(1, keeper.getLeaseCount());
+	}
+
+	@Test
+	public void testCloseLease() {
+		when(mockSemaphore.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.of("token"));
+		Lease lease = keeper.attemptToAcquireLock("key", 10, 1, context).get();
+		// call under test
+		lease.close();
+		lease.close();
+		verify(mockSemaphore, times(1)).releaseLock("key", "token");
+		assertEquals(0, keeper.getLeaseCount());
+		clock.set(TimeUnit.SECONDS.toNanos(60));
+		keeper.renewLeases();
+		verify(mockSemaphore, never()).refreshLockTimeouts(any());
+	}
+
+	@Test
+	public void testCloseLeaseWithExpiredLock() {
+		when(mockSemaphore.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.of("token"));
+		doThrow(new LockReleaseFailedException("expired")).when(mockSemaphore).releaseLock("key", "token");
+		Lease lease = keeper.attemptToAcquireLock("key", 10, 1, context).get();
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			lease.close();
+		});
+		assertEquals(0, keeper.getLeaseCount());
+	}
+
+	@Test
+	public void testClose() {
+		when(mockSemaphore.attemptToAcquireLock("key", 10, 1, context)).thenReturn(Optional.of("token"));
+		keeper.attemptToAcquireLock("key", 10, 1, context);
+		// call under test
+		keeper.close();
+		verify(mockFuture).cancel(false);
+		// a shared scheduler belongs to the caller.
+		verify(mockScheduler, never()).shutdownNow();
+		assertEquals(0, keeper.getLeaseCount());
+	}
+
+	@Test
+	public void testInvalidRenewFraction() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			new LeaseKeeper(mockSemaphore, mockScheduler, 1.0, 100L);
+		}).getMessage();
+		assertEquals("RenewFraction must be greater than zero and less than one.", message);
+		verify(mockScheduler, times(1)).scheduleWithFixedDelay(any(Runnable.class), eq(100L), eq(100L),
+				eq(TimeUnit.MILLISECONDS));
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LocalPermitLedgerTest {
+
+	private LocalPermitLedger ledger;
+
+	@BeforeEach
+	public void before() {
+		ledger = new LocalPermitLedger();
+	}
+
+	@Test
+	public void testIsSaturated() {
+		ledger.issued("key", "one", 100L);
+		assertFalse(ledger.isSaturated("key", 2, 0L));
+		ledger.issued("key", "two", 100L);
+		// call under test
+		assertTrue(ledger.isSaturated("key", 2, 0L));
+		assertTrue(ledger.isSaturated("key", 1, 0L));
+		assertFalse(ledger.isSaturated("key", 3, 0L));
+		assertFalse(ledger.isSaturated("otherKey", 1, 0L));
+	}
+
+	@Test
+	public void testIsSaturatedWithWeightedToken() {
+		ledger.issued("key", "one", 3, 100L);
+		assertFalse(ledger.isSaturated("key", 4, 0L));
+		ledger.issued("key", "two", 100L);
+		// call under test
+		assertTrue(ledger.isSaturated("key", 4, 0L));
+		ledger.refreshed("key", "one", 200L);
+		assertTrue(ledger.isSaturated("key", 3, 150L));
+		ledger.released("key", "one");
+		assertFalse(ledger.isSaturated("key", 2, 0L));
+	}
+
+	@Test
+	public void testIsSaturatedWithExpiredTokens() {
+		ledger.issued("key", "one", 50L);
+		ledger.issued("key", "two", 100L);
+		// call under test
+		assertFalse(ledger.isSaturated("key", 2, 50L));
+		// the expired token is removed.
+		assertEquals(1, ledger.getTokenCount("key"));
+		assertFalse(ledger.isSaturated("key", 1, 100L));
+		assertEquals(0, ledger.getTokenCount("key"));
+	}
+
+	@Test
+	public void testIsSaturatedWithNanoTimeOverflow() {
+		long now = Long.MAX_VALUE - 10L;
+		ledger.issued("key", "one", now + 20L);
+		// call under test
+		assertTrue(ledger.isSaturated("key", 1, now));
+	}
+
+	@Test
+	public void testRefreshed() {
+		ledger.issued("key", "one", 50L);
+		// call under test
+		ledger.refreshed("key", "one", 100L);
+		assertTrue(ledger.isSaturated("key", 1, 75L));
+	}
+
+	@Test
+	public void testRefreshedUnknownToken() {
+		// call under test
+		ledger.refreshed("key", "one", 100L);
+		assertEquals(0, ledger.getTokenCount("key"));
+	}
+
+	@Test
+	public void testReleased() {
+		ledger.issued("key", "one", 100L);
+		ledger.issued("key", "two", 100L);
+		// call under test
+		ledger.released("key", "one");
+		assertEquals(1, ledger.getTokenCount("key"));
+		ledger.released("key", "two");
+		assertEquals(0, ledger.getTokenCount("key"));
+		assertFalse(ledger.isSaturated("key", 1, 0L));
+	}
+
+	@Test
+	public void testClear() {
+		ledger.issued("key", "one", 100L);
+		ledger.issued("otherKey", "two", 100L);
+		// call under test
+		ledger.clear();
+		assertEquals(0, ledger.getTokenCount("key"));
+		assertEquals(0, ledger.getTokenCount("otherKey"));
+	}
+}
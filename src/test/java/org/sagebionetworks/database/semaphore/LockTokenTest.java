@@ -0,0 +1,87 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class LockTokenTest {
+
+	private static final String UUID = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+	@Test
+	public void testParseWithRowId() {
+		// call under test
+		LockToken token = LockToken.parse("123." + UUID);
+		assertEquals(123L, token.getRowId());
+		assertEquals(UUID, token.getSecret());
+	}
+
+	@Test
+	public void testParseOpaque() {
+		// call under test
+		LockToken token = LockToken.parse(UUID);
+		assertNull(token.getRowId());
+		assertEquals(UUID, token.getSecret());
+	}
+
+	@Test
+	public void testParseWithNonNumericPrefix() {
+		// call under test
+		LockToken token = LockToken.parse("12a." + UUID);
+		assertNull(token.getRowId());
+		assertEquals("12a." + UUID, token.getSecret());
+	}
+
+	@Test
+	public void testParseWithEmptyPrefix() {
+		// call under test
+		LockToken token = LockToken.parse("." + UUID);
+		assertNull(token.getRowId());
+		assertEquals("." + UUID, token.getSecret());
+	}
+
+	@Test
+	public void testParseWithPrefixTooLong() {
+		String value = "1234567890123456789." + UUID;
+		// call under test
+		LockToken token = LockToken.parse(value);
+		assertNull(token.getRowId());
+		assertEquals(value, token.getSecret());
+	}
+
+	@Test
+	public void testParseWeighted() {
+		// call under test
+		LockToken token = LockToken.parse("4:" + UUID);
+		assertNull(token.getRowId());
+		assertEquals(4, token.getWeight());
+		assertEquals(UUID, token.getSecret());
+	}
+
+	@Test
+	public void testParseWeightTooLong() {
+		String value = "1234:" + UUID;
+		// call under test
+		LockToken token = LockToken.parse(value);
+		assertNull(token.getWeight());
+		assertEquals(value, token.getSecret());
+	}
+
+	@Test
+	public void testParseWithRowIdHasNoWeight() {
+		// call under test
+		LockToken token = LockToken.parse("123." + UUID);
+		assertNull(token.getWeight());
+	}
+
+	@Test
+	public void testParseWithNull() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			LockToken.parse(null);
+		}).getMessage();
+		assertEquals("Token cannot be null.", message);
+	}
+}
@@ -0,0 +1,72 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.sagebionetworks.database.semaphore.SemaphoreMetricsListener.Operation;
+import org.sagebionetworks.database.semaphore.SemaphoreMetricsListener.Outcome;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MicrometerMetricsListenerTest {
+
+	private SimpleMeterRegistry registry;
+
+	@BeforeEach
+	public void before() {
+		registry = new SimpleMeterRegistry();
+	}
+
+	@Test
+	public void testOnOperation() {
+		MicrometerMetricsListener listener = new MicrometerMetricsListener(registry,
+				SemaphoreMetrics.keyPrefixTagger(':'), 10);
+		// call under test
+		listener.onOperation(Operation.ACQUIRE, "job:1", Outcome.SUCCESS, 1_000_000L);
+		listener.onOperation(Operation.ACQUIRE, "job:2", Outcome.SUCCESS, 3_000_000L);
+		listener.onOperation(Operation.RELEASE, "job:2", Outcome.EXPIRED, 1_000L);
+		Timer acquired = registry.get(MicrometerMetricsListener.OPERATION_TIMER_NAME).tag("operation", "acquire")
+				.tag("outcome", "success").tag("key.tag", "job").timer();
+		assertEquals(2L, acquired.count());
+		assertEquals(4.0, acquired.totalTime(TimeUnit.MILLISECONDS), 0.001);
+		Timer expired = registry.get(MicrometerMetricsListener.OPERATION_TIMER_NAME).tag("operation", "release")
+				.tag("outcome", "expired").timer();
+		assertEquals(1L, expired.count());
+	}
+
+	@Test
+	public void testOnOperationWithoutTags() {
+		MicrometerMetricsListener listener = new MicrometerMetricsListener(registry);
+		// call under test
+		listener.onOperation(Operation.GARBAGE_COLLECTION, null, Outcome.SUCCESS, 1_000L);
+		Timer timer = registry.get(MicrometerMetricsListener.OPERATION_TIMER_NAME)
+				.tag("key.tag", SemaphoreMetrics.NO_TAG).timer();
+		assertNotNull(timer);
+		assertEquals(1L, timer.count());
+	}
+
+	@Test
+	public void testOnGarbageCollection() {
+		MicrometerMetricsListener listener = new MicrometerMetricsListener(registry);
+		// call under test
+		listener.onGarbageCollection(5L);
+		listener.onGarbageCollection(2L);
+		assertEquals(7.0,
+				registry.get(MicrometerMetricsListener.GARBAGE_COLLECTED_ROWS_COUNTER_NAME).counter().count(), 0.0);
+	}
+
+	@Test
+	public void testConstructorWithNullRegistry() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new MicrometerMetricsListener(null);
+		}).getMessage();
+		assertEquals("Registry cannot be null", message);
+	}
+}
@@ -0,0 +1,291 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class PermitBlockSemaphoreTest {
+
+	@Mock
+	private CountingSemaphore mockDelegate;
+	@Mock
+	private ScheduledExecutorService mockScheduler;
+	@Mock
+	private ScheduledFuture<Object> mockFuture;
+
+	private AtomicLong clock;
+	private PermitBlockSemaphore semaphore;
+	private String context;
+	private LockRequest blockRequest;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@BeforeEach
+	public void before() {
+		clock = new AtomicLong(0L);
+		when(mockScheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class)))
+				.thenReturn((ScheduledFuture) mockFuture);
+		semaphore = new PermitBlockSemaphore(mockDelegate, mockScheduler, false, 100L, clock::get);
+		semaphore.setMinBlockLockCount(100);
+		semaphore.setBlockSize(2);
+		semaphore.setBlockTimeoutSec(60);
+		semaphore.setIdleTimeoutMs(5_000L);
+		context = "some context";
+		blockRequest = new LockRequest("key", 60, 100, context);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockBelowMinimum() {
+		when(mockDelegate.attemptToAcquireLock("key", 10, 99, context)).thenReturn(Optional.of("token"));
+		// call under test
+		assertEquals(Optional.of("token"), semaphore.attemptToAcquireLock("key", 10, 99, context));
+		assertEquals(0, semaphore.getLeasedPermitCount("key"));
+	}
+
+	@Test
+	public void testAttemptToAcquireLockLeasesBlock() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.of("2.b")));
+		// call under test
+		String one = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		String two = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		assertNotEquals(one, two);
+		assertTrue(one.contains("#"));
+		assertEquals(2, semaphore.getLeasedPermitCount("key"));
+		// both permits came from a single call.
+		verify(mockDelegate, times(1)).attemptToAcquireLocks(any());
+		verifyNoMoreInteractions(mockDelegate);
+	}
+
+	@Test
+	public void testAttemptToAcquireLockNoPermitsAvailable() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.empty(), Optional.empty()));
+		// call under test
+		assertEquals(Optional.empty(), semaphore.attemptToAcquireLock("key", 10, 100, context));
+		assertEquals(0, semaphore.getLeasedPermitCount("key"));
+	}
+
+	@Test
+	public void testReleaseLockReusesPermit() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.empty()));
+		String one = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		// call under test
+		semaphore.releaseLock("key", one);
+		String two = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		// Each local lock has its own token.
+		assertNotEquals(one, two);
+		verify(mockDelegate, times(1)).attemptToAcquireLocks(any());
+		verify(mockDelegate, never()).releaseLock(any(), any());
+		// The old token cannot release the new lock.
+		assertThrows(LockReleaseFailedException.class, () -> {
+			semaphore.releaseLock("key", one);
+		});
+		semaphore.releaseLock("key", two);
+	}
+
+	@Test
+	public void testReleaseLockOfDelegate() {
+		// call under test
+		semaphore.releaseLock("key", "1.a");
+		verify(mockDelegate).releaseLock("key", "1.a");
+	}
+
+	@Test
+	public void testRefreshLockTimeoutLocal() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.empty()));
+		String token = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		clock.set(TimeUnit.SECONDS.toNanos(8));
+		// call under test
+		semaphore.refreshLockTimeout("key", token, 10);
+		clock.set(TimeUnit.SECONDS.toNanos(15));
+		semaphore.tick();
+		// still held after its original timeout.
+		semaphore.releaseLock("key", token);
+		verify(mockDelegate, never()).refreshLockTimeout(any(), any(), anyLong());
+	}
+
+	@Test
+	public void testTickReclaimsExpiredLocalLock() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.empty()));
+		String token = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		clock.set(TimeUnit.SECONDS.toNanos(11));
+		// call under test
+		semaphore.tick();
+		assertThrows(LockReleaseFailedException.class, () -> {
+			semaphore.refreshLockTimeout("key", token, 10);
+		});
+		// The permit can be used by the next caller.
+		assertTrue(semaphore.attemptToAcquireLock("key", 10, 100, context).isPresent());
+		verify(mockDelegate, times(1)).attemptToAcquireLocks(any());
+	}
+
+	@Test
+	public void testTickRenewsLeases() {
+		semaphore.setIdleTimeoutMs(60_000L);
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.of("2.b")));
+		String token = semaphore.attemptToAcquireLock("key", 120, 100, context).get();
+		semaphore.releaseLock("key", semaphore.attemptToAcquireLock("key", 120, 100, context).get());
+		List<LockRefreshRequest> expected = Arrays.asList(new LockRefreshRequest("key", "2.b", 60),
+				new LockRefreshRequest("key", "1.a", 60));
+		when(mockDelegate.refreshLockTimeouts(expected))
+				.thenReturn(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.REFRESHED));
+		// not yet due
+		clock.set(TimeUnit.SECONDS.toNanos(4));
+		semaphore.tick();
+		verify(mockDelegate, never()).refreshLockTimeouts(any());
+		clock.set(TimeUnit.SECONDS.toNanos(30));
+		// call under test
+		semaphore.tick();
+		verify(mockDelegate, times(1)).refreshLockTimeouts(expected);
+		semaphore.releaseLock("key", token);
+	}
+
+	@Test
+	public void testTickDropsLostLease() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.empty()));
+		String token = semaphore.attemptToAcquireLock("key", 120, 100, context).get();
+		when(mockDelegate.refreshLockTimeouts(Collections.singletonList(new LockRefreshRequest("key", "1.a", 60))))
+				.thenReturn(Collections.singletonList(LockRefreshResult.EXPIRED));
+		clock.set(TimeUnit.SECONDS.toNanos(30));
+		// call under test
+		semaphore.tick();
+		assertEquals(0, semaphore.getLeasedPermitCount("key"));
+		assertThrows(LockReleaseFailedException.class, () -> {
+			semaphore.releaseLock("key", token);
+		});
+	}
+
+	@Test
+	public void testTickReturnsIdlePermits() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.of("2.b")));
+		String token = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		clock.set(TimeUnit.SECONDS.toNanos(3));
+		semaphore.releaseLock("key", token);
+		clock.set(TimeUnit.SECONDS.toNanos(6));
+		// call under test
+		semaphore.tick();
+		// Only the permit that was never used has been idle long enough.
+		verify(mockDelegate).releaseLock("key", "2.b");
+		assertEquals(1, semaphore.getLeasedPermitCount("key"));
+		clock.set(TimeUnit.SECONDS.toNanos(9));
+		semaphore.tick();
+		verify(mockDelegate).releaseLock("key", "1.a");
+		assertEquals(0, semaphore.getLeasedPermitCount("key"));
+	}
+
+	@Test
+	public void testAttemptToAcquireLocks() {
+		LockRequest small = new LockRequest("other", 10, 1, context);
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest))).thenReturn(
+				Arrays.asList(Optional.of("1.a"), Optional.empty()), Arrays.asList(Optional.empty(), Optional.empty()));
+		when(mockDelegate.attemptToAcquireLocks(Collections.singletonList(small)))
+				.thenReturn(Collections.singletonList(Optional.of("3.c")));
+		// call under test
+		List<Optional<String>> results = semaphore.attemptToAcquireLocks(
+				Arrays.asList(new LockRequest("key", 10, 100, context), small, new LockRequest("key", 10, 100, context)));
+		assertTrue(results.get(0).get().startsWith("1.a#"));
+		assertEquals(Optional.of("3.c"), results.get(1));
+		assertEquals(Optional.empty(), results.get(2));
+	}
+
+	@Test
+	public void testRefreshLockTimeouts() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.empty()));
+		String token = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		LockRefreshRequest delegated = new LockRefreshRequest("other", "3.c", 10);
+		when(mockDelegate.refreshLockTimeouts(Collections.singletonList(delegated)))
+				.thenReturn(Collections.singletonList(LockRefreshResult.REFRESHED));
+		// call under test
+		List<LockRefreshResult> results = semaphore.refreshLockTimeouts(Arrays.asList(
+				new LockRefreshRequest("key", token, 10), delegated, new LockRefreshRequest("key", "1.a#99", 10)));
+		assertEquals(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.REFRESHED,
+				LockRefreshResult.EXPIRED), results);
+	}
+
+	@Test
+	public void testClose() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.of("2.b")));
+		String token = semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		// call under test
+		semaphore.close();
+		verify(mockFuture).cancel(false);
+		// only the unused permit is returned.
+		verify(mockDelegate).releaseLock("key", "2.b");
+		verify(mockDelegate, never()).releaseLock("key", "1.a");
+		assertThrows(LockReleaseFailedException.class, () -> {
+			semaphore.releaseLock("key", token);
+		});
+	}
+
+	@Test
+	public void testReleaseAllLocks() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.of("2.b")));
+		semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		// call under test
+		semaphore.releaseAllLocks();
+		verify(mockDelegate).releaseAllLocks();
+		assertEquals(0, semaphore.getLeasedPermitCount("key"));
+	}
+
+	@Test
+	public void testAttemptToAcquireLockValidation() {
+		when(mockDelegate.attemptToAcquireLocks(Collections.nCopies(2, blockRequest)))
+				.thenReturn(Arrays.asList(Optional.of("1.a"), Optional.of("2.b")));
+		semaphore.attemptToAcquireLock("key", 10, 100, context).get();
+		// the leased block has free permits, but the context is still checked.
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLock("key", 10, 100, " ");
+		}).getMessage();
+		assertEquals("Context cannot be null or empty", message);
+		message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLock("key", 10, 100, null);
+		}).getMessage();
+		assertEquals("Context cannot be null or empty", message);
+		// the rejected calls did not take the free permit.
+		assertTrue(semaphore.attemptToAcquireLock("key", 10, 100, context).isPresent());
+	}
+
+	@Test
+	public void testSetBlockSizeLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.setBlockSize(0);
+		}).getMessage();
+		assertEquals("BlockSize cannot be less then one.", message);
+	}
+}
@@ -0,0 +1,88 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SaturatedKeyCacheTest {
+
+	private AtomicLong clock;
+	private SaturatedKeyCache cache;
+
+	@BeforeEach
+	public void before() {
+		clock = new AtomicLong(0L);
+		cache = new SaturatedKeyCache(100L, 2, clock::get);
+	}
+
+	@Test
+	public void testIsSaturated() {
+		cache.saturated("key", 2, 0L);
+		// call under test
+		assertTrue(cache.isSaturated("key", 2));
+		assertTrue(cache.isSaturated("key", 1));
+		// a larger limit might still have a lock available.
+		assertFalse(cache.isSaturated("key", 3));
+		assertFalse(cache.isSaturated("otherKey", 1));
+	}
+
+	@Test
+	public void testIsSaturatedExpired() {
+		cache.saturated("key", 1, 0L);
+		clock.set(99L);
+		assertTrue(cache.isSaturated("key", 1));
+		clock.set(100L);
+		// call under test
+		assertFalse(cache.isSaturated("key", 1));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testGetWithContext() {
+		cache.saturated("key", 1, 0L);
+		SaturatedKeyCache.SaturatedKey entry = cache.get("key");
+		assertNotNull(entry);
+		assertNull(entry.context);
+		entry.context = "blocking context";
+		// call under test
+		assertEquals("blocking context", cache.get("key").context);
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		cache.saturated("one", 1, 0L);
+		cache.saturated("two", 1, 0L);
+		// touch one so two is the least recently used.
+		cache.get("one");
+		// call under test
+		cache.saturated("three", 1, 0L);
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("one"));
+		assertNull(cache.get("two"));
+		assertNotNull(cache.get("three"));
+	}
+
+	@Test
+	public void testInvalidate() {
+		cache.saturated("key", 1, 0L);
+		// call under test
+		cache.invalidate("key");
+		assertFalse(cache.isSaturated("key", 1));
+	}
+
+	@Test
+	public void testClear() {
+		cache.saturated("one", 1, 0L);
+		cache.saturated("two", 1, 0L);
+		// call under test
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+}
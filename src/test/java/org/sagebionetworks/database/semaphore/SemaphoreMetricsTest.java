@@ -0,0 +1,94 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.sagebionetworks.database.semaphore.SemaphoreMetrics.MetricId;
+import org.sagebionetworks.database.semaphore.SemaphoreMetricsListener.Operation;
+import org.sagebionetworks.database.semaphore.SemaphoreMetricsListener.Outcome;
+
+public class SemaphoreMetricsTest {
+
+	@Test
+	public void testOnOperationWithoutTags() {
+		SemaphoreMetrics metrics = new SemaphoreMetrics();
+		// call under test
+		metrics.onOperation(Operation.ACQUIRE, "job:1", Outcome.SUCCESS, 100L);
+		metrics.onOperation(Operation.ACQUIRE, "job:2", Outcome.SUCCESS, 300L);
+		metrics.onOperation(Operation.ACQUIRE, "job:2", Outcome.UNAVAILABLE, 50L);
+		MetricId success = new MetricId(Operation.ACQUIRE, Outcome.SUCCESS, SemaphoreMetrics.NO_TAG);
+		MetricId unavailable = new MetricId(Operation.ACQUIRE, Outcome.UNAVAILABLE, SemaphoreMetrics.NO_TAG);
+		assertEquals(Set.of(success, unavailable), metrics.getMetricIds());
+		assertEquals(2L, metrics.getHistogram(success).getCount());
+		assertEquals(400L, metrics.getHistogram(success).getTotalNanos());
+		assertEquals(1L, metrics.getCount(Operation.ACQUIRE, Outcome.UNAVAILABLE));
+		assertEquals(0L, metrics.getCount(Operation.RELEASE, Outcome.SUCCESS));
+		assertNull(metrics.getHistogram(new MetricId(Operation.RELEASE, Outcome.SUCCESS, SemaphoreMetrics.NO_TAG)));
+	}
+
+	@Test
+	public void testOnOperationWithKeyPrefixTags() {
+		SemaphoreMetrics metrics = new SemaphoreMetrics(SemaphoreMetrics.keyPrefixTagger(':'));
+		// call under test
+		metrics.onOperation(Operation.ACQUIRE, "job:1", Outcome.SUCCESS, 100L);
+		metrics.onOperation(Operation.ACQUIRE, "table:2", Outcome.SUCCESS, 100L);
+		metrics.onOperation(Operation.ACQUIRE, "plain", Outcome.SUCCESS, 100L);
+		metrics.onOperation(Operation.GARBAGE_COLLECTION, null, Outcome.SUCCESS, 100L);
+		assertEquals(Set.of(new MetricId(Operation.ACQUIRE, Outcome.SUCCESS, "job"),
+				new MetricId(Operation.ACQUIRE, Outcome.SUCCESS, "table"),
+				new MetricId(Operation.ACQUIRE, Outcome.SUCCESS, SemaphoreMetrics.NO_TAG),
+				new MetricId(Operation.GARBAGE_COLLECTION, Outcome.SUCCESS, SemaphoreMetrics.NO_TAG)),
+				metrics.getMetricIds());
+		assertEquals(3L, metrics.getCount(Operation.ACQUIRE, Outcome.SUCCESS));
+	}
+
+	@Test
+	public void testOnOperationOverMaxTags() {
+		SemaphoreMetrics metrics = new SemaphoreMetrics(SemaphoreMetrics.keyPrefixTagger(':'), 2);
+		// call under test
+		metrics.onOperation(Operation.REFRESH, "a:1", Outcome.EXPIRED, 1L);
+		metrics.onOperation(Operation.REFRESH, "b:1", Outcome.EXPIRED, 1L);
+		metrics.onOperation(Operation.REFRESH, "c:1", Outcome.EXPIRED, 1L);
+		metrics.onOperation(Operation.REFRESH, "d:1", Outcome.EXPIRED, 1L);
+		metrics.onOperation(Operation.REFRESH, "a:2", Outcome.EXPIRED, 1L);
+		assertEquals(Set.of(new MetricId(Operation.REFRESH, Outcome.EXPIRED, "a"),
+				new MetricId(Operation.REFRESH, Outcome.EXPIRED, "b"),
+				new MetricId(Operation.REFRESH, Outcome.EXPIRED, SemaphoreMetrics.OTHER_TAG)),
+				metrics.getMetricIds());
+		assertEquals(2L, metrics
+				.getHistogram(new MetricId(Operation.REFRESH, Outcome.EXPIRED, SemaphoreMetrics.OTHER_TAG)).getCount());
+		assertEquals(2L, metrics.getHistogram(new MetricId(Operation.REFRESH, Outcome.EXPIRED, "a")).getCount());
+	}
+
+	@Test
+	public void testOnGarbageCollection() {
+		SemaphoreMetrics metrics = new SemaphoreMetrics();
+		// call under test
+		metrics.onGarbageCollection(3L);
+		metrics.onGarbageCollection(0L);
+		metrics.onGarbageCollection(4L);
+		assertEquals(7L, metrics.getGarbageCollectedRowCount());
+	}
+
+	@Test
+	public void testConstructorWithNullTagger() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new SemaphoreMetrics(null);
+		}).getMessage();
+		assertEquals("KeyTagger cannot be null", message);
+	}
+
+	@Test
+	public void testConstructorWithMaxTagsLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new SemaphoreMetrics(SemaphoreMetrics.keyPrefixTagger(':'), 0);
+		}).getMessage();
+		assertEquals("MaxTags cannot be less then one.", message);
+	}
+}
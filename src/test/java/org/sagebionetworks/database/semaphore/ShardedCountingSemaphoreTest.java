@@ -0,0 +1,319 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class ShardedCountingSemaphoreTest {
+
+	@Mock
+	private CountingSemaphore mockShardA;
+	@Mock
+	private CountingSemaphore mockShardB;
+	@Mock
+	private CountingSemaphore mockShardC;
+
+	private Map<String, CountingSemaphore> shards;
+	private ShardedCountingSemaphore semaphore;
+	private String context;
+
+	@BeforeEach
+	public void before() {
+		shards = new LinkedHashMap<>();
+		shards.put("a", mockShardA);
+		shards.put("b", mockShardB);
+		shards.put("c", mockShardC);
+		semaphore = new ShardedCountingSemaphore(shards);
+		context = "some context";
+	}
+
+	@AfterEach
+	public void after() {
+		semaphore.close();
+	}
+
+	@Test
+	public void testAttemptToAcquireLock() {
+		String key = keyOfShard("b");
+		when(mockShardB.attemptToAcquireLock(key, 10, 2, context)).thenReturn(Optional.of("12.token"));
+		// call under test
+		assertEquals(Optional.of("b/12.token"), semaphore.attemptToAcquireLock(key, 10, 2, context));
+	}
+
+	@Test
+	public void testAttemptToAcquireLockUnavailable() {
+		String key = keyOfShard("a");
+		when(mockShardA.attemptToAcquireLock(key, 10, 1, context)).thenReturn(Optional.empty());
+		// call under test
+		assertEquals(Optional.empty(), semaphore.attemptToAcquireLock(key, 10, 1, context));
+	}
+
+	@Test
+	public void testAttemptToAcquireLockWithNullKey() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLock(null, 10, 1, context);
+		}).getMessage();
+		assertEquals("Key cannot be null", message);
+	}
+
+	@Test
+	public void testAttemptToAcquireLocks() {
+		String keyA = keyOfShard("a");
+		String keyC = keyOfShard("c");
+		LockRequest one = new LockRequest(keyA, 10, 1, context);
+		LockRequest two = new LockRequest(keyC, 10, 1, context);
+		LockRequest three = new LockRequest(keyA, 10, 1, context);
+		when(mockShardA.attemptToAcquireLocks(Arrays.asList(one, three)))
+				.thenReturn(Arrays.asList(Optional.of("1.x"), Optional.empty()));
+		when(mockShardC.attemptToAcquireLocks(Collections.singletonList(two)))
+				.thenReturn(Collections.singletonList(Optional.of("2.y")));
+		// call under test
+		List<Optional<String>> results = semaphore.attemptToAcquireLocks(Arrays.asList(one, two, three));
+		assertEquals(Arrays.asList(Optional.of("a/1.x"), Optional.of("c/2.y"), Optional.empty()), results);
+		verify(mockShardB, never()).attemptToAcquireLocks(any());
+	}
+
+	@Test
+	public void testAttemptToAcquireLocksWithFailedShard() {
+		String keyA = keyOfShard("a");
+		String keyC = keyOfShard("c");
+		LockRequest one = new LockRequest(keyA, 10, 1, context);
+		LockRequest two = new LockRequest(keyC, 10, 1, context);
+		when(mockShardA.attemptToAcquireLocks(Collections.singletonList(one)))
+				.thenReturn(Collections.singletonList(Optional.of("1.x")));
+		IllegalStateException failure = new IllegalStateException("shard down");
+		when(mockShardC.attemptToAcquireLocks(Collections.singletonList(two))).thenThrow(failure);
+		IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> {
+			// call under test
+			semaphore.attemptToAcquireLocks(Arrays.asList(one, two));
+		});
+		assertEquals(failure, thrown);
+		// The lock granted by the healthy shard is not leaked.
+		verify(mockShardA).releaseLock(keyA, "1.x");
+	}
+
+	@Test
+	public void testReleaseLockRoutesByToken() {
+		// The key now belongs to another shard but the lock was issued by shard b.
+		String key = keyOfShard("a");
+		// call under test
+		semaphore.releaseLock(key, "b/12.token");
+		verify(mockShardB).releaseLock(key, "12.token");
+		verify(mockShardA, never()).releaseLock(anyString(), anyString());
+	}
+
+	@Test
+	public void testReleaseLockWithoutShard() {
+		String key = keyOfShard("c");
+		// call under test
+		semaphore.releaseLock(key, "12.token");
+		verify(mockShardC).releaseLock(key, "12.token");
+	}
+
+	@Test
+	public void testReleaseLockWithUnknownShard() {
+		String key = keyOfShard("c");
+		assertThrows(LockReleaseFailedException.class, () -> {
+			// call under test
+			semaphore.releaseLock(key, "removed/12.token");
+		});
+	}
+
+	@Test
+	public void testRefreshLockTimeout() {
+		String key = keyOfShard("a");
+		// call under test
+		semaphore.refreshLockTimeout(key, "c/12.token", 30);
+		verify(mockShardC).refreshLockTimeout(key, "12.token", 30);
+	}
+
+	@Test
+	public void testRefreshLockTimeouts() {
+		String key = keyOfShard("a");
+		when(mockShardA.refreshLockTimeouts(Collections.singletonList(new LockRefreshRequest(key, "1.x", 30))))
+				.thenReturn(Collections.singletonList(LockRefreshResult.REFRESHED));
+		when(mockShardB.refreshLockTimeouts(Collections.singletonList(new LockRefreshRequest(key, "2.y", 30))))
+				.thenReturn(Collections.singletonList(LockRefreshResult.KEY_NOT_FOUND));
+		// call under test
+		List<LockRefreshResult> results = semaphore.refreshLockTimeouts(
+				Arrays.asList(new LockRefreshRequest(key, "a/1.x", 30), new LockRefreshRequest(key, "removed/3.z", 30),
+						new LockRefreshRequest(key, "b/2.y", 30)));
+		assertEquals(Arrays.asList(LockRefreshResult.REFRESHED, LockRefreshResult.EXPIRED,
+				LockRefreshResult.KEY_NOT_FOUND), results);
+	}
+
+	@Test
+	public void testReleaseAllLocks() {
+		// call under test
+		semaphore.releaseAllLocks();
+		verify(mockShardA).releaseAllLocks();
+		verify(mockShardB).releaseAllLocks();
+		verify(mockShardC).releaseAllLocks();
+	}
+
+	@Test
+	public void testReleaseAllLocksFailure() {
+		IllegalStateException failure = new IllegalStateException("shard down");
+		doThrow(failure).when(mockShardB).releaseAllLocks();
+		IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> {
+			// call under test
+			semaphore.releaseAllLocks();
+		});
+		assertEquals(failure, thrown);
+		// The other shards are still released.
+		verify(mockShardA).releaseAllLocks();
+		verify(mockShardC).releaseAllLocks();
+	}
+
+	@Test
+	public void testRunGarbageCollection() {
+		when(mockShardA.runGarbageCollection(10, 100, 1000L)).thenReturn(new GarbageCollectionResult(3, false));
+		when(mockShardB.runGarbageCollection(10, 100, 1000L)).thenReturn(new GarbageCollectionResult(100, true));
+		when(mockShardC.runGarbageCollection(10, 100, 1000L)).thenReturn(new GarbageCollectionResult(0, false));
+		// call under test
+		assertEquals(new GarbageCollectionResult(103, true), semaphore.runGarbageCollection(10, 100, 1000L));
+	}
+
+	@Test
+	public void testRunGarbageCollectionWithUnknownRowsDeleted() {
+		when(mockShardA.runGarbageCollection(10, 100, 1000L)).thenReturn(new GarbageCollectionResult(3, false));
+		when(mockShardB.runGarbageCollection(10, 100, 1000L))
+				.thenReturn(new GarbageCollectionResult(GarbageCollectionResult.UNKNOWN_ROWS_DELETED, false));
+		when(mockShardC.runGarbageCollection(10, 100, 1000L)).thenReturn(new GarbageCollectionResult(0, true));
+		// call under test
+		assertEquals(new GarbageCollectionResult(GarbageCollectionResult.UNKNOWN_ROWS_DELETED, true),
+				semaphore.runGarbageCollection(10, 100, 1000L));
+	}
+
+	@Test
+	public void testGetLockRowCount() {
+		when(mockShardA.getLockRowCount()).thenReturn(1L);
+		when(mockShardB.getLockRowCount()).thenReturn(20L);
+		when(mockShardC.getLockRowCount()).thenReturn(300L);
+		// call under test
+		assertEquals(321L, semaphore.getLockRowCount());
+	}
+
+	@Test
+	public void testGetLockRowHighWaterMark() {
+		when(mockShardA.getLockRowHighWaterMark()).thenReturn(5L);
+		when(mockShardB.getLockRowHighWaterMark()).thenReturn(0L);
+		when(mockShardC.getLockRowHighWaterMark()).thenReturn(7L);
+		// call under test
+		assertEquals(12L, semaphore.getLockRowHighWaterMark());
+	}
+
+	@Test
+	public void testAttemptToAcquireLockHeldByPreviousOwner() {
+		semaphore.setPreviousShardIds(Arrays.asList("a", "b"));
+		// Every key of shard c moved from shard a or b.
+		String key = keyOfShard("c");
+		CountingSemaphore previousOwner = previousOwnerOf(key);
+		when(previousOwner.getFirstUnexpiredLockContext(key)).thenReturn(Optional.of("old context"));
+		// call under test
+		assertEquals(Optional.empty(), semaphore.attemptToAcquireLock(key, 10, 1, context));
+		verify(mockShardC, never()).attemptToAcquireLock(anyString(), anyLong(), anyInt(), anyString());
+		assertEquals(Optional.of("old context"), semaphore.getFirstUnexpiredLockContext(key));
+	}
+
+	@Test
+	public void testAttemptToAcquireLockReleasedByPreviousOwner() {
+		semaphore.setPreviousShardIds(Arrays.asList("a", "b"));
+		String key = keyOfShard("c");
+		CountingSemaphore previousOwner = previousOwnerOf(key);
+		when(previousOwner.getFirstUnexpiredLockContext(key)).thenReturn(Optional.empty());
+		when(mockShardC.attemptToAcquireLock(key, 10, 1, context)).thenReturn(Optional.of("1.x"));
+		// call under test
+		assertEquals(Optional.of("c/1.x"), semaphore.attemptToAcquireLock(key, 10, 1, context));
+		// Once cleared, the previous owner is no longer checked.
+		semaphore.setPreviousShardIds(null);
+		assertEquals(Optional.of("c/1.x"), semaphore.attemptToAcquireLock(key, 10, 1, context));
+		verify(previousOwner, times(1)).getFirstUnexpiredLockContext(key);
+	}
+
+	@Test
+	public void testReleaseLockWithoutShardRoutesToPreviousOwner() {
+		semaphore.setPreviousShardIds(Arrays.asList("a", "b"));
+		String key = keyOfShard("c");
+		// call under test
+		semaphore.releaseLock(key, "12.token");
+		verify(previousOwnerOf(key)).releaseLock(key, "12.token");
+		verify(mockShardC, never()).releaseLock(anyString(), anyString());
+	}
+
+	@Test
+	public void testSetPreviousShardIdsWithUnknownShard() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			semaphore.setPreviousShardIds(Arrays.asList("a", "z"));
+		}).getMessage();
+		assertEquals("Unknown shard: z", message);
+	}
+
+	@Test
+	public void testConstructorWithDelimiterInShardId() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new ShardedCountingSemaphore(Map.of("a/b", mockShardA));
+		}).getMessage();
+		assertEquals("ShardId cannot contain: /", message);
+	}
+
+	@Test
+	public void testConstructorWithEmptyShards() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new ShardedCountingSemaphore(Collections.emptyMap());
+		}).getMessage();
+		assertEquals("Shards cannot be null or empty", message);
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return The owner of the given key on the ring of shards a and b.
+	 */
+	private CountingSemaphore previousOwnerOf(String key) {
+		String shardId = new ConsistentHashRing(Arrays.asList("a", "b"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES)
+				.shardOf(key);
+		return shards.get(shardId);
+	}
+
+	/**
+	 * 
+	 * @param shardId
+	 * @return A key that belongs to the given shard.
+	 */
+	private String keyOfShard(String shardId) {
+		for (int i = 0;; i++) {
+			String key = "key-" + i;
+			if (semaphore.getShardId(key).equals(shardId)) {
+				return key;
+			}
+		}
+	}
+}
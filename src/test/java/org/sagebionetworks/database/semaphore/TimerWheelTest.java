@@ -0,0 +1,158 @@
+package org.sagebionetworks.database.semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+	private static final long TICK_MS = 10L;
+
+	private TimerWheel wheel;
+
+	@BeforeEach
+	public void before() {
+		wheel = new TimerWheel(TICK_MS, 1_000L);
+	}
+
+	@Test
+	public void testSchedulePastDeadline() {
+		TimerWheel.Node node = new TimerWheel.Node();
+		// call under test
+		wheel.schedule(node, 500L);
+		assertTrue(node.isScheduled());
+		assertTrue(wheel.hasExpired());
+		assertSame(node, wheel.pollExpired());
+		assertFalse(node.isScheduled());
+		assertNull(wheel.pollExpired());
+	}
+
+	@Test
+	public void testNeverExpiresEarly() {
+		TimerWheel.Node node = new TimerWheel.Node();
+		// call under test
+		wheel.schedule(node, 1_015L);
+		wheel.advance(1_019L);
+		assertFalse(wheel.hasExpired());
+		wheel.advance(1_020L);
+		assertSame(node, wheel.pollExpired());
+	}
+
+	@Test
+	public void testExpiresAtEachLevel() {
+		long[] delays = { 50L, 5_000L, 500_000L, 50_000_000L };
+		for (long delay : delays) {
+			TimerWheel.Node node = new TimerWheel.Node();
+			long deadline = 1_000L + delay;
+			wheel = new TimerWheel(TICK_MS, 1_000L);
+			wheel.schedule(node, deadline);
+			// call under test
+			wheel.advance(deadline);
+			assertFalse(wheel.hasExpired(), "delay: " + delay);
+			wheel.advance(deadline + TICK_MS);
+			assertSame(node, wheel.pollExpired(), "delay: " + delay);
+		}
+	}
+
+	@Test
+	public void testExpiresInSmallSteps() {
+		TimerWheel.Node node = new TimerWheel.Node();
+		long deadline = 1_000L + 70_000L;
+		wheel.schedule(node, deadline);
+		for (long now = 1_000L; now <= deadline; now += 7L) {
+			// call under test
+			wheel.advance(now);
+			assertFalse(wheel.hasExpired());
+		}
+		wheel.advance(deadline + TICK_MS);
+		assertSame(node, wheel.pollExpired());
+	}
+
+	@Test
+	public void testDeadlineBeyondLastLevel() {
+		TimerWheel.Node node = new TimerWheel.Node();
+		long span = TICK_MS << (TimerWheel.WHEEL_BITS * TimerWheel.LEVELS);
+		long deadline = 1_000L + span * 3;
+		wheel.schedule(node, deadline);
+		// call under test
+		wheel.advance(1_000L + span * 2);
+		assertFalse(wheel.hasExpired());
+		wheel.advance(deadline);
+		assertFalse(wheel.hasExpired());
+		wheel.advance(deadline + TICK_MS);
+		assertSame(node, wheel.pollExpired());
+	}
+
+	@Test
+	public void testManyNodes() {
+		Set<TimerWheel.Node> nodes = new HashSet<>();
+		for (int i = 0; i < 1_000; i++) {
+			TimerWheel.Node node = new TimerWheel.Node();
+			wheel.schedule(node, 1_000L + i * 37L);
+			nodes.add(node);
+		}
+		// call under test
+		wheel.advance(1_000L + 999 * 37L + TICK_MS);
+		TimerWheel.Node node;
+		int count = 0;
+		while ((node = wheel.pollExpired()) != null) {
+			assertTrue(nodes.remove(node));
+			count++;
+		}
+		assertEquals(1_000, count);
+	}
+
+	@Test
+	public void testCancel() {
+		TimerWheel.Node node = new TimerWheel.Node();
+		wheel.schedule(node, 2_000L);
+		// call under test
+		wheel.cancel(node);
+		assertFalse(node.isScheduled());
+		wheel.advance(3_000L);
+		assertFalse(wheel.hasExpired());
+		// cancelling again is ignored.
+		wheel.cancel(node);
+	}
+
+	@Test
+	public void testReschedule() {
+		TimerWheel.Node node = new TimerWheel.Node();
+		wheel.schedule(node, 2_000L);
+		// call under test
+		wheel.schedule(node, 5_000L);
+		wheel.advance(3_000L);
+		assertFalse(wheel.hasExpired());
+		wheel.advance(5_010L);
+		assertSame(node, wheel.pollExpired());
+	}
+
+	@Test
+	public void testAdvanceBackwards() {
+		TimerWheel.Node node = new TimerWheel.Node();
+		wheel.schedule(node, 1_100L);
+		// call under test
+		wheel.advance(900L);
+		assertFalse(wheel.hasExpired());
+		wheel.advance(1_110L);
+		assertSame(node, wheel.pollExpired());
+	}
+
+	@Test
+	public void testTickMsLessThanOne() {
+		String message = assertThrows(IllegalArgumentException.class, () -> {
+			// call under test
+			new TimerWheel(0L, 0L);
+		}).getMessage();
+		assertEquals("TickMs cannot be less then one.", message);
+	}
+}